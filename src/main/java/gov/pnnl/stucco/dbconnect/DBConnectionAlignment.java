@@ -158,6 +158,17 @@ public interface DBConnectionAlignment {
      * @return list of vertex IDs
      */
     public List<String> getVertIDsByConstraints(List<DBConstraint> constraints, int offcet, int limit);
+
+    /**
+     * Identify the vertices of a type whose range, from one property to another (inclusive), contains a value
+     * (eg. the AddressRange vertices whose startIPInt to endIPInt range holds an IP's ipInt)
+     * @param vertexType - type of the range vertices
+     * @param startProp - property holding the start of the range
+     * @param endProp - property holding the end of the range
+     * @param value - value to look up
+     * @return list of vertex IDs
+     */
+    public List<String> getVertIDsByRangeContaining(String vertexType, String startProp, String endProp, long value);
     
     /**
      * Given two vertices and a relation, remove the edge
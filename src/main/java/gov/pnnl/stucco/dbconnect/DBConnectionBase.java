@@ -10,13 +10,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 public abstract class DBConnectionBase implements DBConnectionAlignment, DBConnectionTestInterface, DBConnectionIndexerInterface {
 
-    private Map<String,String> cardinalityCache = new HashMap<String, String>(200);
+    // concurrent, since a thread-safe connection may update vertices in parallel
+    private Map<String,String> cardinalityCache = new ConcurrentHashMap<String, String>(200);
 
     public DBConnectionBase() {
         // TODO Auto-generated constructor stub
@@ -136,6 +138,23 @@ public abstract class DBConnectionBase implements DBConnectionAlignment, DBConne
      * @param newValue - All multi-value types will be Expected to be of type SET or SINGLE
      */
     protected abstract void setPropertyInDB(String id, String key, Object newValue);
+
+    /**
+     * Identify the vertices of a type whose range, from one property to another (inclusive), contains a value.
+     * This default uses the range constraints, connections with a dedicated interval index should override it.
+     * @param vertexType - type of the range vertices
+     * @param startProp - property holding the start of the range
+     * @param endProp - property holding the end of the range
+     * @param value - value to look up
+     * @return list of vertex IDs
+     */
+    public List<String> getVertIDsByRangeContaining(String vertexType, String startProp, String endProp, long value) {
+        List<DBConstraint> constraints = new ArrayList<DBConstraint>();
+        constraints.add(getConstraint("vertexType", Condition.eq, vertexType));
+        constraints.add(getConstraint(startProp, Condition.lte, value));
+        constraints.add(getConstraint(endProp, Condition.gte, value));
+        return getVertIDsByConstraints(constraints);
+    }
     
     /** Gets whether the value's data type supports a cardinality of "SET". */
     static protected boolean isMultipleCardinality(Object value) {
@@ -269,7 +288,13 @@ public abstract class DBConnectionBase implements DBConnectionAlignment, DBConne
         return l;
     }
     
+    /**
+     * convert a JSON vertex to a property map, interning its property names and repeated values (see StringInterner)
+     * @param v
+     * @return property map
+     */
     public Map<String, Object> jsonVertToMap(JSONObject v){
+        StringInterner interner = StringInterner.getDefault();
         Map<String, Object> vert = new HashMap<String, Object>();
         for(Object k : v.keySet()){
             String key = (String) k;
@@ -277,7 +302,7 @@ public abstract class DBConnectionBase implements DBConnectionAlignment, DBConne
             if(value instanceof JSONArray){
                 value = DBConnectionBase.jsonArrayToList((JSONArray)value);
             }
-            vert.put(key, value);
+            vert.put(interner.internName(key), interner.internValue(key, value));
         }
         return vert;
     }
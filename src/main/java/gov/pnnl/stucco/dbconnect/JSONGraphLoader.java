@@ -0,0 +1,555 @@
+package gov.pnnl.stucco.dbconnect;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Loads a graph file written by saveState() ({"vertices":{id:{...}, ...}, "edges":[{...}, ...]})
+ * without reading the whole file, or building a JSON tree of it, in memory.
+ *
+ * <p> The file is scanned a character at a time, and the text of each vertex and edge is handed,
+ * in batches, to a bounded pool of worker threads, which parse and convert it (see
+ * DBConnectionBase.jsonVertToMap()). A single inserter thread passes the converted batches to the handler,
+ * in the order of the file, while the workers convert the batches after them. Once the pool's queue is full,
+ * the scanning thread converts the next batch itself, and once the inserter is a few batches behind,
+ * the scan waits for it, so memory use doesn't depend on the file size.
+ *
+ * <p> The handler is never called concurrently, so it can update a connection which isn't thread safe,
+ * and it gets the vertices and edges in the order of the file, so a connection which numbers them as they come
+ * numbers them the same way each time the file is loaded. Every vertex is handled before any edge:
+ * if the edges come before the vertices in the file, it is scanned a second time for them.
+ */
+public final class JSONGraphLoader {
+
+    /**
+     * Receives the vertices and edges of the file
+     */
+    public interface Handler {
+        /**
+         * @param id - vertex ID in the file
+         * @param vert - property map
+         */
+        void vertex(String id, Map<String, Object> vert);
+
+        void edge(String inVertID, String outVertID, String relation);
+    }
+
+    /** number of vertices or edges given to a worker at once */
+    private static final int BATCH_SIZE = 256;
+
+    /** handles nothing, for batches converted after a failure */
+    private static final Runnable NO_INSERT = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    /** marks the end of the converted batches */
+    private static final Future<Runnable> END = new FutureTask<Runnable>(NO_INSERT, NO_INSERT);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final DBConnectionBase conn;
+    private final int threads;
+
+    /**
+     * @param conn - connection whose jsonVertToMap() converts the vertices
+     * @param threads - number of worker threads
+     */
+    public JSONGraphLoader(DBConnectionBase conn, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("loader needs at least one thread");
+        }
+        this.conn = conn;
+        this.threads = threads;
+    }
+
+    /**
+     * @param conn - connection whose jsonVertToMap() converts the vertices
+     */
+    public JSONGraphLoader(DBConnectionBase conn) {
+        this(conn, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * load a graph file, passing its vertices and then its edges to the handler
+     * @param filePath
+     * @param handler
+     * @throws IOException if the file can't be read
+     * @throws JSONException if the file is not a graph in the expected format
+     */
+    public void load(String filePath, Handler handler) throws IOException {
+        Pass pass = new Pass(filePath, handler, true);
+        pass.run();
+        if (pass.edgesSkipped) {
+            new Pass(filePath, handler, false).run();
+        }
+    }
+
+    /**
+     * One scan of the file
+     */
+    private final class Pass {
+        private final String filePath;
+        private final Handler handler;
+        private final boolean loadVertices;
+        private Reader in;
+        private int peeked = -1;
+        private boolean hasPeeked = false;
+
+        /** true if the edges were passed over, because they came before the vertices */
+        private boolean edgesSkipped = false;
+
+        private ThreadPoolExecutor workers = null;
+        /** the batches being converted, in the order of the file, for the inserter */
+        private BlockingQueue<Future<Runnable>> converted = null;
+        private Thread inserter = null;
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+        Pass(String filePath, Handler handler, boolean loadVertices) {
+            this.filePath = filePath;
+            this.handler = handler;
+            this.loadVertices = loadVertices;
+        }
+
+        void run() throws IOException {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(filePath), UTF8), 1 << 16);
+            try {
+                boolean verticesDone = !loadVertices;
+                expect('{');
+                if (nextClean() == '}') {
+                    return;
+                }
+                back();
+                while (true) {
+                    String key = readString();
+                    expect(':');
+                    if (key.equals("vertices") && loadVertices) {
+                        readVertices();
+                        verticesDone = true;
+                    } else if (key.equals("edges") && verticesDone) {
+                        readEdges();
+                    } else {
+                        if (key.equals("edges")) {
+                            edgesSkipped = true;
+                        }
+                        readValue(null);
+                    }
+                    int c = nextClean();
+                    if (c == '}') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw syntaxError("expected ',' or '}'");
+                    }
+                }
+            } finally {
+                finish();
+                in.close();
+            }
+            RuntimeException e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+        }
+
+        private void readVertices() throws IOException {
+            expect('{');
+            if (nextClean() == '}') {
+                return;
+            }
+            back();
+            List<String> ids = new ArrayList<String>(BATCH_SIZE);
+            List<String> texts = new ArrayList<String>(BATCH_SIZE);
+            while (true) {
+                ids.add(readString());
+                expect(':');
+                StringBuilder text = new StringBuilder();
+                readValue(text);
+                texts.add(text.toString());
+                if (ids.size() == BATCH_SIZE) {
+                    submitVertices(ids, texts);
+                    ids = new ArrayList<String>(BATCH_SIZE);
+                    texts = new ArrayList<String>(BATCH_SIZE);
+                }
+                int c = nextClean();
+                if (c == '}') {
+                    break;
+                }
+                if (c != ',') {
+                    throw syntaxError("expected ',' or '}'");
+                }
+            }
+            submitVertices(ids, texts);
+            //every vertex is added before any edge
+            finish();
+        }
+
+        private void readEdges() throws IOException {
+            expect('[');
+            if (nextClean() == ']') {
+                return;
+            }
+            back();
+            List<String> texts = new ArrayList<String>(BATCH_SIZE);
+            while (true) {
+                StringBuilder text = new StringBuilder();
+                readValue(text);
+                texts.add(text.toString());
+                if (texts.size() == BATCH_SIZE) {
+                    submitEdges(texts);
+                    texts = new ArrayList<String>(BATCH_SIZE);
+                }
+                int c = nextClean();
+                if (c == ']') {
+                    break;
+                }
+                if (c != ',') {
+                    throw syntaxError("expected ',' or ']'");
+                }
+            }
+            submitEdges(texts);
+            finish();
+        }
+
+        private void submitVertices(final List<String> ids, final List<String> texts) {
+            if (ids.isEmpty()) {
+                return;
+            }
+            submit(new Callable<Runnable>() {
+                @Override
+                public Runnable call() {
+                    final List<Map<String, Object>> verts = new ArrayList<Map<String, Object>>(texts.size());
+                    for (String text : texts) {
+                        JSONObject jsonVert = new JSONObject(text);
+                        String description = jsonVert.optString("description");
+                        if (description != null && !description.equals("")) {
+                            //This is kind of an odd workaround, to prevent ui from treating, eg, "URI: www.blah.com | Type: URL |" as a URL instead of a string.
+                            //TODO: this is really a problem in the UI, as far as we care it's still just a string either way.
+                            jsonVert.put("description", " " + description);
+                        } else {
+                            //ui assumes everything has a description, this is a workaround to avoid having empty text in various places.
+                            jsonVert.put("description", jsonVert.optString("name"));
+                        }
+                        verts.add(conn.jsonVertToMap(jsonVert));
+                    }
+                    return new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int i = 0; i < ids.size(); i++) {
+                                handler.vertex(ids.get(i), verts.get(i));
+                            }
+                        }
+                    };
+                }
+            });
+        }
+
+        private void submitEdges(final List<String> texts) {
+            if (texts.isEmpty()) {
+                return;
+            }
+            submit(new Callable<Runnable>() {
+                @Override
+                public Runnable call() {
+                    final List<JSONObject> edges = new ArrayList<JSONObject>(texts.size());
+                    for (String text : texts) {
+                        try {
+                            edges.add(new JSONObject(text));
+                        } catch (JSONException e) {
+                            System.err.println("error when loading edge: " + text);
+                            e.printStackTrace();
+                        }
+                    }
+                    return new Runnable() {
+                        @Override
+                        public void run() {
+                            for (JSONObject edge : edges) {
+                                try {
+                                    handler.edge(edge.getString("inVertID"), edge.getString("outVertID"), edge.getString("relation"));
+                                } catch (JSONException e) {
+                                    e.printStackTrace();
+                                } catch (IllegalArgumentException e) {
+                                    System.err.println("error when loading edge: " + edge);
+                                    e.printStackTrace();
+                                }
+                            }
+                        }
+                    };
+                }
+            });
+        }
+
+        /**
+         * convert a batch on a worker, then pass it to the handler on the inserter thread, after the batches before it
+         * @param task - converts the batch, and returns what passes it to the handler
+         */
+        private void submit(final Callable<Runnable> task) {
+            RuntimeException e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+            if (workers == null) {
+                start();
+            }
+            FutureTask<Runnable> batch = new FutureTask<Runnable>(new Callable<Runnable>() {
+                @Override
+                public Runnable call() throws Exception {
+                    return (failure.get() != null) ? NO_INSERT : task.call();
+                }
+            });
+            try {
+                //waits while the inserter is behind
+                converted.put(batch);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new StuccoDBException("interrupted while loading graph: " + filePath, ie);
+            }
+            //when the queue is full, the scanning thread converts the batch itself, which holds back the scan
+            workers.execute(batch);
+        }
+
+        private void start() {
+            workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(threads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+            converted = new ArrayBlockingQueue<Future<Runnable>>(threads * 4);
+            inserter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    insertConverted();
+                }
+            }, "graph-loader-insert");
+            inserter.setDaemon(true);
+            inserter.start();
+        }
+
+        /**
+         * pass each converted batch to the handler, in order, until the end
+         */
+        private void insertConverted() {
+            while (true) {
+                Future<Runnable> batch;
+                try {
+                    batch = converted.take();
+                } catch (InterruptedException e) {
+                    failure.compareAndSet(null, new StuccoDBException("interrupted while loading graph: " + filePath, e));
+                    return;
+                }
+                if (batch == END) {
+                    return;
+                }
+                try {
+                    Runnable insert = batch.get();
+                    if (failure.get() == null) {
+                        insert.run();
+                    }
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    failure.compareAndSet(null, (cause instanceof RuntimeException) ? (RuntimeException) cause
+                            : new StuccoDBException("could not load graph: " + filePath, cause));
+                } catch (InterruptedException e) {
+                    failure.compareAndSet(null, new StuccoDBException("interrupted while loading graph: " + filePath, e));
+                    return;
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } catch (Error e) {
+                    failure.compareAndSet(null, new StuccoDBException("could not load graph: " + filePath, e));
+                }
+            }
+        }
+
+        /**
+         * wait for the submitted batches to be converted and handled
+         */
+        private void finish() {
+            if (workers == null) {
+                return;
+            }
+            try {
+                converted.put(END);
+                inserter.join();
+            } catch (InterruptedException e) {
+                workers.shutdownNow();
+                inserter.interrupt();
+                Thread.currentThread().interrupt();
+                throw new StuccoDBException("interrupted while loading graph: " + filePath, e);
+            } finally {
+                //the inserter has waited for every batch, so the workers are idle
+                workers.shutdown();
+                workers = null;
+                converted = null;
+                inserter = null;
+            }
+            RuntimeException e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+        }
+
+        private int read() throws IOException {
+            if (hasPeeked) {
+                hasPeeked = false;
+                return peeked;
+            }
+            peeked = in.read();
+            return peeked;
+        }
+
+        /** unread the last character */
+        private void back() {
+            hasPeeked = true;
+        }
+
+        private int nextClean() throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+            if (c < 0) {
+                throw syntaxError("unexpected end of file");
+            }
+            return c;
+        }
+
+        private void expect(char expected) throws IOException {
+            if (nextClean() != expected) {
+                throw syntaxError("expected '" + expected + "'");
+            }
+        }
+
+        /**
+         * read a string, unescaping it
+         */
+        private String readString() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                int c = read();
+                if (c < 0) {
+                    throw syntaxError("unterminated string");
+                }
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c == '\\') {
+                    c = read();
+                    switch (c) {
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for (int i = 0; i < 4; i++) {
+                            int h = read();
+                            if (h < 0) {
+                                throw syntaxError("unterminated string");
+                            }
+                            hex[i] = (char) h;
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(new String(hex), 16));
+                        } catch (NumberFormatException e) {
+                            throw syntaxError("illegal escape");
+                        }
+                        break;
+                    case '"':
+                    case '\\':
+                    case '/':
+                        sb.append((char) c);
+                        break;
+                    default:
+                        throw syntaxError("illegal escape");
+                    }
+                } else {
+                    sb.append((char) c);
+                }
+            }
+        }
+
+        /**
+         * read the text of a value, as it is in the file
+         * @param text - where the text is added, or null to skip the value
+         */
+        private void readValue(StringBuilder text) throws IOException {
+            int c = nextClean();
+            if (c != '{' && c != '[' && c != '"') {
+                //a number, or true, false or null
+                while (c >= 0 && c != ',' && c != '}' && c != ']' && c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                    append(text, c);
+                    c = read();
+                }
+                back();
+                return;
+            }
+            int depth = 0;
+            boolean inString = false;
+            while (true) {
+                if (c < 0) {
+                    throw syntaxError("unexpected end of file");
+                }
+                append(text, c);
+                if (inString) {
+                    if (c == '\\') {
+                        append(text, read());
+                    } else if (c == '"') {
+                        inString = false;
+                        if (depth == 0) {
+                            return;
+                        }
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        return;
+                    }
+                }
+                c = read();
+            }
+        }
+
+        private void append(StringBuilder text, int c) {
+            if (text != null && c >= 0) {
+                text.append((char) c);
+            }
+        }
+
+        private JSONException syntaxError(String message) {
+            return new JSONException(message + " in graph file: " + filePath);
+        }
+    }
+}
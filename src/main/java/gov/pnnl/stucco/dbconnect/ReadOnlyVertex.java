@@ -0,0 +1,117 @@
+package gov.pnnl.stucco.dbconnect;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-only view of a vertex's property map, as returned by getVertByID().
+ * The view wraps the map without copying it, and its values are wrapped as they are read
+ * (eg. a Set value is returned as an unmodifiable Set), so neither the map nor its values
+ * can be changed through it. Callers can keep it or pass it on without making a defensive copy.
+ *
+ * <p> The view is only as stable as the map it wraps: see each backend's getVertByID()
+ * for whether later changes to the vertex show through.
+ */
+public final class ReadOnlyVertex extends AbstractMap<String, Object> {
+
+    private final Map<String, Object> props;
+
+    private ReadOnlyVertex(Map<String, Object> props) {
+        this.props = props;
+    }
+
+    /**
+     * @param props - property map of a vertex, or null
+     * @return a read-only view of the map, the map itself if it is already one, or null if it is null
+     */
+    public static Map<String, Object> of(Map<String, Object> props) {
+        if (props == null || props instanceof ReadOnlyVertex) {
+            return props;
+        }
+        return new ReadOnlyVertex(props);
+    }
+
+    /**
+     * @param value - property value
+     * @return the value, wrapped (or for a Date, copied) so that it can't be changed
+     */
+    private static Object readOnlyValue(Object value) {
+        if (value instanceof Set) {
+            return Collections.unmodifiableSet((Set<?>) value);
+        }
+        if (value instanceof List) {
+            return Collections.unmodifiableList((List<?>) value);
+        }
+        if (value instanceof Collection) {
+            return Collections.unmodifiableCollection((Collection<?>) value);
+        }
+        if (value instanceof Date) {
+            return new Date(((Date) value).getTime());
+        }
+        return value;
+    }
+
+    @Override
+    public Object get(Object key) {
+        return readOnlyValue(props.get(key));
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return props.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return props.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return props.isEmpty();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(props.keySet());
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                final Iterator<Map.Entry<String, Object>> iter = props.entrySet().iterator();
+                return new Iterator<Map.Entry<String, Object>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iter.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, Object> next() {
+                        Map.Entry<String, Object> entry = iter.next();
+                        return new SimpleImmutableEntry<String, Object>(entry.getKey(), readOnlyValue(entry.getValue()));
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException("vertex is read-only");
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return props.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,245 @@
+package gov.pnnl.stucco.dbconnect;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe table of canonical Strings, so that the property values which repeat across
+ * many vertices (eg. vertexType, source, relation labels) are kept once, rather than once per vertex.
+ *
+ * <p> Only low-cardinality properties are interned: each property may add a limited number of distinct
+ * values to the table, after which its values are no longer interned (eg. name or description).
+ * The table as a whole, and the length of the Strings in it, are also limited, and Strings which
+ * don't fit are returned as they are.
+ *
+ * <p> The memory saved is estimated from the copies which were replaced by a canonical String.
+ */
+public final class StringInterner {
+
+    /** default max number of Strings in the table */
+    public static final int DEFAULT_MAX_SIZE = 1 << 18;
+
+    /** default max number of distinct values a property can add before it is no longer interned */
+    public static final int DEFAULT_MAX_VALUES_PER_PROPERTY = 1 << 12;
+
+    /** default max length of an interned String */
+    public static final int DEFAULT_MAX_LENGTH = 256;
+
+    private static final StringInterner DEFAULT = new StringInterner(DEFAULT_MAX_SIZE, DEFAULT_MAX_VALUES_PER_PROPERTY, DEFAULT_MAX_LENGTH);
+
+    private final int maxSize;
+    private final int maxValuesPerProperty;
+    private final int maxLength;
+
+    private final ConcurrentMap<String, String> table = new ConcurrentHashMap<String, String>();
+
+    /** number of distinct values each property has added to the table */
+    private final ConcurrentMap<String, AtomicInteger> propertyValueCounts = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    /**
+     * @param maxSize - max number of Strings in the table
+     * @param maxValuesPerProperty - max number of distinct values a property can add before it is no longer interned
+     * @param maxLength - max length of an interned String
+     */
+    public StringInterner(int maxSize, int maxValuesPerProperty, int maxLength) {
+        this.maxSize = maxSize;
+        this.maxValuesPerProperty = maxValuesPerProperty;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return the interner shared by all of the connections
+     */
+    public static StringInterner getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * intern a property name or relation label; these are only limited by the size of the table
+     * @param name
+     * @return the canonical String, or the name itself if it can't be interned
+     */
+    public String internName(String name) {
+        return intern(null, name, false);
+    }
+
+    /**
+     * intern a String value of a property, if the property has few enough distinct values
+     * @param prop
+     * @param value
+     * @return the canonical String, or the value itself if it isn't interned
+     */
+    public String intern(String prop, String value) {
+        return intern(prop, value, true);
+    }
+
+    /**
+     * @param prop - property of the value, or null for a name
+     * @param value
+     * @param limited - true if the property stops being interned once it has too many distinct values
+     */
+    private String intern(String prop, String value, boolean limited) {
+        if ((limited && prop == null) || value == null || value.length() > maxLength) {
+            return value;
+        }
+        String canonical = table.get(value);
+        if (canonical == null) {
+            AtomicInteger valueCount = null;
+            if (limited) {
+                valueCount = propertyValueCounts.get(prop);
+                if (valueCount == null) {
+                    valueCount = new AtomicInteger();
+                    AtomicInteger existing = propertyValueCounts.putIfAbsent(prop, valueCount);
+                    if (existing != null) {
+                        valueCount = existing;
+                    }
+                }
+                if (valueCount.get() >= maxValuesPerProperty) {
+                    return value;
+                }
+            }
+            if (table.size() >= maxSize) {
+                return value;
+            }
+            canonical = table.putIfAbsent(value, value);
+            if (canonical == null) {
+                if (valueCount != null) {
+                    valueCount.incrementAndGet();
+                }
+                return value;
+            }
+        }
+        if (canonical != value) {
+            hits.incrementAndGet();
+            savedBytes.addAndGet(estimateBytes(value));
+        }
+        return canonical;
+    }
+
+    /**
+     * look up the canonical copy of a String, without adding it to the table (eg. for a value read back from storage)
+     * @param value
+     * @return the canonical String, or the value itself if it isn't in the table
+     */
+    public String lookup(String value) {
+        if (value == null) {
+            return null;
+        }
+        String canonical = table.get(value);
+        return (canonical == null) ? value : canonical;
+    }
+
+    /**
+     * @param value
+     * @return true if the String is the canonical copy in the table
+     */
+    public boolean isInterned(String value) {
+        return value != null && table.get(value) == value;
+    }
+
+    /**
+     * intern a property value, which can be a String or a collection of them
+     * @param prop
+     * @param value
+     * @return the value with its Strings replaced by canonical ones; collections are copied
+     */
+    public Object internValue(String prop, Object value) {
+        if (value instanceof String) {
+            return intern(prop, (String) value);
+        }
+        if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            Collection<Object> interned = (value instanceof Set) ? new HashSet<Object>(values.size() * 2) : new ArrayList<Object>(values.size());
+            for (Object v : values) {
+                interned.add((v instanceof String) ? intern(prop, (String) v) : v);
+            }
+            return interned;
+        }
+        return value;
+    }
+
+    /**
+     * intern every value of a property map, in place
+     * @param props
+     */
+    public void internAll(Map<String, Object> props) {
+        for (Map.Entry<String, Object> entry : props.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof String || value instanceof Collection) {
+                Object interned = internValue(entry.getKey(), value);
+                if (interned != value) {
+                    entry.setValue(interned);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of Strings in the table
+     */
+    public int size() {
+        return table.size();
+    }
+
+    /**
+     * @return number of copies which were replaced by a canonical String
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return estimated number of bytes saved, by the copies which were replaced by a canonical String
+     */
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    /**
+     * @return estimated number of bytes of the table: its entries, and the canonical Strings
+     */
+    public long estimateTableBytes() {
+        long bytes = 64 + 8L * Integer.highestOneBit(Math.max(1, table.size()) * 2);
+        for (String s : table.keySet()) {
+            bytes += 32 + estimateBytes(s);
+        }
+        return bytes;
+    }
+
+    /**
+     * @param prop
+     * @return true if the property has too many distinct values to be interned
+     */
+    public boolean isHighCardinality(String prop) {
+        AtomicInteger valueCount = propertyValueCounts.get(prop);
+        return valueCount != null && valueCount.get() >= maxValuesPerProperty;
+    }
+
+    @Override
+    public String toString() {
+        return "StringInterner[" + size() + " strings, " + getHits() + " copies replaced, ~" + getSavedBytes() + " bytes saved]";
+    }
+
+    /**
+     * estimate the size of a String: its header and fields, plus its character array, each padded to 8 bytes
+     * @param s
+     * @return bytes
+     */
+    public static long estimateBytes(String s) {
+        return 24 + align(16 + 2L * s.length());
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
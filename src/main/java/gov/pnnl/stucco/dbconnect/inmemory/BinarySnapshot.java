@@ -0,0 +1,435 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import gov.pnnl.stucco.dbconnect.StuccoDBException;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary snapshot format of an in-memory graph, which is written and read a chunk at a time,
+ * so neither needs the whole graph as text (or JSON objects) in memory.
+ *
+ * <p> The file starts with a magic number and the format version, followed by records,
+ * each a type byte, a length int, and that many bytes:
+ * <ul>
+ * <li> STRINGS - new entries of the string dictionary (property names, relations and string values),
+ *      which are numbered in the order they appear in the file
+ * <li> VERTICES - vertices, each its ID, then its properties as dictionary numbers and typed values;
+ *      vertices are numbered in the order they appear in the file
+ * <li> EDGES - edges, each the numbers of its out and in vertices, and of its relation
+ * <li> END - the end of the snapshot
+ * </ul>
+ * All numbers are big-endian. The reader memory maps the file, a window at a time.
+ *
+ */
+final class BinarySnapshot {
+
+    /** "STCS" */
+    static final int MAGIC = 0x53544353;
+
+    static final int VERSION = 1;
+
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_STRINGS = 1;
+    private static final byte RECORD_VERTICES = 2;
+    private static final byte RECORD_EDGES = 3;
+
+    private static final byte VALUE_NULL = 0;
+    private static final byte VALUE_STRING = 1;
+    private static final byte VALUE_INLINE_STRING = 2;
+    private static final byte VALUE_LONG = 3;
+    private static final byte VALUE_INTEGER = 4;
+    private static final byte VALUE_SHORT = 5;
+    private static final byte VALUE_BYTE = 6;
+    private static final byte VALUE_DOUBLE = 7;
+    private static final byte VALUE_FLOAT = 8;
+    private static final byte VALUE_BOOLEAN = 9;
+    private static final byte VALUE_DATE = 10;
+    private static final byte VALUE_SET = 11;
+    private static final byte VALUE_LIST = 12;
+
+    /** max number of vertices or edges in one record */
+    private static final int CHUNK_ITEMS = 4096;
+
+    /** records are ended once they reach this size */
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    /** max number of string values in the dictionary; any others are written in place */
+    private static final int MAX_DICTIONARY_SIZE = 1 << 20;
+
+    /** size of the file window the reader maps at once */
+    private static final int READ_WINDOW_BYTES = 1 << 28;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private BinarySnapshot(){
+    }
+
+    /**
+     * Receives the contents of a snapshot as it is read
+     */
+    interface Visitor {
+        /**
+         * @param id - vertex ID
+         * @param vert - property map
+         */
+        void vertex(String id, Map<String, Object> vert);
+
+        /**
+         * @param outVert - number of the out vertex, in the order the vertices were read
+         * @param inVert - number of the in vertex, in the order the vertices were read
+         * @param relation
+         */
+        void edge(int outVert, int inVert, String relation);
+    }
+
+    /**
+     * Writes a snapshot, one chunk at a time.
+     * All of the vertices are written before any of the edges.
+     */
+    static final class Writer implements Closeable {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream chunkBytes = new ByteArrayOutputStream();
+        private final DataOutputStream chunk = new DataOutputStream(chunkBytes);
+        private byte chunkType = RECORD_END;
+        private int chunkItems = 0;
+
+        private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        private final List<String> newStrings = new ArrayList<String>();
+
+        Writer(String filePath) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        }
+
+        void writeVertex(String id, Map<String, Object> vert) throws IOException {
+            startItem(RECORD_VERTICES);
+            writeString(chunk, id);
+            int propCount = 0;
+            for(Object value : vert.values()){
+                if(value != null)
+                    propCount++;
+            }
+            chunk.writeInt(propCount);
+            for(Map.Entry<String, Object> entry : vert.entrySet()){
+                if(entry.getValue() == null)
+                    continue;
+                chunk.writeInt(getStringNum(entry.getKey(), true));
+                writeValue(chunk, entry.getKey(), entry.getValue(), this);
+            }
+        }
+
+        void writeEdge(int outVert, int inVert, String relation) throws IOException {
+            startItem(RECORD_EDGES);
+            chunk.writeInt(outVert);
+            chunk.writeInt(inVert);
+            chunk.writeInt(getStringNum(relation, true));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                endChunk();
+                out.writeByte(RECORD_END);
+                out.writeInt(0);
+            } finally {
+                out.close();
+            }
+        }
+
+        private void startItem(byte type) throws IOException {
+            if(type != chunkType || chunkItems >= CHUNK_ITEMS || chunkBytes.size() >= CHUNK_BYTES){
+                endChunk();
+                chunkType = type;
+                //room for the item count, filled in by endChunk()
+                chunk.writeInt(0);
+            }
+            chunkItems++;
+        }
+
+        private void endChunk() throws IOException {
+            if(chunkItems == 0){
+                chunkBytes.reset();
+                return;
+            }
+            chunk.flush();
+            if(!newStrings.isEmpty()){
+                ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+                DataOutputStream strings = new DataOutputStream(stringBytes);
+                strings.writeInt(newStrings.size());
+                for(String s : newStrings){
+                    writeString(strings, s);
+                }
+                strings.flush();
+                writeRecord(RECORD_STRINGS, stringBytes.toByteArray());
+                newStrings.clear();
+            }
+            byte[] bytes = chunkBytes.toByteArray();
+            ByteBuffer.wrap(bytes).putInt(0, chunkItems);
+            writeRecord(chunkType, bytes);
+            chunkBytes.reset();
+            chunkItems = 0;
+        }
+
+        private void writeRecord(byte type, byte[] bytes) throws IOException {
+            out.writeByte(type);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        /**
+         * @param s
+         * @param add - true to add the string to the dictionary if it is not there
+         * @return number of the string in the dictionary, or -1 if it is not there
+         */
+        private int getStringNum(String s, boolean add){
+            Integer num = dictionary.get(s);
+            if(num == null){
+                if(!add){
+                    return -1;
+                }
+                num = dictionary.size();
+                dictionary.put(s, num);
+                newStrings.add(s);
+            }
+            return num;
+        }
+    }
+
+    /**
+     * write a typed value
+     * @param out
+     * @param prop - property the value belongs to, for the error message
+     * @param value
+     * @param writer - writer whose dictionary strings are added to, or null to write them in place
+     * @throws StuccoDBException if the value has a type which can't be written
+     */
+    static void writeValue(DataOutputStream out, String prop, Object value, Writer writer) throws IOException {
+        if(value == null){
+            out.writeByte(VALUE_NULL);
+        }else if(value instanceof String){
+            int num = (writer == null) ? -1 : writer.getStringNum((String)value, writer.dictionary.size() < MAX_DICTIONARY_SIZE);
+            if(num < 0){
+                out.writeByte(VALUE_INLINE_STRING);
+                writeString(out, (String)value);
+            }else{
+                out.writeByte(VALUE_STRING);
+                out.writeInt(num);
+            }
+        }else if(value instanceof Long){
+            out.writeByte(VALUE_LONG);
+            out.writeLong((Long)value);
+        }else if(value instanceof Integer){
+            out.writeByte(VALUE_INTEGER);
+            out.writeInt((Integer)value);
+        }else if(value instanceof Short){
+            out.writeByte(VALUE_SHORT);
+            out.writeShort((Short)value);
+        }else if(value instanceof Byte){
+            out.writeByte(VALUE_BYTE);
+            out.writeByte((Byte)value);
+        }else if(value instanceof Double){
+            out.writeByte(VALUE_DOUBLE);
+            out.writeDouble((Double)value);
+        }else if(value instanceof Float){
+            out.writeByte(VALUE_FLOAT);
+            out.writeFloat((Float)value);
+        }else if(value instanceof Boolean){
+            out.writeByte(VALUE_BOOLEAN);
+            out.writeBoolean((Boolean)value);
+        }else if(value instanceof Date){
+            out.writeByte(VALUE_DATE);
+            out.writeLong(((Date)value).getTime());
+        }else if(value instanceof Collection){
+            out.writeByte((value instanceof Set) ? VALUE_SET : VALUE_LIST);
+            Collection<?> values = (Collection<?>)value;
+            out.writeInt(values.size());
+            for(Object v : values){
+                writeValue(out, prop, v, writer);
+            }
+        }else{
+            throw new StuccoDBException("cannot save value of type " + value.getClass().getName() + " for property " + prop);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * check if a file is a snapshot, from its magic number
+     * @param filePath
+     * @return true if the file starts with the snapshot magic number
+     * @throws IOException if the file can't be read
+     */
+    static boolean isSnapshot(String filePath) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(filePath));
+        try {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * read a snapshot, passing its vertices and edges to the visitor as they are read
+     * @param filePath
+     * @param visitor
+     * @throws IOException if the file can't be read, or is not a snapshot of a supported version
+     */
+    static void read(String filePath, Visitor visitor) throws IOException {
+        FileInputStream is = new FileInputStream(filePath);
+        try {
+            FileChannel channel = is.getChannel();
+            long size = channel.size();
+            ByteBuffer window = map(channel, 0, 8, size);
+            if(window.getInt() != MAGIC){
+                throw new IOException("not a snapshot file: " + filePath);
+            }
+            int version = window.getInt();
+            if(version != VERSION){
+                throw new IOException("unsupported snapshot version " + version + " in file: " + filePath);
+            }
+
+            List<String> dictionary = new ArrayList<String>();
+            long windowStart = 0;
+            long pos = 8;
+            while(true){
+                if(pos + 5 > windowStart + window.limit()){
+                    windowStart = pos;
+                    window = map(channel, pos, 5, size);
+                }
+                window.position((int)(pos - windowStart));
+                byte type = window.get();
+                int length = window.getInt();
+                if(type == RECORD_END){
+                    return;
+                }
+                long bodyStart = pos + 5;
+                if(bodyStart + length > windowStart + window.limit()){
+                    windowStart = bodyStart;
+                    window = map(channel, bodyStart, length, size);
+                }
+                ByteBuffer body = window.duplicate();
+                body.position((int)(bodyStart - windowStart));
+                body.limit(body.position() + length);
+                readRecord(type, body.slice(), dictionary, visitor);
+                pos = bodyStart + length;
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * map a window of the file, starting at a position
+     * @param minLength - number of bytes which must be in the window
+     */
+    private static ByteBuffer map(FileChannel channel, long pos, int minLength, long size) throws IOException {
+        if(pos + minLength > size){
+            throw new IOException("snapshot file is truncated");
+        }
+        long length = Math.max(minLength, Math.min(READ_WINDOW_BYTES, size - pos));
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, length);
+    }
+
+    private static void readRecord(byte type, ByteBuffer in, List<String> dictionary, Visitor visitor) throws IOException {
+        int count = in.getInt();
+        if(type == RECORD_STRINGS){
+            for(int i=0; i<count; i++){
+                dictionary.add(readString(in));
+            }
+        }else if(type == RECORD_VERTICES){
+            for(int i=0; i<count; i++){
+                String id = readString(in);
+                int propCount = in.getInt();
+                Map<String, Object> vert = new HashMap<String, Object>(Math.max(4, propCount * 2));
+                for(int j=0; j<propCount; j++){
+                    String prop = dictionary.get(in.getInt());
+                    vert.put(prop, readValue(in, dictionary));
+                }
+                visitor.vertex(id, vert);
+            }
+        }else if(type == RECORD_EDGES){
+            for(int i=0; i<count; i++){
+                int outVert = in.getInt();
+                int inVert = in.getInt();
+                visitor.edge(outVert, inVert, dictionary.get(in.getInt()));
+            }
+        }else{
+            throw new IOException("unknown snapshot record type: " + type);
+        }
+    }
+
+    /**
+     * read a typed value
+     * @param in
+     * @param dictionary - strings read so far, for values written by number
+     */
+    static Object readValue(ByteBuffer in, List<String> dictionary) throws IOException {
+        byte type = in.get();
+        switch(type){
+        case VALUE_NULL:
+            return null;
+        case VALUE_STRING:
+            return dictionary.get(in.getInt());
+        case VALUE_INLINE_STRING:
+            return readString(in);
+        case VALUE_LONG:
+            return in.getLong();
+        case VALUE_INTEGER:
+            return in.getInt();
+        case VALUE_SHORT:
+            return in.getShort();
+        case VALUE_BYTE:
+            return in.get();
+        case VALUE_DOUBLE:
+            return in.getDouble();
+        case VALUE_FLOAT:
+            return in.getFloat();
+        case VALUE_BOOLEAN:
+            return in.get() != 0;
+        case VALUE_DATE:
+            return new Date(in.getLong());
+        case VALUE_SET:
+        case VALUE_LIST:
+            int count = in.getInt();
+            Collection<Object> values = (type == VALUE_SET) ? new HashSet<Object>() : new ArrayList<Object>(count);
+            for(int i=0; i<count; i++){
+                values.add(readValue(in, dictionary));
+            }
+            return values;
+        default:
+            throw new IOException("unknown snapshot value type: " + type);
+        }
+    }
+
+    static String readString(ByteBuffer in){
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
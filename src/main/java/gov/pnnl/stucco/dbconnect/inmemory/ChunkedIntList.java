@@ -0,0 +1,127 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints kept in fixed size chunks, which a copy shares with the original
+ * until one of them changes a chunk, so copying a large list (eg. for a snapshot) is cheap.
+ * Only the chunk being changed is copied, the first time it changes.
+ *
+ */
+final class ChunkedIntList {
+
+    private static final int CHUNK_BITS = ChunkedList.CHUNK_BITS;
+
+    private static final int CHUNK_SIZE = ChunkedList.CHUNK_SIZE;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private int[][] chunks;
+
+    /** true for each chunk which only this list uses, so can be changed in place */
+    private boolean[] owned;
+
+    private int size = 0;
+
+    ChunkedIntList(){
+        chunks = new int[0][];
+        owned = new boolean[0];
+    }
+
+    private ChunkedIntList(ChunkedIntList list){
+        chunks = list.chunks.clone();
+        owned = new boolean[chunks.length];
+        list.owned = new boolean[chunks.length];
+        size = list.size;
+    }
+
+    /**
+     * @return a separate list with the same values, which shares the chunks with this one until either changes them
+     */
+    ChunkedIntList copy(){
+        return new ChunkedIntList(this);
+    }
+
+    void add(int value){
+        if(size == chunks.length << CHUNK_BITS){
+            chunks = Arrays.copyOf(chunks, chunks.length + 1);
+            owned = Arrays.copyOf(owned, chunks.length);
+            chunks[chunks.length - 1] = new int[CHUNK_SIZE];
+            owned[chunks.length - 1] = true;
+        }
+        chunkToChange(size >>> CHUNK_BITS)[size & CHUNK_MASK] = value;
+        size++;
+    }
+
+    int get(int i){
+        if(i >= size){
+            throw new IndexOutOfBoundsException("index " + i + " of " + size);
+        }
+        return chunks[i >>> CHUNK_BITS][i & CHUNK_MASK];
+    }
+
+    void set(int i, int value){
+        if(i >= size){
+            throw new IndexOutOfBoundsException("index " + i + " of " + size);
+        }
+        chunkToChange(i >>> CHUNK_BITS)[i & CHUNK_MASK] = value;
+    }
+
+    /**
+     * remove the last value
+     * @return the value removed
+     */
+    int removeLast(){
+        int value = get(size - 1);
+        size--;
+        return value;
+    }
+
+    int size(){
+        return size;
+    }
+
+    boolean isEmpty(){
+        return size == 0;
+    }
+
+    void clear(){
+        chunks = new int[0][];
+        owned = new boolean[0];
+        size = 0;
+    }
+
+    /**
+     * @return estimated bytes of the list (see MemoryEstimates)
+     */
+    long sizeInBytes(){
+        return 32 + MemoryEstimates.array(chunks.length, MemoryEstimates.REFERENCE_BYTES) + MemoryEstimates.array(owned.length, 1)
+                + chunks.length * MemoryEstimates.array(CHUNK_SIZE, 4);
+    }
+
+    /**
+     * @param original - the list this was copied from
+     * @return number of chunks this list has which it no longer shares with the original
+     */
+    int countCopiedChunks(ChunkedIntList original){
+        int count = 0;
+        for(int i=0; i<chunks.length; i++){
+            if(i >= original.chunks.length || chunks[i] != original.chunks[i]){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param chunkNum
+     * @return the chunk, copied first if it is shared with another list
+     */
+    private int[] chunkToChange(int chunkNum){
+        if(!owned[chunkNum]){
+            chunks[chunkNum] = chunks[chunkNum].clone();
+            owned[chunkNum] = true;
+        }
+        return chunks[chunkNum];
+    }
+}
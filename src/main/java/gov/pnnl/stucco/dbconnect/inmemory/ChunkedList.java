@@ -0,0 +1,115 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/**
+ * A growable list kept in fixed size chunks, which a copy shares with the original
+ * until one of them changes a chunk, so copying a large list (eg. for a snapshot) is cheap.
+ * Only the chunk being changed is copied, the first time it changes.
+ *
+ */
+final class ChunkedList<E> extends AbstractList<E> implements RandomAccess {
+
+    static final int CHUNK_BITS = 10;
+
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private Object[][] chunks;
+
+    /** true for each chunk which only this list uses, so can be changed in place */
+    private boolean[] owned;
+
+    private int size = 0;
+
+    ChunkedList(){
+        chunks = new Object[0][];
+        owned = new boolean[0];
+    }
+
+    private ChunkedList(ChunkedList<E> list){
+        chunks = list.chunks.clone();
+        owned = new boolean[chunks.length];
+        list.owned = new boolean[chunks.length];
+        size = list.size;
+    }
+
+    /**
+     * @return a separate list with the same elements, which shares the chunks with this one until either changes them
+     */
+    ChunkedList<E> copy(){
+        return new ChunkedList<E>(this);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int i){
+        if(i >= size){
+            throw new IndexOutOfBoundsException("index " + i + " of " + size);
+        }
+        return (E)chunks[i >>> CHUNK_BITS][i & CHUNK_MASK];
+    }
+
+    @Override
+    public E set(int i, E element){
+        E oldElement = get(i);
+        chunkToChange(i >>> CHUNK_BITS)[i & CHUNK_MASK] = element;
+        return oldElement;
+    }
+
+    @Override
+    public boolean add(E element){
+        if(size == chunks.length << CHUNK_BITS){
+            chunks = Arrays.copyOf(chunks, chunks.length + 1);
+            owned = Arrays.copyOf(owned, chunks.length);
+            chunks[chunks.length - 1] = new Object[CHUNK_SIZE];
+            owned[chunks.length - 1] = true;
+        }
+        chunkToChange(size >>> CHUNK_BITS)[size & CHUNK_MASK] = element;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    @Override
+    public void clear(){
+        chunks = new Object[0][];
+        owned = new boolean[0];
+        size = 0;
+        modCount++;
+    }
+
+    /**
+     * @param original - the list this was copied from
+     * @return number of chunks this list has which it no longer shares with the original
+     */
+    int countCopiedChunks(ChunkedList<?> original){
+        int count = 0;
+        for(int i=0; i<chunks.length; i++){
+            if(i >= original.chunks.length || chunks[i] != original.chunks[i]){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param chunkNum
+     * @return the chunk, copied first if it is shared with another list
+     */
+    private Object[] chunkToChange(int chunkNum){
+        if(!owned[chunkNum]){
+            chunks[chunkNum] = chunks[chunkNum].clone();
+            owned[chunkNum] = true;
+        }
+        return chunks[chunkNum];
+    }
+}
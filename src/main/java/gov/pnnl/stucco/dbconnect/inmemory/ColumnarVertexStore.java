@@ -0,0 +1,532 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Vertex storage with one column per property, indexed by vertex number,
+ * so that the property names (and repeated values) aren't stored once per vertex.
+ * Long and Date values are kept in primitive long arrays, and String values
+ * are dictionary encoded while there are few distinct ones (eg. vertexType).
+ * Each column's type is set by the first value put in it; values of any other type
+ * are kept separately, so every value comes back as the same type it went in as.
+ *
+ * <p> Vertices are returned as read-only map views, assembled from the columns on demand.
+ * A view shows later updates to its vertex, and is empty once the vertex is removed,
+ * even if its number is reused for another vertex.
+ *
+ * <p> A copy of the store shares the columns with it until either store changes a column,
+ * so only the columns which change are copied.
+ *
+ */
+final class ColumnarVertexStore implements VertexStore {
+
+    /** max number of distinct values in a dictionary encoded column, before it stores the Strings themselves */
+    private static final int MAX_DICTIONARY_SIZE = 1 << 12;
+
+    /** columns, by property name */
+    private final Map<String, Column> columns = new LinkedHashMap<String, Column>();
+
+    /** the vertex numbers which are in use */
+    private final BitSet vertNums = new BitSet();
+
+    /** stamp of the vertex stored under each number, which is new each time a vertex is stored in an unused number */
+    private long[] stamps = new long[0];
+
+    /** true if the stamps are shared with a copy of the store, so must be copied before they change */
+    private boolean stampsShared = false;
+
+    /** last stamp given to a vertex */
+    private long lastStamp = 0;
+
+    @Override
+    public Map<String, Object> get(int vertNum){
+        return vertNums.get(vertNum) ? new VertexView(vertNum, stamps[vertNum]) : null;
+    }
+
+    @Override
+    public Object getProperty(int vertNum, String prop){
+        Column column = columns.get(prop);
+        return (column == null) ? null : column.get(vertNum);
+    }
+
+    @Override
+    public void put(int vertNum, Map<String, Object> vert){
+        if(vertNums.get(vertNum)){
+            //a replaced vertex keeps its stamp, so its views show the new properties
+            clearColumns(vertNum);
+        }else{
+            if(vertNum >= stamps.length){
+                stamps = Arrays.copyOf(stamps, grow(stamps.length, vertNum));
+                stampsShared = false;
+            }else if(stampsShared){
+                stamps = stamps.clone();
+                stampsShared = false;
+            }
+            stamps[vertNum] = ++lastStamp;
+        }
+        vertNums.set(vertNum);
+        for(Map.Entry<String, Object> entry : vert.entrySet()){
+            setProperty(vertNum, entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public Object setProperty(int vertNum, String prop, Object value){
+        Column column = columns.get(prop);
+        if(column == null){
+            if(value == null){
+                return null;
+            }
+            column = newColumn(value);
+            columns.put(prop, column);
+        }
+        Object oldValue = column.get(vertNum);
+        if(oldValue != null || value != null){
+            columnToChange(prop).set(vertNum, value);
+        }
+        return oldValue;
+    }
+
+    @Override
+    public void beginUpdate(int vertNum){
+        //properties are set in place already
+    }
+
+    @Override
+    public void endUpdate(int vertNum){
+    }
+
+    @Override
+    public void remove(int vertNum){
+        clearColumns(vertNum);
+        vertNums.clear(vertNum);
+    }
+
+    /**
+     * remove a vertex's values from the columns it has one in
+     * @param vertNum
+     */
+    private void clearColumns(int vertNum){
+        for(Map.Entry<String, Column> entry : columns.entrySet()){
+            if(entry.getValue().get(vertNum) != null){
+                columnToChange(entry.getKey()).set(vertNum, null);
+            }
+        }
+    }
+
+    /**
+     * @param prop
+     * @return the property's column, copied first if it is shared with a copy of the store
+     */
+    private Column columnToChange(String prop){
+        Column column = columns.get(prop);
+        if(column.shared){
+            column = column.copy();
+            columns.put(prop, column);
+        }
+        return column;
+    }
+
+    @Override
+    public void clear(){
+        columns.clear();
+        vertNums.clear();
+    }
+
+    @Override
+    public boolean isCopyOnWrite(){
+        return false;
+    }
+
+    @Override
+    public VertexStore copy(){
+        ColumnarVertexStore copy = new ColumnarVertexStore();
+        for(Column column : columns.values()){
+            column.shared = true;
+        }
+        copy.columns.putAll(columns);
+        copy.vertNums.or(vertNums);
+        copy.stamps = stamps;
+        copy.stampsShared = true;
+        stampsShared = true;
+        copy.lastStamp = lastStamp;
+        return copy;
+    }
+
+    @Override
+    public long estimateBytes(int vertNum){
+        long bytes = 0;
+        for(Column column : columns.values()){
+            bytes += column.estimateBytes(vertNum);
+        }
+        return bytes;
+    }
+
+    @Override
+    public long getOffHeapBytes(){
+        return 0;
+    }
+
+    /**
+     * make an empty column for the type of a value
+     * @param value
+     * @return column
+     */
+    private static Column newColumn(Object value){
+        if(value.getClass() == Long.class){
+            return new LongColumn(false);
+        }
+        if(value.getClass() == Date.class){
+            return new LongColumn(true);
+        }
+        if(value instanceof String){
+            return new StringColumn();
+        }
+        return new ObjectColumn();
+    }
+
+    private static int grow(int length, int vertNum){
+        return Math.max(vertNum + 1, Math.max(16, length * 2));
+    }
+
+    /**
+     * The values of one property, by vertex number
+     */
+    private abstract static class Column {
+
+        /** values which are not of the column's type, by vertex number, or null if there are none */
+        private Map<Integer, Object> others = null;
+
+        /** true once the column is shared by a copy of the store, so it is copied before it changes */
+        private boolean shared = false;
+
+        Object get(int vertNum){
+            if(others != null){
+                Object value = others.get(vertNum);
+                if(value != null){
+                    return value;
+                }
+            }
+            return getTyped(vertNum);
+        }
+
+        /**
+         * @param vertNum
+         * @param value - new value, or null to remove it
+         */
+        void set(int vertNum, Object value){
+            if(value != null && setTyped(vertNum, value)){
+                if(others != null){
+                    others.remove(vertNum);
+                }
+                return;
+            }
+            clearTyped(vertNum);
+            if(value != null){
+                if(others == null){
+                    others = new HashMap<Integer, Object>();
+                }
+                others.put(vertNum, value);
+            }else if(others != null){
+                others.remove(vertNum);
+            }
+        }
+
+        /**
+         * @param vertNum
+         * @return estimated bytes of the vertex's value in this column (its slot, and the value if it isn't shared)
+         */
+        long estimateBytes(int vertNum){
+            if(others != null){
+                Object value = others.get(vertNum);
+                if(value != null){
+                    return MemoryEstimates.HASH_ENTRY_BYTES + MemoryEstimates.BOXED_BYTES + MemoryEstimates.value(value);
+                }
+            }
+            Object value = getTyped(vertNum);
+            return (value == null) ? 0 : estimateTyped(value);
+        }
+
+        /**
+         * @param value - a value of the column's type
+         * @return estimated bytes of the value's slot, and of the value if it isn't shared
+         */
+        abstract long estimateTyped(Object value);
+
+        abstract Object getTyped(int vertNum);
+
+        /**
+         * @return false if the value is not of the column's type, so was not stored
+         */
+        abstract boolean setTyped(int vertNum, Object value);
+
+        abstract void clearTyped(int vertNum);
+
+        /**
+         * @return a separate column with the same values
+         */
+        abstract Column copy();
+
+        /**
+         * copy the values which are not of the column's type into another column
+         * @param copy
+         * @return the other column
+         */
+        Column copyOthers(Column copy){
+            if(others != null){
+                copy.others = new HashMap<Integer, Object>(others);
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * Column of Long values, or of Date values stored as their time in milliseconds
+     */
+    private static final class LongColumn extends Column {
+        private final boolean dates;
+        private long[] values = new long[0];
+        private final BitSet present = new BitSet();
+
+        LongColumn(boolean dates){
+            this.dates = dates;
+        }
+
+        @Override
+        Object getTyped(int vertNum){
+            if(!present.get(vertNum)){
+                return null;
+            }
+            return dates ? new Date(values[vertNum]) : (Object)Long.valueOf(values[vertNum]);
+        }
+
+        @Override
+        boolean setTyped(int vertNum, Object value){
+            long primitive;
+            if(!dates && value.getClass() == Long.class){
+                primitive = (Long)value;
+            }else if(dates && value.getClass() == Date.class){
+                primitive = ((Date)value).getTime();
+            }else{
+                return false;
+            }
+            if(vertNum >= values.length){
+                values = Arrays.copyOf(values, grow(values.length, vertNum));
+            }
+            values[vertNum] = primitive;
+            present.set(vertNum);
+            return true;
+        }
+
+        @Override
+        void clearTyped(int vertNum){
+            present.clear(vertNum);
+        }
+
+        @Override
+        Column copy(){
+            LongColumn copy = new LongColumn(dates);
+            copy.values = values.clone();
+            copy.present.or(present);
+            return copyOthers(copy);
+        }
+
+        @Override
+        long estimateTyped(Object value){
+            return 8;
+        }
+    }
+
+    /**
+     * Column of String values, stored as codes into a dictionary of the distinct values,
+     * until there are too many distinct values for that to be worthwhile
+     */
+    private static final class StringColumn extends Column {
+        /** dictionary code + 1 of each value (0 for none), or null once the column is no longer encoded */
+        private int[] codes = new int[0];
+        private List<String> dictionary = new ArrayList<String>();
+        private Map<String, Integer> dictionaryCodes = new HashMap<String, Integer>();
+        /** the values, once the column is no longer encoded */
+        private String[] values = null;
+
+        @Override
+        Object getTyped(int vertNum){
+            if(values != null){
+                return (vertNum < values.length) ? values[vertNum] : null;
+            }
+            if(vertNum >= codes.length || codes[vertNum] == 0){
+                return null;
+            }
+            return dictionary.get(codes[vertNum] - 1);
+        }
+
+        @Override
+        boolean setTyped(int vertNum, Object value){
+            if(!(value instanceof String)){
+                return false;
+            }
+            String s = (String)value;
+            if(values == null){
+                Integer code = dictionaryCodes.get(s);
+                if(code == null && dictionary.size() >= MAX_DICTIONARY_SIZE){
+                    decode();
+                }else{
+                    if(code == null){
+                        code = dictionary.size();
+                        dictionary.add(s);
+                        dictionaryCodes.put(s, code);
+                    }
+                    if(vertNum >= codes.length){
+                        codes = Arrays.copyOf(codes, grow(codes.length, vertNum));
+                    }
+                    codes[vertNum] = code + 1;
+                    return true;
+                }
+            }
+            if(vertNum >= values.length){
+                values = Arrays.copyOf(values, grow(values.length, vertNum));
+            }
+            values[vertNum] = s;
+            return true;
+        }
+
+        @Override
+        void clearTyped(int vertNum){
+            if(values != null){
+                if(vertNum < values.length){
+                    values[vertNum] = null;
+                }
+            }else if(vertNum < codes.length){
+                codes[vertNum] = 0;
+            }
+        }
+
+        @Override
+        Column copy(){
+            StringColumn copy = new StringColumn();
+            if(values != null){
+                copy.values = values.clone();
+                copy.codes = null;
+                copy.dictionary = null;
+                copy.dictionaryCodes = null;
+            }else{
+                copy.codes = codes.clone();
+                copy.dictionary.addAll(dictionary);
+                copy.dictionaryCodes.putAll(dictionaryCodes);
+            }
+            return copyOthers(copy);
+        }
+
+        @Override
+        long estimateTyped(Object value){
+            //encoded values share the dictionary's Strings
+            return (values == null) ? 4 : MemoryEstimates.REFERENCE_BYTES + MemoryEstimates.value(value);
+        }
+
+        /** switch to storing the Strings themselves */
+        private void decode(){
+            values = new String[codes.length];
+            for(int i=0; i<codes.length; i++){
+                if(codes[i] != 0){
+                    values[i] = dictionary.get(codes[i] - 1);
+                }
+            }
+            codes = null;
+            dictionary = null;
+            dictionaryCodes = null;
+        }
+    }
+
+    /**
+     * Column of any other values (eg. sets, doubles)
+     */
+    private static final class ObjectColumn extends Column {
+        private Object[] values = new Object[0];
+
+        @Override
+        Object getTyped(int vertNum){
+            return (vertNum < values.length) ? values[vertNum] : null;
+        }
+
+        @Override
+        boolean setTyped(int vertNum, Object value){
+            if(vertNum >= values.length){
+                values = Arrays.copyOf(values, grow(values.length, vertNum));
+            }
+            values[vertNum] = value;
+            return true;
+        }
+
+        @Override
+        void clearTyped(int vertNum){
+            if(vertNum < values.length){
+                values[vertNum] = null;
+            }
+        }
+
+        @Override
+        Column copy(){
+            ObjectColumn copy = new ObjectColumn();
+            copy.values = values.clone();
+            return copyOthers(copy);
+        }
+
+        @Override
+        long estimateTyped(Object value){
+            return MemoryEstimates.REFERENCE_BYTES + MemoryEstimates.value(value);
+        }
+    }
+
+    /**
+     * Read-only map view of one vertex, which reads its properties from the columns
+     */
+    private final class VertexView extends AbstractMap<String, Object> {
+        private final int vertNum;
+        private final long stamp;
+
+        VertexView(int vertNum, long stamp){
+            this.vertNum = vertNum;
+            this.stamp = stamp;
+        }
+
+        /** @return true if the vertex is still stored, rather than removed (and its number maybe reused) */
+        private boolean isCurrent(){
+            return vertNums.get(vertNum) && stamps[vertNum] == stamp;
+        }
+
+        @Override
+        public Object get(Object key){
+            return (key instanceof String && isCurrent()) ? getProperty(vertNum, (String)key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key){
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet(){
+            Map<String, Object> props = new LinkedHashMap<String, Object>();
+            if(!isCurrent()){
+                return Collections.unmodifiableMap(props).entrySet();
+            }
+            for(Map.Entry<String, Column> entry : columns.entrySet()){
+                Object value = entry.getValue().get(vertNum);
+                if(value != null){
+                    props.put(entry.getKey(), value);
+                }
+            }
+            return Collections.unmodifiableMap(props).entrySet();
+        }
+    }
+}
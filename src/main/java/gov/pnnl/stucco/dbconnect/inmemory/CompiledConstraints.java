@@ -0,0 +1,326 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import gov.pnnl.stucco.dbconnect.Condition;
+import gov.pnnl.stucco.dbconnect.DBConstraint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A list of constraints, compiled into one matcher per constraint, so that checking a vertex
+ * doesn't need to look at the condition or the type of the constraint value again.
+ * Gives the same results as InMemoryDBConnection.compare() for each constraint.
+ *
+ */
+final class CompiledConstraints {
+
+    /** matchers, cheapest first */
+    private final Matcher[] matchers;
+
+    private CompiledConstraints(Matcher[] matchers){
+        this.matchers = matchers;
+    }
+
+    /**
+     * compile a list of constraints
+     * @param constraints
+     * @return the compiled constraints
+     */
+    static CompiledConstraints compile(List<DBConstraint> constraints){
+        List<Matcher> matchers = new ArrayList<Matcher>(constraints.size());
+        for(DBConstraint c : constraints){
+            matchers.add(compile(c));
+        }
+        Collections.sort(matchers, COST_ORDER);
+        return new CompiledConstraints(matchers.toArray(new Matcher[matchers.size()]));
+    }
+
+    /**
+     * get the key to cache the compiled form of a list of constraints under.
+     * Lists with the same properties, conditions and values (in the same order) have equal keys.
+     * @param constraints
+     * @return key
+     */
+    static List<List<Object>> cacheKey(List<DBConstraint> constraints){
+        List<List<Object>> key = new ArrayList<List<Object>>(constraints.size());
+        for(DBConstraint c : constraints){
+            key.add(Arrays.asList(c.getProp(), c.getCond(), c.getVal()));
+        }
+        return key;
+    }
+
+    /**
+     * check a stored vertex against all of the constraints, without needing its property map
+     * @param store
+     * @param vertNum - number of the vertex in the store
+     * @return true if the vertex matches all of them
+     */
+    boolean matches(VertexStore store, int vertNum){
+        for(int i=0; i<matchers.length; i++){
+            Matcher m = matchers[i];
+            if( !m.matches(store.getProperty(vertNum, m.prop)) ){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Matcher compile(DBConstraint c){
+        String prop = c.getProp();
+        Condition cond = c.getCond();
+        Object val = c.getVal();
+
+        if(cond == Condition.eq){
+            return (val == null) ? new NullMatcher(prop) : new EqMatcher(prop, val);
+        }
+        if(val == null){
+            //nothing else can match a null value
+            return new NeverMatcher(prop);
+        }
+        if(cond == Condition.neq){
+            return new NeqMatcher(prop, val);
+        }
+        if(cond == Condition.gt || cond == Condition.gte || cond == Condition.lt || cond == Condition.lte){
+            boolean acceptLess = (cond == Condition.lt || cond == Condition.lte);
+            boolean acceptEqual = (cond == Condition.gte || cond == Condition.lte);
+            boolean acceptGreater = (cond == Condition.gt || cond == Condition.gte);
+            if(val instanceof Date){
+                return new LongRangeMatcher(prop, val, ((Date)val).getTime(), acceptLess, acceptEqual, acceptGreater);
+            }
+            if(val instanceof Number){
+                Number n = (Number)val;
+                if(InMemoryDBConnection.isIntegral(n)){
+                    return new LongRangeMatcher(prop, val, n.longValue(), acceptLess, acceptEqual, acceptGreater);
+                }
+                return new DoubleRangeMatcher(prop, val, n.doubleValue(), acceptLess, acceptEqual, acceptGreater);
+            }
+            if(val instanceof Comparable){
+                return new RangeMatcher(prop, val, acceptLess, acceptEqual, acceptGreater);
+            }
+            return new NeverMatcher(prop);
+        }
+        if(cond == Condition.contains){
+            return new ContainsMatcher(prop, val);
+        }
+        if(cond == Condition.substring){
+            if(val instanceof String || val instanceof Character){
+                return new SubstringMatcher(prop, val.toString());
+            }
+            return new NeverMatcher(prop);
+        }
+        return new NeverMatcher(prop);
+    }
+
+    private static final Comparator<Matcher> COST_ORDER = new Comparator<Matcher>(){
+        @Override
+        public int compare(Matcher m1, Matcher m2){
+            return Integer.compare(m1.cost(), m2.cost());
+        }
+    };
+
+    /**
+     * Checks the value of one property of a vertex
+     */
+    private abstract static class Matcher {
+        final String prop;
+
+        Matcher(String prop){
+            this.prop = prop;
+        }
+
+        abstract boolean matches(Object value);
+
+        /** relative cost of matches(), used to check the cheapest constraints first */
+        int cost(){
+            return 1;
+        }
+    }
+
+    private static final class NeverMatcher extends Matcher {
+        NeverMatcher(String prop){
+            super(prop);
+        }
+
+        @Override
+        boolean matches(Object value){
+            return false;
+        }
+
+        @Override
+        int cost(){
+            return 0;
+        }
+    }
+
+    private static final class NullMatcher extends Matcher {
+        NullMatcher(String prop){
+            super(prop);
+        }
+
+        @Override
+        boolean matches(Object value){
+            return value == null;
+        }
+
+        @Override
+        int cost(){
+            return 0;
+        }
+    }
+
+    private static final class EqMatcher extends Matcher {
+        private final Object val;
+
+        EqMatcher(String prop, Object val){
+            super(prop);
+            this.val = val;
+        }
+
+        @Override
+        boolean matches(Object value){
+            return value != null && value.equals(val);
+        }
+    }
+
+    private static final class NeqMatcher extends Matcher {
+        private final Object val;
+
+        NeqMatcher(String prop, Object val){
+            super(prop);
+            this.val = val;
+        }
+
+        @Override
+        boolean matches(Object value){
+            return value != null && !value.equals(val);
+        }
+    }
+
+    /**
+     * Range condition with a value which is not a number or date, compared with compareTo()
+     */
+    private static class RangeMatcher extends Matcher {
+        final Object val;
+        final boolean acceptLess;
+        final boolean acceptEqual;
+        final boolean acceptGreater;
+
+        RangeMatcher(String prop, Object val, boolean acceptLess, boolean acceptEqual, boolean acceptGreater){
+            super(prop);
+            this.val = val;
+            this.acceptLess = acceptLess;
+            this.acceptEqual = acceptEqual;
+            this.acceptGreater = acceptGreater;
+        }
+
+        final boolean accept(int order){
+            return (order < 0) ? acceptLess : ((order == 0) ? acceptEqual : acceptGreater);
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        final boolean matchesComparable(Object value){
+            if(value instanceof Comparable){
+                return accept( ((Comparable)value).compareTo(val) );
+            }
+            return false;
+        }
+
+        @Override
+        boolean matches(Object value){
+            return matchesComparable(value);
+        }
+    }
+
+    /**
+     * Range condition with an integral or date value
+     */
+    private static final class LongRangeMatcher extends RangeMatcher {
+        private final long bound;
+
+        LongRangeMatcher(String prop, Object val, long bound, boolean acceptLess, boolean acceptEqual, boolean acceptGreater){
+            super(prop, val, acceptLess, acceptEqual, acceptGreater);
+            this.bound = bound;
+        }
+
+        @Override
+        boolean matches(Object value){
+            if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte){
+                return accept( Long.compare(((Number)value).longValue(), bound) );
+            }
+            if(value instanceof Date){
+                return accept( Long.compare(((Date)value).getTime(), bound) );
+            }
+            if(value instanceof Number){
+                return accept( Double.compare(((Number)value).doubleValue(), (double)bound) );
+            }
+            return matchesComparable(value);
+        }
+    }
+
+    /**
+     * Range condition with a floating point value
+     */
+    private static final class DoubleRangeMatcher extends RangeMatcher {
+        private final double bound;
+
+        DoubleRangeMatcher(String prop, Object val, double bound, boolean acceptLess, boolean acceptEqual, boolean acceptGreater){
+            super(prop, val, acceptLess, acceptEqual, acceptGreater);
+            this.bound = bound;
+        }
+
+        @Override
+        boolean matches(Object value){
+            if(value instanceof Number){
+                return accept( Double.compare(((Number)value).doubleValue(), bound) );
+            }
+            if(value instanceof Date){
+                return accept( Double.compare((double)((Date)value).getTime(), bound) );
+            }
+            return matchesComparable(value);
+        }
+    }
+
+    private static final class ContainsMatcher extends Matcher {
+        private final Object val;
+
+        ContainsMatcher(String prop, Object val){
+            super(prop);
+            this.val = val;
+        }
+
+        @Override
+        boolean matches(Object value){
+            //multi-valued properties are stored as sets, so this is a hash lookup
+            return value instanceof Collection && ((Collection<?>)value).contains(val);
+        }
+
+        @Override
+        int cost(){
+            return 2;
+        }
+    }
+
+    private static final class SubstringMatcher extends Matcher {
+        private final String val;
+
+        SubstringMatcher(String prop, String val){
+            super(prop);
+            this.val = val;
+        }
+
+        @Override
+        boolean matches(Object value){
+            return value instanceof String && ((String)value).contains(val);
+        }
+
+        @Override
+        int cost(){
+            return 3;
+        }
+    }
+}
@@ -0,0 +1,629 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import gov.pnnl.stucco.dbconnect.DBConstraint;
+import gov.pnnl.stucco.dbconnect.ReadOnlyVertex;
+import gov.pnnl.stucco.dbconnect.StuccoDBException;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.ObjectName;
+
+import org.json.JSONObject;
+
+/**
+ * This class is a thread-safe version of the in-memory DB Connection, which can be shared by many threads.
+ * Any number of threads can query at once, and any number can update vertices at once (see updateVertex()),
+ * while other changes (eg. adding or removing vertices and edges) are made one at a time.
+ * Queries wait for the updates and changes, and the other way around (see GraphLock),
+ * so queries never see a partly updated vertex, edge or index.
+ *
+ */
+public class ConcurrentInMemoryDBConnection extends InMemoryDBConnection {
+
+    /** number of locks the vertices are spread over, by ID */
+    private static final int VERTEX_STRIPES = 64;
+
+    /** number of locks the property indexes are spread over, by property */
+    private static final int INDEX_STRIPES = 16;
+
+    private final GraphLock lock = new GraphLock();
+
+    /** held by an update of a vertex, so only one thread updates it at a time */
+    private final Lock[] vertLocks = newLocks(VERTEX_STRIPES);
+
+    /** held while an update changes a property's indexes (see lockForUpdate()) */
+    private final Lock[] indexLocks = newLocks(INDEX_STRIPES);
+
+    /** held while an update changes the vertex store or the interval indexes */
+    private final Lock storeLock = new ReentrantLock();
+
+    /**
+     * Constructor of a thread-safe InMemory type of DB Connection
+     */
+    public ConcurrentInMemoryDBConnection(){
+        this(false);
+    }
+
+    /**
+     * Constructor of a thread-safe InMemory type of DB Connection
+     * @param columnar - true to store the vertex properties in columns, rather than a map per vertex
+     */
+    public ConcurrentInMemoryDBConnection(boolean columnar){
+        this(columnar ? new ColumnarVertexStore() : new MapVertexStore());
+    }
+
+    /**
+     * Constructor of a thread-safe InMemory type of DB Connection, which keeps the vertex properties off the heap
+     * @param offHeapDir - directory to keep the vertex properties in, in memory mapped files,
+     * or null to keep them in direct buffers
+     */
+    public ConcurrentInMemoryDBConnection(File offHeapDir){
+        this(new OffHeapVertexStore(offHeapDir));
+    }
+
+    /**
+     * Constructor of a thread-safe InMemory type of DB Connection
+     * @param vertStore - the (empty) storage of the vertex properties
+     */
+    ConcurrentInMemoryDBConnection(VertexStore vertStore){
+        super(vertStore);
+    }
+
+    private static Lock[] newLocks(int count){
+        Lock[] locks = new Lock[count];
+        for(int i=0; i<count; i++){
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    private static Lock stripe(Lock[] locks, Object key){
+        int h = (key == null) ? 0 : key.hashCode();
+        return locks[((h ^ (h >>> 16)) & 0x7fffffff) % locks.length];
+    }
+
+    @Override
+    void lockForUpdate(String prop){
+        ((prop == null) ? storeLock : stripe(indexLocks, prop)).lock();
+    }
+
+    @Override
+    void unlockForUpdate(String prop){
+        ((prop == null) ? storeLock : stripe(indexLocks, prop)).unlock();
+    }
+
+    @Override
+    public long getVertCount(){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getVertCount();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getVertCountByConstraints(List<DBConstraint> constraints){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getVertCountByConstraints(constraints);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getEdgeCount(){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getEdgeCount();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * return a read-only view of the vertex's property map given the vertex ID, which can be read
+     * while other threads update the vertex. With the default storage, whose maps never change
+     * once returned, this is the view itself; with the other storage it is a view of a copy.
+     * @param vertID
+     * @return property map
+     */
+    @Override
+    public Map<String, Object> getVertByID(String vertID){
+        lock.lock(GraphLock.QUERY);
+        try {
+            if(lock.heldMode() == GraphLock.UPDATE){
+                //an update reading its vertex (eg. to merge set values), while other updates change the store
+                lockForUpdate(null);
+                try {
+                    return super.getVertByID(vertID);
+                } finally {
+                    unlockForUpdate(null);
+                }
+            }
+            Map<String, Object> vert = super.getVertByID(vertID);
+            if(vert == null || hasCopyOnWriteVertices()){
+                return vert;
+            }
+            return ReadOnlyVertex.of(new HashMap<String, Object>(vert));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> getOutEdges(String outVertID){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getOutEdges(outVertID);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> getInEdges(String inVertID){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getInEdges(inVertID);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> getOutEdgesPage(String outVertID, int offset, int limit){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getOutEdgesPage(outVertID, offset, limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> getInEdgesPage(String inVertID, int offset, int limit){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getInEdgesPage(inVertID, offset, limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> getInVertIDsByRelation(String outVertID, String relation){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getInVertIDsByRelation(outVertID, relation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> getOutVertIDsByRelation(String inVertID, String relation){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getOutVertIDsByRelation(inVertID, relation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> getVertIDsByRelation(String vertID, String relation){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getVertIDsByRelation(vertID, relation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> getInVertIDsByRelation(String v1, String relation, List<DBConstraint> constraints){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getInVertIDsByRelation(v1, relation, constraints);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> getOutVertIDsByRelation(String v1, String relation, List<DBConstraint> constraints){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getOutVertIDsByRelation(v1, relation, constraints);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> getVertIDsByRelation(String v1, String relation, List<DBConstraint> constraints){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getVertIDsByRelation(v1, relation, constraints);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getEdgeCountByRelation(String inVertID, String outVertID, String relation){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getEdgeCountByRelation(inVertID, outVertID, relation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> getVertIDsByConstraints(List<DBConstraint> constraints){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getVertIDsByConstraints(constraints);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> getVertIDsByConstraints(List<DBConstraint> constraints, int offset, int limit){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getVertIDsByConstraints(constraints, offset, limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public VertIDsPage getVertIDsPageByConstraints(List<DBConstraint> constraints, String continuation, int limit){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getVertIDsPageByConstraints(constraints, continuation, limit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<String> getVertIDsByRangeContaining(String vertexType, String startProp, String endProp, long value){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getVertIDsByRangeContaining(vertexType, startProp, endProp, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getInEdgeCount(String inVertID){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getInEdgeCount(inVertID);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getOutEdgeCount(String outVertID){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getOutEdgeCount(outVertID);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getInEdgeCount(String inVertID, String relation){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getInEdgeCount(inVertID, relation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getOutEdgeCount(String outVertID, String relation){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getOutEdgeCount(outVertID, relation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getEdgeCountByRelation(String relation){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getEdgeCountByRelation(relation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public MemoryReport getMemoryReport(){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getMemoryReport();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Register an MBean (see InMemoryGraphMXBean) which reports the memory used by the graph,
+     * so that it can be watched from a JMX console. It is unregistered when the connection is closed.
+     * Its reports wait for changes, like any other query.
+     * @param name - name of the graph, unique within the JVM
+     * @return the name the MBean is registered under
+     * @throws StuccoDBException if it can't be registered (eg. there is already one with that name)
+     */
+    @Override
+    public ObjectName registerMBean(String name){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            return registerMonitor(name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void unregisterMBean(){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.unregisterMBean();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setScanParallelism(int parallelism, int minVerts){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.setScanParallelism(parallelism, minVerts);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getScanParallelism(){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.getScanParallelism();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String addVertex(Map<String, Object> vert){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            return super.addVertex(vert);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeVertByID(String vertID){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.removeVertByID(vertID);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeVerts(Collection<String> ids){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.removeVerts(ids);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * update the properties of a vertex. Updates of different vertices run in parallel, each holding the lock
+     * of its vertex, and only locking each index, or the vertex store, while it changes it;
+     * so two updates only wait for each other while they change the same structure.
+     * With the columnar or off-heap storage, or while a snapshot still shares the structures,
+     * the update is made on its own instead, like other changes.
+     * @param vertID
+     * @param newVert - property map
+     */
+    @Override
+    public void updateVertex(String vertID, Map<String, Object> newVert){
+        lock.lock(GraphLock.UPDATE);
+        try {
+            if(lock.heldMode() == GraphLock.UPDATE && canUpdateInParallel()){
+                Lock vertLock = stripe(vertLocks, vertID);
+                vertLock.lock();
+                try {
+                    super.updateVertex(vertID, newVert);
+                    return;
+                } finally {
+                    vertLock.unlock();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.updateVertex(vertID, newVert);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void addEdge(String inVertID, String outVertID, String relation){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.addEdge(inVertID, outVertID, relation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeEdgeByRelation(String inVertID, String outVertID, String relation){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.removeEdgeByRelation(inVertID, outVertID, relation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeAllVertices(){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.removeAllVertices();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void buildIndex(String indexConfig) throws StuccoDBException {
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.buildIndex(indexConfig);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void buildIntervalIndex(String vertexType, String startProp, String endProp){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.buildIntervalIndex(vertexType, startProp, endProp);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void loadState(String filePath){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.loadState(filePath);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void saveState(String filePath){
+        lock.lock(GraphLock.QUERY);
+        try {
+            super.saveState(filePath);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void saveSnapshot(String filePath){
+        lock.lock(GraphLock.QUERY);
+        try {
+            super.saveSnapshot(filePath);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void loadSnapshot(String filePath){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.loadSnapshot(filePath);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void openJournal(String dirPath, long syncIntervalMillis, long compactionBytes){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.openJournal(dirPath, syncIntervalMillis, compactionBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void compactJournal(){
+        //the journal orders this with the changes itself, and the graph isn't read
+        lock.lock(GraphLock.QUERY);
+        try {
+            super.compactJournal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void closeJournal(){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.closeJournal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * take a read-only, point-in-time snapshot of the graph (see InMemoryDBConnection.snapshot()).
+     * This only waits for a change which is in progress, so the snapshot never sees part of one
+     * (eg. half of a bulkLoadGraph() or removeVerts() batch); queries of the snapshot then take no locks at all.
+     * @return the snapshot
+     */
+    @Override
+    public InMemoryDBConnection snapshot(){
+        lock.lock(GraphLock.QUERY);
+        try {
+            return super.snapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void bulkLoadGraph(JSONObject graph){
+        lock.lock(GraphLock.EXCLUSIVE);
+        try {
+            super.bulkLoadGraph(graph);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Epochs of the copy-on-write structures of the in-memory graph (see InMemoryDBConnection.snapshot()).
+ * Posting sets, edge lists and adjacency entries are stamped with the epoch they were made in.
+ * The first change to a graph after a snapshot starts a new epoch, and from then on the graph copies
+ * a set or list from an earlier epoch before changing it, since the snapshot may still be reading it.
+ *
+ */
+final class Epochs {
+
+    private static final AtomicInteger CURRENT = new AtomicInteger();
+
+    private Epochs(){
+    }
+
+    /**
+     * @return the current epoch, which new sets and lists are stamped with
+     */
+    static int current(){
+        return CURRENT.get();
+    }
+
+    /**
+     * start a new epoch
+     * @return the new epoch
+     */
+    static int next(){
+        return CURRENT.incrementAndGet();
+    }
+}
@@ -0,0 +1,146 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+/**
+ * The lock of a ConcurrentInMemoryDBConnection's graph, held in one of three modes:
+ * QUERY by any number of queries at once, UPDATE by any number of vertex updates at once
+ * (which lock the vertices and structures they change themselves), and EXCLUSIVE by one change at a time.
+ * Queries and updates never hold it at the same time, so a query never sees part of an update.
+ *
+ * <p> The modes take turns: once a thread is waiting for another mode, new threads of the current mode
+ * wait as well, and when the current mode's threads are done, every thread waiting for the next mode
+ * (in the order QUERY, UPDATE, EXCLUSIVE) is let in together, or one thread for EXCLUSIVE.
+ * So neither a stream of queries nor a stream of updates can keep the other waiting.
+ *
+ * <p> A thread which already holds the lock can lock it again, in any mode, and then keeps the mode it has,
+ * so a change can call the connection's queries. It can't lock EXCLUSIVE while holding another mode.
+ *
+ */
+final class GraphLock {
+
+    static final int QUERY = 0;
+
+    static final int UPDATE = 1;
+
+    static final int EXCLUSIVE = 2;
+
+    /** no mode: the lock is not held */
+    static final int NONE = -1;
+
+    private static final int MODES = 3;
+
+    /** mode the lock is held in, or NONE */
+    private int activeMode = NONE;
+
+    /** number of threads holding the lock */
+    private int holders = 0;
+
+    /** number of threads waiting, by mode */
+    private final int[] waiting = new int[MODES];
+
+    /** number of waiting threads let in with the active mode, which have not taken the lock yet */
+    private int admitted = 0;
+
+    /** number of times the mode has changed, so a thread can tell if it was waiting before the active mode began */
+    private int turn = 0;
+
+    /** this thread's mode and the number of times it has locked the lock without unlocking it */
+    private final ThreadLocal<int[]> held = new ThreadLocal<int[]>(){
+        @Override
+        protected int[] initialValue(){
+            return new int[] {NONE, 0};
+        }
+    };
+
+    /**
+     * lock the lock, waiting until it can be held in the mode (uninterruptibly, as for Lock.lock())
+     * @param mode - QUERY, UPDATE or EXCLUSIVE
+     */
+    void lock(int mode){
+        int[] h = held.get();
+        if(h[1] > 0){
+            if(mode == EXCLUSIVE && h[0] != EXCLUSIVE){
+                throw new IllegalStateException("can't lock the graph exclusively while holding it for a query or update");
+            }
+            h[1]++;
+            return;
+        }
+        acquire(mode);
+        h[0] = mode;
+        h[1] = 1;
+    }
+
+    void unlock(){
+        int[] h = held.get();
+        if(h[1] == 0){
+            throw new IllegalMonitorStateException("the graph is not locked by this thread");
+        }
+        if(--h[1] == 0){
+            h[0] = NONE;
+            release();
+        }
+    }
+
+    /**
+     * @return the mode this thread holds the lock in, or NONE
+     */
+    int heldMode(){
+        return held.get()[0];
+    }
+
+    private synchronized void acquire(int mode){
+        if(activeMode == NONE || (activeMode == mode && mode != EXCLUSIVE && !othersWaiting(mode))){
+            activeMode = mode;
+            holders++;
+            return;
+        }
+        waiting[mode]++;
+        int waitingSince = turn;
+        boolean interrupted = false;
+        //only threads which were waiting when the mode began are let in, not ones which came after them
+        while(activeMode != mode || admitted == 0 || turn == waitingSince){
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        waiting[mode]--;
+        admitted--;
+        holders++;
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void release(){
+        holders--;
+        if(holders > 0 || admitted > 0){
+            return;
+        }
+        int finished = activeMode;
+        activeMode = NONE;
+        for(int i=1; i<=MODES; i++){
+            int next = (finished + i) % MODES;
+            if(waiting[next] > 0){
+                activeMode = next;
+                turn++;
+                admitted = (next == EXCLUSIVE) ? 1 : waiting[next];
+                notifyAll();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param mode
+     * @return true if any thread is waiting for a different mode
+     */
+    private boolean othersWaiting(int mode){
+        for(int i=0; i<MODES; i++){
+            if(i != mode && waiting[i] > 0){
+                return true;
+            }
+        }
+        return false;
+    }
+}
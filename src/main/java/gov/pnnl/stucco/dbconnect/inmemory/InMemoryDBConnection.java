@@ -3,24 +3,48 @@ package gov.pnnl.stucco.dbconnect.inmemory;
 import gov.pnnl.stucco.dbconnect.Condition;
 import gov.pnnl.stucco.dbconnect.DBConnectionBase;
 import gov.pnnl.stucco.dbconnect.DBConstraint;
+import gov.pnnl.stucco.dbconnect.JSONGraphLoader;
+import gov.pnnl.stucco.dbconnect.ReadOnlyVertex;
+import gov.pnnl.stucco.dbconnect.StringInterner;
+import gov.pnnl.stucco.dbconnect.StuccoDBException;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
@@ -32,46 +56,589 @@ import org.slf4j.Logger;
 /**
  * This class represents a concrete implementation of an in-memory DB Connection Type
  *
+ * <p> Internally, each vertex and edge is known by a dense int (its number), which is
+ * what the edges, adjacency lists and indexes store; the String vertex IDs of the
+ * interface are only kept in the dictionary between the two.
+ * Numbers of removed vertices and edges are reused by the ones added later.
+ *
+ * <p> The vertex properties are either kept in each vertex's own map, in columns
+ * (see ColumnarVertexStore), which is more compact for large graphs, or off the heap
+ * (see OffHeapVertexStore), for graphs too large to keep on the heap.
+ *
+ * <p> Changes can also be journaled (see openJournal()), so that they survive a restart
+ * without saving the whole graph each time.
+ *
+ * <p> snapshot() gives a read-only, point-in-time view of the graph, which shares its structures
+ * with the graph. The graph's later changes copy only the parts of them they change (copy-on-write):
+ * the lists and maps are kept in chunks or segments (see ChunkedList and SegmentedHashMap), and the posting sets,
+ * edge lists and adjacency entries are copied one at a time (see Epochs).
  */
 public class InMemoryDBConnection extends DBConnectionBase{
 
     /** logger variable to track activities in this class*/
     private Logger logger = null;
 
-    /** contains all the vertices via a map of maps where the values are a property map*/
-    private Map<String, Map<String, Object>> vertices = null;
+    /** dictionary of vertex IDs to vertex numbers */
+    private SegmentedHashMap<String, Integer> vertNums = null;
+
+    /** dictionary of vertex numbers to vertex IDs, null for unused numbers */
+    private ChunkedList<String> vertIDs = null;
 
-    /** contains a mapping of vertexIDs to the actual vertex canonical name*/
-    //private Map<String, String> vertIDs = null;
+    /** properties of the vertices, by vertex number */
+    private VertexStore vertStore = null;
 
-    /** 
-     * contains a map of edges and their properties.
-     * 
-     * <p> Note: We're keeping this structure even though edge IDs are no
-     * longer exposed in the interface, in order to minimize code changes.
+    /** vertex numbers free to be reused */
+    private ChunkedIntList freeVertNums = null;
+
+    /**
+     * the edges, by edge number: the numbers of their out and in vertices, and their relation
+     * (null for unused edge numbers).
+     *
+     * <p> Note: edge IDs are no longer exposed in the interface, so edges only need a number.
      */
-    private Map<String, Map<String, Object>> edges = null; //TODO: make/use an Edge class, to store inV, outV, label?  And maybe index that.
+    private ChunkedIntList edgeOutVerts = null;
+    private ChunkedIntList edgeInVerts = null;
+    private ChunkedList<String> edgeRelations = null;
+
+    /** edge numbers free to be reused */
+    private ChunkedIntList freeEdgeNums = null;
+
+    /** number of edges */
+    private int edgeCount = 0;
 
-    //private Map<String, String> edgeIDs = null; //edges don't have meaningful names.
-    
-    /** 
+    /** number of edges leaving each vertex, by vertex number */
+    private ChunkedIntList outDegrees = null;
+
+    /** number of edges entering each vertex, by vertex number */
+    private ChunkedIntList inDegrees = null;
+
+    /** number of edges with each relation */
+    private Map<String, Integer> relationEdgeCounts = null;
+
+    /**
      * Index of vert fields.
-     * This is a map the field name to a map of values to matching IDs
-     * (eg. "name" -> some vertex name -> set of vert ID(s) which have that name)
+     * This is a map the field name to a map of values to matching vertex numbers
+     * (eg. "name" -> some vertex name -> set of vert number(s) which have that name)
+     * "name" is always indexed, other fields are added by buildIndex()
+     */
+    private Map<String, SegmentedHashMap<Object, IntHashSet>> indexedVertFields = null;
+
+    /**
+     * Ordered index of numeric and date vert fields, used for range constraints.
+     * This is a map of the field name to a sorted map of values to matching vertex numbers.
+     * Dates are keyed by their time in milliseconds.
+     */
+    private Map<String, NavigableMap<Number, IntHashSet>> rangeIndexedVertFields = null;
+
+    /**
+     * numbers of the vertices whose value for a range indexed field is not a number or date
+     * (eg. a String), so could not be put in the ordered index, per field name.
+     */
+    private Map<String, IntHashSet> rangeIndexExceptions = null;
+
+    /** number of vertices in each ordered index (not counting the exceptions), used to estimate selectivity */
+    private Map<String, Integer> rangeIndexEntryCounts = null;
+
+    /**
+     * Trigram index of String vert fields, used for substring constraints.
+     * This is a map of the field name to a map of each three character sequence (see trigram())
+     * to the numbers of the vertices whose value contains it.
+     * Fields are added by buildIndex(), for indexes of type FULLTEXT.
+     */
+    private Map<String, SegmentedHashMap<Long, IntHashSet>> trigramIndexedVertFields = null;
+
+    /**
+     * Element index of set (or list) valued vert fields, used for contains constraints.
+     * This is a map of the field name to a map of each element to the numbers of the vertices
+     * whose value contains it (eg. "source" -> "NVD" -> vertices with NVD in their sources).
+     * Fields are added by buildIndex(), for keys of a collection class (see COLLECTION_INDEX_CLASSES).
+     */
+    private Map<String, SegmentedHashMap<Object, IntHashSet>> elementIndexedVertFields = null;
+
+    /** index config classes which get an element index, in addition to the hash index */
+    private static final Set<String> COLLECTION_INDEX_CLASSES = new HashSet<String>(
+            Arrays.asList("embeddedset", "embeddedlist", "linkset", "linklist"));
+
+    /** index config type which gets a trigram index, in addition to the hash index */
+    private static final String TRIGRAM_INDEX_TYPE = "FULLTEXT";
+
+    /** index config type whose two keys (start and end of a range) also get an interval index, for the vertices of its vertexType */
+    private static final String INTERVAL_INDEX_TYPE = "INTERVAL";
+
+    /** index config classes which get an ordered index, in addition to the hash index */
+    private static final Set<String> RANGE_INDEX_CLASSES = new HashSet<String>(
+            Arrays.asList("long", "integer", "short", "double", "float", "date", "datetime"));
+
+    /** orders the keys of the ordered indexes by value, regardless of their types */
+    private static final Comparator<Number> NUMBER_ORDER = new Comparator<Number>(){
+        @Override
+        public int compare(Number n1, Number n2){
+            return compareNumbers(n1, n2);
+        }
+    };
+
+    /** orders posting lists from smallest to largest */
+    private static final Comparator<IntHashSet> SIZE_ORDER = new Comparator<IntHashSet>(){
+        @Override
+        public int compare(IntHashSet s1, IntHashSet s2){
+            return Integer.compare(s1.size(), s2.size());
+        }
+    };
+
+    /**
+     * Adjacency index of outgoing edges.
+     * This is a list, by vertex number, of a map of relation to the numbers of the edges
+     * leaving that vertex (ie. the vertex is the edge's outVertID), or null if there are none
+     */
+    private ChunkedList<EdgesByRelation> outEdgeNums = null;
+
+    /**
+     * Adjacency index of incoming edges.
+     * This is a list, by vertex number, of a map of relation to the numbers of the edges
+     * entering that vertex (ie. the vertex is the edge's inVertID), or null if there are none
+     */
+    private ChunkedList<EdgesByRelation> inEdgeNums = null;
+
+    /**
+     * Index of edges by their end points and relation.
+     * This is a map of (outVert, inVert, relation) to the numbers of the matching edges
+     */
+    private SegmentedHashMap<EdgeKey, IntArrayList> edgeKeyIndex = null;
+
+    /**
+     * Interval indexes, used for getVertIDsByRangeContaining().
+     * This is a map of (vertexType, startProp, endProp) to the index of those ranges;
+     * each is built by buildIndex() or buildIntervalIndex(), then kept up to date.
+     */
+    private Map<List<String>, IntervalIndex> intervalIndexes = null;
+
+    /** max number of compiled constraint lists to keep */
+    private static final int COMPILED_CONSTRAINTS_CACHE_SIZE = 64;
+
+    /**
+     * Recently compiled constraint lists, keyed by their properties, conditions and values,
+     * so that repeated queries don't need to compile them again.
+     * Lookups take no lock, so concurrent queries don't wait on each other for it.
+     */
+    private ConcurrentMap<List<List<Object>>, CompiledConstraints> compiledConstraintsCache = null;
+
+    /** default time between forcing the journal to disk, in milliseconds */
+    public static final long DEFAULT_JOURNAL_SYNC_MILLIS = 50;
+
+    /** default journal size which starts a compaction into a new snapshot */
+    public static final long DEFAULT_JOURNAL_COMPACTION_BYTES = 1L << 28;
+
+    /** fewest vertices added at once for which the indexes are updated in parallel */
+    private static final int PARALLEL_INDEX_MIN_VERTS = 1 << 12;
+
+    /** default fewest vertices to look at for which a query's scan is split between threads */
+    public static final int DEFAULT_PARALLEL_SCAN_MIN_VERTS = 1 << 14;
+
+    /** fewest vertices a parallel scan gives to one task */
+    private static final int PARALLEL_SCAN_MIN_CHUNK = 1 << 10;
+
+    /** number of threads a query's scan is split between (1 to scan on the calling thread only) */
+    private int scanParallelism = 1;
+
+    /** fewest vertices to look at for which a query's scan is split between threads */
+    private int parallelScanMinVerts = DEFAULT_PARALLEL_SCAN_MIN_VERTS;
+
+    /** threads of the parallel scans, or null if the scans are not parallel */
+    private ForkJoinPool scanPool = null;
+
+    /** name the memory use MBean is registered under, or null if it isn't registered */
+    private ObjectName mbeanName = null;
+
+    /** journal of the changes, or null if they are not journaled */
+    private Journal journal = null;
+
+    /** true if this is a snapshot (see snapshot()), so can't be changed */
+    private final boolean readOnly;
+
+    /** true if the structures are shared with a snapshot, so must be copied before the next change */
+    private boolean shared = false;
+
+    /**
+     * epoch this graph last copied its structures in (see Epochs): the posting sets, edge lists
+     * and adjacency entries from earlier epochs may still be shared with a snapshot, so are copied before they change
+     */
+    private int ownedEpoch = 0;
+
+    /**
+     * the range and interval indexes made or copied since this graph last copied its structures, which it can change in place.
+     * It is synchronized since parallel vertex updates (see lockForUpdate()) may copy the indexes of different properties at once.
      */
-    private Map<String, Map<String, Set<String>>> indexedVertFields = null;
+    private final Set<Object> ownedIndexes = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+
+    /** builds a new snapshot from the old one and the journal, on a separate graph, so the live one isn't blocked */
+    private static final Journal.Compactor JOURNAL_COMPACTOR = new Journal.Compactor(){
+        @Override
+        public void compact(File snapshot, List<File> segments, File newSnapshot) throws IOException {
+            InMemoryDBConnection graph = new InMemoryDBConnection(true);
+            if(snapshot != null){
+                graph.loadSnapshot(snapshot.getPath());
+            }
+            for(File segment : segments){
+                Journal.replay(segment, graph.newJournalReplayer());
+            }
+            graph.saveSnapshot(newSnapshot.getPath());
+        }
+    };
 
     /**
      * Constructor of an InMemory type of DB Connection
      */
     public InMemoryDBConnection(){
-        vertices = new HashMap<String, Map<String, Object>>();
-        //vertIDs = new HashMap<String, String>();
-        edges = new HashMap<String, Map<String, Object>>();
-        //edgeIDs = new HashMap<String, String>(); //edges don't have meaningful names.
-        indexedVertFields = new HashMap<String, Map<String, Set<String>>>();
+        this(false);
+    }
+
+    /**
+     * Constructor of an InMemory type of DB Connection
+     * @param columnar - true to store the vertex properties in columns, rather than a map per vertex.
+     * Vertices are then returned as read-only views.
+     */
+    public InMemoryDBConnection(boolean columnar){
+        this(columnar ? new ColumnarVertexStore() : new MapVertexStore());
+    }
+
+    /**
+     * Constructor of an InMemory type of DB Connection, which keeps the vertex properties off the heap.
+     * Vertices are then returned as read-only views.
+     * @param offHeapDir - directory to keep the vertex properties in, in memory mapped files,
+     * or null to keep them in direct buffers
+     */
+    public InMemoryDBConnection(File offHeapDir){
+        this(new OffHeapVertexStore(offHeapDir));
+    }
+
+    /**
+     * Constructor of an InMemory type of DB Connection
+     * @param vertStore - the (empty) storage of the vertex properties
+     */
+    InMemoryDBConnection(VertexStore vertStore){
+        readOnly = false;
+        vertNums = new SegmentedHashMap<String, Integer>();
+        vertIDs = new ChunkedList<String>();
+        this.vertStore = vertStore;
+        freeVertNums = new ChunkedIntList();
+        edgeOutVerts = new ChunkedIntList();
+        edgeInVerts = new ChunkedIntList();
+        edgeRelations = new ChunkedList<String>();
+        freeEdgeNums = new ChunkedIntList();
+        outDegrees = new ChunkedIntList();
+        inDegrees = new ChunkedIntList();
+        relationEdgeCounts = new HashMap<String, Integer>();
+        outEdgeNums = new ChunkedList<EdgesByRelation>();
+        inEdgeNums = new ChunkedList<EdgesByRelation>();
+        edgeKeyIndex = new SegmentedHashMap<EdgeKey, IntArrayList>();
+        intervalIndexes = new HashMap<List<String>, IntervalIndex>();
+        compiledConstraintsCache = new ConcurrentHashMap<List<List<Object>>, CompiledConstraints>();
+        indexedVertFields = new HashMap<String, SegmentedHashMap<Object, IntHashSet>>();
         //initialize any indexes.
-        indexedVertFields.put("name", new HashMap<String, Set<String>>());
+        indexedVertFields.put("name", new SegmentedHashMap<Object, IntHashSet>());
+        rangeIndexedVertFields = new HashMap<String, NavigableMap<Number, IntHashSet>>();
+        rangeIndexExceptions = new HashMap<String, IntHashSet>();
+        rangeIndexEntryCounts = new HashMap<String, Integer>();
+        trigramIndexedVertFields = new HashMap<String, SegmentedHashMap<Long, IntHashSet>>();
+        elementIndexedVertFields = new HashMap<String, SegmentedHashMap<Object, IntHashSet>>();
+    }
+
+    /**
+     * Constructor of a read-only snapshot, which shares the structures of a graph
+     * @param graph
+     */
+    private InMemoryDBConnection(InMemoryDBConnection graph){
+        readOnly = true;
+        logger = graph.logger;
+        vertNums = graph.vertNums;
+        vertIDs = graph.vertIDs;
+        vertStore = graph.vertStore;
+        freeVertNums = graph.freeVertNums;
+        edgeOutVerts = graph.edgeOutVerts;
+        edgeInVerts = graph.edgeInVerts;
+        edgeRelations = graph.edgeRelations;
+        freeEdgeNums = graph.freeEdgeNums;
+        edgeCount = graph.edgeCount;
+        outDegrees = graph.outDegrees;
+        inDegrees = graph.inDegrees;
+        relationEdgeCounts = graph.relationEdgeCounts;
+        outEdgeNums = graph.outEdgeNums;
+        inEdgeNums = graph.inEdgeNums;
+        edgeKeyIndex = graph.edgeKeyIndex;
+        intervalIndexes = graph.intervalIndexes;
+        compiledConstraintsCache = graph.compiledConstraintsCache;
+        indexedVertFields = graph.indexedVertFields;
+        rangeIndexedVertFields = graph.rangeIndexedVertFields;
+        rangeIndexExceptions = graph.rangeIndexExceptions;
+        rangeIndexEntryCounts = graph.rangeIndexEntryCounts;
+        trigramIndexedVertFields = graph.trigramIndexedVertFields;
+        elementIndexedVertFields = graph.elementIndexedVertFields;
+        scanParallelism = graph.scanParallelism;
+        parallelScanMinVerts = graph.parallelScanMinVerts;
+        scanPool = graph.scanPool;
+    }
+
+    /**
+     * Take a read-only, point-in-time view of the graph. Taking it doesn't copy anything: the snapshot
+     * shares the graph's structures, and the graph's next change copies their tops instead, so the
+     * snapshot never sees that change (or any part of it). The parts below the tops (chunks, segments, postings,
+     * adjacency entries, range and interval indexes, property columns) stay shared until the graph changes them,
+     * so each change only copies what it touches. Since a snapshot never changes, any number
+     * of threads can query it at once, without locking.
+     * Taking more snapshots before the graph changes again is free, since they all share the same structures.
+     * @return the snapshot; its changing methods throw UnsupportedOperationException
+     */
+    public InMemoryDBConnection snapshot(){
+        if(readOnly){
+            return this;
+        }
+        shared = true;
+        return new InMemoryDBConnection(this);
+    }
+
+    /**
+     * @return true if this is a snapshot, which can't be changed
+     */
+    public boolean isSnapshot(){
+        return readOnly;
+    }
+
+    /**
+     * called before each change: fails for a snapshot, and copies any structures still shared with a snapshot
+     */
+    private void beginChange(){
+        if(readOnly){
+            throw new UnsupportedOperationException("a snapshot of the graph can't be changed");
+        }
+        if(shared){
+            copySharedStructures();
+        }
+    }
+
+    /**
+     * replace the structures shared with snapshots by copies of them, which only this graph will change.
+     * The copies still share their chunks and segments, and the sets, lists and indexes in them,
+     * until this graph changes those, so this takes time in proportion to the number of chunks and segments,
+     * not of vertices and edges.
+     */
+    private void copySharedStructures(){
+        ownedEpoch = Epochs.next();
+        ownedIndexes.clear();
+        vertNums = vertNums.copy();
+        vertIDs = vertIDs.copy();
+        vertStore = vertStore.copy();
+        freeVertNums = freeVertNums.copy();
+        edgeOutVerts = edgeOutVerts.copy();
+        edgeInVerts = edgeInVerts.copy();
+        edgeRelations = edgeRelations.copy();
+        freeEdgeNums = freeEdgeNums.copy();
+        outDegrees = outDegrees.copy();
+        inDegrees = inDegrees.copy();
+        relationEdgeCounts = new HashMap<String, Integer>(relationEdgeCounts);
+        outEdgeNums = outEdgeNums.copy();
+        inEdgeNums = inEdgeNums.copy();
+        edgeKeyIndex = edgeKeyIndex.copy();
+        //the range and interval indexes are copied when they change (see rangeIndexToChange() and intervalIndexToChange())
+        intervalIndexes = new HashMap<List<String>, IntervalIndex>(intervalIndexes);
+        indexedVertFields = copyIndexes(indexedVertFields);
+        elementIndexedVertFields = copyIndexes(elementIndexedVertFields);
+        trigramIndexedVertFields = copyIndexes(trigramIndexedVertFields);
+        rangeIndexedVertFields = new HashMap<String, NavigableMap<Number, IntHashSet>>(rangeIndexedVertFields);
+        rangeIndexExceptions = new HashMap<String, IntHashSet>(rangeIndexExceptions);
+        rangeIndexEntryCounts = new HashMap<String, Integer>(rangeIndexEntryCounts);
+        shared = false;
+    }
+
+    /**
+     * @param indexes - hash, element or trigram indexes, by property
+     * @return a map of copies of the indexes, which share their segments and postings with the originals
+     */
+    private static <K> Map<String, SegmentedHashMap<K, IntHashSet>> copyIndexes(Map<String, SegmentedHashMap<K, IntHashSet>> indexes){
+        Map<String, SegmentedHashMap<K, IntHashSet>> copy = new HashMap<String, SegmentedHashMap<K, IntHashSet>>();
+        for(Map.Entry<String, SegmentedHashMap<K, IntHashSet>> entry : indexes.entrySet()){
+            copy.put(entry.getKey(), entry.getValue().copy());
+        }
+        return copy;
+    }
+
+    /**
+     * add a vertex to the posting set of a key in an index, copying the set first if a snapshot may share it
+     * @param index
+     * @param key
+     * @param vertNum
+     * @return true if the vertex was not in the set
+     */
+    private <K> boolean addPosting(Map<K, IntHashSet> index, K key, int vertNum){
+        IntHashSet currSet = index.get(key);
+        if(currSet == null){
+            currSet = new IntHashSet();
+            index.put(key, currSet);
+        }else if(currSet.epoch < ownedEpoch){
+            if(currSet.contains(vertNum)){
+                return false;
+            }
+            currSet = currSet.copy();
+            index.put(key, currSet);
+        }
+        return currSet.add(vertNum);
+    }
+
+    /**
+     * remove a vertex from the posting set of a key in an index, dropping the set once it is empty,
+     * and copying it first if a snapshot may share it
+     * @param index
+     * @param key
+     * @param vertNum
+     * @return true if the vertex was in the set
+     */
+    private <K> boolean removePosting(Map<K, IntHashSet> index, K key, int vertNum){
+        IntHashSet currSet = index.get(key);
+        if(currSet == null || !currSet.contains(vertNum)){
+            return false;
+        }
+        if(currSet.size() == 1){
+            index.remove(key);
+            return true;
+        }
+        if(currSet.epoch < ownedEpoch){
+            currSet = currSet.copy();
+            index.put(key, currSet);
+        }
+        return currSet.remove(vertNum);
+    }
+
+    /**
+     * @param lists
+     * @param key
+     * @param list - the list of the key, which is to be changed
+     * @return the list, or a copy of it (in its place in the map) if a snapshot may share it
+     */
+    private <K> IntArrayList listToChange(Map<K, IntArrayList> lists, K key, IntArrayList list){
+        if(list.epoch < ownedEpoch){
+            list = list.copy();
+            lists.put(key, list);
+        }
+        return list;
+    }
+
+    /**
+     * @param adjacency - outEdgeNums or inEdgeNums
+     * @param vertNum
+     * @return the vertex's adjacency entry, or a copy of it (in its place) if a snapshot may share it, or null if it has no edges
+     */
+    private EdgesByRelation adjacencyToChange(ChunkedList<EdgesByRelation> adjacency, int vertNum){
+        EdgesByRelation byRelation = adjacency.get(vertNum);
+        if(byRelation != null && byRelation.epoch < ownedEpoch){
+            byRelation = new EdgesByRelation(byRelation);
+            adjacency.set(vertNum, byRelation);
+        }
+        return byRelation;
+    }
+
+    /**
+     * @param prop
+     * @return the ordered index of the property, or a copy of it (in its place) if a snapshot may share it,
+     * or null if there is none. Its posting sets are still shared, see addPosting().
+     */
+    private NavigableMap<Number, IntHashSet> rangeIndexToChange(String prop){
+        NavigableMap<Number, IntHashSet> currIndex = rangeIndexedVertFields.get(prop);
+        if(currIndex != null && ownedEpoch > 0 && !ownedIndexes.contains(currIndex)){
+            currIndex = new TreeMap<Number, IntHashSet>(currIndex);
+            rangeIndexedVertFields.put(prop, currIndex);
+            ownedIndexes.add(currIndex);
+        }
+        return currIndex;
+    }
+
+    /**
+     * @param prop - a property with an ordered index
+     * @return the exceptions of the property's ordered index, or a copy of them (in their place) if a snapshot may share them
+     */
+    private IntHashSet rangeExceptionsToChange(String prop){
+        IntHashSet exceptions = rangeIndexExceptions.get(prop);
+        if(exceptions.epoch < ownedEpoch){
+            exceptions = exceptions.copy();
+            rangeIndexExceptions.put(prop, exceptions);
+        }
+        return exceptions;
+    }
+
+    /**
+     * @param entry - an entry of intervalIndexes
+     * @return the entry's index, or a copy of it (in its place) if a snapshot may share it
+     */
+    private IntervalIndex intervalIndexToChange(Map.Entry<List<String>, IntervalIndex> entry){
+        IntervalIndex index = entry.getValue();
+        if(ownedEpoch > 0 && !ownedIndexes.contains(index)){
+            index = index.copy();
+            entry.setValue(index);
+            ownedIndexes.add(index);
+        }
+        return index;
+    }
+
+    /**
+     * Count the parts of this graph's structures which it no longer shares with a snapshot taken before its latest changes,
+     * ie. which those changes copied (for testing the copy-on-write).
+     * @param snapshot
+     * @return by structure, the number of its chunks or segments (or for adjacency indexes, vertex entries,
+     * for property indexes, posting sets, and for range and interval indexes, 1) this graph copied,
+     * for each structure with any copied parts
+     */
+    Map<String, Integer> countCopiedParts(InMemoryDBConnection snapshot){
+        Map<String, Integer> counts = new TreeMap<String, Integer>();
+        putIfCopied(counts, "vertNums", vertNums.countCopiedSegments(snapshot.vertNums));
+        putIfCopied(counts, "vertIDs", vertIDs.countCopiedChunks(snapshot.vertIDs));
+        putIfCopied(counts, "freeVertNums", freeVertNums.countCopiedChunks(snapshot.freeVertNums));
+        putIfCopied(counts, "edgeOutVerts", edgeOutVerts.countCopiedChunks(snapshot.edgeOutVerts));
+        putIfCopied(counts, "edgeInVerts", edgeInVerts.countCopiedChunks(snapshot.edgeInVerts));
+        putIfCopied(counts, "edgeRelations", edgeRelations.countCopiedChunks(snapshot.edgeRelations));
+        putIfCopied(counts, "freeEdgeNums", freeEdgeNums.countCopiedChunks(snapshot.freeEdgeNums));
+        putIfCopied(counts, "outDegrees", outDegrees.countCopiedChunks(snapshot.outDegrees));
+        putIfCopied(counts, "inDegrees", inDegrees.countCopiedChunks(snapshot.inDegrees));
+        putIfCopied(counts, "outEdgeNums", countCopiedEntries(outEdgeNums, snapshot.outEdgeNums));
+        putIfCopied(counts, "inEdgeNums", countCopiedEntries(inEdgeNums, snapshot.inEdgeNums));
+        putIfCopied(counts, "edgeKeyIndex", edgeKeyIndex.countCopiedSegments(snapshot.edgeKeyIndex));
+        countCopiedPostings(counts, "hash:", indexedVertFields, snapshot.indexedVertFields);
+        countCopiedPostings(counts, "element:", elementIndexedVertFields, snapshot.elementIndexedVertFields);
+        countCopiedPostings(counts, "fulltext:", trigramIndexedVertFields, snapshot.trigramIndexedVertFields);
+        for(Map.Entry<String, NavigableMap<Number, IntHashSet>> entry : rangeIndexedVertFields.entrySet()){
+            putIfCopied(counts, "range:" + entry.getKey(), (entry.getValue() == snapshot.rangeIndexedVertFields.get(entry.getKey())) ? 0 : 1);
+        }
+        for(Map.Entry<List<String>, IntervalIndex> entry : intervalIndexes.entrySet()){
+            putIfCopied(counts, "interval:" + entry.getKey(), (entry.getValue() == snapshot.intervalIndexes.get(entry.getKey())) ? 0 : 1);
+        }
+        return counts;
+    }
+
+    private static void putIfCopied(Map<String, Integer> counts, String name, int count){
+        if(count > 0){
+            counts.put(name, count);
+        }
+    }
+
+    private static int countCopiedEntries(ChunkedList<EdgesByRelation> adjacency, ChunkedList<EdgesByRelation> original){
+        int count = 0;
+        for(int num=0; num<adjacency.size(); num++){
+            if(adjacency.get(num) != null && (num >= original.size() || adjacency.get(num) != original.get(num))){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static <K> void countCopiedPostings(Map<String, Integer> counts, String kind,
+            Map<String, SegmentedHashMap<K, IntHashSet>> indexes, Map<String, SegmentedHashMap<K, IntHashSet>> originals){
+        for(Map.Entry<String, SegmentedHashMap<K, IntHashSet>> entry : indexes.entrySet()){
+            Map<K, IntHashSet> original = originals.get(entry.getKey());
+            int count = 0;
+            for(Map.Entry<K, IntHashSet> posting : entry.getValue().entrySet()){
+                if(original == null || original.get(posting.getKey()) != posting.getValue()){
+                    count++;
+                }
+            }
+            putIfCopied(counts, kind + entry.getKey(), count);
+        }
     }
 
     /**
@@ -80,17 +647,43 @@ public class InMemoryDBConnection extends DBConnectionBase{
      */
     @Override
     public long getVertCount(){
-        return vertices.size();
+        return vertNums.size();
     }
 
     /**
-     * TODO: implementation
-     * return the number of vertices
+     * return the number of vertices matching the constraints
+     * @param constraints
      * @return count
      */
     @Override
     public long getVertCountByConstraints(List<DBConstraint> constraints) {
-        return 0L;
+        QueryPlan plan = planQuery(constraints, null);
+        if(plan.residual.isEmpty()){
+            //the indexes answered everything
+            long count = plan.getCandidateCount();
+            return (count < 0) ? vertNums.size() : count;
+        }
+        CompiledConstraints residual = compileConstraints(plan.residual);
+        long count = 0L;
+        int[] candidateNums = plan.getCandidateNums();
+        int scanSize = (candidateNums == null) ? vertIDs.size() : candidateNums.length;
+        if(isParallelScan(scanSize)){
+            return scanPool.invoke(new ScanTask(residual, candidateNums, 0, scanSize)).size();
+        }
+        if(candidateNums == null){
+            for(int num=0; num<vertIDs.size(); num++){
+                if(vertIDs.get(num) != null && residual.matches(vertStore, num)){
+                    count++;
+                }
+            }
+        }else{
+            for(int num : candidateNums){
+                if(residual.matches(vertStore, num)){
+                    count++;
+                }
+            }
+        }
+        return count;
     }
 
     /**
@@ -99,17 +692,64 @@ public class InMemoryDBConnection extends DBConnectionBase{
      */
     @Override
     public long getEdgeCount(){
-        return edges.size();
+        return edgeCount;
     }
 
     /**
-     * return the vertex's property map given the vertex ID
+     * return the vertex's property map given the vertex ID, as a read-only view of the stored properties
+     * (see ReadOnlyVertex), so it doesn't need to be copied, and can't be changed by accident.
+     * With the default storage the view stays as it was when returned; with the other storage
+     * (columnar or off-heap) it shows later updates.
      * @param vertID
      * @return property map
      */
     @Override
     public Map<String, Object> getVertByID(String vertID){
-        return vertices.get(vertID);
+        int vertNum = getVertNum(vertID);
+        return (vertNum < 0) ? null : ReadOnlyVertex.of(vertStore.get(vertNum));
+    }
+
+    /**
+     * @return true if the vertex maps never change once returned by getVertByID(), so can be read without a lock
+     */
+    boolean hasCopyOnWriteVertices(){
+        return vertStore.isCopyOnWrite();
+    }
+
+    /**
+     * @return true if updates of different vertices can run at once (see lockForUpdate()): the vertex maps
+     * never change once returned, and there are no structures shared with a snapshot left to copy
+     */
+    boolean canUpdateInParallel(){
+        return vertStore.isCopyOnWrite() && !shared && !readOnly;
+    }
+
+    /**
+     * lock the structures a vertex update is about to change. These do nothing here, since this connection is
+     * only used by one thread at a time; ConcurrentInMemoryDBConnection overrides them to run updates of different vertices
+     * in parallel (when canUpdateInParallel()), with each property's indexes changed by one update at a time.
+     * A vertex update only changes the indexes of the properties it sets, the interval indexes and the vertex store,
+     * and the maps of the indexes by property only have existing entries replaced, so they need no lock of their own.
+     * @param prop - the property whose indexes are changed, or null for the vertex store and interval indexes
+     */
+    void lockForUpdate(String prop){
+    }
+
+    /**
+     * unlock the structures locked by lockForUpdate()
+     * @param prop
+     */
+    void unlockForUpdate(String prop){
+    }
+
+    /**
+     * look up a vertex number in the dictionary
+     * @param vertID
+     * @return the vertex number, or -1 if there is no such vertex
+     */
+    private int getVertNum(String vertID){
+        Integer vertNum = (vertID == null) ? null : vertNums.get(vertID);
+        return (vertNum == null) ? -1 : vertNum;
     }
 
     /**
@@ -119,19 +759,12 @@ public class InMemoryDBConnection extends DBConnectionBase{
      */
     @Override
     public List<Map<String, Object>> getOutEdges(String outVertID) throws IllegalArgumentException{
-        if(outVertID == null || outVertID.equals("") || !vertices.containsKey(outVertID)){
+        int outVertNum = getVertNum(outVertID);
+        if(outVertID == null || outVertID.equals("") || outVertNum < 0){
             throw new IllegalArgumentException("cannot get edge with missing or invalid outVertID");
         }
-        List<Map<String, Object>> foundEdges = new LinkedList<Map<String, Object>>();
-        for(Map<String, Object> currEdge : edges.values()){
-            if( ((String)currEdge.get("outVertID")).equals(outVertID) ){
-                //inVertID = currEdge.get("inVertID");
-                //outVertID = currEdge.get("outVertID");
-                //relation = currEdge.get("relation");
-                foundEdges.add( currEdge );
-            }
-        }
-        return foundEdges;
+        IntArrayList edgeNums = getAdjacentEdgeNums(outEdgeNums, outVertNum, null);
+        return getEdgesPage(edgeNums, 0, edgeNums.size());
     }
 
     /**
@@ -141,16 +774,12 @@ public class InMemoryDBConnection extends DBConnectionBase{
      */
     @Override
     public List<Map<String, Object>> getInEdges(String inVertID) throws IllegalArgumentException{
-        if(inVertID == null || inVertID.equals("") || !vertices.containsKey(inVertID)){
+        int inVertNum = getVertNum(inVertID);
+        if(inVertID == null || inVertID.equals("") || inVertNum < 0){
             throw new IllegalArgumentException("cannot get edge with missing or invalid inVertID");
         }
-        List<Map<String, Object>> foundEdges = new LinkedList<Map<String, Object>>();
-        for(Map<String, Object> currEdge : edges.values()){
-            if( ((String)currEdge.get("inVertID")).equals(inVertID) ){
-                foundEdges.add( currEdge );
-            }
-        }
-        return foundEdges;
+        IntArrayList edgeNums = getAdjacentEdgeNums(inEdgeNums, inVertNum, null);
+        return getEdgesPage(edgeNums, 0, edgeNums.size());
     }
 
     /**
@@ -160,27 +789,11 @@ public class InMemoryDBConnection extends DBConnectionBase{
      */
     @Override
     public List<Map<String, Object>> getOutEdgesPage(String outVertID, int offset, int limit) throws IllegalArgumentException{
-        if(outVertID == null || outVertID.equals("") || !vertices.containsKey(outVertID)){
+        int outVertNum = getVertNum(outVertID);
+        if(outVertID == null || outVertID.equals("") || outVertNum < 0){
             throw new IllegalArgumentException("cannot get edge with missing or invalid outVertID");
         }
-        List<Map<String, Object>> foundEdges = new LinkedList<Map<String, Object>>();
-        for(Map<String, Object> currEdge : edges.values()){
-            if( ((String)currEdge.get("outVertID")).equals(outVertID) ){
-                //inVertID = currEdge.get("inVertID");
-                //outVertID = currEdge.get("outVertID");
-                //relation = currEdge.get("relation");
-                foundEdges.add( currEdge );
-            }
-        }
-        List<Map<String, Object>> foundEdgesPage = new LinkedList<Map<String, Object>>();
-        if (foundEdges.size() > offset) {
-            int end = Math.min(foundEdges.size(), offset + limit);
-            for (int i = offset; i < end; i++) {
-                foundEdgesPage.add(foundEdges.get(i));
-            }
-        }
-
-        return foundEdgesPage;
+        return getEdgesPage(getAdjacentEdgeNums(outEdgeNums, outVertNum, null), offset, limit);
     }
 
     /**
@@ -190,26 +803,75 @@ public class InMemoryDBConnection extends DBConnectionBase{
      */
     @Override
     public List<Map<String, Object>> getInEdgesPage(String inVertID, int offset, int limit) throws IllegalArgumentException{
-        if(inVertID == null || inVertID.equals("") || !vertices.containsKey(inVertID)){
+        int inVertNum = getVertNum(inVertID);
+        if(inVertID == null || inVertID.equals("") || inVertNum < 0){
             throw new IllegalArgumentException("cannot get edge with missing or invalid inVertID");
         }
-        List<Map<String, Object>> foundEdges = new LinkedList<Map<String, Object>>();
-        for(Map<String, Object> currEdge : edges.values()){
-            if( ((String)currEdge.get("inVertID")).equals(inVertID) ){
-                foundEdges.add( currEdge );
-            }
-        }
+        return getEdgesPage(getAdjacentEdgeNums(inEdgeNums, inVertNum, null), offset, limit);
+    }
+
+    /**
+     * returns the edge property maps for one page of the given edges
+     * @param edgeNums - edge numbers, in a stable order
+     * @param offset - number of edges to skip
+     * @param limit - max number of edges to return
+     * @return list of edge property maps
+     */
+    private List<Map<String, Object>> getEdgesPage(IntArrayList edgeNums, int offset, int limit){
         List<Map<String, Object>> foundEdgesPage = new LinkedList<Map<String, Object>>();
-        if (foundEdges.size() > offset) {
-            int end = Math.min(foundEdges.size(), offset + limit);
+        if (edgeNums.size() > offset) {
+            int end = (int)Math.min(edgeNums.size(), (long)offset + limit);
             for (int i = offset; i < end; i++) {
-                foundEdgesPage.add(foundEdges.get(i));
+                foundEdgesPage.add(getEdgeMap(edgeNums.get(i)));
             }
         }
 
         return foundEdgesPage;
     }
 
+    /**
+     * make the property map of an edge, as the interface returns it
+     * @param edgeNum
+     * @return map of inVertID, outVertID and relation
+     */
+    private Map<String, Object> getEdgeMap(int edgeNum){
+        Map<String, Object> edge = new HashMap<String, Object>();
+        edge.put("inVertID", vertIDs.get(edgeInVerts.get(edgeNum)));
+        edge.put("outVertID", vertIDs.get(edgeOutVerts.get(edgeNum)));
+        edge.put("relation", edgeRelations.get(edgeNum));
+        return edge;
+    }
+
+    /**
+     * look up edge numbers in one of the adjacency indexes
+     * @param adjacency - outEdgeNums or inEdgeNums
+     * @param vertNum - the vertex whose edges are wanted, or -1 if there is no such vertex
+     * @param relation - relation of the edges, or null for all relations
+     * @return list of edge numbers, empty if there are none
+     */
+    private IntArrayList getAdjacentEdgeNums(ChunkedList<EdgesByRelation> adjacency, int vertNum, String relation){
+        IntArrayList edgeNums = new IntArrayList();
+        Map<String, IntArrayList> byRelation = (vertNum < 0) ? null : adjacency.get(vertNum);
+        if(byRelation == null){
+            return edgeNums;
+        }
+        if(relation == null){
+            for(IntArrayList currList : byRelation.values()){
+                for(int i=0; i<currList.size(); i++){
+                    edgeNums.add(currList.get(i));
+                }
+            }
+        }else{
+            IntArrayList currList = byRelation.get(relation);
+            if(currList != null){
+                for(int i=0; i<currList.size(); i++){
+                    edgeNums.add(currList.get(i));
+                }
+            }
+        }
+        return edgeNums;
+    }
+
     /**
      * return a list of Incoming vertices based on their edge type relation
      * @param outVertID
@@ -225,15 +887,7 @@ public class InMemoryDBConnection extends DBConnectionBase{
             throw new IllegalArgumentException("cannot get edge with missing or invalid outVertID");
         }
 
-        List<String> relatedIDs = new LinkedList<String>();
-        for(Map<String, Object> currEdge : edges.values()){
-            if( ((String)currEdge.get("relation")).equals(relation) ){
-                if( ((String)currEdge.get("outVertID")).equals(outVertID) ){
-                    relatedIDs.add( (String)currEdge.get("inVertID") ); //TODO: check valid state here?
-                }
-            }
-        }
-        return relatedIDs;
+        return toVertIDs(getInVertNumsByRelation(getVertNum(outVertID), relation));
     }
 
     /**
@@ -251,15 +905,7 @@ public class InMemoryDBConnection extends DBConnectionBase{
             throw new IllegalArgumentException("cannot get edge with missing or invalid inVertID");
         }
 
-        List<String> relatedIDs = new LinkedList<String>();
-        for(Map<String, Object> currEdge : edges.values()){
-            if( ((String)currEdge.get("relation")).equals(relation) ){
-                if( ((String)currEdge.get("inVertID")).equals(inVertID) ){
-                    relatedIDs.add( (String)currEdge.get("outVertID") ); //TODO: check valid state here?
-                }
-            }
-        }
-        return relatedIDs;
+        return toVertIDs(getOutVertNumsByRelation(getVertNum(inVertID), relation));
     }
 
     /**
@@ -277,33 +923,62 @@ public class InMemoryDBConnection extends DBConnectionBase{
             throw new IllegalArgumentException("cannot get edge with missing or invalid inVertID");
         }
 
-        List<String> relatedIDs = new LinkedList<String>();
-        for(Map<String, Object> currEdge : edges.values()){
-            if( ((String)currEdge.get("relation")).equals(relation) ){
-                if( ((String)currEdge.get("inVertID")).equals(vertID) ){
-                    relatedIDs.add( (String)currEdge.get("outVertID") ); //TODO: check valid state here?
-                }else if( ((String)currEdge.get("outVertID")).equals(vertID) ){
-                    relatedIDs.add( (String)currEdge.get("inVertID") ); //TODO: check valid state here?
-                }
-            }
-        }
-        return relatedIDs;
+        return toVertIDs(getVertNumsByRelation(getVertNum(vertID), relation));
     }
 
-    @Override
-    public List<String> getInVertIDsByRelation(String v1, String relation, List<DBConstraint> constraints){
-        if(relation == null || relation.equals("") ){
-            throw new IllegalArgumentException("cannot get edge with missing or invalid relation");
-        }
-        if(v1 == null || v1.equals("") ){
-            throw new IllegalArgumentException("cannot get edge with missing or invalid Vertex ID");
+    private IntArrayList getInVertNumsByRelation(int outVertNum, String relation){
+        IntArrayList edgeNums = getAdjacentEdgeNums(outEdgeNums, outVertNum, relation);
+        IntArrayList relatedNums = new IntArrayList(edgeNums.size());
+        for(int i=0; i<edgeNums.size(); i++){
+            relatedNums.add( edgeInVerts.get(edgeNums.get(i)) );
         }
-        //TODO: consider faster implementations
-        Set<String> constraintIDs = new HashSet<String>(getVertIDsByConstraints(constraints));
-        Set<String> neighborIDs = new HashSet<String>(getInVertIDsByRelation(v1, relation));
-        constraintIDs.retainAll(neighborIDs);
-        List<String> ret = new LinkedList<String>(constraintIDs);
-        return ret;
+        return relatedNums;
+    }
+
+    private IntArrayList getOutVertNumsByRelation(int inVertNum, String relation){
+        IntArrayList edgeNums = getAdjacentEdgeNums(inEdgeNums, inVertNum, relation);
+        IntArrayList relatedNums = new IntArrayList(edgeNums.size());
+        for(int i=0; i<edgeNums.size(); i++){
+            relatedNums.add( edgeOutVerts.get(edgeNums.get(i)) );
+        }
+        return relatedNums;
+    }
+
+    private IntArrayList getVertNumsByRelation(int vertNum, String relation){
+        IntArrayList relatedNums = getOutVertNumsByRelation(vertNum, relation);
+        IntArrayList edgeNums = getAdjacentEdgeNums(outEdgeNums, vertNum, relation);
+        for(int i=0; i<edgeNums.size(); i++){
+            int inVertNum = edgeInVerts.get(edgeNums.get(i));
+            if( inVertNum != vertNum ){ //self-loops were already counted above
+                relatedNums.add( inVertNum );
+            }
+        }
+        return relatedNums;
+    }
+
+    /**
+     * look up the IDs of a list of vertices
+     * @param nums - vertex numbers
+     * @return list of vertex IDs, in the same order
+     */
+    private List<String> toVertIDs(IntArrayList nums){
+        List<String> ids = new ArrayList<String>(nums.size());
+        for(int i=0; i<nums.size(); i++){
+            ids.add(vertIDs.get(nums.get(i)));
+        }
+        return ids;
+    }
+
+    @Override
+    public List<String> getInVertIDsByRelation(String v1, String relation, List<DBConstraint> constraints){
+        if(relation == null || relation.equals("") ){
+            throw new IllegalArgumentException("cannot get edge with missing or invalid relation");
+        }
+        if(v1 == null || v1.equals("") ){
+            throw new IllegalArgumentException("cannot get edge with missing or invalid Vertex ID");
+        }
+        int[] neighborNums = distinct(getInVertNumsByRelation(getVertNum(v1), relation));
+        return toVertIDs(getMatchingNums(planQuery(constraints, neighborNums)));
     }
 
     @Override
@@ -314,12 +989,8 @@ public class InMemoryDBConnection extends DBConnectionBase{
         if(v1 == null || v1.equals("") ){
             throw new IllegalArgumentException("cannot get edge with missing or invalid Vertex ID");
         }
-        //TODO: consider faster implementations
-        Set<String> constraintIDs = new HashSet<String>(getVertIDsByConstraints(constraints));
-        Set<String> neighborIDs = new HashSet<String>(getOutVertIDsByRelation(v1, relation));
-        constraintIDs.retainAll(neighborIDs);
-        List<String> ret = new LinkedList<String>(constraintIDs);
-        return ret;
+        int[] neighborNums = distinct(getOutVertNumsByRelation(getVertNum(v1), relation));
+        return toVertIDs(getMatchingNums(planQuery(constraints, neighborNums)));
     }
 
     @Override
@@ -330,12 +1001,24 @@ public class InMemoryDBConnection extends DBConnectionBase{
         if(v1 == null || v1.equals("") ){
             throw new IllegalArgumentException("cannot get edge with missing or invalid Vertex ID");
         }
-        //TODO: consider faster implementations
-        Set<String> constraintIDs = new HashSet<String>(getVertIDsByConstraints(constraints));
-        Set<String> neighborIDs = new HashSet<String>(getVertIDsByRelation(v1, relation));
-        constraintIDs.retainAll(neighborIDs);
-        List<String> ret = new LinkedList<String>(constraintIDs);
-        return ret;
+        int[] neighborNums = distinct(getVertNumsByRelation(getVertNum(v1), relation));
+        return toVertIDs(getMatchingNums(planQuery(constraints, neighborNums)));
+    }
+
+    /**
+     * drop the repeats from a list of numbers, keeping the first of each
+     * @param nums
+     * @return the distinct numbers, in their original order
+     */
+    private static int[] distinct(IntArrayList nums){
+        IntHashSet seen = new IntHashSet(nums.size());
+        IntArrayList distinctNums = new IntArrayList(nums.size());
+        for(int i=0; i<nums.size(); i++){
+            if(seen.add(nums.get(i))){
+                distinctNums.add(nums.get(i));
+            }
+        }
+        return distinctNums.toArray();
     }
 
     @Override
@@ -350,15 +1033,13 @@ public class InMemoryDBConnection extends DBConnectionBase{
             throw new IllegalArgumentException("cannot get edge with missing or invalid outVertID");
         }
 
-        int count = 0;
-        for(Map<String, Object> currEdge : edges.values()) {
-            if( currEdge.get("relation").equals(relation) && 
-                currEdge.get("outVertID").equals(outVertID)  && 
-                currEdge.get("inVertID").equals(inVertID) ) {
-                count++;
-            }
+        int inVertNum = getVertNum(inVertID);
+        int outVertNum = getVertNum(outVertID);
+        if(inVertNum < 0 || outVertNum < 0){
+            return 0;
         }
-        return count;
+        IntArrayList edgeNums = edgeKeyIndex.get(new EdgeKey(outVertNum, inVertNum, relation));
+        return (edgeNums == null) ? 0 : edgeNums.size();
     }
 
     /**
@@ -368,135 +1049,504 @@ public class InMemoryDBConnection extends DBConnectionBase{
      */
     @Override
     public List<String> getVertIDsByConstraints(List<DBConstraint> constraints){
-        Set<String> candidateIDs = null;
-        Set<String> nonMatchingIDs = new HashSet<String>();
-        List<String> matchingIDs = new LinkedList<String>();
-
-        //First, generate candidateIDs set.
-        //Note that after candidateIDs is populated here, it will not be modified.
-        //TODO: really, we want to create a set of candidate ids for each index used, then find the overlap,
-        //  then match against any constraints that weren't used.
-        boolean indicesUsed = false;
-        if(indexedVertFields.size() > 0){ //TODO: needs better test coverage for use of indices
-            //This should use indexed fields to find candidateIDs, then find the nonMatchingIDs below as usual.
-            //we need to decide if only exact matches are allowed, or if ranges & etc. are ok here.
-            //also, somehow indicate that the constraints used here are 'done', so they aren't re-checked below.
-            candidateIDs = new HashSet<String>();
-            for(DBConstraint c : constraints){
-                if(c.getCond() != Condition.eq)
-                    continue;
-                if(indexedVertFields.containsKey(c.getProp())){
-                    indicesUsed = true;
-                    Map<String, Set<String>> currIndex = indexedVertFields.get(c.getProp());
-                    String currValue = c.getVal().toString();
-                    Set<String> currSet = currIndex.get(currValue);
-                    if(currSet != null){
-                        candidateIDs.addAll(currSet);
+        return toVertIDs(getMatchingNums(planQuery(constraints, null)));
+    }
+
+
+    /**
+     * work out how to find the vertices matching the constraints, using the indexes where possible.
+     * The most selective access path (an exact match index, an ordered index, or the given seed vertices)
+     * is used to get the candidates, the other exact match indexes and the seed vertices are intersected with them,
+     * and any constraints not answered by the indexes are left to be checked on each candidate.
+     * @param constraints
+     * @param seedNums - distinct vertex numbers the result must be within (eg. neighbors of a vertex), or null for all vertices
+     * @return the plan
+     */
+    private QueryPlan planQuery(List<DBConstraint> constraints, int[] seedNums){
+        List<DBConstraint> residual = new LinkedList<DBConstraint>(constraints);
+
+        //find the posting list of each exact match constraint that has an index
+        //(every candidate must be in all of these posting lists)
+        List<IntHashSet> eqPostings = new ArrayList<IntHashSet>();
+        for(Iterator<DBConstraint> iter = residual.iterator(); iter.hasNext(); ){
+            DBConstraint c = iter.next();
+            if(c.getCond() != Condition.eq || c.getVal() == null || c.getVal() instanceof Collection)
+                continue;
+            Map<Object, IntHashSet> currIndex = indexedVertFields.get(c.getProp());
+            if(currIndex == null)
+                continue;
+            IntHashSet currSet = currIndex.get(c.getVal());
+            if(currSet == null){
+                //nothing has this value, so nothing can match
+                return new QueryPlan(new int[0], residual);
+            }
+            eqPostings.add(currSet);
+            iter.remove();
+        }
+        //contains constraints with an element index are answered by its posting list in the same way
+        for(Iterator<DBConstraint> iter = residual.iterator(); iter.hasNext(); ){
+            DBConstraint c = iter.next();
+            if(c.getCond() != Condition.contains || c.getVal() == null)
+                continue;
+            Map<Object, IntHashSet> currIndex = elementIndexedVertFields.get(c.getProp());
+            if(currIndex == null)
+                continue;
+            IntHashSet currSet = currIndex.get(c.getVal());
+            if(currSet == null){
+                return new QueryPlan(new int[0], residual);
+            }
+            eqPostings.add(currSet);
+            iter.remove();
+        }
+        //substring constraints with a trigram index add the posting list of each trigram of their value;
+        //these only narrow down the candidates, so the constraints are still checked on them
+        for(DBConstraint c : residual){
+            if(c.getCond() != Condition.substring || !(c.getVal() instanceof String))
+                continue;
+            Map<Long, IntHashSet> currIndex = trigramIndexedVertFields.get(c.getProp());
+            if(currIndex == null)
+                continue;
+            String value = (String)c.getVal();
+            for(int i=0; i+3<=value.length(); i++){
+                IntHashSet currSet = currIndex.get(trigram(value, i));
+                if(currSet == null){
+                    //nothing has this trigram, so nothing can match
+                    return new QueryPlan(new int[0], residual);
+                }
+                eqPostings.add(currSet);
+            }
+        }
+        Collections.sort(eqPostings, SIZE_ORDER);
+
+        //pick the smallest starting point
+        long bestEstimate = (seedNums == null) ? vertNums.size() : seedNums.length;
+        int[] candidateNums = seedNums;
+        IntHashSet bestPosting = null;
+        if(!eqPostings.isEmpty() && eqPostings.get(0).size() < bestEstimate){
+            bestEstimate = eqPostings.get(0).size();
+            bestPosting = eqPostings.remove(0);
+        }
+        String rangeProp = null;
+        for(DBConstraint c : residual){
+            if(getRangeBound(c) == null || !rangeIndexedVertFields.containsKey(c.getProp()))
+                continue;
+            long estimate = estimateRangeSize(c.getProp(), new RangeBounds(c.getProp(), constraints));
+            if(estimate < bestEstimate){
+                bestEstimate = estimate;
+                rangeProp = c.getProp();
+            }
+        }
+        if(rangeProp != null){
+            if(bestPosting != null){
+                //the exact match posting list lost out, so it is intersected below instead
+                eqPostings.add(0, bestPosting);
+            }
+            candidateNums = getRangeCandidateNums(rangeProp, new RangeBounds(rangeProp, constraints));
+            if(rangeIndexExceptions.get(rangeProp).isEmpty()){
+                //every candidate is within the range, so those constraints are done
+                for(Iterator<DBConstraint> iter = residual.iterator(); iter.hasNext(); ){
+                    DBConstraint c = iter.next();
+                    if(rangeProp.equals(c.getProp()) && getRangeBound(c) != null){
+                        iter.remove();
                     }
                 }
             }
         }
-        if(!indicesUsed){
-            //if no initial matchingIDs set was generated yet, use all IDs
-            candidateIDs = vertices.keySet();
+        if(rangeProp == null && bestPosting != null){
+            if(eqPostings.isEmpty() && seedNums == null){
+                //the posting list is the answer, so it doesn't need to be copied unless the candidates are listed
+                return new QueryPlan(bestPosting, residual);
+            }
+            candidateNums = bestPosting.toArray();
+        }
+        if(candidateNums == null){
+            //no index or seed is any better than looking at every vertex
+            return new QueryPlan((int[])null, residual);
         }
 
-        //make set of non-matching candidates, based on constraints
-        for(String id : candidateIDs){
-            Map<String, Object> candidateVert = vertices.get(id);
-            for(DBConstraint c : constraints){
-                Object candidateValue = candidateVert.get(c.getProp());
-                if( !compare(candidateValue, c.getCond(), c.getVal()) ){
-                    nonMatchingIDs.add(id);
-                    break;
+        //intersect the starting point with the rest of the posting lists, smallest first
+        if(candidateNums != seedNums && seedNums != null){
+            eqPostings.add(toSet(seedNums));
+        }
+        if(!eqPostings.isEmpty()){
+            IntArrayList survivorNums = new IntArrayList();
+            for(int num : candidateNums){
+                boolean inAll = true;
+                for(IntHashSet currSet : eqPostings){
+                    if(!currSet.contains(num)){
+                        inAll = false;
+                        break;
+                    }
+                }
+                if(inAll){
+                    survivorNums.add(num);
+                }
+            }
+            candidateNums = survivorNums.toArray();
+        }
+        return new QueryPlan(candidateNums, residual);
+    }
+
+    private static IntHashSet toSet(int[] nums){
+        IntHashSet set = new IntHashSet(nums.length);
+        for(int num : nums){
+            set.add(num);
+        }
+        return set;
+    }
+
+    /**
+     * get the numbers of the vertices matching a query plan
+     * @param plan
+     * @return list of vertex numbers
+     */
+    private IntArrayList getMatchingNums(QueryPlan plan){
+        CompiledConstraints residual = compileConstraints(plan.residual);
+        int[] candidateNums = plan.getCandidateNums();
+        int scanSize = (candidateNums == null) ? vertIDs.size() : candidateNums.length;
+        if(isParallelScan(scanSize)){
+            return scanPool.invoke(new ScanTask(residual, candidateNums, 0, scanSize));
+        }
+        IntArrayList matchingNums = new IntArrayList();
+        scanRange(residual, candidateNums, 0, scanSize, matchingNums);
+        return matchingNums;
+    }
+
+    /**
+     * check a range of the vertices (or candidates) against the constraints
+     * @param residual - constraints to check
+     * @param candidateNums - candidate vertex numbers, or null for all vertices
+     * @param from - first vertex number (or index of the candidates) to check
+     * @param to - vertex number (or index of the candidates) to stop at
+     * @param matchingNums - list the matching vertex numbers are added to, in the order they were checked
+     */
+    private void scanRange(CompiledConstraints residual, int[] candidateNums, int from, int to, IntArrayList matchingNums){
+        if(candidateNums == null){
+            for(int num=from; num<to; num++){
+                if(vertIDs.get(num) != null && residual.matches(vertStore, num)){
+                    matchingNums.add(num);
                 }
             }
+        }else{
+            for(int i=from; i<to; i++){
+                if(residual.matches(vertStore, candidateNums[i])){
+                    matchingNums.add(candidateNums[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param scanSize - number of vertices (or candidates) a query will look at
+     * @return true if the scan should be split between threads
+     */
+    private boolean isParallelScan(int scanSize){
+        return scanPool != null && scanSize >= parallelScanMinVerts;
+    }
+
+    /**
+     * Set the number of threads the scans of the queries no index can answer are split between.
+     * Scans of fewer vertices than the threshold stay on the calling thread, as do paged queries (which stop at the end of the page).
+     * The results are the same, in the same order, however the scan is split.
+     * @param parallelism - number of threads, or 1 to scan on the calling thread only
+     * @param minVerts - fewest vertices (or index candidates) to look at for which the scan is split
+     * @throws IllegalArgumentException if either is less than 1
+     */
+    public void setScanParallelism(int parallelism, int minVerts){
+        if(parallelism < 1 || minVerts < 1){
+            throw new IllegalArgumentException("scan parallelism and threshold must be positive");
+        }
+        //a replaced pool isn't shut down, as snapshots may still be using it; its threads end once they are idle
+        if(parallelism == 1){
+            scanPool = null;
+        }else if(scanPool == null || scanPool.getParallelism() != parallelism){
+            scanPool = new ForkJoinPool(parallelism);
+        }
+        scanParallelism = parallelism;
+        parallelScanMinVerts = minVerts;
+    }
+
+    /**
+     * @return the number of threads the scans of the queries are split between
+     */
+    public int getScanParallelism(){
+        return scanParallelism;
+    }
+
+    /**
+     * get the compiled form of a list of constraints, reusing it if the same list was compiled recently.
+     * Lists are compiled outside of the cache, so two threads may compile the same one at once, and the first to finish is kept.
+     * Once the cache is full, an arbitrary entry is dropped for each new one, so it is only roughly limited to its size.
+     * @param constraints
+     * @return compiled constraints
+     */
+    private CompiledConstraints compileConstraints(List<DBConstraint> constraints){
+        List<List<Object>> key = CompiledConstraints.cacheKey(constraints);
+        CompiledConstraints compiled = compiledConstraintsCache.get(key);
+        if(compiled != null){
+            return compiled;
+        }
+        compiled = CompiledConstraints.compile(constraints);
+        if(compiledConstraintsCache.size() >= COMPILED_CONSTRAINTS_CACHE_SIZE){
+            Iterator<List<List<Object>>> iter = compiledConstraintsCache.keySet().iterator();
+            if(iter.hasNext()){
+                iter.next();
+                iter.remove();
+            }
+        }
+        CompiledConstraints existing = compiledConstraintsCache.putIfAbsent(key, compiled);
+        return (existing == null) ? compiled : existing;
+    }
+
+    /**
+     * estimate the number of vertices within a range of an ordered index, from the index statistics,
+     * assuming the values are spread evenly between the smallest and largest
+     * @param prop - property with an ordered index
+     * @param bounds
+     * @return estimated count
+     */
+    private long estimateRangeSize(String prop, RangeBounds bounds){
+        NavigableMap<Number, IntHashSet> currIndex = rangeIndexedVertFields.get(prop);
+        long exceptions = rangeIndexExceptions.get(prop).size();
+        if(currIndex.isEmpty() || bounds.isEmpty()){
+            return exceptions;
+        }
+        long entries = rangeIndexEntryCounts.get(prop);
+        double first = currIndex.firstKey().doubleValue();
+        double last = currIndex.lastKey().doubleValue();
+        double lower = (bounds.lower == null) ? first : Math.max(first, bounds.lower.doubleValue());
+        double upper = (bounds.upper == null) ? last : Math.min(last, bounds.upper.doubleValue());
+        if(lower > upper){
+            return exceptions;
+        }
+        if(last == first){
+            return entries + exceptions;
+        }
+        //round up, so a non-empty range is never estimated as empty
+        return (long)Math.ceil(entries * ((upper - lower) / (last - first))) + exceptions;
+    }
+
+    /**
+     * find the numbers of the vertices which are within a range of one property,
+     * using the ordered index for that property.
+     * Vertices with a value which could not be ordered (eg. a String) are always included as candidates.
+     * @param prop - property with an ordered index
+     * @param bounds
+     * @return candidate vertex numbers
+     */
+    private int[] getRangeCandidateNums(String prop, RangeBounds bounds){
+        NavigableMap<Number, IntHashSet> currIndex = rangeIndexedVertFields.get(prop);
+
+        Map<Number, IntHashSet> range;
+        if(bounds.isEmpty()){
+            range = Collections.emptyMap();
+        }else if(bounds.lower != null && bounds.upper != null){
+            range = currIndex.subMap(bounds.lower, bounds.lowerInclusive, bounds.upper, bounds.upperInclusive);
+        }else if(bounds.lower != null){
+            range = currIndex.tailMap(bounds.lower, bounds.lowerInclusive);
+        }else{
+            range = currIndex.headMap(bounds.upper, bounds.upperInclusive);
         }
 
-        // build the matchingIDs list, based on candidateIDs and nonMatchingIDs
-        for(String id : candidateIDs){
-            if( !nonMatchingIDs.contains(id) ){
-                matchingIDs.add(id);
+        //each vertex has one value for the property, so these are all disjoint
+        IntArrayList candidateNums = new IntArrayList();
+        for(int num : rangeIndexExceptions.get(prop).toArray()){
+            candidateNums.add(num);
+        }
+        for(IntHashSet currSet : range.values()){
+            for(int num : currSet.toArray()){
+                candidateNums.add(num);
             }
         }
+        return candidateNums.toArray();
+    }
+
+    /**
+     * get the bound of a range constraint, if it can be used with an ordered index
+     * @param c
+     * @return the bound as a number, or null if this is not a range constraint on a number or date
+     */
+    private static Number getRangeBound(DBConstraint c){
+        Condition cond = c.getCond();
+        if(cond != Condition.gt && cond != Condition.gte && cond != Condition.lt && cond != Condition.lte)
+            return null;
+        return toRangeKey(c.getVal());
+    }
+
+    /**
+     * get the key used for a value in the ordered indexes
+     * @param value
+     * @return the value itself for numbers, the time in milliseconds for dates, otherwise null
+     */
+    private static Number toRangeKey(Object value){
+        if(value instanceof Number){
+            return (Number)value;
+        }
+        if(value instanceof Date){
+            return ((Date)value).getTime();
+        }
+        return null;
+    }
 
-        return matchingIDs;
+    /**
+     * compare two numbers by value, even if they are of different types (eg. Integer and Long)
+     * @param n1
+     * @param n2
+     * @return negative, zero or positive, as n1 is less than, equal to or greater than n2
+     */
+    private static int compareNumbers(Number n1, Number n2){
+        if(isIntegral(n1) && isIntegral(n2)){
+            return Long.compare(n1.longValue(), n2.longValue());
+        }
+        return Double.compare(n1.doubleValue(), n2.doubleValue());
     }
 
+    static boolean isIntegral(Number n){
+        return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte;
+    }
 
     /**
-     * Perform a query/search of the DB using the following constraints on the request
+     * Perform a query/search of the DB using the following constraints on the request.
+     * Matches are in a stable order (while the vertices don't change), and the search stops
+     * as soon as the page is full.
      * @param constraints - list of constraint objects
+     * @param offset - number of matches to skip
+     * @param limit - max number of matches to return
      * @return list of vertex IDs
      */
     @Override
     public List<String> getVertIDsByConstraints(List<DBConstraint> constraints, int offset, int limit) {
-        Set<String> candidateIDs = null;
-        Set<String> nonMatchingIDs = new HashSet<String>();
-        List<String> matchingIDs = new LinkedList<String>();
-
-        //First, generate candidateIDs set.
-        //Note that after candidateIDs is populated here, it will not be modified.
-        //TODO: really, we want to create a set of candidate ids for each index used, then find the overlap,
-        //  then match against any constraints that weren't used.
-        boolean indicesUsed = false;
-        if(indexedVertFields.size() > 0){ //TODO: needs better test coverage for use of indices
-            //This should use indexed fields to find candidateIDs, then find the nonMatchingIDs below as usual.
-            //we need to decide if only exact matches are allowed, or if ranges & etc. are ok here.
-            //also, somehow indicate that the constraints used here are 'done', so they aren't re-checked below.
-            candidateIDs = new HashSet<String>();
-            for(DBConstraint c : constraints){
-                if(c.getCond() != Condition.eq)
-                    continue;
-                if(indexedVertFields.containsKey(c.getProp())){
-                    indicesUsed = true;
-                    Map<String, Set<String>> currIndex = indexedVertFields.get(c.getProp());
-                    String currValue = c.getVal().toString();
-                    Set<String> currSet = currIndex.get(currValue);
-                    if(currSet != null){
-                        candidateIDs.addAll(currSet);
-                    }
-                }
-            }
+        if(offset < 0 || limit < 0){
+            throw new IllegalArgumentException("offset and limit cannot be negative");
         }
-        if(!indicesUsed){
-            //if no initial matchingIDs set was generated yet, use all IDs
-            candidateIDs = vertices.keySet();
+        IntArrayList matchingNums = new IntArrayList();
+        scanPage(planQuery(constraints, null), 0, offset, limit, matchingNums);
+        return toVertIDs(matchingNums);
+    };
+
+    /**
+     * Get one page of the vertex IDs matching a list of constraints, continuing from where the previous page ended,
+     * so that deep pages don't have to skip over all of the earlier matches again.
+     * Vertices added or changed while paging may or may not be included.
+     * @param constraints - list of constraint objects, the same for every page
+     * @param continuation - token from the previous page, or null for the first page
+     * @param limit - max number of matches to return
+     * @return the page, with the token for the next page
+     * @throws IllegalArgumentException if the token is not one returned by this method
+     */
+    public VertIDsPage getVertIDsPageByConstraints(List<DBConstraint> constraints, String continuation, int limit) {
+        if(limit <= 0){
+            throw new IllegalArgumentException("limit must be positive");
         }
+        int startNum = (continuation == null) ? 0 : parseContinuation(continuation);
+        IntArrayList matchingNums = new IntArrayList();
+        int nextNum = scanPage(planQuery(constraints, null), startNum, 0, limit, matchingNums);
+        return new VertIDsPage(toVertIDs(matchingNums), (nextNum < 0) ? null : CONTINUATION_PREFIX + Integer.toString(nextNum, 36));
+    }
 
-        //make set of non-matching candidates, based on constraints
-        for(String id : candidateIDs){
-            Map<String, Object> candidateVert = vertices.get(id);
-            for(DBConstraint c : constraints){
-                Object candidateValue = candidateVert.get(c.getProp());
-                if( !compare(candidateValue, c.getCond(), c.getVal()) ){
-                    nonMatchingIDs.add(id);
-                    break;
+    /** prefix of the continuation tokens, which are the vertex number to continue from */
+    private static final String CONTINUATION_PREFIX = "vn";
+
+    private static int parseContinuation(String continuation){
+        try {
+            if(continuation.startsWith(CONTINUATION_PREFIX)){
+                int vertNum = Integer.parseInt(continuation.substring(CONTINUATION_PREFIX.length()), 36);
+                if(vertNum >= 0){
+                    return vertNum;
                 }
             }
+        } catch (NumberFormatException e) {
+            //reported below
         }
+        throw new IllegalArgumentException("invalid continuation token: " + continuation);
+    }
 
-        // build the matchingIDs list, based on candidateIDs and nonMatchingIDs
-        for(String id : candidateIDs){
-            if( !nonMatchingIDs.contains(id) ){
-                matchingIDs.add(id);
+    /**
+     * find the vertices matching a query plan, in order of vertex number, stopping once the page is full
+     * @param plan
+     * @param startNum - lowest vertex number to look at
+     * @param skip - number of matches to skip before the page starts
+     * @param limit - max number of matches in the page
+     * @param pageNums - list the page's vertex numbers are added to
+     * @return the vertex number to continue from for the next page, or -1 if there are no more vertices to look at
+     */
+    private int scanPage(QueryPlan plan, int startNum, int skip, int limit, IntArrayList pageNums){
+        if(limit == 0){
+            return startNum;
+        }
+        CompiledConstraints residual = compileConstraints(plan.residual);
+        int[] candidateNums = plan.getCandidateNums();
+        if(candidateNums == null){
+            for(int num=startNum; num<vertIDs.size(); num++){
+                if(vertIDs.get(num) == null || !residual.matches(vertStore, num))
+                    continue;
+                if(skip > 0){
+                    skip--;
+                }else{
+                    pageNums.add(num);
+                    if(pageNums.size() == limit){
+                        return (num + 1 < vertIDs.size()) ? num + 1 : -1;
+                    }
+                }
             }
+            return -1;
         }
 
-
-        if (candidateIDs.size() < offset) {
-            List<String> ids = new ArrayList<String>(candidateIDs);
-            int end = java.lang.Math.min(offset + limit, ids.size());
-            for (int i = offset; i < end ; i++) {
-                String id = ids.get(i);
-                if (!nonMatchingIDs.contains(id)) {
-                    matchingIDs.add(id);
+        Arrays.sort(candidateNums);
+        int i = Arrays.binarySearch(candidateNums, startNum);
+        if(i < 0){
+            i = -i - 1;
+        }
+        if(plan.residual.isEmpty()){
+            //every candidate matches, so the skipped ones don't need to be looked at
+            i = (int)Math.min(candidateNums.length, (long)i + skip);
+            skip = 0;
+        }
+        for(; i<candidateNums.length; i++){
+            int num = candidateNums[i];
+            if(!residual.matches(vertStore, num))
+                continue;
+            if(skip > 0){
+                skip--;
+            }else{
+                pageNums.add(num);
+                if(pageNums.size() == limit){
+                    return (i + 1 < candidateNums.length) ? num + 1 : -1;
                 }
-           }
+            }
         }
+        return -1;
+    }
 
-        return matchingIDs;
-    };
+    /**
+     * Identify the vertices of a type whose range, from one property to another (inclusive), contains a value.
+     * Uses the interval index on those properties if there is one (see buildIntervalIndex()),
+     * otherwise scans with range constraints. Either way the graph is not changed.
+     * @param vertexType - type of the range vertices
+     * @param startProp - property holding the start of the range
+     * @param endProp - property holding the end of the range
+     * @param value - value to look up
+     * @return list of vertex IDs
+     */
+    @Override
+    public List<String> getVertIDsByRangeContaining(String vertexType, String startProp, String endProp, long value){
+        if(vertexType == null || startProp == null || endProp == null){
+            throw new IllegalArgumentException("cannot get vertices by range with missing vertexType, startProp or endProp");
+        }
+        IntervalIndex index = intervalIndexes.get(Arrays.asList(vertexType, startProp, endProp));
+        if(index == null){
+            return super.getVertIDsByRangeContaining(vertexType, startProp, endProp, value);
+        }
+
+        IntArrayList matchingNums = new IntArrayList();
+        index.tree.findContaining(value, matchingNums);
+        for(int num : index.exceptions.toArray()){
+            if(compare(vertStore.getProperty(num, startProp), Condition.lte, value) && compare(vertStore.getProperty(num, endProp), Condition.gte, value)){
+                matchingNums.add(num);
+            }
+        }
+        return toVertIDs(matchingNums);
+    }
 
     /**
      * method to compare two objects that can use the conditional object
@@ -519,6 +1569,16 @@ public class InMemoryDBConnection extends DBConnectionBase{
         if(cond == Condition.neq){
             return !o1.equals(o2);
         }
+        Number n1 = toRangeKey(o1);
+        Number n2 = toRangeKey(o2);
+        if(n1 != null && n2 != null){
+            //numbers and dates are ordered by value, consistent with the ordered indexes
+            int order = compareNumbers(n1, n2);
+            if(cond == Condition.gt) return order > 0;
+            if(cond == Condition.gte) return order >= 0;
+            if(cond == Condition.lt) return order < 0;
+            if(cond == Condition.lte) return order <= 0;
+        }
         if(cond == Condition.gt){
             if(o1 instanceof Comparable && o2 instanceof Comparable){
                 Comparable c1 = (Comparable)o1;
@@ -644,64 +1704,227 @@ public class InMemoryDBConnection extends DBConnectionBase{
      */
     @Override
     public void removeVertByID(String vertID){
-        Map<String,Object> vert = vertices.get(vertID);
-        if(vert != null){
-            removeVertFromIndex(vert, vertID);
-            vertices.remove(vertID);
+        removeVerts(Collections.singletonList(vertID));
+    }
+
+    /**
+     * remove a batch of vertices, and their edges.
+     * Only the edges of the removed vertices are visited, and the adjacency lists of their neighbors
+     * are each cleaned up once, however many of the neighbor's edges are removed.
+     * The whole batch is journaled before anything is removed.
+     * @param ids - IDs of the vertices; any which are not in the graph are ignored
+     */
+    public void removeVerts(Collection<String> ids){
+        beginChange();
+        IntArrayList removedNums = new IntArrayList(ids.size());
+        IntHashSet removedSet = new IntHashSet();
+        List<String> removedIDs = new ArrayList<String>(ids.size());
+        for(String vertID : ids){
+            int vertNum = getVertNum(vertID);
+            if(vertNum >= 0 && removedSet.add(vertNum)){
+                removedNums.add(vertNum);
+                removedIDs.add(vertID);
+            }
+        }
+        if(removedNums.isEmpty()){
+            return;
+        }
+        if(journal != null){
+            for(String vertID : removedIDs){
+                try {
+                    journal.removeVertex(vertID);
+                } catch (IOException e) {
+                    throw new StuccoDBException("could not journal removal of vertex " + vertID, e);
+                }
+            }
+        }
+        for(int i=0; i<removedNums.size(); i++){
+            removeVertFromIndex(vertStore.get(removedNums.get(i)), removedNums.get(i));
+        }
 
-            for(String edgeID: edges.keySet()){
-                Map<String, Object> currEdge = edges.get(edgeID);
-                if( ((String)currEdge.get("inVertID")).equals(vertID) ){
-                    edges.remove(edgeID);
+        //release the incident edges, noting which neighbors' adjacency lists need them removed
+        IntHashSet removedEdges = new IntHashSet();
+        IntHashSet outNeighbors = new IntHashSet();
+        IntHashSet inNeighbors = new IntHashSet();
+        for(int i=0; i<removedNums.size(); i++){
+            int vertNum = removedNums.get(i);
+            for(int edgeNum : getAdjacentEdgeNums(outEdgeNums, vertNum, null).toArray()){
+                if(removedEdges.add(edgeNum)){
+                    int inVertNum = edgeInVerts.get(edgeNum);
+                    if(!removedSet.contains(inVertNum)){
+                        inNeighbors.add(inVertNum);
+                    }
+                    releaseEdge(edgeNum);
                 }
-                else if( ((String)currEdge.get("outVertID")).equals(vertID) ){
-                    edges.remove(edgeID);
+            }
+            for(int edgeNum : getAdjacentEdgeNums(inEdgeNums, vertNum, null).toArray()){
+                if(removedEdges.add(edgeNum)){
+                    int outVertNum = edgeOutVerts.get(edgeNum);
+                    if(!removedSet.contains(outVertNum)){
+                        outNeighbors.add(outVertNum);
+                    }
+                    releaseEdge(edgeNum);
                 }
             }
         }
+        for(int vertNum : outNeighbors.toArray()){
+            removeEdgesFromAdjacency(outEdgeNums, vertNum, removedEdges);
+        }
+        for(int vertNum : inNeighbors.toArray()){
+            removeEdgesFromAdjacency(inEdgeNums, vertNum, removedEdges);
+        }
+
+        for(int i=0; i<removedNums.size(); i++){
+            int vertNum = removedNums.get(i);
+            String vertID = removedIDs.get(i);
+            vertNums.remove(vertID);
+            vertIDs.set(vertNum, null);
+            vertStore.remove(vertNum);
+            outEdgeNums.set(vertNum, null);
+            inEdgeNums.set(vertNum, null);
+            freeVertNums.add(vertNum);
+        }
     }
 
     /**
-     * add a vertex given a property map
+     * add a vertex given a property map. The graph keeps a copy of the map, so later changes to it don't change the vertex.
      * @param vert - property map
      * @return vertexID
      */
     @Override
     public String addVertex(Map<String, Object> vert){
+        beginChange();
+        // copy the caller's map; interning below copies its collection values
+        vert = new HashMap<String, Object>(vert);
         // make sure all multi-value properties are sets
         convertAllMultiValuesToSet(vert);
+        // share the copies of repeated strings, eg. vertexType
+        StringInterner.getDefault().internAll(vert);
         String vertID = String.valueOf( UUID.randomUUID() );
-        vertices.put(vertID, vert);
+        int vertNum = putVertex(vertID, vert);
 
         //update any indices
-        addVertToIndex(vert, vertID);
+        addVertToIndex(vert, vertNum);
 
         return vertID;
     }
 
-    private void addVertToIndex(Map<String, Object> vert, String vertID){
-        for(String prop : vert.keySet()){
-            if(indexedVertFields.containsKey(prop)){
-                Map<String, Set<String>> currIndex = indexedVertFields.get(prop);
-                String currValue = vert.get(prop).toString();
-                Set<String> currSet = currIndex.get(currValue);
-                if(currSet == null){
-                    currSet = new HashSet<String>();
-                    currIndex.put(currValue, currSet);
-                }
-                currSet.add(vertID);
+    /**
+     * store a vertex under the given ID, replacing the properties of any vertex which already has it,
+     * and journal it. The caller adds the vertex to the indexes.
+     * @param vertID
+     * @param vert - property map
+     * @return vertex number
+     */
+    private int putVertex(String vertID, Map<String, Object> vert){
+        if(journal != null){
+            try {
+                journal.addVertex(vertID, vert);
+            } catch (IOException e) {
+                throw new StuccoDBException("could not journal vertex " + vertID, e);
+            }
+        }
+        int vertNum = getVertNum(vertID);
+        if(vertNum >= 0){
+            removeVertFromIndex(vertStore.get(vertNum), vertNum);
+            vertStore.put(vertNum, vert);
+            return vertNum;
+        }
+        if(freeVertNums.isEmpty()){
+            vertNum = vertIDs.size();
+            vertIDs.add(vertID);
+            outEdgeNums.add(null);
+            inEdgeNums.add(null);
+            //removing a vertex removes its edges, so reused numbers already have a degree of 0
+            outDegrees.add(0);
+            inDegrees.add(0);
+        }else{
+            vertNum = freeVertNums.removeLast();
+            vertIDs.set(vertNum, vertID);
+        }
+        vertStore.put(vertNum, vert);
+        vertNums.put(vertID, vertNum);
+        return vertNum;
+    }
+
+    private void addVertToIndex(Map<String, Object> vert, int vertNum){
+        for(Map.Entry<String, Object> entry : vert.entrySet()){
+            addToIndex(entry.getKey(), entry.getValue(), vertNum);
+            updateElementIndex(entry.getKey(), null, entry.getValue(), vertNum);
+        }
+        addToIntervalIndexes(vert, vertNum, null);
+    }
+
+    private void removeVertFromIndex(Map<String, Object> vert, int vertNum){
+        for(Map.Entry<String, Object> entry : vert.entrySet()){
+            removeFromIndex(entry.getKey(), entry.getValue(), vertNum);
+            updateElementIndex(entry.getKey(), entry.getValue(), null, vertNum);
+        }
+        removeFromIntervalIndexes(vert, vertNum, null);
+    }
+
+    /**
+     * add one property value of a vertex to the index for that property, if there is one.
+     * Multi-valued properties are not indexed, since they can't equal a single value.
+     * @param prop
+     * @param value
+     * @param vertNum
+     */
+    private void addToIndex(String prop, Object value, int vertNum){
+        if(value == null){
+            return;
+        }
+        NavigableMap<Number, IntHashSet> currRangeIndex = rangeIndexToChange(prop);
+        if(currRangeIndex != null){
+            Number key = toRangeKey(value);
+            if(key == null){
+                rangeExceptionsToChange(prop).add(vertNum);
+            }else if(addPosting(currRangeIndex, key, vertNum)){
+                rangeIndexEntryCounts.put(prop, rangeIndexEntryCounts.get(prop) + 1);
             }
         }
+        Map<Long, IntHashSet> currTrigramIndex = trigramIndexedVertFields.get(prop);
+        if(currTrigramIndex != null && value instanceof String){
+            addToTrigramIndex(currTrigramIndex, (String)value, vertNum);
+        }
+        Map<Object, IntHashSet> currIndex = indexedVertFields.get(prop);
+        if(currIndex == null || value instanceof Collection){
+            return;
+        }
+        addPosting(currIndex, value, vertNum);
     }
 
-    private void removeVertFromIndex(Map<String, Object> vert, String vertID){
-        for(String prop : vert.keySet()){
-            if(indexedVertFields.containsKey(prop)){
-                Map<String, Set<String>> currIndex = indexedVertFields.get(prop);
-                String currValue = vert.get(prop).toString();
-                currIndex.get(currValue).remove(vertID);
+    /**
+     * remove one property value of a vertex from the index for that property, if there is one
+     * @param prop
+     * @param value
+     * @param vertNum
+     */
+    private void removeFromIndex(String prop, Object value, int vertNum){
+        if(value == null){
+            return;
+        }
+        NavigableMap<Number, IntHashSet> currRangeIndex = rangeIndexToChange(prop);
+        if(currRangeIndex != null){
+            Number key = toRangeKey(value);
+            if(key == null){
+                rangeExceptionsToChange(prop).remove(vertNum);
+            }else if(removePosting(currRangeIndex, key, vertNum)){
+                rangeIndexEntryCounts.put(prop, rangeIndexEntryCounts.get(prop) - 1);
+            }
+        }
+        Map<Long, IntHashSet> currTrigramIndex = trigramIndexedVertFields.get(prop);
+        if(currTrigramIndex != null && value instanceof String){
+            String s = (String)value;
+            for(int i=0; i+3<=s.length(); i++){
+                removePosting(currTrigramIndex, trigram(s, i), vertNum);
             }
         }
+        Map<Object, IntHashSet> currIndex = indexedVertFields.get(prop);
+        if(currIndex == null || value instanceof Collection){
+            return;
+        }
+        removePosting(currIndex, value, vertNum);
     }
 
     /**
@@ -712,165 +1935,666 @@ public class InMemoryDBConnection extends DBConnectionBase{
      */
     @Override
     public void addEdge(String inVertID, String outVertID, String relation){
+        beginChange();
         if(relation == null || relation.equals("") ){
             throw new IllegalArgumentException("cannot add edge with missing or invlid relation");
         }
-        if(inVertID == null || inVertID.equals("") || !vertices.containsKey(inVertID)){
+        int inVertNum = getVertNum(inVertID);
+        if(inVertID == null || inVertID.equals("") || inVertNum < 0){
             throw new IllegalArgumentException("cannot add edge with missing or invalid inVertID");
         }
-        if(outVertID == null || outVertID.equals("") || !vertices.containsKey(outVertID)){
+        int outVertNum = getVertNum(outVertID);
+        if(outVertID == null || outVertID.equals("") || outVertNum < 0){
             throw new IllegalArgumentException("cannot add edge with missing or invalid outVertID");
         }
         //TODO: check if edge is duplicate??  For now, just add it, duplicates are ok I guess.
-
-        Map<String, Object> newEdge = new HashMap<String, Object>();
-        newEdge.put("inVertID", inVertID);
-        newEdge.put("outVertID", outVertID);
-        newEdge.put("relation", relation);
-
-        String edgeID = String.valueOf( UUID.randomUUID() );
-        edges.put(edgeID, newEdge);
-        //TODO: update any indices
+        addEdge(inVertNum, outVertNum, relation);
     }
 
     /**
-     * overwrite or add new properties to an existing vertex's property map
-     * @param vertID
-     * @param newVert - property map
+     * add an edge between two existing vertices
+     * @param inVertNum
+     * @param outVertNum
+     * @param relation
      */
-    @Override
-    public void updateVertex(String vertID, Map<String, Object> newVert){
-        Map<String, Object> oldVert = vertices.get(vertID);
-        if(oldVert == null){
-            throw new IllegalArgumentException("invalid vertex ID");
+    private void addEdge(int inVertNum, int outVertNum, String relation){
+        relation = StringInterner.getDefault().internName(relation);
+        if(journal != null){
+            try {
+                journal.addEdge(vertIDs.get(inVertNum), vertIDs.get(outVertNum), relation);
+            } catch (IOException e) {
+                throw new StuccoDBException("could not journal edge " + relation, e);
+            }
         }
+        int edgeNum;
+        if(freeEdgeNums.isEmpty()){
+            edgeNum = edgeRelations.size();
+            edgeOutVerts.add(outVertNum);
+            edgeInVerts.add(inVertNum);
+            edgeRelations.add(relation);
+        }else{
+            edgeNum = freeEdgeNums.removeLast();
+            edgeOutVerts.set(edgeNum, outVertNum);
+            edgeInVerts.set(edgeNum, inVertNum);
+            edgeRelations.set(edgeNum, relation);
+        }
+        edgeCount++;
+        outDegrees.set(outVertNum, outDegrees.get(outVertNum) + 1);
+        inDegrees.set(inVertNum, inDegrees.get(inVertNum) + 1);
+        Integer relationCount = relationEdgeCounts.get(relation);
+        relationEdgeCounts.put(relation, (relationCount == null) ? 1 : relationCount + 1);
+        addEdgeToAdjacency(outEdgeNums, outVertNum, relation, edgeNum);
+        addEdgeToAdjacency(inEdgeNums, inVertNum, relation, edgeNum);
+
+        EdgeKey key = new EdgeKey(outVertNum, inVertNum, relation);
+        IntArrayList keyEdgeNums = edgeKeyIndex.get(key);
+        if(keyEdgeNums == null){
+            keyEdgeNums = new IntArrayList(1);
+            edgeKeyIndex.put(key, keyEdgeNums);
+        }
+        listToChange(edgeKeyIndex, key, keyEdgeNums).add(edgeNum);
+    }
 
-        removeVertFromIndex(oldVert, vertID);
-        for(Map.Entry<String, Object> entry: newVert.entrySet()){
-            String key = entry.getKey();
-            Object newValue = entry.getValue();
-            updateVertexProperty(vertID, key, newValue);
+    /**
+     * remove an edge, and its entries in the adjacency indexes
+     * @param edgeNum
+     */
+    private void removeEdge(int edgeNum){
+        String relation = edgeRelations.get(edgeNum);
+        if(relation != null){
+            removeEdgeFromAdjacency(outEdgeNums, edgeOutVerts.get(edgeNum), relation, edgeNum);
+            removeEdgeFromAdjacency(inEdgeNums, edgeInVerts.get(edgeNum), relation, edgeNum);
+            releaseEdge(edgeNum);
         }
-        addVertToIndex(newVert, vertID);
     }
 
-    @Override
-    public void close() {
-        // TODO Auto-generated method stub
+    /**
+     * remove an edge from everything but the adjacency lists, and free its number
+     * @param edgeNum
+     */
+    private void releaseEdge(int edgeNum){
+        String relation = edgeRelations.get(edgeNum);
+        if(relation != null){
+            int outVertNum = edgeOutVerts.get(edgeNum);
+            int inVertNum = edgeInVerts.get(edgeNum);
+
+            EdgeKey key = new EdgeKey(outVertNum, inVertNum, relation);
+            IntArrayList keyEdgeNums = edgeKeyIndex.get(key);
+            int i = (keyEdgeNums == null) ? -1 : keyEdgeNums.indexOf(edgeNum);
+            if(i >= 0){
+                if(keyEdgeNums.size() == 1){
+                    edgeKeyIndex.remove(key);
+                }else{
+                    listToChange(edgeKeyIndex, key, keyEdgeNums).remove(i);
+                }
+            }
 
+            edgeRelations.set(edgeNum, null);
+            freeEdgeNums.add(edgeNum);
+            edgeCount--;
+            outDegrees.set(outVertNum, outDegrees.get(outVertNum) - 1);
+            inDegrees.set(inVertNum, inDegrees.get(inVertNum) - 1);
+            int relationCount = relationEdgeCounts.get(relation) - 1;
+            if(relationCount == 0){
+                relationEdgeCounts.remove(relation);
+            }else{
+                relationEdgeCounts.put(relation, relationCount);
+            }
+        }
     }
 
-    @Override
-    public void open() {
-        // TODO Auto-generated method stub
-
+    private void addEdgeToAdjacency(ChunkedList<EdgesByRelation> adjacency, int vertNum, String relation, int edgeNum){
+        EdgesByRelation byRelation = adjacencyToChange(adjacency, vertNum);
+        if(byRelation == null){
+            byRelation = new EdgesByRelation();
+            adjacency.set(vertNum, byRelation);
+        }
+        IntArrayList currList = byRelation.get(relation);
+        if(currList == null){
+            currList = new IntArrayList(2);
+            byRelation.put(relation, currList);
+        }
+        //kept in insertion order, so that paging through edges is stable
+        listToChange(byRelation, relation, currList).add(edgeNum);
     }
 
-    @Override
-    public void removeEdgeByRelation(String inVertID, String outVertID, String relation){
-        if(relation == null || relation.equals("") ){
-            throw new IllegalArgumentException("cannot add edge with missing or invlid relation");
+    /**
+     * remove a set of edges from a vertex's adjacency lists, in one pass over each list
+     * @param adjacency
+     * @param vertNum
+     * @param edgeNums
+     */
+    private void removeEdgesFromAdjacency(ChunkedList<EdgesByRelation> adjacency, int vertNum, IntHashSet edgeNums){
+        EdgesByRelation byRelation = adjacencyToChange(adjacency, vertNum);
+        if(byRelation == null){
+            return;
         }
-        if(inVertID == null || inVertID.equals("") || !vertices.containsKey(inVertID)){
-            throw new IllegalArgumentException("cannot add edge with missing or invalid inVertID");
+        Iterator<Map.Entry<String, IntArrayList>> lists = byRelation.entrySet().iterator();
+        while(lists.hasNext()){
+            Map.Entry<String, IntArrayList> entry = lists.next();
+            IntArrayList currList = entry.getValue();
+            if(currList.epoch < ownedEpoch){
+                currList = currList.copy();
+                entry.setValue(currList);
+            }
+            currList.removeAll(edgeNums);
+            if(currList.isEmpty()){
+                lists.remove();
+            }
         }
-        if(outVertID == null || outVertID.equals("") || !vertices.containsKey(outVertID)){
-            throw new IllegalArgumentException("cannot add edge with missing or invalid outVertID");
+        if(byRelation.isEmpty()){
+            adjacency.set(vertNum, null);
         }
-        
-        // collect the edge IDs that need to be removed
-        Set<String> edgeIDs = new HashSet<String>();
-        for(Map.Entry<String, Map<String, Object>> entry : edges.entrySet()) {
-            String edgeID = entry.getKey();
-            Map<String, Object> currEdge = entry.getValue();
-            if( currEdge.get("relation").equals(relation) && 
-                currEdge.get("outVertID").equals(outVertID)  && 
-                currEdge.get("inVertID").equals(inVertID) ) {
-                edgeIDs.add(edgeID);
+    }
+
+    private void removeEdgeFromAdjacency(ChunkedList<EdgesByRelation> adjacency, int vertNum, String relation, int edgeNum){
+        EdgesByRelation byRelation = adjacencyToChange(adjacency, vertNum);
+        if(byRelation == null){
+            return;
+        }
+        IntArrayList currList = byRelation.get(relation);
+        if(currList != null){
+            int i = currList.indexOf(edgeNum);
+            if(i >= 0){
+                currList = listToChange(byRelation, relation, currList);
+                currList.remove(i);
+            }
+            if(currList.isEmpty()){
+                byRelation.remove(relation);
             }
         }
-        
-        //remove the IDs we found
-        for(String edgeID : edgeIDs) {
-            edges.remove(edgeID);
+        if(byRelation.isEmpty()){
+            adjacency.set(vertNum, null);
+        }
+    }
+
+    /**
+     * overwrite or add new properties to an existing vertex's property map
+     * @param vertID
+     * @param newVert - property map
+     */
+    @Override
+    public void updateVertex(String vertID, Map<String, Object> newVert){
+        beginChange();
+        int vertNum = getVertNum(vertID);
+        if(vertNum < 0){
+            throw new IllegalArgumentException("invalid vertex ID");
+        }
+
+        //indices are updated per property, in setPropertyInDB(); the store makes the properties one change
+        lockForUpdate(null);
+        try {
+            vertStore.beginUpdate(vertNum);
+        } finally {
+            unlockForUpdate(null);
+        }
+        try {
+            for(Map.Entry<String, Object> entry: newVert.entrySet()){
+                String key = entry.getKey();
+                Object newValue = entry.getValue();
+                updateVertexProperty(vertID, key, newValue);
+            }
+        } finally {
+            lockForUpdate(null);
+            try {
+                vertStore.endUpdate(vertNum);
+            } finally {
+                unlockForUpdate(null);
+            }
+        }
+    }
+
+    /**
+     * closes the journal, if there is one, and unregisters the memory use MBean, if it is registered
+     */
+    @Override
+    public void close() {
+        closeJournal();
+        unregisterMBean();
+    }
+
+    @Override
+    public void open() {
+        // TODO Auto-generated method stub
+
+    }
+
+    @Override
+    public void removeEdgeByRelation(String inVertID, String outVertID, String relation){
+        beginChange();
+        if(relation == null || relation.equals("") ){
+            throw new IllegalArgumentException("cannot add edge with missing or invlid relation");
+        }
+        int inVertNum = getVertNum(inVertID);
+        if(inVertID == null || inVertID.equals("") || inVertNum < 0){
+            throw new IllegalArgumentException("cannot add edge with missing or invalid inVertID");
+        }
+        int outVertNum = getVertNum(outVertID);
+        if(outVertID == null || outVertID.equals("") || outVertNum < 0){
+            throw new IllegalArgumentException("cannot add edge with missing or invalid outVertID");
+        }
+
+        // collect the edges that need to be removed (copied, since removeEdge updates the index)
+        IntArrayList edgeNums = edgeKeyIndex.get(new EdgeKey(outVertNum, inVertNum, relation));
+        if(edgeNums == null) {
+            return;
+        }
+        if(journal != null){
+            try {
+                journal.removeEdges(inVertID, outVertID, relation);
+            } catch (IOException e) {
+                throw new StuccoDBException("could not journal removal of edge " + relation, e);
+            }
+        }
+
+        //remove the edges we found
+        for(int edgeNum : edgeNums.toArray()) {
+            removeEdge(edgeNum);
         }
     }
 
     @Override
     public void removeAllVertices() {
-        vertices.clear();
-        indexedVertFields.clear();
-        edges.clear();
-        
+        beginChange();
+        if(journal != null){
+            try {
+                journal.removeAll();
+            } catch (IOException e) {
+                throw new StuccoDBException("could not journal removal of all vertices", e);
+            }
+        }
+        vertNums.clear();
+        vertIDs.clear();
+        vertStore.clear();
+        freeVertNums.clear();
+        //keep the indexed fields, but drop their contents
+        for(Map<Object, IntHashSet> currIndex : indexedVertFields.values()){
+            currIndex.clear();
+        }
+        //the range and interval indexes may be shared with a snapshot, so are replaced by empty ones
+        for(Map.Entry<String, NavigableMap<Number, IntHashSet>> entry : rangeIndexedVertFields.entrySet()){
+            NavigableMap<Number, IntHashSet> currIndex = new TreeMap<Number, IntHashSet>(NUMBER_ORDER);
+            entry.setValue(currIndex);
+            ownedIndexes.add(currIndex);
+        }
+        for(Map.Entry<String, IntHashSet> entry : rangeIndexExceptions.entrySet()){
+            entry.setValue(new IntHashSet());
+        }
+        for(String prop : rangeIndexEntryCounts.keySet()){
+            rangeIndexEntryCounts.put(prop, 0);
+        }
+        for(Map<Long, IntHashSet> currIndex : trigramIndexedVertFields.values()){
+            currIndex.clear();
+        }
+        for(Map<Object, IntHashSet> currIndex : elementIndexedVertFields.values()){
+            currIndex.clear();
+        }
+        for(Map.Entry<List<String>, IntervalIndex> entry : intervalIndexes.entrySet()){
+            IntervalIndex index = entry.getValue();
+            IntervalIndex emptyIndex = new IntervalIndex(index.vertexType, index.startProp, index.endProp);
+            entry.setValue(emptyIndex);
+            ownedIndexes.add(emptyIndex);
+        }
+        edgeOutVerts.clear();
+        edgeInVerts.clear();
+        edgeRelations.clear();
+        freeEdgeNums.clear();
+        edgeCount = 0;
+        outDegrees.clear();
+        inDegrees.clear();
+        relationEdgeCounts.clear();
+        outEdgeNums.clear();
+        inEdgeNums.clear();
+        edgeKeyIndex.clear();
     }
 
     @Override
     public DBConstraint getConstraint(String property, Condition condition,
             Object value) {
-        
+
         return new InMemoryConstraint(property, condition, value);
     }
 
+    /**
+     * Builds an index for each property listed in the index config file, and
+     * populates it from the vertices already loaded.
+     * The file uses the same format as the OrientDB index config, eg.
+     * {"indexes": [ {"type": "NOTUNIQUE", "keys": [ {"name": "vertexType", "class": "String"} ]} ]}
+     * Every key gets a hash index of value to vertex numbers, whatever the index type.
+     * Keys with a numeric or date class also get an ordered index, for range constraints,
+     * keys with a collection class (eg. EMBEDDEDSET) get an element index, for contains constraints,
+     * and the keys of FULLTEXT indexes (of any engine) also get a trigram index, for substring constraints.
+     * An INTERVAL index, eg. {"type": "INTERVAL", "vertexType": "AddressRange", "keys": [ {"name": "startIPInt", "class": "Long"},
+     * {"name": "endIPInt", "class": "Long"} ]}, also gets an interval index on its two keys (see buildIntervalIndex()).
+     * @param indexConfig - path to the index config file
+     * @throws StuccoDBException if the file can't be read or is not in the expected format
+     */
     @Override
-    public void buildIndex(String indexConfig) {
-        // NO-OP
-        
+    public void buildIndex(String indexConfig) throws StuccoDBException {
+        beginChange();
+        JSONArray indexes = null;
+        try {
+            InputStream is = new FileInputStream(indexConfig);
+            String textContents = IOUtils.toString( is );
+            is.close();
+
+            indexes = new JSONObject(textContents).optJSONArray("indexes");
+        } catch (IOException e) {
+            throw new StuccoDBException(e);
+        } catch (JSONException e) {
+            throw new StuccoDBException("could not parse index config: " + indexConfig, e);
+        }
+        if(indexes == null){
+            throw new StuccoDBException("expected 'indexes' key in index config: " + indexConfig);
+        }
+
+        for(int i=0; i<indexes.length(); i++){
+            JSONArray keys = indexes.getJSONObject(i).getJSONArray("keys");
+            String type = indexes.getJSONObject(i).optString("type", "").trim().toUpperCase();
+            //eg. "FULLTEXT" or "FULLTEXT ENGINE LUCENE"
+            boolean trigrams = type.startsWith(TRIGRAM_INDEX_TYPE);
+            for(int j=0; j<keys.length(); j++){
+                JSONObject keySpec = keys.getJSONObject(j);
+                String prop = keySpec.getString("name");
+                buildIndexForProperty(prop);
+                String keyClass = keySpec.optString("class", "String").trim().toLowerCase();
+                if(RANGE_INDEX_CLASSES.contains(keyClass)){
+                    buildRangeIndexForProperty(prop);
+                }
+                if(COLLECTION_INDEX_CLASSES.contains(keyClass)){
+                    buildElementIndexForProperty(prop);
+                }
+                if(trigrams){
+                    buildTrigramIndexForProperty(prop);
+                }
+            }
+            if(type.equals(INTERVAL_INDEX_TYPE)){
+                String vertexType = indexes.getJSONObject(i).optString("vertexType", "").trim();
+                if(vertexType.isEmpty() || keys.length() != 2){
+                    throw new StuccoDBException("expected a vertexType and two keys in INTERVAL index of index config: " + indexConfig);
+                }
+                buildIntervalIndex(vertexType, keys.getJSONObject(0).getString("name"), keys.getJSONObject(1).getString("name"));
+            }
+        }
+    }
+
+    /**
+     * adds an index on a vertex property, populated from the current vertices
+     * (does nothing if the property is already indexed)
+     * @param prop
+     */
+    private void buildIndexForProperty(String prop){
+        if(indexedVertFields.containsKey(prop)){
+            return;
+        }
+        SegmentedHashMap<Object, IntHashSet> currIndex = new SegmentedHashMap<Object, IntHashSet>();
+        for(int num=0; num<vertIDs.size(); num++){
+            Object value = (vertIDs.get(num) == null) ? null : vertStore.getProperty(num, prop);
+            if(value == null || value instanceof Collection)
+                continue;
+            addPosting(currIndex, value, num);
+        }
+        indexedVertFields.put(prop, currIndex);
+    }
+
+    /**
+     * adds an ordered index on a numeric or date vertex property, populated from the current vertices
+     * (does nothing if the property already has an ordered index)
+     * @param prop
+     */
+    private void buildRangeIndexForProperty(String prop){
+        if(rangeIndexedVertFields.containsKey(prop)){
+            return;
+        }
+        NavigableMap<Number, IntHashSet> currIndex = new TreeMap<Number, IntHashSet>(NUMBER_ORDER);
+        IntHashSet exceptions = new IntHashSet();
+        int entryCount = 0;
+        for(int num=0; num<vertIDs.size(); num++){
+            Object value = (vertIDs.get(num) == null) ? null : vertStore.getProperty(num, prop);
+            if(value == null){
+                continue;
+            }
+            Number key = toRangeKey(value);
+            if(key == null){
+                exceptions.add(num);
+                continue;
+            }
+            addPosting(currIndex, key, num);
+            entryCount++;
+        }
+        rangeIndexedVertFields.put(prop, currIndex);
+        ownedIndexes.add(currIndex);
+        rangeIndexExceptions.put(prop, exceptions);
+        rangeIndexEntryCounts.put(prop, entryCount);
+    }
+
+    /**
+     * adds an element index on a set (or list) valued vertex property, populated from the current vertices
+     * (does nothing if the property already has an element index)
+     * @param prop
+     */
+    private void buildElementIndexForProperty(String prop){
+        if(elementIndexedVertFields.containsKey(prop)){
+            return;
+        }
+        SegmentedHashMap<Object, IntHashSet> currIndex = new SegmentedHashMap<Object, IntHashSet>();
+        for(int num=0; num<vertIDs.size(); num++){
+            Object value = (vertIDs.get(num) == null) ? null : vertStore.getProperty(num, prop);
+            if(value instanceof Collection){
+                for(Object element : (Collection<?>)value){
+                    if(element != null){
+                        addPosting(currIndex, element, num);
+                    }
+                }
+            }
+        }
+        elementIndexedVertFields.put(prop, currIndex);
+    }
+
+    /**
+     * adds a trigram index on a String vertex property, populated from the current vertices
+     * (does nothing if the property already has a trigram index)
+     * @param prop
+     */
+    private void buildTrigramIndexForProperty(String prop){
+        if(trigramIndexedVertFields.containsKey(prop)){
+            return;
+        }
+        SegmentedHashMap<Long, IntHashSet> currIndex = new SegmentedHashMap<Long, IntHashSet>();
+        for(int num=0; num<vertIDs.size(); num++){
+            Object value = (vertIDs.get(num) == null) ? null : vertStore.getProperty(num, prop);
+            if(value instanceof String){
+                addToTrigramIndex(currIndex, (String)value, num);
+            }
+        }
+        trigramIndexedVertFields.put(prop, currIndex);
+    }
+
+    /**
+     * add a vertex to the posting list of each trigram of its value
+     * @param currIndex
+     * @param value
+     * @param vertNum
+     */
+    private void addToTrigramIndex(Map<Long, IntHashSet> currIndex, String value, int vertNum){
+        for(int i=0; i+3<=value.length(); i++){
+            addPosting(currIndex, trigram(value, i), vertNum);
+        }
     }
-    
+
+    /**
+     * @param s
+     * @param i
+     * @return the three chars of s starting at i, packed into a long
+     */
+    private static long trigram(String s, int i){
+        return ((long)s.charAt(i) << 32) | ((long)s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    /**
+     * check if there is an interval index on a pair of vertex properties
+     * @param vertexType
+     * @param startProp
+     * @param endProp
+     * @return true if getVertIDsByRangeContaining() uses an index for them
+     */
+    boolean hasIntervalIndex(String vertexType, String startProp, String endProp){
+        return intervalIndexes.containsKey(Arrays.asList(vertexType, startProp, endProp));
+    }
+
+    /**
+     * adds an interval index on a pair of vertex properties, populated from the current vertices,
+     * which getVertIDsByRangeContaining() then uses (does nothing if there is one already).
+     * The index config can also declare them (see buildIndex()).
+     * @param vertexType - type of the range vertices
+     * @param startProp - property holding the start of the range
+     * @param endProp - property holding the end of the range
+     */
+    public void buildIntervalIndex(String vertexType, String startProp, String endProp){
+        beginChange();
+        if(vertexType == null || startProp == null || endProp == null){
+            throw new IllegalArgumentException("cannot build interval index with missing vertexType, startProp or endProp");
+        }
+        List<String> key = Arrays.asList(vertexType, startProp, endProp);
+        if(intervalIndexes.containsKey(key)){
+            return;
+        }
+        IntervalIndex index = new IntervalIndex(vertexType, startProp, endProp);
+        for(int num=0; num<vertIDs.size(); num++){
+            if(vertIDs.get(num) != null){
+                index.add(vertStore.get(num), num);
+            }
+        }
+        intervalIndexes.put(key, index);
+        ownedIndexes.add(index);
+    }
+
+    /**
+     * add a vertex to the interval indexes it belongs in
+     * @param vert
+     * @param vertNum
+     * @param prop - only update the indexes which use this property, or all indexes if null
+     */
+    private void addToIntervalIndexes(Map<String, Object> vert, int vertNum, String prop){
+        for(Map.Entry<List<String>, IntervalIndex> entry : intervalIndexes.entrySet()){
+            IntervalIndex index = entry.getValue();
+            if((prop == null || index.uses(prop)) && index.covers(vert)){
+                intervalIndexToChange(entry).add(vert, vertNum);
+            }
+        }
+    }
+
+    /**
+     * remove a vertex from the interval indexes it is in, based on its current property values
+     * @param vert
+     * @param vertNum
+     * @param prop - only update the indexes which use this property, or all indexes if null
+     */
+    private void removeFromIntervalIndexes(Map<String, Object> vert, int vertNum, String prop){
+        for(Map.Entry<List<String>, IntervalIndex> entry : intervalIndexes.entrySet()){
+            IntervalIndex index = entry.getValue();
+            if((prop == null || index.uses(prop)) && index.covers(vert)){
+                intervalIndexToChange(entry).remove(vert, vertNum);
+            }
+        }
+    }
+
+    /**
+     * move a vertex in the element index of a property, if it has one, from the elements of its old value to those of its new one.
+     * Only the elements which were added or removed are updated, so merging a few elements into a large set
+     * (as updateVertexProperty() does) is cheap.
+     * @param prop
+     * @param oldValue - old value, or null if it had none
+     * @param newValue - new value, or null if it has none
+     * @param vertNum
+     */
+    private void updateElementIndex(String prop, Object oldValue, Object newValue, int vertNum){
+        Map<Object, IntHashSet> currIndex = elementIndexedVertFields.get(prop);
+        if(currIndex == null){
+            return;
+        }
+        Collection<?> oldElements = (oldValue instanceof Collection) ? (Collection<?>)oldValue : Collections.emptySet();
+        Collection<?> newElements = (newValue instanceof Collection) ? (Collection<?>)newValue : Collections.emptySet();
+        for(Object element : oldElements){
+            if(element == null || newElements.contains(element))
+                continue;
+            removePosting(currIndex, element, vertNum);
+        }
+        for(Object element : newElements){
+            if(element == null || oldElements.contains(element))
+                continue;
+            addPosting(currIndex, element, vertNum);
+        }
+    }
+
     @Override
     protected void setPropertyInDB(String id, String key, Object newValue) {
-        
-        vertices.get(id).put(key, newValue);
+        beginChange();
+        newValue = StringInterner.getDefault().internValue(key, newValue);
+        int vertNum = getVertNum(id);
+        if(vertNum < 0){
+            throw new IllegalArgumentException("cannot set property of missing vertex " + id);
+        }
+        if(journal != null){
+            try {
+                journal.setProperty(id, key, newValue);
+            } catch (IOException e) {
+                throw new StuccoDBException("could not journal property " + key + " of vertex " + id, e);
+            }
+        }
+        Object oldValue;
+        lockForUpdate(null);
+        try {
+            removeFromIntervalIndexes(vertStore.get(vertNum), vertNum, key);
+            oldValue = vertStore.setProperty(vertNum, key, newValue);
+            //the store may have replaced the vertex's map
+            addToIntervalIndexes(vertStore.get(vertNum), vertNum, key);
+        } finally {
+            unlockForUpdate(null);
+        }
+        lockForUpdate(key);
+        try {
+            removeFromIndex(key, oldValue, vertNum);
+            addToIndex(key, newValue, vertNum);
+            updateElementIndex(key, oldValue, newValue, vertNum);
+        } finally {
+            unlockForUpdate(key);
+        }
     }
 
+    /**
+     * Load a graph from a file written by saveState() or saveSnapshot(), adding it to the current graph.
+     * JSON files are streamed, and their vertices converted in parallel (see JSONGraphLoader).
+     * @param filePath
+     */
     @Override
     public void loadState(String filePath) {
+        beginChange();
         try {
-            InputStream is = new FileInputStream(filePath);
-            String textContents = IOUtils.toString( is );
-            is.close();
-
-            JSONObject contents = new JSONObject(textContents);
-            JSONObject vertsJSON = contents.getJSONObject("vertices");
-            JSONArray edgesJSON = contents.getJSONArray("edges");
-            //add vertices
-            for( Object id : vertsJSON.keySet() ) {
-                JSONObject jsonVert = vertsJSON.getJSONObject(id.toString());
-                String description = jsonVert.optString("description");
-                if(description != null && !description.equals("")){
-                    //This is kind of an odd workaround, to prevent ui from treating, eg, "URI: www.blah.com | Type: URL |" as a URL instead of a string.
-                    //TODO: this is really a problem in the UI, as far as we care it's still just a string either way.
-                    jsonVert.put("description", " " + description);
-                }else{
-                    //ui assumes everything has a description, this is a workaround to avoid having empty text in various places.
-                    jsonVert.put("description", jsonVert.optString("name"));
-                }
-                Map<String, Object> vert = jsonVertToMap(jsonVert);
-                vertices.put(id.toString(), vert);
-                String name = (String)vert.get("name");
-                addVertToIndex(vert, id.toString());
-                //System.out.println("loaded vertex named " + name + " with id: " + id); //for debugging
+            if(BinarySnapshot.isSnapshot(filePath)){
+                loadSnapshot(filePath);
+                return;
             }
-            //add edges.
-            for( int i=0; i<edgesJSON.length(); i++ ) {
-                JSONObject edge = edgesJSON.getJSONObject(i);
-                try {
-                    String inVertID = edge.getString("inVertID");
-                    String outVertID = edge.getString("outVertID");
-                    String relation = edge.getString("relation");
-                    int matchingEdgeCount = getEdgeCountByRelation(inVertID, outVertID, relation);
-                    if(matchingEdgeCount == 0){
-                        addEdge(inVertID, outVertID, relation);
+            new JSONGraphLoader(this).load(filePath, new JSONGraphLoader.Handler(){
+                @Override
+                public void vertex(String id, Map<String, Object> vert){
+                    int vertNum = putVertex(id, vert);
+                    addVertToIndex(vert, vertNum);
+                }
+
+                @Override
+                public void edge(String inVertID, String outVertID, String relation){
+                    //the loader's threads can't take the locks of a subclass, so this uses the vertex numbers directly
+                    int inVertNum = getVertNum(inVertID);
+                    int outVertNum = getVertNum(outVertID);
+                    if(relation.equals("") || inVertNum < 0 || outVertNum < 0){
+                        throw new IllegalArgumentException("cannot add edge with missing or invalid vertex ID or relation");
+                    }
+                    if(!edgeKeyIndex.containsKey(new EdgeKey(outVertNum, inVertNum, relation))){
+                        addEdge(inVertNum, outVertNum, relation);
                     }
-                } catch (JSONException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                } catch (IllegalArgumentException e) {
-                    // TODO Auto-generated catch block
-                    System.err.println("error when loading edge: " + edge);
-                    e.printStackTrace();
                 }
-            }
+            });
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -888,19 +2612,23 @@ public class InMemoryDBConnection extends DBConnectionBase{
             JSONArray edgesJSON = new JSONArray();
 
             //add vertices
-            for( String id : vertices.keySet() ) {
-                Map<String, Object> vert = vertices.get(id);
-                JSONObject currEdge = new JSONObject();
+            for( int num=0; num<vertIDs.size(); num++ ) {
+                if(vertIDs.get(num) == null)
+                    continue;
+                Map<String, Object> vert = vertStore.get(num);
+                JSONObject currVert = new JSONObject();
                 for( String prop : vert.keySet() ){
                     //TODO: confirm this handles sets properly
-                    currEdge.put(prop, vert.get(prop));
+                    currVert.put(prop, vert.get(prop));
                 }
-                edgesJSON.put(currEdge);
+                vertsJSON.put(vertIDs.get(num), currVert);
             }
 
             //add edges.
-            for( String id : edges.keySet() ) {
-                Map<String, Object> edge = edges.get(id);
+            for( int edgeNum=0; edgeNum<edgeRelations.size(); edgeNum++ ) {
+                if(edgeRelations.get(edgeNum) == null)
+                    continue;
+                Map<String, Object> edge = getEdgeMap(edgeNum);
                 JSONObject currEdge = new JSONObject();
                 for( String prop : edge.keySet() ){
                     currEdge.put(prop, edge.get(prop));
@@ -920,15 +2648,420 @@ public class InMemoryDBConnection extends DBConnectionBase{
         }
     }
 
+    /**
+     * Save the graph as a binary snapshot (see BinarySnapshot), which is written a chunk at a time,
+     * and is much faster to load than the JSON written by saveState()
+     * @param filePath
+     * @throws StuccoDBException if the file can't be written, or a property has a type which can't be saved
+     */
+    public void saveSnapshot(String filePath) throws StuccoDBException {
+        try {
+            BinarySnapshot.Writer writer = new BinarySnapshot.Writer(filePath);
+            try {
+                //vertices are numbered in the snapshot in the order they are written
+                int[] snapshotNums = new int[vertIDs.size()];
+                int snapshotNum = 0;
+                for( int num=0; num<vertIDs.size(); num++ ) {
+                    if(vertIDs.get(num) == null)
+                        continue;
+                    writer.writeVertex(vertIDs.get(num), vertStore.get(num));
+                    snapshotNums[num] = snapshotNum++;
+                }
+                for( int edgeNum=0; edgeNum<edgeRelations.size(); edgeNum++ ) {
+                    String relation = edgeRelations.get(edgeNum);
+                    if(relation == null)
+                        continue;
+                    writer.writeEdge(snapshotNums[edgeOutVerts.get(edgeNum)], snapshotNums[edgeInVerts.get(edgeNum)], relation);
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new StuccoDBException(e);
+        }
+    }
+
+    /**
+     * Load a graph from a binary snapshot written by saveSnapshot(), adding it to the current graph.
+     * The file is memory mapped, and its vertices and edges are added as they are read.
+     * As in loadState(), vertices replace any which already have their IDs, and edges which were
+     * already in the graph are skipped (so loading the same snapshot again changes nothing);
+     * parallel edges within the snapshot are all kept.
+     * @param filePath
+     * @throws StuccoDBException if the file can't be read, or is not a snapshot of a supported version
+     */
+    public void loadSnapshot(String filePath) throws StuccoDBException {
+        beginChange();
+        final IntArrayList vertNumsBySnapshotNum = new IntArrayList();
+        //vertices which were already in the graph, by snapshot number; only edges between two of them can be there already
+        final IntHashSet existingSnapshotNums = new IntHashSet();
+        //edges between existing vertices which this load added, so their parallel edges in the snapshot are kept
+        final Set<EdgeKey> loadedKeys = new HashSet<EdgeKey>();
+        try {
+            BinarySnapshot.read(filePath, new BinarySnapshot.Visitor(){
+                @Override
+                public void vertex(String id, Map<String, Object> vert){
+                    if(vertNums.containsKey(id)){
+                        existingSnapshotNums.add(vertNumsBySnapshotNum.size());
+                    }
+                    int vertNum = putVertex(id, vert);
+                    addVertToIndex(vert, vertNum);
+                    vertNumsBySnapshotNum.add(vertNum);
+                }
+
+                @Override
+                public void edge(int outVert, int inVert, String relation){
+                    int outVertNum = vertNumsBySnapshotNum.get(outVert);
+                    int inVertNum = vertNumsBySnapshotNum.get(inVert);
+                    if(existingSnapshotNums.contains(outVert) && existingSnapshotNums.contains(inVert)){
+                        EdgeKey key = new EdgeKey(outVertNum, inVertNum, relation);
+                        if(edgeKeyIndex.containsKey(key) && !loadedKeys.contains(key)){
+                            return;
+                        }
+                        loadedKeys.add(key);
+                    }
+                    addEdge(inVertNum, outVertNum, relation);
+                }
+            });
+        } catch (IOException e) {
+            throw new StuccoDBException("could not load snapshot: " + filePath, e);
+        }
+    }
+
+    /**
+     * Start journaling every change to the graph in a directory, with the defaults of openJournal(String, long, long).
+     * @param dirPath
+     * @throws StuccoDBException
+     */
+    public void openJournal(String dirPath) throws StuccoDBException {
+        openJournal(dirPath, DEFAULT_JOURNAL_SYNC_MILLIS, DEFAULT_JOURNAL_COMPACTION_BYTES);
+    }
+
+    /**
+     * Start journaling every change to the graph in a directory (see Journal).
+     * The graph is first restored from the directory: its latest snapshot is loaded,
+     * and the journal since that snapshot is replayed on top of it.
+     * Once the journal reaches compactionBytes, it is folded into a new snapshot in the background.
+     * @param dirPath - journal directory, which is created if it doesn't exist
+     * @param syncIntervalMillis - time between forcing the journal to disk (the most which can be lost in a crash),
+     * or 0 to force it after every change
+     * @param compactionBytes - journal size which starts a compaction, or 0 to only compact when compactJournal() is called
+     * @throws StuccoDBException if the graph is not empty, a journal is already open, the directory can't be read,
+     * or another connection (in this process or another) is journaling to it
+     */
+    public void openJournal(String dirPath, long syncIntervalMillis, long compactionBytes) throws StuccoDBException {
+        beginChange();
+        if(journal != null){
+            throw new StuccoDBException("journal is already open");
+        }
+        if(getVertCount() > 0){
+            throw new StuccoDBException("journal can only be opened on an empty graph");
+        }
+        try {
+            Journal newJournal = new Journal(new File(dirPath), syncIntervalMillis, compactionBytes, JOURNAL_COMPACTOR);
+            boolean started = false;
+            try {
+                File snapshot = newJournal.getSnapshot();
+                if(snapshot != null){
+                    loadSnapshot(snapshot.getPath());
+                }
+                Journal.Visitor replayer = newJournalReplayer();
+                for(File segment : newJournal.getSegments()){
+                    Journal.replay(segment, replayer);
+                }
+                newJournal.start();
+                started = true;
+            } finally {
+                if(!started){
+                    //unlocks the directory
+                    newJournal.close();
+                }
+            }
+            journal = newJournal;
+        } catch (IOException e) {
+            throw new StuccoDBException("could not open journal: " + dirPath, e);
+        }
+    }
+
+    /**
+     * Start folding the journal into a new snapshot, in the background. Does nothing if there is no journal,
+     * or a compaction is already running.
+     * @throws StuccoDBException if the new journal segment can't be created
+     */
+    public void compactJournal() throws StuccoDBException {
+        if(journal == null){
+            return;
+        }
+        try {
+            journal.compact();
+        } catch (IOException e) {
+            throw new StuccoDBException("could not compact journal", e);
+        }
+    }
+
+    /**
+     * Stop journaling, once any compaction has finished and the journal is forced to disk.
+     * @throws StuccoDBException if the journal can't be written
+     */
+    public void closeJournal() throws StuccoDBException {
+        if(journal == null){
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            throw new StuccoDBException("could not close journal", e);
+        } finally {
+            journal = null;
+        }
+    }
+
+    /**
+     * @return visitor which applies replayed journal records to this graph
+     */
+    private Journal.Visitor newJournalReplayer(){
+        return new Journal.Visitor(){
+            @Override
+            public void vertex(String id, Map<String, Object> vert){
+                int vertNum = putVertex(id, vert);
+                addVertToIndex(vert, vertNum);
+            }
+
+            @Override
+            public void setProperty(String id, String key, Object value){
+                if(getVertNum(id) >= 0){
+                    setPropertyInDB(id, key, value);
+                }
+            }
+
+            @Override
+            public void removeVertex(String id){
+                removeVertByID(id);
+            }
+
+            @Override
+            public void edge(String inVertID, String outVertID, String relation){
+                addEdge(inVertID, outVertID, relation);
+            }
+
+            @Override
+            public void removeEdges(String inVertID, String outVertID, String relation){
+                removeEdgeByRelation(inVertID, outVertID, relation);
+            }
+
+            @Override
+            public void removeAll(){
+                removeAllVertices();
+            }
+        };
+    }
+
+    /**
+     * Add a graph of vertices (by ID) and edges, as given to PostgresqlDBConnection.bulkLoadGraph().
+     * Vertices replace any which already have their IDs, and edges which are already in the graph are skipped.
+     * The storage is sized for the whole graph up front, and the new vertices are only added to the indexes
+     * once they are all stored, in one pass per index, with the indexes built in parallel.
+     * The edges are checked before anything is added, so a graph with a malformed edge is not loaded at all.
+     * @param graph - {"vertices":{id:{...}, ...}, "edges":[{"outVertID":..., "inVertID":..., "relation":...}, ...]}
+     * @throws IllegalArgumentException if an edge is malformed, or either of its vertices is in neither the graph nor the new vertices
+     */
     @Override
-    public void bulkLoadGraph(JSONObject graph) {}
+    public void bulkLoadGraph(JSONObject graph) {
+        JSONObject vertsJSON = graph.optJSONObject("vertices");
+        JSONArray edgesJSON = graph.optJSONArray("edges");
+        int newVertCount = (vertsJSON == null) ? 0 : vertsJSON.length();
+        int newEdgeCount = (edgesJSON == null) ? 0 : edgesJSON.length();
+        List<Object> badEdges = new ArrayList<Object>();
+        for(int i=0; i<newEdgeCount; i++){
+            JSONObject edge = edgesJSON.optJSONObject(i);
+            if(edge == null || edge.optString("relation").equals("")
+                    || !isVertOrNewVert(edge.optString("inVertID", null), vertsJSON)
+                    || !isVertOrNewVert(edge.optString("outVertID", null), vertsJSON)){
+                badEdges.add(edgesJSON.get(i));
+            }
+        }
+        if(!badEdges.isEmpty()){
+            throw new IllegalArgumentException("bulk load has " + badEdges.size() + " malformed edge(s), eg. " + badEdges.get(0));
+        }
+        beginChange();
+        ensureCapacity(newVertCount, newEdgeCount);
+
+        IntArrayList newVertNums = new IntArrayList(newVertCount);
+        if(vertsJSON != null){
+            for(Object id : vertsJSON.keySet()){
+                Map<String, Object> vert = jsonVertToMap(vertsJSON.getJSONObject(id.toString()));
+                convertAllMultiValuesToSet(vert);
+                newVertNums.add(putVertex(id.toString(), vert));
+            }
+        }
+        for(int i=0; i<newEdgeCount; i++){
+            JSONObject edge = edgesJSON.getJSONObject(i);
+            int inVertNum = getVertNum(edge.getString("inVertID"));
+            int outVertNum = getVertNum(edge.getString("outVertID"));
+            String relation = edge.getString("relation");
+            if(!edgeKeyIndex.containsKey(new EdgeKey(outVertNum, inVertNum, relation))){
+                addEdge(inVertNum, outVertNum, relation);
+            }
+        }
+
+        addVertsToIndexes(newVertNums);
+    }
+
+    /**
+     * @param vertID
+     * @param vertsJSON - vertices about to be added, by ID, or null
+     * @return true if the vertex is in the graph, or about to be added to it
+     */
+    private boolean isVertOrNewVert(String vertID, JSONObject vertsJSON){
+        return vertID != null && (vertNums.containsKey(vertID) || (vertsJSON != null && vertsJSON.has(vertID)));
+    }
+
+    /**
+     * make room for a number of new vertices and edges, so the maps aren't split (and rehashed) while adding them
+     * @param newVertCount
+     * @param newEdgeCount
+     */
+    private void ensureCapacity(int newVertCount, int newEdgeCount){
+        //the lists grow a chunk at a time, so only the maps need room made
+        vertNums.ensureCapacity(vertNums.size() + newVertCount);
+        edgeKeyIndex.ensureCapacity(edgeKeyIndex.size() + newEdgeCount);
+    }
+
+    /**
+     * add stored vertices to every index, one task per index, run in parallel when there are enough vertices.
+     * Each task only updates its own index, and only reads the vertices.
+     * @param nums - vertex numbers
+     */
+    private void addVertsToIndexes(final IntArrayList nums){
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for(Map.Entry<String, SegmentedHashMap<Object, IntHashSet>> entry : indexedVertFields.entrySet()){
+            final String prop = entry.getKey();
+            final Map<Object, IntHashSet> currIndex = entry.getValue();
+            tasks.add(new Runnable(){
+                @Override
+                public void run(){
+                    for(int i=0; i<nums.size(); i++){
+                        int num = nums.get(i);
+                        Object value = vertStore.getProperty(num, prop);
+                        if(value == null || value instanceof Collection)
+                            continue;
+                        addPosting(currIndex, value, num);
+                    }
+                }
+            });
+        }
+        final Map<String, Integer> newRangeEntryCounts = new HashMap<String, Integer>();
+        //indexes shared with a snapshot are copied here, since the tasks can't change ownedIndexes at once
+        for(String rangeProp : new ArrayList<String>(rangeIndexedVertFields.keySet())){
+            final String prop = rangeProp;
+            final NavigableMap<Number, IntHashSet> currIndex = rangeIndexToChange(prop);
+            final IntHashSet exceptions = rangeExceptionsToChange(prop);
+            tasks.add(new Runnable(){
+                @Override
+                public void run(){
+                    int entryCount = 0;
+                    for(int i=0; i<nums.size(); i++){
+                        int num = nums.get(i);
+                        Object value = vertStore.getProperty(num, prop);
+                        if(value == null)
+                            continue;
+                        Number key = toRangeKey(value);
+                        if(key == null){
+                            exceptions.add(num);
+                            continue;
+                        }
+                        if(addPosting(currIndex, key, num)){
+                            entryCount++;
+                        }
+                    }
+                    synchronized(newRangeEntryCounts){
+                        newRangeEntryCounts.put(prop, entryCount);
+                    }
+                }
+            });
+        }
+        for(Map.Entry<String, SegmentedHashMap<Object, IntHashSet>> entry : elementIndexedVertFields.entrySet()){
+            final String prop = entry.getKey();
+            final Map<Object, IntHashSet> currIndex = entry.getValue();
+            tasks.add(new Runnable(){
+                @Override
+                public void run(){
+                    for(int i=0; i<nums.size(); i++){
+                        Object value = vertStore.getProperty(nums.get(i), prop);
+                        if(!(value instanceof Collection))
+                            continue;
+                        for(Object element : (Collection<?>)value){
+                            if(element != null){
+                                addPosting(currIndex, element, nums.get(i));
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        for(Map.Entry<String, SegmentedHashMap<Long, IntHashSet>> entry : trigramIndexedVertFields.entrySet()){
+            final String prop = entry.getKey();
+            final Map<Long, IntHashSet> currIndex = entry.getValue();
+            tasks.add(new Runnable(){
+                @Override
+                public void run(){
+                    for(int i=0; i<nums.size(); i++){
+                        Object value = vertStore.getProperty(nums.get(i), prop);
+                        if(value instanceof String){
+                            addToTrigramIndex(currIndex, (String)value, nums.get(i));
+                        }
+                    }
+                }
+            });
+        }
+        for(Map.Entry<List<String>, IntervalIndex> entry : intervalIndexes.entrySet()){
+            final IntervalIndex index = intervalIndexToChange(entry);
+            tasks.add(new Runnable(){
+                @Override
+                public void run(){
+                    for(int i=0; i<nums.size(); i++){
+                        index.add(vertStore.get(nums.get(i)), nums.get(i));
+                    }
+                }
+            });
+        }
+
+        int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+        if(threads <= 1 || nums.size() < PARALLEL_INDEX_MIN_VERTS){
+            for(Runnable task : tasks){
+                task.run();
+            }
+        }else{
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<?>> futures = new ArrayList<Future<?>>();
+                for(Runnable task : tasks){
+                    futures.add(executor.submit(task));
+                }
+                for(Future<?> future : futures){
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StuccoDBException("interrupted while indexing vertices", e);
+            } catch (ExecutionException e) {
+                throw new StuccoDBException("could not index vertices", e.getCause());
+            } finally {
+                executor.shutdown();
+            }
+        }
+        for(Map.Entry<String, Integer> entry : newRangeEntryCounts.entrySet()){
+            rangeIndexEntryCounts.put(entry.getKey(), rangeIndexEntryCounts.get(entry.getKey()) + entry.getValue());
+        }
+    }
 
     /**
      * gets the number of edges in the graph dest id = inVertID
      */
     @Override
     public long getInEdgeCount(String inVertID) {
-        return 0L;
+        int inVertNum = getVertNum(inVertID);
+        return (inVertNum < 0) ? 0L : inDegrees.get(inVertNum);
     };
 
     /**
@@ -936,6 +3069,422 @@ public class InMemoryDBConnection extends DBConnectionBase{
      */
     @Override
     public long getOutEdgeCount(String outVertID) {
-        return 0L;
+        int outVertNum = getVertNum(outVertID);
+        return (outVertNum < 0) ? 0L : outDegrees.get(outVertNum);
+    }
+
+    /**
+     * gets the number of edges with a relation and dest id = inVertID
+     * @param inVertID
+     * @param relation
+     * @return count
+     */
+    public long getInEdgeCount(String inVertID, String relation) {
+        return getAdjacentEdgeCount(inEdgeNums, getVertNum(inVertID), relation);
+    }
+
+    /**
+     * gets the number of edges with a relation and src id = outVertID
+     * @param outVertID
+     * @param relation
+     * @return count
+     */
+    public long getOutEdgeCount(String outVertID, String relation) {
+        return getAdjacentEdgeCount(outEdgeNums, getVertNum(outVertID), relation);
+    }
+
+    /**
+     * gets the number of edges in the graph with a relation
+     * @param relation
+     * @return count
+     */
+    public long getEdgeCountByRelation(String relation) {
+        Integer count = relationEdgeCounts.get(relation);
+        return (count == null) ? 0L : count;
+    }
+
+    private long getAdjacentEdgeCount(ChunkedList<EdgesByRelation> adjacency, int vertNum, String relation){
+        Map<String, IntArrayList> byRelation = (vertNum < 0) ? null : adjacency.get(vertNum);
+        IntArrayList currList = (byRelation == null) ? null : byRelation.get(relation);
+        return (currList == null) ? 0L : currList.size();
+    }
+
+    /**
+     * Estimate the memory used by the graph: its vertices (broken down by vertexType), its edges,
+     * each of its property indexes, and the interned Strings. This takes a pass over the whole graph.
+     * @return the report
+     */
+    public MemoryReport getMemoryReport(){
+        Map<String, MemoryReport.TypeUsage> types = new TreeMap<String, MemoryReport.TypeUsage>();
+        for(int num=0; num<vertIDs.size(); num++){
+            String vertID = vertIDs.get(num);
+            if(vertID == null)
+                continue;
+            Object vertexType = vertStore.getProperty(num, "vertexType");
+            String type = (vertexType == null) ? MemoryReport.NO_TYPE : vertexType.toString();
+            MemoryReport.TypeUsage usage = types.get(type);
+            if(usage == null){
+                usage = new MemoryReport.TypeUsage();
+                types.put(type, usage);
+            }
+            //the ID, in vertIDs and as a key of vertNums, and the properties
+            long vertBytes = MemoryEstimates.REFERENCE_BYTES + MemoryEstimates.HASH_ENTRY_BYTES + MemoryEstimates.BOXED_BYTES
+                    + MemoryEstimates.value(vertID) + vertStore.estimateBytes(num);
+            usage.add(vertBytes, vertStore.get(num).size(), outDegrees.get(num), inDegrees.get(num));
+        }
+
+        long edgeBytes = edgeOutVerts.sizeInBytes() + edgeInVerts.sizeInBytes() + MemoryEstimates.array(edgeRelations.size(), MemoryEstimates.REFERENCE_BYTES)
+                + freeEdgeNums.sizeInBytes() + outDegrees.sizeInBytes() + inDegrees.sizeInBytes()
+                + estimateAdjacencyBytes(outEdgeNums) + estimateAdjacencyBytes(inEdgeNums)
+                + MemoryEstimates.hashMap(edgeKeyIndex.size()) + MemoryEstimates.map(relationEdgeCounts);
+        for(IntArrayList edgeNums : edgeKeyIndex.values()){
+            //each key: its header, 2 vertex numbers, the relation and the hash
+            edgeBytes += 40 + edgeNums.sizeInBytes();
+        }
+
+        Map<String, Long> indexBytes = new TreeMap<String, Long>();
+        for(Map.Entry<String, SegmentedHashMap<Object, IntHashSet>> entry : indexedVertFields.entrySet()){
+            indexBytes.put("hash:" + entry.getKey(), estimatePostingsBytes(entry.getValue()));
+        }
+        for(Map.Entry<String, NavigableMap<Number, IntHashSet>> entry : rangeIndexedVertFields.entrySet()){
+            //a tree map entry has 3 more references than a hash map entry, and a color
+            long bytes = estimatePostingsBytes(entry.getValue()) - MemoryEstimates.hashMap(0)
+                    + 16L * entry.getValue().size() + rangeIndexExceptions.get(entry.getKey()).sizeInBytes();
+            indexBytes.put("range:" + entry.getKey(), bytes);
+        }
+        for(Map.Entry<String, SegmentedHashMap<Object, IntHashSet>> entry : elementIndexedVertFields.entrySet()){
+            indexBytes.put("element:" + entry.getKey(), estimatePostingsBytes(entry.getValue()));
+        }
+        for(Map.Entry<String, SegmentedHashMap<Long, IntHashSet>> entry : trigramIndexedVertFields.entrySet()){
+            indexBytes.put("fulltext:" + entry.getKey(), estimatePostingsBytes(entry.getValue()));
+        }
+        for(Map.Entry<List<String>, IntervalIndex> entry : intervalIndexes.entrySet()){
+            IntervalIndex index = entry.getValue();
+            indexBytes.put("interval:" + entry.getKey(), index.tree.sizeInBytes() + index.exceptions.sizeInBytes());
+        }
+
+        StringInterner interner = StringInterner.getDefault();
+        return new MemoryReport(edgeCount, edgeBytes, vertStore.getOffHeapBytes(), indexBytes, types, interner.size(), interner.estimateTableBytes());
+    }
+
+    /**
+     * @param adjacency
+     * @return estimated bytes of an adjacency index
+     */
+    private static long estimateAdjacencyBytes(ChunkedList<EdgesByRelation> adjacency){
+        long bytes = 24 + MemoryEstimates.array(adjacency.size(), MemoryEstimates.REFERENCE_BYTES);
+        for(Map<String, IntArrayList> byRelation : adjacency){
+            if(byRelation != null){
+                bytes += MemoryEstimates.hashMap(byRelation.size());
+                for(IntArrayList edgeNums : byRelation.values()){
+                    bytes += edgeNums.sizeInBytes();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @param index - map of values to the numbers of the vertices with them
+     * @return estimated bytes of the index, including its values
+     */
+    private static long estimatePostingsBytes(Map<?, IntHashSet> index){
+        long bytes = MemoryEstimates.hashMap(index.size());
+        for(Map.Entry<?, IntHashSet> entry : index.entrySet()){
+            bytes += MemoryEstimates.value(entry.getKey()) + entry.getValue().sizeInBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Register an MBean (see InMemoryGraphMXBean) which reports the memory used by the graph,
+     * so that it can be watched from a JMX console. It is unregistered when the connection is closed.
+     * JMX threads read the MBean while the graph is changed by the threads using it,
+     * so only a ConcurrentInMemoryDBConnection can register one.
+     * @param name - name of the graph, unique within the JVM
+     * @return the name the MBean is registered under
+     * @throws StuccoDBException if it can't be registered (eg. there is already one with that name)
+     * @throws UnsupportedOperationException always, as this connection can't be read by other threads
+     */
+    public ObjectName registerMBean(String name) throws StuccoDBException {
+        throw new UnsupportedOperationException("the memory MBean is read by JMX threads, so needs a ConcurrentInMemoryDBConnection");
+    }
+
+    /**
+     * register the memory use MBean, which calls getMemoryReport() from JMX threads (see registerMBean())
+     * @param name - name of the graph, unique within the JVM
+     * @return the name the MBean is registered under
+     * @throws StuccoDBException if it can't be registered
+     */
+    ObjectName registerMonitor(String name) throws StuccoDBException {
+        unregisterMBean();
+        try {
+            ObjectName objectName = new ObjectName("gov.pnnl.stucco.dbconnect.inmemory:type=InMemoryGraph,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new InMemoryGraphMonitor(this), objectName);
+            mbeanName = objectName;
+            return objectName;
+        } catch (JMException e) {
+            throw new StuccoDBException("could not register the memory MBean of " + name, e);
+        }
+    }
+
+    /**
+     * unregister the memory use MBean, if it is registered
+     * @throws StuccoDBException if it can't be unregistered
+     */
+    public void unregisterMBean() throws StuccoDBException {
+        if(mbeanName != null){
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                throw new StuccoDBException("could not unregister the memory MBean " + mbeanName, e);
+            } finally {
+                mbeanName = null;
+            }
+        }
+    }
+
+    /**
+     * The edges of one vertex in an adjacency index: a map of relation to the numbers of the edges,
+     * stamped with the epoch it was made in (see Epochs)
+     */
+    private static final class EdgesByRelation extends HashMap<String, IntArrayList> {
+        private static final long serialVersionUID = 1L;
+
+        final int epoch = Epochs.current();
+
+        EdgesByRelation(){
+            super(4);
+        }
+
+        /**
+         * @param edges - entry to copy; the lists are still shared with it
+         */
+        EdgesByRelation(EdgesByRelation edges){
+            super(edges);
+        }
+    }
+
+    /**
+     * Interval index of the ranges of one vertexType, from startProp to endProp.
+     * Ranges with integral end points are kept in the interval tree, any others
+     * (eg. doubles) are kept as exceptions, to be checked one at a time.
+     */
+    private static final class IntervalIndex {
+        private final String vertexType;
+        private final String startProp;
+        private final String endProp;
+        private final IntervalTree tree;
+        private final IntHashSet exceptions;
+
+        IntervalIndex(String vertexType, String startProp, String endProp){
+            this(vertexType, startProp, endProp, new IntervalTree(), new IntHashSet());
+        }
+
+        private IntervalIndex(String vertexType, String startProp, String endProp, IntervalTree tree, IntHashSet exceptions){
+            this.vertexType = vertexType;
+            this.startProp = startProp;
+            this.endProp = endProp;
+            this.tree = tree;
+            this.exceptions = exceptions;
+        }
+
+        IntervalIndex copy(){
+            return new IntervalIndex(vertexType, startProp, endProp, tree.copy(), exceptions.copy());
+        }
+
+        boolean uses(String prop){
+            return prop.equals("vertexType") || prop.equals(startProp) || prop.equals(endProp);
+        }
+
+        /**
+         * @param vert
+         * @return true if the vertex is of the index's vertexType, so adding or removing it may change the index
+         */
+        boolean covers(Map<String, Object> vert){
+            return vertexType.equals(vert.get("vertexType"));
+        }
+
+        void add(Map<String, Object> vert, int vertNum){
+            if(!vertexType.equals(vert.get("vertexType"))){
+                return;
+            }
+            Object start = vert.get(startProp);
+            Object end = vert.get(endProp);
+            if(start == null || end == null){
+                return;
+            }
+            if(start instanceof Number && isIntegral((Number)start) && end instanceof Number && isIntegral((Number)end)){
+                tree.add(((Number)start).longValue(), ((Number)end).longValue(), vertNum);
+            }else{
+                exceptions.add(vertNum);
+            }
+        }
+
+        void remove(Map<String, Object> vert, int vertNum){
+            if(!vertexType.equals(vert.get("vertexType"))){
+                return;
+            }
+            Object start = vert.get(startProp);
+            if(start instanceof Number && isIntegral((Number)start) && tree.remove(((Number)start).longValue(), vertNum)){
+                return;
+            }
+            exceptions.remove(vertNum);
+        }
+    }
+
+    /**
+     * Result of planQuery(): the vertices which could match, and the constraints still to be checked on them
+     */
+    private static final class QueryPlan {
+        /** vertex numbers, or null for all vertices (or for candidateSet) */
+        private int[] candidateNums;
+        /** the candidates, when they are exactly one posting list, until they need to be listed */
+        private IntHashSet candidateSet;
+        private final List<DBConstraint> residual;
+
+        QueryPlan(int[] candidateNums, List<DBConstraint> residual){
+            this.candidateNums = candidateNums;
+            this.residual = residual;
+        }
+
+        QueryPlan(IntHashSet candidateSet, List<DBConstraint> residual){
+            this.candidateSet = candidateSet;
+            this.residual = residual;
+        }
+
+        /** @return the candidate vertex numbers, or null for all vertices */
+        int[] getCandidateNums(){
+            if(candidateSet != null){
+                candidateNums = candidateSet.toArray();
+                candidateSet = null;
+            }
+            return candidateNums;
+        }
+
+        /** @return the number of candidates, or -1 for all vertices */
+        long getCandidateCount(){
+            if(candidateSet != null){
+                return candidateSet.size();
+            }
+            return (candidateNums == null) ? -1 : candidateNums.length;
+        }
+    }
+
+    /**
+     * Scan of a range of the vertices (or candidates), split in half until the halves are small enough
+     * to check on one thread. The halves' matches are joined in order, so the result is the same as
+     * that of a scan of the whole range on one thread.
+     */
+    private final class ScanTask extends RecursiveTask<IntArrayList> {
+        private static final long serialVersionUID = 1L;
+
+        private final CompiledConstraints residual;
+        private final int[] candidateNums;
+        private final int from;
+        private final int to;
+
+        ScanTask(CompiledConstraints residual, int[] candidateNums, int from, int to){
+            this.residual = residual;
+            this.candidateNums = candidateNums;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected IntArrayList compute(){
+            if(to - from <= getChunkSize()){
+                IntArrayList matchingNums = new IntArrayList();
+                scanRange(residual, candidateNums, from, to, matchingNums);
+                return matchingNums;
+            }
+            int mid = (from + to) >>> 1;
+            ScanTask lower = new ScanTask(residual, candidateNums, from, mid);
+            lower.fork();
+            IntArrayList upperNums = new ScanTask(residual, candidateNums, mid, to).compute();
+            IntArrayList matchingNums = lower.join();
+            matchingNums.addAll(upperNums);
+            return matchingNums;
+        }
+
+        /** @return the most vertices to check on one thread: a few tasks per thread, so the threads are kept busy */
+        private int getChunkSize(){
+            int scanSize = (candidateNums == null) ? vertIDs.size() : candidateNums.length;
+            return Math.max(PARALLEL_SCAN_MIN_CHUNK, scanSize / (4 * scanParallelism));
+        }
+    }
+
+    /**
+     * The tightest range given by all of the range constraints on one property
+     */
+    private static final class RangeBounds {
+        private Number lower = null;
+        private boolean lowerInclusive = true;
+        private Number upper = null;
+        private boolean upperInclusive = true;
+
+        RangeBounds(String prop, List<DBConstraint> constraints){
+            for(DBConstraint c : constraints){
+                Number bound = getRangeBound(c);
+                if(bound == null || !prop.equals(c.getProp()))
+                    continue;
+                Condition cond = c.getCond();
+                if(cond == Condition.gt || cond == Condition.gte){
+                    int order = (lower == null) ? 1 : compareNumbers(bound, lower);
+                    if(order > 0 || (order == 0 && cond == Condition.gt)){
+                        lower = bound;
+                        lowerInclusive = (cond == Condition.gte);
+                    }
+                }else{
+                    int order = (upper == null) ? -1 : compareNumbers(bound, upper);
+                    if(order < 0 || (order == 0 && cond == Condition.lt)){
+                        upper = bound;
+                        upperInclusive = (cond == Condition.lte);
+                    }
+                }
+            }
+        }
+
+        /** true if no value can be within these bounds */
+        boolean isEmpty(){
+            if(lower == null || upper == null){
+                return false;
+            }
+            int order = compareNumbers(lower, upper);
+            return order > 0 || (order == 0 && !(lowerInclusive && upperInclusive));
+        }
+    }
+
+    /**
+     * Key of the edgeKeyIndex, made up of an edge's end points and relation
+     */
+    private static final class EdgeKey {
+        private final int outVertNum;
+        private final int inVertNum;
+        private final String relation;
+        private final int hash;
+
+        EdgeKey(int outVertNum, int inVertNum, String relation){
+            this.outVertNum = outVertNum;
+            this.inVertNum = inVertNum;
+            this.relation = relation;
+            this.hash = 31 * (31 * outVertNum + inVertNum) + relation.hashCode();
+        }
+
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o){
+            if(this == o)
+                return true;
+            if(!(o instanceof EdgeKey))
+                return false;
+            EdgeKey other = (EdgeKey)o;
+            return hash == other.hash && outVertNum == other.outVertNum &&
+                    inVertNum == other.inVertNum && relation.equals(other.relation);
+        }
     }
 }
@@ -5,12 +5,45 @@ import gov.pnnl.stucco.dbconnect.DBConnectionFactory;
 import gov.pnnl.stucco.dbconnect.DBConnectionIndexerInterface;
 import gov.pnnl.stucco.dbconnect.DBConnectionTestInterface;
 
+import java.io.File;
+
 /**
  * This is a concrete Factory for the in-memory instance of a DB
  *
  */
 public class InMemoryDBConnectionFactory extends DBConnectionFactory {
     
+    /** configuration key to select the thread-safe connection, which can be shared by many threads */
+    public static final String CONCURRENT_KEY = "concurrent";
+
+    /** configuration key to store the vertex properties in columns, rather than a map per vertex */
+    public static final String COLUMNAR_KEY = "columnar";
+
+    /** configuration key to keep the vertex properties off the heap, for graphs too large to keep on it */
+    public static final String OFF_HEAP_KEY = "offheap";
+
+    /** configuration key of a directory to memory map the off-heap vertex properties in (direct buffers are used if there is none) */
+    public static final String OFF_HEAP_DIR_KEY = "offheap_dir";
+
+    /** configuration key of the number of threads the scans of unindexed queries are split between (1 for none) */
+    public static final String SCAN_PARALLELISM_KEY = "scan_parallelism";
+
+    /**
+     * configuration key of a name to register the connection's memory use MBean under (see InMemoryGraphMXBean).
+     * The first connection made by the factory gets the name, later ones get it with a "-2", "-3", ... suffix.
+     * JMX threads read the MBean, so it needs the thread-safe connection ("concurrent").
+     */
+    public static final String MBEAN_KEY = "mbean";
+
+    /**
+     * configuration key of a directory to journal changes in, so they survive a restart.
+     * The directory is locked while a connection journals to it, so only one connection from the factory
+     * can be open at a time; asking for another before closing it throws a StuccoDBException.
+     */
+    public static final String JOURNAL_KEY = "journal";
+
+    /** number of connections which have registered a memory use MBean */
+    private int mbeanCount = 0;
     
     /**
      * constructor of the factory
@@ -24,7 +57,7 @@ public class InMemoryDBConnectionFactory extends DBConnectionFactory {
      */
     public DBConnectionAlignment getDBConnectionAlignment() {
 
-        return new InMemoryDBConnection();
+        return newConnection();
 
     }
 
@@ -34,7 +67,7 @@ public class InMemoryDBConnectionFactory extends DBConnectionFactory {
      */
     public DBConnectionIndexerInterface getDBConnectionIndexer() {
 
-        return new InMemoryDBConnection();
+        return newConnection();
     }
 
     /**
@@ -42,7 +75,73 @@ public class InMemoryDBConnectionFactory extends DBConnectionFactory {
      */
     @Override
     public DBConnectionTestInterface getDBConnectionTestInterface() {
-        return new InMemoryDBConnection();
+        return newConnection();
+    }
+
+    /**
+     * create the type of connection selected by the configuration
+     * @return a ConcurrentInMemoryDBConnection if "concurrent" is true, otherwise an InMemoryDBConnection,
+     * storing the vertex properties off the heap if "offheap" is true (in the "offheap_dir" directory if there is one),
+     * or in columns if "columnar" is true, splitting scans between "scan_parallelism" threads if it is set,
+     * registering its memory use MBean under the "mbean" name if there is one (see MBEAN_KEY, which needs "concurrent"),
+     * and journaling to the "journal" directory if there is one
+     */
+    private InMemoryDBConnection newConnection() {
+        VertexStore vertStore;
+        if (isConfigured(OFF_HEAP_KEY)) {
+            String offHeapDir = getConfiguredString(OFF_HEAP_DIR_KEY);
+            vertStore = new OffHeapVertexStore((offHeapDir == null) ? null : new File(offHeapDir));
+        } else if (isConfigured(COLUMNAR_KEY)) {
+            vertStore = new ColumnarVertexStore();
+        } else {
+            vertStore = new MapVertexStore();
+        }
+        String mbeanName = getConfiguredString(MBEAN_KEY);
+        if (mbeanName != null && !isConfigured(CONCURRENT_KEY)) {
+            throw new IllegalArgumentException(MBEAN_KEY + " needs " + CONCURRENT_KEY + " set to true, since JMX threads read the graph");
+        }
+        InMemoryDBConnection conn;
+        if (isConfigured(CONCURRENT_KEY)) {
+            conn = new ConcurrentInMemoryDBConnection(vertStore);
+        } else {
+            conn = new InMemoryDBConnection(vertStore);
+        }
+        String scanParallelism = getConfiguredString(SCAN_PARALLELISM_KEY);
+        if (scanParallelism != null) {
+            try {
+                conn.setScanParallelism(Integer.parseInt(scanParallelism), InMemoryDBConnection.DEFAULT_PARALLEL_SCAN_MIN_VERTS);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid " + SCAN_PARALLELISM_KEY + ": " + scanParallelism, e);
+            }
+        }
+        //opened first, so a connection which can't have the journal doesn't register an MBean
+        String journalDir = getConfiguredString(JOURNAL_KEY);
+        if (journalDir != null) {
+            conn.openJournal(journalDir);
+        }
+        if (mbeanName != null) {
+            mbeanCount++;
+            conn.registerMBean((mbeanCount == 1) ? mbeanName : mbeanName + "-" + mbeanCount);
+        }
+        return conn;
+    }
+
+    /**
+     * @param key
+     * @return true if the configuration sets the key to true
+     */
+    private boolean isConfigured(String key) {
+        Object value = configuration.get(key);
+        return value != null && Boolean.parseBoolean(value.toString());
+    }
+
+    /**
+     * @param key
+     * @return the configured value of the key, or null if it is missing or empty
+     */
+    private String getConfiguredString(String key) {
+        Object value = configuration.get(key);
+        return (value == null || value.toString().trim().isEmpty()) ? null : value.toString().trim();
     }
 
 }
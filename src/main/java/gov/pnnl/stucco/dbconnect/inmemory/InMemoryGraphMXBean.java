@@ -0,0 +1,56 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.util.Map;
+
+/**
+ * JMX view of the estimated memory use of an in-memory graph (see MemoryReport),
+ * registered by InMemoryDBConnection.registerMBean()
+ *
+ */
+public interface InMemoryGraphMXBean {
+
+    long getVertexCount();
+
+    long getEdgeCount();
+
+    long getVertexBytes();
+
+    long getEdgeBytes();
+
+    long getOffHeapBytes();
+
+    long getTotalIndexBytes();
+
+    long getTotalBytes();
+
+    int getInternedStrings();
+
+    long getInternedStringBytes();
+
+    double getAverageProperties();
+
+    /**
+     * @return estimated bytes of each property index, by its kind and property
+     */
+    Map<String, Long> getIndexBytes();
+
+    /**
+     * @return number of vertices of each vertexType
+     */
+    Map<String, Long> getVertexCountsByType();
+
+    /**
+     * @return estimated bytes of the vertices of each vertexType
+     */
+    Map<String, Long> getVertexBytesByType();
+
+    /**
+     * @return average number of properties of a vertex of each vertexType
+     */
+    Map<String, Double> getAveragePropertiesByType();
+
+    /**
+     * @return average number of edges leaving a vertex of each vertexType
+     */
+    Map<String, Double> getAverageOutEdgesByType();
+}
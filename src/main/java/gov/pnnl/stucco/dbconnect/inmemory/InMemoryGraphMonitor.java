@@ -0,0 +1,126 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The InMemoryGraphMXBean of a connection. A report takes a pass over the whole graph,
+ * so one is reused for all of the attributes read within REPORT_MAX_AGE_MILLIS of it
+ * (eg. by a JMX console reading every attribute at once).
+ *
+ */
+final class InMemoryGraphMonitor implements InMemoryGraphMXBean {
+
+    /** time a report is reused for, in milliseconds */
+    static final long REPORT_MAX_AGE_MILLIS = 1000;
+
+    private final InMemoryDBConnection conn;
+
+    private MemoryReport report = null;
+
+    private long reportMillis = 0;
+
+    InMemoryGraphMonitor(InMemoryDBConnection conn){
+        this.conn = conn;
+    }
+
+    private synchronized MemoryReport getReport(){
+        long now = System.currentTimeMillis();
+        if(report == null || now - reportMillis > REPORT_MAX_AGE_MILLIS){
+            report = conn.getMemoryReport();
+            reportMillis = now;
+        }
+        return report;
+    }
+
+    @Override
+    public long getVertexCount(){
+        return getReport().getVertexCount();
+    }
+
+    @Override
+    public long getEdgeCount(){
+        return getReport().getEdgeCount();
+    }
+
+    @Override
+    public long getVertexBytes(){
+        return getReport().getVertexBytes();
+    }
+
+    @Override
+    public long getEdgeBytes(){
+        return getReport().getEdgeBytes();
+    }
+
+    @Override
+    public long getOffHeapBytes(){
+        return getReport().getOffHeapBytes();
+    }
+
+    @Override
+    public long getTotalIndexBytes(){
+        return getReport().getTotalIndexBytes();
+    }
+
+    @Override
+    public long getTotalBytes(){
+        return getReport().getTotalBytes();
+    }
+
+    @Override
+    public int getInternedStrings(){
+        return getReport().getInternedStrings();
+    }
+
+    @Override
+    public long getInternedStringBytes(){
+        return getReport().getInternedStringBytes();
+    }
+
+    @Override
+    public double getAverageProperties(){
+        return getReport().getAverageProperties();
+    }
+
+    @Override
+    public Map<String, Long> getIndexBytes(){
+        return getReport().getIndexBytes();
+    }
+
+    @Override
+    public Map<String, Long> getVertexCountsByType(){
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for(Map.Entry<String, MemoryReport.TypeUsage> entry : getReport().getTypes().entrySet()){
+            counts.put(entry.getKey(), entry.getValue().getVertexCount());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getVertexBytesByType(){
+        Map<String, Long> bytes = new TreeMap<String, Long>();
+        for(Map.Entry<String, MemoryReport.TypeUsage> entry : getReport().getTypes().entrySet()){
+            bytes.put(entry.getKey(), entry.getValue().getBytes());
+        }
+        return bytes;
+    }
+
+    @Override
+    public Map<String, Double> getAveragePropertiesByType(){
+        Map<String, Double> averages = new TreeMap<String, Double>();
+        for(Map.Entry<String, MemoryReport.TypeUsage> entry : getReport().getTypes().entrySet()){
+            averages.put(entry.getKey(), entry.getValue().getAverageProperties());
+        }
+        return averages;
+    }
+
+    @Override
+    public Map<String, Double> getAverageOutEdgesByType(){
+        Map<String, Double> averages = new TreeMap<String, Double>();
+        for(Map.Entry<String, MemoryReport.TypeUsage> entry : getReport().getTypes().entrySet()){
+            averages.put(entry.getKey(), entry.getValue().getAverageOutEdges());
+        }
+        return averages;
+    }
+}
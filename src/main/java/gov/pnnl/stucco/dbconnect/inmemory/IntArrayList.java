@@ -0,0 +1,149 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints
+ *
+ */
+final class IntArrayList {
+
+    private int[] values;
+
+    private int size = 0;
+
+    /** epoch the list was made in (see Epochs) */
+    final int epoch = Epochs.current();
+
+    IntArrayList(){
+        this(4);
+    }
+
+    IntArrayList(int capacity){
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    void add(int value){
+        if(size == values.length){
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    /**
+     * make room for a number of values, so adding up to that many doesn't grow the list again
+     * @param capacity
+     */
+    void ensureCapacity(int capacity){
+        if(capacity > values.length){
+            values = Arrays.copyOf(values, capacity);
+        }
+    }
+
+    /**
+     * add all of the values of another list, in order
+     * @param other
+     */
+    void addAll(IntArrayList other){
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.values, 0, values, size, other.size);
+        size += other.size;
+    }
+
+    int get(int i){
+        if(i >= size){
+            throw new IndexOutOfBoundsException("index " + i + " of " + size);
+        }
+        return values[i];
+    }
+
+    void set(int i, int value){
+        if(i >= size){
+            throw new IndexOutOfBoundsException("index " + i + " of " + size);
+        }
+        values[i] = value;
+    }
+
+    /**
+     * remove the value at an index, keeping the order of the rest
+     * @param i
+     * @return the value removed
+     */
+    int remove(int i){
+        int value = get(i);
+        System.arraycopy(values, i + 1, values, i, size - i - 1);
+        size--;
+        return value;
+    }
+
+    /**
+     * remove every occurrence of a set of values, keeping the order of the rest, in one pass
+     * @param removed
+     * @return number of values removed
+     */
+    int removeAll(IntHashSet removed){
+        int kept = 0;
+        for(int i=0; i<size; i++){
+            if(!removed.contains(values[i])){
+                values[kept++] = values[i];
+            }
+        }
+        int count = size - kept;
+        size = kept;
+        return count;
+    }
+
+    /**
+     * @param value
+     * @return index of the first occurrence of the value, or -1 if it is not in the list
+     */
+    int indexOf(int value){
+        for(int i=0; i<size; i++){
+            if(values[i] == value){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * remove the last value
+     * @return the value removed
+     */
+    int removeLast(){
+        return values[--size];
+    }
+
+    int size(){
+        return size;
+    }
+
+    boolean isEmpty(){
+        return size == 0;
+    }
+
+    void clear(){
+        size = 0;
+    }
+
+    int[] toArray(){
+        return Arrays.copyOf(values, size);
+    }
+
+    /**
+     * @return estimated bytes of the list (see MemoryEstimates)
+     */
+    long sizeInBytes(){
+        return 24 + MemoryEstimates.array(values.length, 4);
+    }
+
+    /**
+     * @return a separate list with the same values
+     */
+    IntArrayList copy(){
+        IntArrayList copy = new IntArrayList(size);
+        System.arraycopy(values, 0, copy.values, 0, size);
+        copy.size = size;
+        return copy;
+    }
+}
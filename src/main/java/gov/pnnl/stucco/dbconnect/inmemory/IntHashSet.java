@@ -0,0 +1,181 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.util.Arrays;
+
+/**
+ * A set of non-negative ints, stored in an open addressing hash table of primitive ints,
+ * so that large sets (eg. index postings) don't need an object per member.
+ *
+ */
+final class IntHashSet {
+
+    /** marks an empty slot */
+    private static final int EMPTY = -1;
+
+    private static final int MIN_CAPACITY = 4;
+
+    private int[] slots;
+
+    private int size = 0;
+
+    /** number of bits to shift the hash by, to get a slot index */
+    private int shift;
+
+    /** epoch the set was made in (see Epochs) */
+    final int epoch = Epochs.current();
+
+    IntHashSet(){
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize - number of members to make room for
+     */
+    IntHashSet(int expectedSize){
+        int capacity = MIN_CAPACITY;
+        while(capacity < expectedSize * 2){
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity){
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private int slotOf(int value){
+        return (value * 0x9E3779B9) >>> shift;
+    }
+
+    /**
+     * @param value - a non-negative int
+     * @return true if the value was not already in the set
+     */
+    boolean add(int value){
+        if(value < 0){
+            throw new IllegalArgumentException("only non-negative values can be stored: " + value);
+        }
+        int mask = slots.length - 1;
+        int i = slotOf(value);
+        while(slots[i] != EMPTY){
+            if(slots[i] == value){
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        slots[i] = value;
+        size++;
+        if(size * 4 > slots.length * 3){
+            rehash(slots.length * 2);
+        }
+        return true;
+    }
+
+    boolean contains(int value){
+        int mask = slots.length - 1;
+        int i = slotOf(value);
+        while(slots[i] != EMPTY){
+            if(slots[i] == value){
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @param value
+     * @return true if the value was in the set
+     */
+    boolean remove(int value){
+        int mask = slots.length - 1;
+        int i = slotOf(value);
+        while(slots[i] != value){
+            if(slots[i] == EMPTY){
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        //shift back any later members of the same run, so lookups don't stop early at the gap
+        int gap = i;
+        int j = (i + 1) & mask;
+        while(slots[j] != EMPTY){
+            int home = slotOf(slots[j]);
+            //move the member if its home slot is not between the gap and its current slot (cyclically)
+            if(((j - home) & mask) >= ((j - gap) & mask)){
+                slots[gap] = slots[j];
+                gap = j;
+            }
+            j = (j + 1) & mask;
+        }
+        slots[gap] = EMPTY;
+        size--;
+        return true;
+    }
+
+    int size(){
+        return size;
+    }
+
+    boolean isEmpty(){
+        return size == 0;
+    }
+
+    void clear(){
+        allocate(MIN_CAPACITY);
+        size = 0;
+    }
+
+    void addAll(IntHashSet other){
+        for(int value : other.slots){
+            if(value != EMPTY){
+                add(value);
+            }
+        }
+    }
+
+    /**
+     * @return the members, in no particular order
+     */
+    int[] toArray(){
+        int[] values = new int[size];
+        int n = 0;
+        for(int value : slots){
+            if(value != EMPTY){
+                values[n++] = value;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * @return estimated bytes of the set (see MemoryEstimates)
+     */
+    long sizeInBytes(){
+        return 24 + MemoryEstimates.array(slots.length, 4);
+    }
+
+    /**
+     * @return a separate set with the same members
+     */
+    IntHashSet copy(){
+        IntHashSet copy = new IntHashSet();
+        copy.slots = slots.clone();
+        copy.size = size;
+        copy.shift = shift;
+        return copy;
+    }
+
+    private void rehash(int capacity){
+        int[] oldSlots = slots;
+        allocate(capacity);
+        size = 0;
+        for(int value : oldSlots){
+            if(value != EMPTY){
+                add(value);
+            }
+        }
+    }
+}
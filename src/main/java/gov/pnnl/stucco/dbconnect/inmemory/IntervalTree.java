@@ -0,0 +1,214 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.util.Random;
+
+/**
+ * An interval tree of closed [start, end] ranges, each belonging to a vertex (by its internal number).
+ * This is a treap ordered by (start, ID), where each node also keeps the largest end
+ * in its subtree, so that the ranges containing a value can be found without visiting
+ * the subtrees which can't hold any.
+ *
+ */
+class IntervalTree {
+
+    private static final class Node {
+        final long start;
+        final long end;
+        final int id;
+        final int priority;
+        long maxEnd;
+        Node left;
+        Node right;
+
+        Node(long start, long end, int id, int priority){
+            this.start = start;
+            this.end = end;
+            this.id = id;
+            this.priority = priority;
+            this.maxEnd = end;
+        }
+    }
+
+    private Node root = null;
+
+    private int size = 0;
+
+    private final Random random = new Random();
+
+    /**
+     * add a range
+     * @param start - start of the range (inclusive)
+     * @param end - end of the range (inclusive)
+     * @param id - vertex number of the range
+     */
+    public void add(long start, long end, int id){
+        root = insert(root, new Node(start, end, id, random.nextInt()));
+        size++;
+    }
+
+    /**
+     * remove a range
+     * @param start - start of the range, as it was added
+     * @param id - vertex number of the range
+     * @return true if the range was found
+     */
+    public boolean remove(long start, int id){
+        int oldSize = size;
+        root = delete(root, start, id);
+        return size < oldSize;
+    }
+
+    /**
+     * find the ranges containing a value
+     * @param value
+     * @param ids - list the vertex numbers of the matching ranges are added to
+     */
+    public void findContaining(long value, IntArrayList ids){
+        findContaining(root, value, ids);
+    }
+
+    /**
+     * @return estimated bytes of the tree: 64 for each node (its header, 3 longs, 2 ints and 2 references)
+     */
+    public long sizeInBytes(){
+        return 48 + 64L * size;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public void clear(){
+        root = null;
+        size = 0;
+    }
+
+    /**
+     * @return a separate tree with the same ranges
+     */
+    public IntervalTree copy(){
+        IntervalTree copy = new IntervalTree();
+        copy.root = copy(root);
+        copy.size = size;
+        return copy;
+    }
+
+    private static Node copy(Node n){
+        if(n == null){
+            return null;
+        }
+        Node copy = new Node(n.start, n.end, n.id, n.priority);
+        copy.maxEnd = n.maxEnd;
+        copy.left = copy(n.left);
+        copy.right = copy(n.right);
+        return copy;
+    }
+
+    private void findContaining(Node n, long value, IntArrayList ids){
+        //nothing in this subtree reaches the value
+        if(n == null || n.maxEnd < value){
+            return;
+        }
+        findContaining(n.left, value, ids);
+        //everything to the right starts after this, so also after the value
+        if(n.start <= value){
+            if(n.end >= value){
+                ids.add(n.id);
+            }
+            findContaining(n.right, value, ids);
+        }
+    }
+
+    private static int compare(long start, int id, Node n){
+        if(start != n.start){
+            return start < n.start ? -1 : 1;
+        }
+        return Integer.compare(id, n.id);
+    }
+
+    private static Node insert(Node n, Node x){
+        if(n == null){
+            return x;
+        }
+        if(compare(x.start, x.id, n) < 0){
+            n.left = insert(n.left, x);
+            if(n.left.priority > n.priority){
+                n = rotateRight(n);
+            }
+        }else{
+            n.right = insert(n.right, x);
+            if(n.right.priority > n.priority){
+                n = rotateLeft(n);
+            }
+        }
+        update(n);
+        return n;
+    }
+
+    private Node delete(Node n, long start, int id){
+        if(n == null){
+            return null;
+        }
+        int c = compare(start, id, n);
+        if(c < 0){
+            n.left = delete(n.left, start, id);
+        }else if(c > 0){
+            n.right = delete(n.right, start, id);
+        }else{
+            size--;
+            return merge(n.left, n.right);
+        }
+        update(n);
+        return n;
+    }
+
+    /**
+     * join two subtrees, where everything in a is ordered before everything in b
+     */
+    private static Node merge(Node a, Node b){
+        if(a == null){
+            return b;
+        }
+        if(b == null){
+            return a;
+        }
+        if(a.priority > b.priority){
+            a.right = merge(a.right, b);
+            update(a);
+            return a;
+        }else{
+            b.left = merge(a, b.left);
+            update(b);
+            return b;
+        }
+    }
+
+    private static Node rotateRight(Node n){
+        Node l = n.left;
+        n.left = l.right;
+        update(n);
+        l.right = n;
+        update(l);
+        return l;
+    }
+
+    private static Node rotateLeft(Node n){
+        Node r = n.right;
+        n.right = r.left;
+        update(n);
+        r.left = n;
+        update(r);
+        return r;
+    }
+
+    private static void update(Node n){
+        long maxEnd = n.end;
+        if(n.left != null && n.left.maxEnd > maxEnd){
+            maxEnd = n.left.maxEnd;
+        }
+        if(n.right != null && n.right.maxEnd > maxEnd){
+            maxEnd = n.right.maxEnd;
+        }
+        n.maxEnd = maxEnd;
+    }
+}
@@ -0,0 +1,667 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the changes made to an in-memory graph, so that the changes made
+ * since its last snapshot can be replayed after a crash.
+ *
+ * <p> The journal is kept in a directory, as numbered segment files ("journal.N"), along with
+ * the snapshot (see BinarySnapshot) which includes every segment up to its own number ("snapshot.N").
+ * Each segment starts with a magic number and the format version, followed by records, each a length int,
+ * the CRC32 of the record, and the record itself: a type byte and its arguments.
+ * A record which was only partly written when the process stopped fails its checksum,
+ * so replay of that segment stops there.
+ *
+ * <p> Records are buffered, and are written and forced to disk together by a background thread once
+ * per sync interval (or after every record, if the interval is 0), so at most the last interval of
+ * changes can be lost. If forcing the records fails, the journal can't tell which of them reached the disk,
+ * so it rejects every later change rather than carry on without them being durable.
+ *
+ * <p> Compaction starts a new segment, and then, in a background thread, folds the previous snapshot
+ * and the earlier segments into a new snapshot, which replaces them.
+ *
+ * <p> The directory is locked (by a lock on its "lock" file) from when the journal is made until it is closed,
+ * so two journals, in this process or another, never write and compact the same segments.
+ *
+ */
+final class Journal implements Closeable {
+
+    /** "STCJ" */
+    static final int MAGIC = 0x5354434a;
+
+    static final int VERSION = 1;
+
+    private static final byte RECORD_ADD_VERTEX = 1;
+    private static final byte RECORD_SET_PROPERTY = 2;
+    private static final byte RECORD_REMOVE_VERTEX = 3;
+    private static final byte RECORD_ADD_EDGE = 4;
+    private static final byte RECORD_REMOVE_EDGES = 5;
+    private static final byte RECORD_REMOVE_ALL = 6;
+
+    private static final String SEGMENT_PREFIX = "journal.";
+    private static final String SNAPSHOT_PREFIX = "snapshot.";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String LOCK_FILE = "lock";
+
+    /**
+     * Receives the changes of a segment as it is replayed
+     */
+    interface Visitor {
+        void vertex(String id, Map<String, Object> vert);
+
+        void setProperty(String id, String key, Object value);
+
+        void removeVertex(String id);
+
+        void edge(String inVertID, String outVertID, String relation);
+
+        void removeEdges(String inVertID, String outVertID, String relation);
+
+        void removeAll();
+    }
+
+    /**
+     * Folds a snapshot and the segments after it into a new snapshot
+     */
+    interface Compactor {
+        /**
+         * @param snapshot - the previous snapshot, or null if there is none
+         * @param segments - the segments to replay on top of it, in order
+         * @param newSnapshot - file to write the new snapshot to
+         */
+        void compact(File snapshot, List<File> segments, File newSnapshot) throws IOException;
+    }
+
+    /**
+     * Opens each new segment file for writing
+     */
+    interface SegmentOpener {
+        FileChannel open(File segment) throws IOException;
+    }
+
+    private static final SegmentOpener FILE_OPENER = new SegmentOpener(){
+        @Override
+        public FileChannel open(File segment) throws IOException {
+            return FileChannel.open(segment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+    };
+
+    private final File dir;
+    private final long syncIntervalMillis;
+    private final long compactionBytes;
+    private final Compactor compactor;
+    private final SegmentOpener opener;
+
+    /** channel of the lock file, which holds the lock on the directory until it is closed */
+    private FileChannel lockChannel = null;
+
+    /** number of the latest snapshot, which includes all segments up to that number; 0 if there is none */
+    private long snapshotSeq = 0;
+
+    /** segments after the snapshot, which were there when the journal was opened, by number */
+    private final TreeMap<Long, File> oldSegments = new TreeMap<Long, File>();
+
+    /** number of the segment being written, 0 until the journal is started */
+    private long segmentSeq = 0;
+    private FileChannel segmentChannel = null;
+    private DataOutputStream out = null;
+    private long segmentBytes = 0;
+    /** true if records have been written since the last sync */
+    private boolean dirty = false;
+
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(recordBytes);
+    private final CRC32 crc = new CRC32();
+
+    private Thread syncThread = null;
+    private Thread compactionThread = null;
+    /** error of the last background compaction, thrown by the next call */
+    private IOException failure = null;
+    /** error forcing the records to disk, which every later change is rejected with */
+    private IOException syncFailure = null;
+    private boolean closed = false;
+
+    /**
+     * find the latest snapshot, and the segments after it, in a journal directory,
+     * and delete any files which it has replaced. Nothing is written until start() is called.
+     * @param dir - journal directory, which is created if it doesn't exist
+     * @param syncIntervalMillis - time between forcing the records to disk, or 0 to force every record
+     * @param compactionBytes - segment size which starts a compaction, or 0 for none
+     * @param compactor
+     * @throws IOException if the directory can't be read or created, or another journal has it open
+     */
+    Journal(File dir, long syncIntervalMillis, long compactionBytes, Compactor compactor) throws IOException {
+        this(dir, syncIntervalMillis, compactionBytes, compactor, FILE_OPENER);
+    }
+
+    /**
+     * @param dir
+     * @param syncIntervalMillis
+     * @param compactionBytes
+     * @param compactor
+     * @param opener - opens the segment files (see Journal(File, long, long, Compactor))
+     * @throws IOException
+     */
+    Journal(File dir, long syncIntervalMillis, long compactionBytes, Compactor compactor, SegmentOpener opener) throws IOException {
+        if(syncIntervalMillis < 0 || compactionBytes < 0){
+            throw new IllegalArgumentException("journal sync interval and compaction size cannot be negative");
+        }
+        this.dir = dir;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.compactionBytes = compactionBytes;
+        this.compactor = compactor;
+        this.opener = opener;
+
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            throw new IOException("could not create journal directory: " + dir);
+        }
+        lockDirectory();
+        try {
+            findFiles();
+        } catch (IOException e) {
+            unlockDirectory();
+            throw e;
+        }
+    }
+
+    /**
+     * lock the directory, so no other journal opens it until this one is closed
+     * @throws IOException if another journal has it open
+     */
+    private void lockDirectory() throws IOException {
+        FileChannel channel = FileChannel.open(new File(dir, LOCK_FILE).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            //held by a journal in this process
+            lock = null;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if(lock == null){
+            channel.close();
+            throw new IOException("journal directory is already open, by another connection or process (each needs its own): " + dir);
+        }
+        lockChannel = channel;
+    }
+
+    private void unlockDirectory() throws IOException {
+        if(lockChannel != null){
+            //closing the channel releases its lock
+            lockChannel.close();
+            lockChannel = null;
+        }
+    }
+
+    /**
+     * find the latest snapshot and the segments after it, and delete any files which it has replaced
+     * @throws IOException if the directory can't be read
+     */
+    private void findFiles() throws IOException {
+        File[] files = dir.listFiles();
+        if(files == null){
+            throw new IOException("could not read journal directory: " + dir);
+        }
+        Map<Long, File> snapshots = new HashMap<Long, File>();
+        for(File file : files){
+            String name = file.getName();
+            if(name.endsWith(TEMP_SUFFIX)){
+                //left by a compaction which didn't finish
+                file.delete();
+            }else if(name.startsWith(SNAPSHOT_PREFIX)){
+                long seq = parseSeq(name, SNAPSHOT_PREFIX);
+                if(seq > 0){
+                    snapshots.put(seq, file);
+                    snapshotSeq = Math.max(snapshotSeq, seq);
+                }
+            }else if(name.startsWith(SEGMENT_PREFIX)){
+                long seq = parseSeq(name, SEGMENT_PREFIX);
+                if(seq > 0){
+                    oldSegments.put(seq, file);
+                }
+            }
+        }
+        //a compaction may have stopped after writing its snapshot, but before removing what it replaced
+        for(Map.Entry<Long, File> entry : snapshots.entrySet()){
+            if(entry.getKey() < snapshotSeq){
+                entry.getValue().delete();
+            }
+        }
+        Map<Long, File> replaced = oldSegments.headMap(snapshotSeq, true);
+        for(File segment : replaced.values()){
+            segment.delete();
+        }
+        replaced.clear();
+    }
+
+    private static long parseSeq(String name, String prefix){
+        try {
+            return Long.parseLong(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the latest snapshot, or null if there is none
+     */
+    File getSnapshot(){
+        return (snapshotSeq > 0) ? snapshotFile(snapshotSeq) : null;
+    }
+
+    /**
+     * @return the segments to replay on top of the latest snapshot, in order
+     */
+    List<File> getSegments(){
+        return new ArrayList<File>(oldSegments.values());
+    }
+
+    /**
+     * start writing records, to a new segment after any existing ones
+     * @throws IOException if the segment can't be created
+     */
+    synchronized void start() throws IOException {
+        long lastSeq = oldSegments.isEmpty() ? snapshotSeq : Math.max(snapshotSeq, oldSegments.lastKey());
+        openSegment(lastSeq + 1);
+        if(syncIntervalMillis > 0){
+            syncThread = new Thread(new Runnable(){
+                @Override
+                public void run(){
+                    syncPeriodically();
+                }
+            }, "journal-sync " + dir.getName());
+            syncThread.setDaemon(true);
+            syncThread.start();
+        }
+    }
+
+    synchronized void addVertex(String id, Map<String, Object> vert) throws IOException {
+        startRecord(RECORD_ADD_VERTEX);
+        BinarySnapshot.writeString(record, id);
+        int propCount = 0;
+        for(Object value : vert.values()){
+            if(value != null)
+                propCount++;
+        }
+        record.writeInt(propCount);
+        for(Map.Entry<String, Object> entry : vert.entrySet()){
+            if(entry.getValue() == null)
+                continue;
+            BinarySnapshot.writeString(record, entry.getKey());
+            BinarySnapshot.writeValue(record, entry.getKey(), entry.getValue(), null);
+        }
+        append();
+    }
+
+    synchronized void setProperty(String id, String key, Object value) throws IOException {
+        startRecord(RECORD_SET_PROPERTY);
+        BinarySnapshot.writeString(record, id);
+        BinarySnapshot.writeString(record, key);
+        BinarySnapshot.writeValue(record, key, value, null);
+        append();
+    }
+
+    synchronized void removeVertex(String id) throws IOException {
+        startRecord(RECORD_REMOVE_VERTEX);
+        BinarySnapshot.writeString(record, id);
+        append();
+    }
+
+    synchronized void addEdge(String inVertID, String outVertID, String relation) throws IOException {
+        startRecord(RECORD_ADD_EDGE);
+        writeEdge(inVertID, outVertID, relation);
+        append();
+    }
+
+    synchronized void removeEdges(String inVertID, String outVertID, String relation) throws IOException {
+        startRecord(RECORD_REMOVE_EDGES);
+        writeEdge(inVertID, outVertID, relation);
+        append();
+    }
+
+    synchronized void removeAll() throws IOException {
+        startRecord(RECORD_REMOVE_ALL);
+        append();
+    }
+
+    private void writeEdge(String inVertID, String outVertID, String relation) throws IOException {
+        BinarySnapshot.writeString(record, inVertID);
+        BinarySnapshot.writeString(record, outVertID);
+        BinarySnapshot.writeString(record, relation);
+    }
+
+    private void startRecord(byte type) throws IOException {
+        if(closed){
+            throw new IOException("journal is closed");
+        }
+        if(syncFailure != null){
+            throw new IOException("journal could not be forced to disk, so no more changes can be journaled", syncFailure);
+        }
+        if(failure != null){
+            IOException e = failure;
+            failure = null;
+            throw new IOException("journal failed in the background", e);
+        }
+        recordBytes.reset();
+        record.writeByte(type);
+    }
+
+    private void append() throws IOException {
+        record.flush();
+        byte[] bytes = recordBytes.toByteArray();
+        crc.reset();
+        crc.update(bytes, 0, bytes.length);
+        out.writeInt(bytes.length);
+        out.writeInt((int)crc.getValue());
+        out.write(bytes);
+        segmentBytes += 8 + bytes.length;
+        dirty = true;
+        if(syncIntervalMillis == 0){
+            sync();
+        }
+        if(compactionBytes > 0 && segmentBytes >= compactionBytes && compactionThread == null){
+            compact();
+        }
+    }
+
+    /**
+     * write any buffered records, and force them to disk
+     * @throws IOException if they can't be, now or by an earlier sync
+     */
+    synchronized void sync() throws IOException {
+        if(syncFailure != null){
+            throw new IOException("journal could not be forced to disk", syncFailure);
+        }
+        if(dirty){
+            try {
+                out.flush();
+                segmentChannel.force(false);
+            } catch (IOException e) {
+                syncFailure = e;
+                throw e;
+            }
+            dirty = false;
+        }
+    }
+
+    private synchronized void syncPeriodically(){
+        while(!closed){
+            try {
+                sync();
+            } catch (IOException e) {
+                //kept in syncFailure, which the next change is rejected with
+                return;
+            }
+            try {
+                wait(syncIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * start a new segment, and fold the previous snapshot and the segments before the new one
+     * into a new snapshot in the background. Does nothing if a compaction is already running.
+     * @throws IOException if the new segment can't be created
+     */
+    synchronized void compact() throws IOException {
+        if(compactionThread != null){
+            return;
+        }
+        final long lastSeq = segmentSeq;
+        openSegment(segmentSeq + 1);
+
+        final File snapshot = getSnapshot();
+        final List<File> segments = getSegments();
+        segments.add(segmentFile(lastSeq));
+        oldSegments.clear();
+        compactionThread = new Thread(new Runnable(){
+            @Override
+            public void run(){
+                IOException error = null;
+                try {
+                    File newSnapshot = snapshotFile(lastSeq);
+                    File tempSnapshot = new File(dir, newSnapshot.getName() + TEMP_SUFFIX);
+                    compactor.compact(snapshot, segments, tempSnapshot);
+                    forceFile(tempSnapshot);
+                    if(!tempSnapshot.renameTo(newSnapshot)){
+                        throw new IOException("could not rename " + tempSnapshot + " to " + newSnapshot);
+                    }
+                    forceDirectory();
+                    //the new snapshot replaces these from here on, even if they aren't deleted
+                    if(snapshot != null){
+                        snapshot.delete();
+                    }
+                    for(File segment : segments){
+                        segment.delete();
+                    }
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException("journal compaction failed", e);
+                }
+                synchronized(Journal.this){
+                    if(error == null){
+                        snapshotSeq = lastSeq;
+                    }else{
+                        //keep replaying from the old snapshot
+                        for(File segment : segments){
+                            oldSegments.put(parseSeq(segment.getName(), SEGMENT_PREFIX), segment);
+                        }
+                        failure = error;
+                    }
+                    compactionThread = null;
+                    Journal.this.notifyAll();
+                }
+            }
+        }, "journal-compaction " + dir.getName());
+        compactionThread.start();
+    }
+
+    /**
+     * wait for any running compaction to finish
+     * @throws IOException if the compaction failed
+     */
+    synchronized void awaitCompaction() throws IOException {
+        while(compactionThread != null){
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for journal compaction", e);
+            }
+        }
+        if(failure != null){
+            IOException e = failure;
+            failure = null;
+            throw e;
+        }
+    }
+
+    /**
+     * wait for any running compaction, then force the remaining records to disk, close the segment
+     * and unlock the directory
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(closed){
+            return;
+        }
+        try {
+            awaitCompaction();
+        } finally {
+            closed = true;
+            notifyAll();
+            try {
+                if(out != null){
+                    try {
+                        sync();
+                    } finally {
+                        out.close();
+                    }
+                }
+            } finally {
+                unlockDirectory();
+            }
+        }
+    }
+
+    private void openSegment(long seq) throws IOException {
+        if(out != null){
+            sync();
+            out.close();
+        }
+        segmentSeq = seq;
+        segmentChannel = opener.open(segmentFile(seq));
+        out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(segmentChannel), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        segmentBytes = 8;
+        dirty = true;
+        sync();
+        forceDirectory();
+    }
+
+    private File segmentFile(long seq){
+        return new File(dir, SEGMENT_PREFIX + seq);
+    }
+
+    private File snapshotFile(long seq){
+        return new File(dir, SNAPSHOT_PREFIX + seq);
+    }
+
+    private static void forceFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.getChannel().force(true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** make the creation and renaming of files durable, where the platform allows it */
+    private void forceDirectory(){
+        try {
+            FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            //not supported on some platforms
+        }
+    }
+
+    /**
+     * replay the records of a segment, up to the end or to the first one which was not completely written
+     * @param segment
+     * @param visitor
+     * @throws IOException if the file can't be read, or is not a segment of a supported version
+     */
+    static void replay(File segment, Visitor visitor) throws IOException {
+        long fileLength = segment.length();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 1 << 16));
+        try {
+            try {
+                if(in.readInt() != MAGIC){
+                    throw new IOException("not a journal segment: " + segment);
+                }
+                int version = in.readInt();
+                if(version != VERSION){
+                    throw new IOException("unsupported journal version " + version + " in file: " + segment);
+                }
+            } catch (EOFException e) {
+                //created, but nothing was written to it
+                return;
+            }
+            CRC32 checksum = new CRC32();
+            while(true){
+                byte[] bytes;
+                int expected;
+                try {
+                    int length = in.readInt();
+                    expected = in.readInt();
+                    if(length <= 0 || length > fileLength){
+                        return;
+                    }
+                    bytes = new byte[length];
+                    in.readFully(bytes);
+                } catch (EOFException e) {
+                    return;
+                }
+                checksum.reset();
+                checksum.update(bytes, 0, bytes.length);
+                if((int)checksum.getValue() != expected){
+                    return;
+                }
+                replayRecord(ByteBuffer.wrap(bytes), visitor);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void replayRecord(ByteBuffer in, Visitor visitor) throws IOException {
+        List<String> noDictionary = Collections.emptyList();
+        byte type = in.get();
+        switch(type){
+        case RECORD_ADD_VERTEX:
+            String id = BinarySnapshot.readString(in);
+            int propCount = in.getInt();
+            Map<String, Object> vert = new HashMap<String, Object>(Math.max(4, propCount * 2));
+            for(int i=0; i<propCount; i++){
+                String prop = BinarySnapshot.readString(in);
+                vert.put(prop, BinarySnapshot.readValue(in, noDictionary));
+            }
+            visitor.vertex(id, vert);
+            break;
+        case RECORD_SET_PROPERTY:
+            String vertID = BinarySnapshot.readString(in);
+            String key = BinarySnapshot.readString(in);
+            visitor.setProperty(vertID, key, BinarySnapshot.readValue(in, noDictionary));
+            break;
+        case RECORD_REMOVE_VERTEX:
+            visitor.removeVertex(BinarySnapshot.readString(in));
+            break;
+        case RECORD_ADD_EDGE:
+            visitor.edge(BinarySnapshot.readString(in), BinarySnapshot.readString(in), BinarySnapshot.readString(in));
+            break;
+        case RECORD_REMOVE_EDGES:
+            visitor.removeEdges(BinarySnapshot.readString(in), BinarySnapshot.readString(in), BinarySnapshot.readString(in));
+            break;
+        case RECORD_REMOVE_ALL:
+            visitor.removeAll();
+            break;
+        default:
+            throw new IOException("unknown journal record type: " + type);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Vertex storage which keeps each vertex's own property map, as it was added
+ *
+ * <p> The maps are never changed once they are stored: setting a property replaces the vertex's map
+ * with a changed copy (made once for all the properties set between beginUpdate() and endUpdate()).
+ * So a map returned by get() stays as it was, and a copy of the store
+ * can share the maps with the store it was copied from. The copy also shares the list of maps,
+ * a chunk at a time, until either store changes that chunk (see ChunkedList).
+ *
+ */
+final class MapVertexStore implements VertexStore {
+
+    /** property maps, by vertex number, null for unused numbers */
+    private final ChunkedList<Map<String, Object>> vertProps;
+
+    /** the vertices whose properties are being set (see beginUpdate()); several can be, by different threads */
+    private final IntHashSet updatingNums = new IntHashSet();
+
+    /** the updating vertices whose maps have been copied, so the copies can be changed in place */
+    private final IntHashSet copiedNums = new IntHashSet();
+
+    MapVertexStore(){
+        vertProps = new ChunkedList<Map<String, Object>>();
+    }
+
+    private MapVertexStore(MapVertexStore store){
+        vertProps = store.vertProps.copy();
+    }
+
+    @Override
+    public Map<String, Object> get(int vertNum){
+        return (vertNum < vertProps.size()) ? vertProps.get(vertNum) : null;
+    }
+
+    @Override
+    public Object getProperty(int vertNum, String prop){
+        return vertProps.get(vertNum).get(prop);
+    }
+
+    @Override
+    public void put(int vertNum, Map<String, Object> vert){
+        while(vertProps.size() <= vertNum){
+            vertProps.add(null);
+        }
+        vertProps.set(vertNum, vert);
+    }
+
+    @Override
+    public Object setProperty(int vertNum, String prop, Object value){
+        Map<String, Object> vert = vertProps.get(vertNum);
+        if(!copiedNums.contains(vertNum)){
+            vert = new HashMap<String, Object>(vert);
+            vertProps.set(vertNum, vert);
+            if(updatingNums.contains(vertNum)){
+                copiedNums.add(vertNum);
+            }
+        }
+        return vert.put(prop, value);
+    }
+
+    @Override
+    public void beginUpdate(int vertNum){
+        updatingNums.add(vertNum);
+    }
+
+    @Override
+    public void endUpdate(int vertNum){
+        updatingNums.remove(vertNum);
+        copiedNums.remove(vertNum);
+    }
+
+    @Override
+    public void remove(int vertNum){
+        if(vertNum < vertProps.size() && vertProps.get(vertNum) != null){
+            vertProps.set(vertNum, null);
+        }
+    }
+
+    @Override
+    public void clear(){
+        vertProps.clear();
+    }
+
+    @Override
+    public boolean isCopyOnWrite(){
+        return true;
+    }
+
+    @Override
+    public VertexStore copy(){
+        return new MapVertexStore(this);
+    }
+
+    @Override
+    public long estimateBytes(int vertNum){
+        return MemoryEstimates.REFERENCE_BYTES + MemoryEstimates.map(vertProps.get(vertNum));
+    }
+
+    @Override
+    public long getOffHeapBytes(){
+        return 0;
+    }
+}
@@ -0,0 +1,99 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import gov.pnnl.stucco.dbconnect.StringInterner;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates of the heap used by the structures of the in-memory graph, for MemoryReport.
+ * They assume a 64-bit JVM with 8 byte references and 16 byte object headers, each object padded to 8 bytes,
+ * so they are an upper bound where the JVM compresses its references.
+ *
+ * <p> Strings in the StringInterner's table are shared, so they only count as a reference where they are used;
+ * the table is reported on its own.
+ *
+ */
+final class MemoryEstimates {
+
+    static final int REFERENCE_BYTES = 8;
+
+    static final int OBJECT_HEADER_BYTES = 16;
+
+    /** a HashMap or ConcurrentHashMap entry: header, hash, key, value and next */
+    static final int HASH_ENTRY_BYTES = 32;
+
+    /** a boxed primitive (eg. Long, Integer, Double) */
+    static final int BOXED_BYTES = 24;
+
+    private MemoryEstimates(){
+    }
+
+    static long align(long bytes){
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * @param length
+     * @param elementBytes
+     * @return bytes of an array
+     */
+    static long array(long length, int elementBytes){
+        return align(OBJECT_HEADER_BYTES + length * elementBytes);
+    }
+
+    /**
+     * @param size - number of entries
+     * @return bytes of a HashMap with that many entries, not counting its keys and values
+     */
+    static long hashMap(int size){
+        long capacity = 16;
+        while(capacity * 3 / 4 < size){
+            capacity <<= 1;
+        }
+        return 48 + array(capacity, REFERENCE_BYTES) + (long)size * HASH_ENTRY_BYTES;
+    }
+
+    /**
+     * @param map
+     * @return bytes of a HashMap with the entries of the map, including its keys and values
+     */
+    static long map(Map<?, ?> map){
+        long bytes = hashMap(map.size());
+        for(Map.Entry<?, ?> entry : map.entrySet()){
+            bytes += value(entry.getKey()) + value(entry.getValue());
+        }
+        return bytes;
+    }
+
+    /**
+     * @param value - a property value, or a key of an index
+     * @return bytes of the value, not counting the reference to it (0 for a String in the interner's table)
+     */
+    static long value(Object value){
+        if(value == null){
+            return 0;
+        }
+        if(value instanceof String){
+            String s = (String)value;
+            return StringInterner.getDefault().isInterned(s) ? 0 : StringInterner.estimateBytes(s);
+        }
+        if(value instanceof Number || value instanceof Boolean){
+            return BOXED_BYTES;
+        }
+        if(value instanceof Date){
+            return 32;
+        }
+        if(value instanceof Collection){
+            Collection<?> values = (Collection<?>)value;
+            long bytes = (value instanceof List) ? 24 + array(values.size(), REFERENCE_BYTES) : 16 + hashMap(values.size());
+            for(Object v : values){
+                bytes += value(v);
+            }
+            return bytes;
+        }
+        return OBJECT_HEADER_BYTES;
+    }
+}
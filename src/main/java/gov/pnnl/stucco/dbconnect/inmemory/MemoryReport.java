@@ -0,0 +1,219 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Estimated memory use of an in-memory graph, for capacity planning: the bytes of its vertices, edges
+ * and each of its indexes, and of the interned Strings, with the vertices broken down by vertexType.
+ * The estimates are of the heap (see MemoryEstimates), except for the bytes kept off the heap.
+ *
+ */
+public final class MemoryReport {
+
+    /** the vertexType of vertices without one, in getTypes() */
+    public static final String NO_TYPE = "(none)";
+
+    private final long edgeCount;
+    private final long edgeBytes;
+    private final long offHeapBytes;
+    private final Map<String, Long> indexBytes;
+    private final Map<String, TypeUsage> types;
+    private final int internedStrings;
+    private final long internedStringBytes;
+    private final TypeUsage allTypes = new TypeUsage();
+
+    MemoryReport(long edgeCount, long edgeBytes, long offHeapBytes, Map<String, Long> indexBytes,
+            Map<String, TypeUsage> types, int internedStrings, long internedStringBytes){
+        this.edgeCount = edgeCount;
+        this.edgeBytes = edgeBytes;
+        this.offHeapBytes = offHeapBytes;
+        this.indexBytes = Collections.unmodifiableMap(indexBytes);
+        this.types = Collections.unmodifiableMap(types);
+        this.internedStrings = internedStrings;
+        this.internedStringBytes = internedStringBytes;
+        for(TypeUsage usage : types.values()){
+            allTypes.add(usage);
+        }
+    }
+
+    /**
+     * @return number of vertices
+     */
+    public long getVertexCount(){
+        return allTypes.getVertexCount();
+    }
+
+    /**
+     * @return estimated bytes of the vertices: their IDs and properties
+     */
+    public long getVertexBytes(){
+        return allTypes.getBytes();
+    }
+
+    /**
+     * @return average number of properties of a vertex
+     */
+    public double getAverageProperties(){
+        return allTypes.getAverageProperties();
+    }
+
+    /**
+     * @return number of edges
+     */
+    public long getEdgeCount(){
+        return edgeCount;
+    }
+
+    /**
+     * @return estimated bytes of the edges and their adjacency indexes
+     */
+    public long getEdgeBytes(){
+        return edgeBytes;
+    }
+
+    /**
+     * @return bytes of the vertex properties kept off the heap (0 unless they are stored off the heap);
+     * these are included in getVertexBytes(), but not in getTotalBytes()
+     */
+    public long getOffHeapBytes(){
+        return offHeapBytes;
+    }
+
+    /**
+     * @return estimated bytes of each property index, by its kind and property (eg. "hash:name", "range:count"),
+     * in order of name
+     */
+    public Map<String, Long> getIndexBytes(){
+        return indexBytes;
+    }
+
+    /**
+     * @return estimated bytes of all of the property indexes
+     */
+    public long getTotalIndexBytes(){
+        long bytes = 0;
+        for(long b : indexBytes.values()){
+            bytes += b;
+        }
+        return bytes;
+    }
+
+    /**
+     * @return usage of the vertices of each vertexType, in order of type
+     */
+    public Map<String, TypeUsage> getTypes(){
+        return types;
+    }
+
+    /**
+     * @return number of Strings in the interner's table, which is shared by all of the connections
+     */
+    public int getInternedStrings(){
+        return internedStrings;
+    }
+
+    /**
+     * @return estimated bytes of the interner's table, which is shared by all of the connections
+     */
+    public long getInternedStringBytes(){
+        return internedStringBytes;
+    }
+
+    /**
+     * @return estimated bytes of the graph on the heap: its vertices, edges and indexes,
+     * but not the interner's table (which is shared), nor the bytes kept off the heap
+     */
+    public long getTotalBytes(){
+        return getVertexBytes() - offHeapBytes + edgeBytes + getTotalIndexBytes();
+    }
+
+    @Override
+    public String toString(){
+        return "MemoryReport[" + getVertexCount() + " vertices ~" + getVertexBytes() + " bytes, "
+                + edgeCount + " edges ~" + edgeBytes + " bytes, indexes ~" + getTotalIndexBytes() + " bytes, "
+                + "~" + getTotalBytes() + " bytes on the heap, " + offHeapBytes + " bytes off it]";
+    }
+
+    /**
+     * Estimated memory use of the vertices of one vertexType
+     */
+    public static final class TypeUsage {
+        private long vertexCount = 0;
+        private long bytes = 0;
+        private long propertyCount = 0;
+        private long outEdgeCount = 0;
+        private long inEdgeCount = 0;
+
+        TypeUsage(){
+        }
+
+        /**
+         * count a vertex of the type
+         * @param vertBytes - estimated bytes of the vertex
+         * @param properties - number of its properties
+         * @param outEdges - number of edges leaving it
+         * @param inEdges - number of edges entering it
+         */
+        void add(long vertBytes, int properties, int outEdges, int inEdges){
+            vertexCount++;
+            bytes += vertBytes;
+            propertyCount += properties;
+            outEdgeCount += outEdges;
+            inEdgeCount += inEdges;
+        }
+
+        private void add(TypeUsage usage){
+            vertexCount += usage.vertexCount;
+            bytes += usage.bytes;
+            propertyCount += usage.propertyCount;
+            outEdgeCount += usage.outEdgeCount;
+            inEdgeCount += usage.inEdgeCount;
+        }
+
+        /**
+         * @return number of vertices of the type
+         */
+        public long getVertexCount(){
+            return vertexCount;
+        }
+
+        /**
+         * @return estimated bytes of the vertices of the type: their IDs and properties
+         */
+        public long getBytes(){
+            return bytes;
+        }
+
+        /**
+         * @return average number of properties of a vertex of the type
+         */
+        public double getAverageProperties(){
+            return average(propertyCount);
+        }
+
+        /**
+         * @return average number of edges leaving a vertex of the type
+         */
+        public double getAverageOutEdges(){
+            return average(outEdgeCount);
+        }
+
+        /**
+         * @return average number of edges entering a vertex of the type
+         */
+        public double getAverageInEdges(){
+            return average(inEdgeCount);
+        }
+
+        private double average(long total){
+            return (vertexCount == 0) ? 0.0 : (double)total / vertexCount;
+        }
+
+        @Override
+        public String toString(){
+            return vertexCount + " vertices ~" + bytes + " bytes, " + getAverageProperties() + " properties, "
+                    + getAverageOutEdges() + " out edges, " + getAverageInEdges() + " in edges on average";
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import gov.pnnl.stucco.dbconnect.StringInterner;
+import gov.pnnl.stucco.dbconnect.StuccoDBException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Vertex storage which keeps the property maps off the heap, serialized into direct buffers,
+ * or into memory mapped segment files, so that very large graphs don't fill the heap with
+ * objects for the garbage collector to trace. Only the location of each vertex's record,
+ * and the dictionary of property names, are kept on the heap.
+ *
+ * <p> Each record is its length, then the number of properties, then a table of
+ * (property name number, value offset), then the values, encoded as in BinarySnapshot.
+ * Records are only appended: a changed vertex gets a new record, and the space of the
+ * old ones is reclaimed once there is more of it than of the records in use.
+ *
+ * <p> Vertices are returned as read-only map views, which read their properties from the records on demand.
+ * A view shows later updates to its vertex, and is empty once the vertex is removed,
+ * even if its number is reused for another vertex.
+ * Strings read back are replaced by their canonical copies (see StringInterner), where there are any,
+ * so repeated values (eg. vertexType) don't make a new String on the heap each time they are read.
+ *
+ * <p> Since records never change, a copy of the store shares the segments with it, and only appends its
+ * own records after those of the store it was copied from; the locations and stamps are copied when they change.
+ *
+ */
+final class OffHeapVertexStore implements VertexStore {
+
+    /** size of the first segment; each new segment is twice the size of the last, up to MAX_SEGMENT_BYTES */
+    private static final int MIN_SEGMENT_BYTES = 1 << 20;
+
+    private static final int MAX_SEGMENT_BYTES = 1 << 26;
+
+    /** no record, in locations */
+    private static final long NONE = -1;
+
+    /** directory of the memory mapped segment files, or null for direct buffers */
+    private final File dir;
+
+    private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+
+    /** bytes used in the last segment */
+    private int segmentUsed = 0;
+
+    /** false if a copy of the store appends to the rest of the last segment, so this store must start a new one */
+    private boolean ownsSegmentEnd = true;
+
+    /** location of each vertex's record, as (segment number << 32 | offset), by vertex number */
+    private long[] locations = new long[0];
+
+    /** stamp of the vertex stored under each number, which is new each time a vertex is stored in an unused number */
+    private long[] stamps = new long[0];
+
+    /** true if the locations and stamps are shared with a copy of the store, so must be copied before they change */
+    private boolean locationsShared = false;
+    private boolean stampsShared = false;
+
+    /** last stamp given to a vertex */
+    private long lastStamp = 0;
+
+    /** number of bytes in the records in use, and in all of the records */
+    private long liveBytes = 0;
+    private long totalBytes = 0;
+
+    /** dictionary of property names to their numbers, and back */
+    private final Map<String, Integer> nameNums = new HashMap<String, Integer>();
+    private final List<String> names = new ArrayList<String>();
+
+    /** buffers to encode a record in, before it is appended */
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream valueBytes = new ByteArrayOutputStream();
+
+    /**
+     * @param dir - directory to memory map the segments in, or null to keep them in direct buffers.
+     * The segment files are deleted once they are mapped (or on exit, if that isn't possible),
+     * so they are only ever used by this store (and its copies).
+     */
+    OffHeapVertexStore(File dir){
+        this.dir = dir;
+    }
+
+    @Override
+    public Map<String, Object> get(int vertNum){
+        return (getLocation(vertNum) == NONE) ? null : new VertexView(vertNum, stamps[vertNum]);
+    }
+
+    @Override
+    public Object getProperty(int vertNum, String prop){
+        long location = getLocation(vertNum);
+        Integer nameNum = nameNums.get(prop);
+        if(location == NONE || nameNum == null){
+            return null;
+        }
+        ByteBuffer record = getRecord(location);
+        int count = record.getInt(record.position() + 4);
+        int tableStart = record.position() + 8;
+        for(int i=0; i<count; i++){
+            if(record.getInt(tableStart + 8 * i) == nameNum){
+                record.position(tableStart + 8 * count + record.getInt(tableStart + 8 * i + 4));
+                return readValue(record);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void put(int vertNum, Map<String, Object> vert){
+        //a replaced vertex keeps its stamp, so its views show the new properties
+        boolean isNew = (getLocation(vertNum) == NONE);
+        remove(vertNum);
+        append(vertNum, vert);
+        if(isNew){
+            if(vertNum >= stamps.length){
+                stamps = Arrays.copyOf(stamps, locations.length);
+                stampsShared = false;
+            }else if(stampsShared){
+                stamps = stamps.clone();
+                stampsShared = false;
+            }
+            stamps[vertNum] = ++lastStamp;
+        }
+    }
+
+    @Override
+    public Object setProperty(int vertNum, String prop, Object value){
+        Map<String, Object> vert = readAll(vertNum);
+        Object oldValue = (value == null) ? vert.remove(prop) : vert.put(prop, value);
+        remove(vertNum);
+        append(vertNum, vert);
+        compactIfNeeded();
+        return oldValue;
+    }
+
+    @Override
+    public void beginUpdate(int vertNum){
+        //properties are set in place already
+    }
+
+    @Override
+    public void endUpdate(int vertNum){
+    }
+
+    @Override
+    public void remove(int vertNum){
+        long location = getLocation(vertNum);
+        if(location != NONE){
+            liveBytes -= getRecord(location).getInt();
+            locationsToChange()[vertNum] = NONE;
+        }
+    }
+
+    @Override
+    public void clear(){
+        segments.clear();
+        segmentUsed = 0;
+        locations = new long[0];
+        locationsShared = false;
+        liveBytes = 0;
+        totalBytes = 0;
+    }
+
+    @Override
+    public boolean isCopyOnWrite(){
+        return false;
+    }
+
+    @Override
+    public VertexStore copy(){
+        OffHeapVertexStore copy = new OffHeapVertexStore(dir);
+        copy.names.addAll(names);
+        copy.nameNums.putAll(nameNums);
+        copy.segments.addAll(segments);
+        copy.segmentUsed = segmentUsed;
+        ownsSegmentEnd = false;
+        copy.locations = locations;
+        copy.stamps = stamps;
+        copy.locationsShared = true;
+        copy.stampsShared = true;
+        locationsShared = true;
+        stampsShared = true;
+        copy.lastStamp = lastStamp;
+        copy.liveBytes = liveBytes;
+        copy.totalBytes = totalBytes;
+        return copy;
+    }
+
+    /**
+     * @return the size of the vertex's record, and its location
+     */
+    @Override
+    public long estimateBytes(int vertNum){
+        long location = getLocation(vertNum);
+        return (location == NONE) ? 0 : getRecord(location).getInt() + 8;
+    }
+
+    @Override
+    public long getOffHeapBytes(){
+        return getCapacityBytes();
+    }
+
+    /**
+     * @return number of bytes of the records in use
+     */
+    long getLiveBytes(){
+        return liveBytes;
+    }
+
+    /**
+     * @return number of bytes of all of the segments, including the space not used yet
+     */
+    long getCapacityBytes(){
+        long bytes = 0;
+        for(ByteBuffer segment : segments){
+            bytes += segment.capacity();
+        }
+        return bytes;
+    }
+
+    private long getLocation(int vertNum){
+        return (vertNum < locations.length) ? locations[vertNum] : NONE;
+    }
+
+    /**
+     * @return the locations, copied first if they are shared with a copy of the store
+     */
+    private long[] locationsToChange(){
+        if(locationsShared){
+            locations = locations.clone();
+            locationsShared = false;
+        }
+        return locations;
+    }
+
+    /**
+     * @param location
+     * @return a buffer of the record's segment, positioned at the record; it is separate from the segment,
+     * so any number of threads can read records at once
+     */
+    private ByteBuffer getRecord(long location){
+        ByteBuffer record = segments.get((int)(location >>> 32)).duplicate();
+        record.position((int)location);
+        return record;
+    }
+
+    /**
+     * @param vertNum
+     * @return all of the properties of a vertex, in a new map (empty if the vertex has been removed)
+     */
+    private Map<String, Object> readAll(int vertNum){
+        Map<String, Object> vert = new LinkedHashMap<String, Object>();
+        long location = getLocation(vertNum);
+        if(location == NONE){
+            return vert;
+        }
+        ByteBuffer record = getRecord(location);
+        int start = record.position();
+        int count = record.getInt(start + 4);
+        int valuesStart = start + 8 + 8 * count;
+        for(int i=0; i<count; i++){
+            record.position(valuesStart + record.getInt(start + 8 + 8 * i + 4));
+            vert.put(names.get(record.getInt(start + 8 + 8 * i)), readValue(record));
+        }
+        return vert;
+    }
+
+    private Object readValue(ByteBuffer record){
+        Object value;
+        try {
+            value = BinarySnapshot.readValue(record, null);
+        } catch (IOException e) {
+            throw new StuccoDBException("corrupt off-heap vertex record", e);
+        }
+        StringInterner interner = StringInterner.getDefault();
+        if(value instanceof String){
+            return interner.lookup((String)value);
+        }
+        if(value instanceof Collection){
+            Collection<?> values = (Collection<?>)value;
+            Collection<Object> canonical = (value instanceof Set) ? new HashSet<Object>(values.size() * 2) : new ArrayList<Object>(values.size());
+            for(Object v : values){
+                canonical.add((v instanceof String) ? interner.lookup((String)v) : v);
+            }
+            return canonical;
+        }
+        return value;
+    }
+
+    /**
+     * encode a vertex as a record, and append it
+     * @param vertNum
+     * @param vert
+     */
+    private void append(int vertNum, Map<String, Object> vert){
+        int count = 0;
+        IntArrayList table = new IntArrayList();
+        valueBytes.reset();
+        recordBytes.reset();
+        try {
+            DataOutputStream values = new DataOutputStream(valueBytes);
+            for(Map.Entry<String, Object> entry : vert.entrySet()){
+                if(entry.getValue() == null){
+                    continue;
+                }
+                table.add(getNameNum(entry.getKey()));
+                table.add(values.size());
+                BinarySnapshot.writeValue(values, entry.getKey(), entry.getValue(), null);
+                count++;
+            }
+            DataOutputStream record = new DataOutputStream(recordBytes);
+            record.writeInt(8 + 8 * count + values.size());
+            record.writeInt(count);
+            for(int i=0; i<table.size(); i++){
+                record.writeInt(table.get(i));
+            }
+            valueBytes.writeTo(record);
+        } catch (IOException e) {
+            throw new StuccoDBException("could not encode vertex " + vertNum, e);
+        }
+        appendRecord(vertNum, recordBytes.toByteArray());
+    }
+
+    /**
+     * append an encoded record, in a new segment if it doesn't fit in the last one
+     * @param vertNum
+     * @param bytes
+     */
+    private void appendRecord(int vertNum, byte[] bytes){
+        if(segments.isEmpty() || !ownsSegmentEnd || segmentUsed + bytes.length > segments.get(segments.size() - 1).capacity()){
+            int size = segments.isEmpty() ? MIN_SEGMENT_BYTES : Math.min(MAX_SEGMENT_BYTES, 2 * segments.get(segments.size() - 1).capacity());
+            segments.add(allocate(Math.max(size, bytes.length)));
+            segmentUsed = 0;
+            ownsSegmentEnd = true;
+        }
+        ByteBuffer segment = segments.get(segments.size() - 1).duplicate();
+        segment.position(segmentUsed);
+        segment.put(bytes);
+        if(vertNum >= locations.length){
+            int oldLength = locations.length;
+            locations = Arrays.copyOf(locations, Math.max(vertNum + 1, Math.max(16, oldLength * 2)));
+            Arrays.fill(locations, oldLength, locations.length, NONE);
+            locationsShared = false;
+        }
+        locationsToChange()[vertNum] = ((long)(segments.size() - 1) << 32) | segmentUsed;
+        segmentUsed += bytes.length;
+        liveBytes += bytes.length;
+        totalBytes += bytes.length;
+    }
+
+    /**
+     * @param size
+     * @return a new segment, either a direct buffer or a memory mapped file
+     */
+    private ByteBuffer allocate(int size){
+        if(dir == null){
+            return ByteBuffer.allocateDirect(size);
+        }
+        try {
+            dir.mkdirs();
+            File file = File.createTempFile("vertices", ".seg", dir);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                //the mapping stays valid once the file is closed, and deleted
+                raf.close();
+                if(!file.delete()){
+                    file.deleteOnExit();
+                }
+            }
+        } catch (IOException e) {
+            throw new StuccoDBException("could not map an off-heap segment in " + dir, e);
+        }
+    }
+
+    private int getNameNum(String name){
+        Integer num = nameNums.get(name);
+        if(num == null){
+            num = names.size();
+            names.add(name);
+            nameNums.put(name, num);
+        }
+        return num;
+    }
+
+    /**
+     * copy the records in use into new segments, once most of the space is taken by old records
+     */
+    private void compactIfNeeded(){
+        if(totalBytes - liveBytes > Math.max(liveBytes, MIN_SEGMENT_BYTES)){
+            OffHeapVertexStore compacted = new OffHeapVertexStore(dir);
+            compacted.copyRecords(this);
+            segments.clear();
+            segments.addAll(compacted.segments);
+            segmentUsed = compacted.segmentUsed;
+            ownsSegmentEnd = true;
+            locations = compacted.locations;
+            locationsShared = false;
+            liveBytes = compacted.liveBytes;
+            totalBytes = compacted.totalBytes;
+        }
+    }
+
+    /**
+     * copy the records in use of another store into this (empty) one, which shares its name dictionary
+     * @param store
+     */
+    private void copyRecords(OffHeapVertexStore store){
+        if(store != this){
+            names.addAll(store.names);
+            nameNums.putAll(store.nameNums);
+        }
+        for(int vertNum=0; vertNum<store.locations.length; vertNum++){
+            long location = store.locations[vertNum];
+            if(location != NONE){
+                ByteBuffer record = store.getRecord(location);
+                byte[] bytes = new byte[record.getInt(record.position())];
+                record.get(bytes);
+                appendRecord(vertNum, bytes);
+            }
+        }
+    }
+
+    /**
+     * Read-only map view of one vertex, which reads its properties from its record
+     */
+    private final class VertexView extends AbstractMap<String, Object> {
+        private final int vertNum;
+        private final long stamp;
+
+        VertexView(int vertNum, long stamp){
+            this.vertNum = vertNum;
+            this.stamp = stamp;
+        }
+
+        /** @return true if the vertex is still stored, rather than removed (and its number maybe reused) */
+        private boolean isCurrent(){
+            return getLocation(vertNum) != NONE && stamps[vertNum] == stamp;
+        }
+
+        @Override
+        public Object get(Object key){
+            return (key instanceof String && isCurrent()) ? getProperty(vertNum, (String)key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key){
+            return get(key) != null;
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet(){
+            Map<String, Object> props = isCurrent() ? readAll(vertNum) : new LinkedHashMap<String, Object>();
+            return Collections.unmodifiableMap(props).entrySet();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A hash map split by hash into small HashMap segments, which a copy shares with the original
+ * until one of them changes a segment, so copying a large map (eg. for a snapshot) is cheap.
+ * Only the segment being changed is copied, the first time it changes.
+ * The number of segments doubles as the map grows, so each holds about SEGMENT_ENTRIES entries.
+ *
+ * <p> The values themselves are not copied: a map of mutable values has to copy a value before changing one
+ * which the other map may still be using.
+ *
+ */
+final class SegmentedHashMap<K, V> extends AbstractMap<K, V> {
+
+    /** most entries per segment, on average, before the number of segments is doubled */
+    private static final int SEGMENT_ENTRIES = 128;
+
+    private HashMap<K, V>[] segments;
+
+    /** true for each segment which only this map uses, so can be changed in place */
+    private boolean[] owned;
+
+    /** log2 of the number of segments */
+    private int bits;
+
+    private int size = 0;
+
+    SegmentedHashMap(){
+        allocate(0);
+    }
+
+    private SegmentedHashMap(SegmentedHashMap<K, V> map){
+        segments = map.segments.clone();
+        owned = new boolean[segments.length];
+        map.owned = new boolean[segments.length];
+        bits = map.bits;
+        size = map.size;
+    }
+
+    /**
+     * @return a separate map with the same entries, which shares the segments with this one until either changes them
+     */
+    SegmentedHashMap<K, V> copy(){
+        return new SegmentedHashMap<K, V>(this);
+    }
+
+    @Override
+    public V get(Object key){
+        return segments[segmentOf(key)].get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key){
+        return segments[segmentOf(key)].containsKey(key);
+    }
+
+    @Override
+    public V put(K key, V value){
+        HashMap<K, V> segment = segmentToChange(segmentOf(key));
+        int oldSize = segment.size();
+        V oldValue = segment.put(key, value);
+        size += segment.size() - oldSize;
+        if(size > SEGMENT_ENTRIES << bits){
+            resize(bits + 1);
+        }
+        return oldValue;
+    }
+
+    @Override
+    public V remove(Object key){
+        int i = segmentOf(key);
+        if(!segments[i].containsKey(key)){
+            return null;
+        }
+        size--;
+        return segmentToChange(i).remove(key);
+    }
+
+    @Override
+    public int size(){
+        return size;
+    }
+
+    @Override
+    public void clear(){
+        allocate(0);
+        size = 0;
+    }
+
+    /**
+     * make room for a number of entries, so adding up to that many doesn't split the segments again
+     * @param capacity
+     */
+    void ensureCapacity(int capacity){
+        int newBits = bits;
+        while(capacity > SEGMENT_ENTRIES << newBits){
+            newBits++;
+        }
+        if(newBits > bits){
+            resize(newBits);
+        }
+    }
+
+    /**
+     * the entries can't be changed through the set, nor removed by its iterator
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet(){
+        return new AbstractSet<Map.Entry<K, V>>(){
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator(){
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size(){
+                return size;
+            }
+        };
+    }
+
+    /**
+     * @param original - the map this was copied from
+     * @return number of segments this map has which it no longer shares with the original
+     */
+    int countCopiedSegments(SegmentedHashMap<?, ?> original){
+        int count = 0;
+        for(int i=0; i<segments.length; i++){
+            if(i >= original.segments.length || segments[i] != original.segments[i]){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int segmentOf(Object key){
+        int h = (key == null) ? 0 : key.hashCode();
+        //the segment is picked by the high bits of the mixed hash, since a HashMap picks its buckets by the low bits
+        return (bits == 0) ? 0 : (h * 0x9E3779B9) >>> (32 - bits);
+    }
+
+    /**
+     * @param i
+     * @return the segment, copied first if it is shared with another map
+     */
+    private HashMap<K, V> segmentToChange(int i){
+        if(!owned[i]){
+            segments[i] = new HashMap<K, V>(segments[i]);
+            owned[i] = true;
+        }
+        return segments[i];
+    }
+
+    private void allocate(int newBits){
+        bits = newBits;
+        segments = newSegmentArray(1 << newBits);
+        owned = new boolean[segments.length];
+        for(int i=0; i<segments.length; i++){
+            segments[i] = new HashMap<K, V>();
+            owned[i] = true;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> HashMap<K, V>[] newSegmentArray(int length){
+        return (HashMap<K, V>[])new HashMap<?, ?>[length];
+    }
+
+    private void resize(int newBits){
+        HashMap<K, V>[] oldSegments = segments;
+        allocate(newBits);
+        for(HashMap<K, V> segment : oldSegments){
+            for(Map.Entry<K, V> entry : segment.entrySet()){
+                segments[segmentOf(entry.getKey())].put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+        private int nextSegment = 0;
+        private Iterator<Map.Entry<K, V>> entries = Collections.emptyIterator();
+
+        @Override
+        public boolean hasNext(){
+            while(!entries.hasNext() && nextSegment < segments.length){
+                entries = Collections.unmodifiableMap(segments[nextSegment++]).entrySet().iterator();
+            }
+            return entries.hasNext();
+        }
+
+        @Override
+        public Map.Entry<K, V> next(){
+            if(!hasNext()){
+                throw new NoSuchElementException();
+            }
+            return entries.next();
+        }
+
+        @Override
+        public void remove(){
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.util.List;
+
+/**
+ * One page of the vertex IDs matching a query, and the continuation token to get the next page
+ *
+ */
+public final class VertIDsPage {
+
+    private final List<String> ids;
+
+    private final String continuation;
+
+    VertIDsPage(List<String> ids, String continuation){
+        this.ids = ids;
+        this.continuation = continuation;
+    }
+
+    /**
+     * @return the vertex IDs in this page
+     */
+    public List<String> getIDs(){
+        return ids;
+    }
+
+    /**
+     * @return the token to pass to get the next page, or null if this is the last page
+     */
+    public String getContinuation(){
+        return continuation;
+    }
+}
@@ -0,0 +1,85 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import java.util.Map;
+
+/**
+ * Storage of the vertex property maps, by vertex number
+ *
+ */
+interface VertexStore {
+
+    /**
+     * @param vertNum
+     * @return the property map of the vertex, or null if there is no vertex with that number.
+     * The map only ever shows that vertex: once it is removed, the map does not show a vertex
+     * which is later stored under the same number.
+     */
+    Map<String, Object> get(int vertNum);
+
+    /**
+     * @param vertNum - number of a vertex in the store
+     * @param prop
+     * @return the value of one property of the vertex, or null if it has none
+     */
+    Object getProperty(int vertNum, String prop);
+
+    /**
+     * store a vertex, replacing any other with the same number
+     * @param vertNum
+     * @param vert - property map
+     */
+    void put(int vertNum, Map<String, Object> vert);
+
+    /**
+     * set one property of a vertex in the store
+     * @param vertNum
+     * @param prop
+     * @param value - new value, or null to remove the property
+     * @return the old value, or null if it had none
+     */
+    Object setProperty(int vertNum, String prop, Object value);
+
+    /**
+     * start setting several properties of one vertex, which setProperty() can then make as one change:
+     * a store whose maps never change once returned only copies the vertex's map for the first of them.
+     * The vertex's map may change until endUpdate(), so no other thread may read it before then.
+     * @param vertNum - number of a vertex in the store
+     */
+    void beginUpdate(int vertNum);
+
+    /**
+     * finish setting the properties of a vertex given to beginUpdate()
+     * @param vertNum
+     */
+    void endUpdate(int vertNum);
+
+    /**
+     * @param vertNum
+     */
+    void remove(int vertNum);
+
+    void clear();
+
+    /**
+     * @return true if the maps returned by get() never change afterwards (a changed vertex gets a new map),
+     * so they can be read without holding a lock; false if they are views of the stored properties
+     */
+    boolean isCopyOnWrite();
+
+    /**
+     * @return a separate store with the same vertices, which can be changed without changing this one.
+     * The stores share what they can until either changes it, so copying a large store is cheap.
+     */
+    VertexStore copy();
+
+    /**
+     * @param vertNum - number of a vertex in the store
+     * @return estimated bytes the store uses for the vertex's properties (see MemoryEstimates)
+     */
+    long estimateBytes(int vertNum);
+
+    /**
+     * @return bytes the store keeps off the heap (0 if it keeps everything on the heap)
+     */
+    long getOffHeapBytes();
+}
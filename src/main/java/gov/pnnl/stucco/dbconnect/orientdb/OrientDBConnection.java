@@ -3,6 +3,7 @@ package gov.pnnl.stucco.dbconnect.orientdb;
 import gov.pnnl.stucco.dbconnect.Condition;
 import gov.pnnl.stucco.dbconnect.DBConnectionBase;
 import gov.pnnl.stucco.dbconnect.DBConstraint;
+import gov.pnnl.stucco.dbconnect.ReadOnlyVertex;
 import gov.pnnl.stucco.dbconnect.StuccoDBException;
 
 import java.io.File;
@@ -152,7 +153,7 @@ public class OrientDBConnection extends DBConnectionBase {
             return null;
         }
         Map<String,Object> propertyMap = vertexList.get(0).getProperties();
-        return propertyMap;
+        return ReadOnlyVertex.of(propertyMap);
     }
 
     /*
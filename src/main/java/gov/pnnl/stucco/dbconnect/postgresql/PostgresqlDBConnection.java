@@ -3,6 +3,9 @@ package gov.pnnl.stucco.dbconnect.postgresql;
 import gov.pnnl.stucco.dbconnect.Condition;
 import gov.pnnl.stucco.dbconnect.DBConnectionBase;
 import gov.pnnl.stucco.dbconnect.DBConstraint;
+import gov.pnnl.stucco.dbconnect.JSONGraphLoader;
+import gov.pnnl.stucco.dbconnect.ReadOnlyVertex;
+import gov.pnnl.stucco.dbconnect.StringInterner;
 import gov.pnnl.stucco.dbconnect.StuccoDBException;
  
 import gov.pnnl.stucco.dbconnect.postgresql.PostgresqlDBPreparedStatement;
@@ -233,7 +236,7 @@ public class PostgresqlDBConnection extends DBConnectionBase {
     /**
      * Retrieves the vertex's property map as referenced by the vertex ID
      * @param id as per the DB
-     * @return a property map of the vertex, user must know based on the key how to recast the object type to use its value
+     * @return a read-only property map of the vertex (see ReadOnlyVertex), user must know based on the key how to recast the object type to use its value
      */  
     @Override
     public Map<String, Object> getVertByID(String id) {
@@ -263,7 +266,7 @@ public class PostgresqlDBConnection extends DBConnectionBase {
             //throw new StuccoDBException("failed to get vertex by id");
         }
 
-        return vertex; 
+        return ReadOnlyVertex.of(vertex); 
     };
 
     /**
@@ -735,6 +738,32 @@ public class PostgresqlDBConnection extends DBConnectionBase {
         return vertIDs;
     };
 
+    /**
+     * Identify the vertices of a type whose range, from one property to another (inclusive), contains a value.
+     * The range is matched as an int8range, so it can use a GIST index on the same expression (see tables.json).
+     * The int8range is only made when start <= end, so a range with a missing or reversed bound matches nothing
+     * (as it would with BETWEEN), rather than being unbounded or raising an error.
+     * @param vertexType - type of the range vertices
+     * @param startProp - property holding the start of the range
+     * @param endProp - property holding the end of the range
+     * @param value - value to look up
+     * @return list of vertex IDs
+     */
+    @Override
+    public List<String> getVertIDsByRangeContaining(String vertexType, String startProp, String endProp, long value) {
+        sanityCheck("get vert ids by range", vertexType, "vertexType");
+        sanityCheck("get vert ids by range", startProp, "startProp");
+        sanityCheck("get vert ids by range", endProp, "endProp");
+
+        if (!vertTables.has(vertexType) || !containsAllColumns(vertexType, Arrays.asList(startProp, endProp))) {
+            return new ArrayList<String>();
+        }
+        String query = buildString("SELECT _id AS vertID FROM ", vertexType, " WHERE (CASE WHEN ", startProp, " <= ", endProp,
+                " THEN int8range(", startProp, ", ", endProp, ", '[]') END) @> ", value, "::bigint;");
+
+        return getVertIDs(query);
+    }
+
     private Object getNameConstraint(List<DBConstraint> constraints) {
         Object name = null;
         for (int i = 0; i < constraints.size(); i++) {
@@ -986,48 +1015,21 @@ public class PostgresqlDBConnection extends DBConnectionBase {
     @Override
     public void loadState(String filePath) {
         try {
-            InputStream is = new FileInputStream(filePath);
-            String textContents = IOUtils.toString(is);
-            is.close();
-
-            JSONObject contents = new JSONObject(textContents);
-            JSONObject vertsJSON = contents.getJSONObject("vertices");
-            JSONArray edgesJSON = contents.getJSONArray("edges");
-            //add vertices
-            for(Object id : vertsJSON.keySet()) {
-                JSONObject jsonVert = vertsJSON.getJSONObject(id.toString());
-                String description = jsonVert.optString("description");
-                if (description != null && !description.isEmpty()) {
-                    //This is kind of an odd workaround, to prevent ui from treating, eg, "URI: www.blah.com | Type: URL |" as a URL instead of a string.
-                    //TODO: this is really a problem in the UI, as far as we care it's still just a string either way.
-                    jsonVert.put("description", " " + description);
-                } else {
-                    //ui assumes everything has a description, this is a workaround to avoid having empty text in various places.
-                    jsonVert.put("description", jsonVert.optString("name"));
+            //the vertices are converted in parallel, but added one at a time, since the prepared statements are shared
+            new JSONGraphLoader(this).load(filePath, new JSONGraphLoader.Handler() {
+                @Override
+                public void vertex(String id, Map<String, Object> vert) {
+                    addVertex(vert);
                 }
-                Map<String, Object> vert = jsonVertToMap(jsonVert);
-                addVertex(vert);
-            }
-            //add edges.
-            for (int i = 0; i < edgesJSON.length(); i++) {
-                JSONObject edge = edgesJSON.getJSONObject(i);
-                try {
-                    String inVertID = edge.getString("inVertID");
-                    String outVertID = edge.getString("outVertID");
-                    String relation = edge.getString("relation");
+
+                @Override
+                public void edge(String inVertID, String outVertID, String relation) {
                     int matchingEdgeCount = getEdgeCountByRelation(inVertID, outVertID, relation);
                     if (matchingEdgeCount == 0) {
                         addEdge(inVertID, outVertID, relation); 
                     }
-                } catch (JSONException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                } catch (IllegalArgumentException e) {
-                    // TODO Auto-generated catch block
-                    System.err.println("error when loading edge: " + edge);
-                    e.printStackTrace();
                 }
-            }
+            });
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -1376,6 +1378,7 @@ public class PostgresqlDBConnection extends DBConnectionBase {
      * @return map - map with key = column name and value = column value
      */
     private Map<String, Object> vertResultSetToMap(String tableName, ResultSet rs) throws SQLException {
+        StringInterner interner = StringInterner.getDefault();
         Map<String, Object> map = new HashMap<String, Object>();
         JSONArray order = vertTables.getJSONObject(tableName).getJSONArray("order");
         for (int i = 3; i < order.length(); i++) {
@@ -1386,13 +1389,13 @@ public class PostgresqlDBConnection extends DBConnectionBase {
                 if (array != null) {
                     Set value = new HashSet<Object>(Arrays.asList((Object[]) array.getArray()));
                     if (!value.isEmpty()) {
-                        map.put(columnName, value);
+                        map.put(columnName, interner.internValue(columnName, value));
                     }
                 }
             } else {
                 Object value = rs.getObject(columnName);
                 if (value != null) {
-                    map.put(columnName, value);
+                    map.put(columnName, interner.internValue(columnName, value));
                 }
             }
         }
@@ -1404,12 +1407,13 @@ public class PostgresqlDBConnection extends DBConnectionBase {
      * convert ResultSet from quering Edges table to Map<String, Object>
      */
     private static Map<String, Object> edgesResultSetToMap(ResultSet rs) throws SQLException {
+        StringInterner interner = StringInterner.getDefault();
         Map<String, Object> map = new HashMap<String, Object>();
         map.put("outVertID", rs.getString("outVertID"));
         map.put("inVertID", rs.getString("inVertID"));
-        map.put("relation", rs.getString("relation"));
-        map.put("outVertTable", rs.getString("outVertTable"));
-        map.put("inVertTable", rs.getString("inVertTable"));
+        map.put("relation", interner.internName(rs.getString("relation")));
+        map.put("outVertTable", interner.internName(rs.getString("outVertTable")));
+        map.put("inVertTable", interner.internName(rs.getString("inVertTable")));
 
         return map;
     }
@@ -1459,9 +1463,10 @@ public class PostgresqlDBConnection extends DBConnectionBase {
 
     @Override
     public Map<String, Object> jsonVertToMap(JSONObject v) {
+        StringInterner interner = StringInterner.getDefault();
         Map<String, Object> vert = new HashMap<String, Object>();
         for(Object k : v.keySet()) {
-            String column = k.toString();
+            String column = interner.internName(k.toString());
             Object value = v.get(column);
             switch (Columns.valueOf(column).type) {
                 case ARRAY:
@@ -1471,7 +1476,7 @@ public class PostgresqlDBConnection extends DBConnectionBase {
             //        value = ((Number)value).longValue(); 
             //        break;
             }
-            vert.put(column, (Object) value);
+            vert.put(column, interner.internValue(column, value));
         }
 
         return vert;
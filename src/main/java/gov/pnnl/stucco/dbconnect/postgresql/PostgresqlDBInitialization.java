@@ -144,6 +144,12 @@ public class PostgresqlDBInitialization {
                 String sql = String.format("CREATE INDEX IF NOT EXISTS %s_timestamp_idx ON %s (%s);", tableName, tableName, columnsList);
                 statement.execute(sql);
             }
+            index = indexes.optJSONArray("GIST");
+            if (index != null) {
+                String columnsList = jsonArrayToString(index);
+                String sql = String.format("CREATE INDEX IF NOT EXISTS %s_range_idx ON %s USING gist(%s);", tableName, tableName, columnsList);
+                statement.execute(sql);
+            }
         }
     };
 
@@ -235,7 +241,8 @@ public class PostgresqlDBInitialization {
             } else if (tableName.equals("IP")) {
                 align = buildString(
                 align,
-                    " SELECT _id INTO related_id FROM AddressRange WHERE (vertex->>'ipInt')::bigint BETWEEN startIPInt and endIPInt; ",
+                    // same expression as the GIST index in tables.json; ranges with a missing or reversed bound match nothing, as with BETWEEN
+                    " SELECT _id INTO related_id FROM AddressRange WHERE (CASE WHEN startIPInt <= endIPInt THEN int8range(startIPInt, endIPInt, '[]') END) @> (vertex->>'ipInt')::bigint; ",
                     "IF related_id IS NOT NULL THEN ",
                         "INSERT INTO Edges (outVertID, inVertID, outVertTable, inVertTable, relation) ",
                         "VALUES (vertex_id, related_id, 'IP', 'AddressRange', 'Contained_Within') ",
@@ -0,0 +1,105 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+
+import gov.pnnl.stucco.dbconnect.DBConnectionTestInterface;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit test for the in-memory DBConnection with columnar vertex storage.
+ * Runs all of the InMemoryDBConnectionTest tests, plus some for the columns themselves.
+ */
+public class ColumnarInMemoryDBConnectionTest
+extends InMemoryDBConnectionTest
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ColumnarInMemoryDBConnectionTest( String testName )
+    {
+        super( testName );
+    }
+
+    @Override
+    protected DBConnectionTestInterface newConnection(){
+        return new InMemoryDBConnection(true);
+    }
+
+    /**
+     * Tests that values come back as the same types they were stored as, including mixed types in one column
+     */
+    public void testColumnTypes()
+    {
+        DBConnectionTestInterface conn = newConnection();
+        Set<String> sources = new HashSet<String>();
+        sources.add("CVE");
+
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "first");
+        vert.put("vertexType", "Host");
+        vert.put("count", 5L);
+        vert.put("seen", new Date(1000L));
+        vert.put("source", sources);
+        String id_first = conn.addVertex(vert);
+
+        vert = new HashMap<String, Object>();
+        vert.put("name", "second");
+        vert.put("vertexType", "Host");
+        vert.put("count", 7);
+        vert.put("seen", "yesterday");
+        String id_second = conn.addVertex(vert);
+
+        Map<String, Object> first = conn.getVertByID(id_first);
+        assertEquals(5, first.size());
+        assertEquals(5L, first.get("count"));
+        assertEquals(new Date(1000L), first.get("seen"));
+        assertEquals(sources, first.get("source"));
+        assertEquals("Host", first.get("vertexType"));
+
+        Map<String, Object> second = conn.getVertByID(id_second);
+        assertEquals(4, second.size());
+        assertEquals(Integer.valueOf(7), second.get("count"));
+        assertEquals("yesterday", second.get("seen"));
+        assertFalse(second.containsKey("source"));
+
+        //views are read-only, but show later updates
+        try{
+            second.put("count", 8);
+            fail("expected the vertex view to be read-only");
+        }catch(UnsupportedOperationException e){
+            //expected
+        }
+        Map<String, Object> newProps = new HashMap<String, Object>();
+        newProps.put("count", 8L);
+        conn.updateVertex(id_second, newProps);
+        assertEquals(8L, second.get("count"));
+
+        conn.removeVertByID(id_first);
+        assertNull(conn.getVertByID(id_first));
+        assertEquals(4, conn.getVertByID(id_second).size());
+    }
+
+    /**
+     * Tests a String column with too many distinct values to stay dictionary encoded
+     */
+    public void testManyDistinctStrings()
+    {
+        DBConnectionTestInterface conn = newConnection();
+        Map<String, String> names = new HashMap<String, String>();
+        for(int i=0; i<10000; i++){
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "vert " + i);
+            vert.put("vertexType", "Type" + (i % 3));
+            names.put(conn.addVertex(vert), "vert " + i);
+        }
+        for(Map.Entry<String, String> entry : names.entrySet()){
+            assertEquals(entry.getValue(), conn.getVertByID(entry.getKey()).get("name"));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+import gov.pnnl.stucco.dbconnect.Condition;
+import gov.pnnl.stucco.dbconnect.DBConstraint;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the query and update throughput of ConcurrentInMemoryDBConnection from 1 to 32 threads,
+ * with the same mix of queries and updates as ConcurrentInMemoryDBConnectionTest.testMixedWorkload().
+ * It is not a unit test, since the numbers depend on the machine (mainly its number of cores), so it is run by hand:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; gov.pnnl.stucco.dbconnect.inmemory.ConcurrentInMemoryBenchmark [updatePercent] [opsPerRun]
+ * </pre>
+ *
+ * updatePercent is the percentage of operations which update a vertex (default 10), and opsPerRun
+ * the number of operations split between the threads of each run (default 320000).
+ * Each thread count is run twice, and only the second run is printed, so the JIT has compiled the code by then.
+ */
+public class ConcurrentInMemoryBenchmark {
+
+    private static final int VERT_COUNT = 2000;
+
+    private static final int MAX_THREADS = 32;
+
+    public static void main(String[] args) throws Exception {
+        int updatePercent = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+        int opsPerRun = (args.length > 1) ? Integer.parseInt(args[1]) : 320000;
+
+        ConcurrentInMemoryDBConnection conn = new ConcurrentInMemoryDBConnection();
+        conn.open();
+        conn.buildIndex("config/stucco_orientdb_indexing.json");
+        List<String> ids = new ArrayList<String>();
+        for(int i=0; i<VERT_COUNT; i++){
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "vert " + i);
+            vert.put("vertexType", "Type" + (i % 10));
+            vert.put("ipInt", (long)i);
+            ids.add(conn.addVertex(vert));
+        }
+
+        System.out.println(String.format("ConcurrentInMemoryDBConnection, %d%% updates, %d cores",
+                updatePercent, Runtime.getRuntime().availableProcessors()));
+        for(int threads=1; threads<=MAX_THREADS; threads*=2){
+            run(conn, ids, threads, updatePercent, opsPerRun);
+            long elapsed = run(conn, ids, threads, updatePercent, opsPerRun);
+            System.out.println(String.format("%2d threads, %10.0f ops/sec", threads, opsPerRun / (elapsed / 1e9)));
+        }
+        conn.removeAllVertices();
+        conn.close();
+    }
+
+    /**
+     * @return time the run took, in nanoseconds
+     */
+    private static long run(final ConcurrentInMemoryDBConnection conn, final List<String> ids,
+            int threads, final int updatePercent, int opsPerRun) throws Exception {
+        final int opsPerThread = opsPerRun / threads;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for(int t=0; t<threads; t++){
+            final Random random = new Random(t);
+            tasks.add(new Callable<Object>(){
+                @Override
+                public Object call(){
+                    for(int i=0; i<opsPerThread; i++){
+                        String id = ids.get(random.nextInt(VERT_COUNT));
+                        if(random.nextInt(100) < updatePercent){
+                            Map<String, Object> newProps = new HashMap<String, Object>();
+                            newProps.put("ipInt", (long)random.nextInt(VERT_COUNT));
+                            conn.updateVertex(id, newProps);
+                        }else if(i % 2 == 0){
+                            conn.getVertByID(id);
+                        }else{
+                            List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+                            constraints.add(conn.getConstraint("vertexType", Condition.eq, "Type" + random.nextInt(10)));
+                            constraints.add(conn.getConstraint("ipInt", Condition.lt, (long)random.nextInt(VERT_COUNT)));
+                            conn.getVertCountByConstraints(constraints);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for(Future<Object> result : executor.invokeAll(tasks)){
+            result.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        return elapsed;
+    }
+}
@@ -0,0 +1,493 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+
+import gov.pnnl.stucco.dbconnect.Condition;
+import gov.pnnl.stucco.dbconnect.DBConnectionFactory;
+import gov.pnnl.stucco.dbconnect.DBConnectionTestInterface;
+import gov.pnnl.stucco.dbconnect.DBConstraint;
+import gov.pnnl.stucco.dbconnect.StuccoDBException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import org.json.JSONObject;
+
+/**
+ * Unit test for the thread-safe in-memory DBConnection
+ */
+public class ConcurrentInMemoryDBConnectionTest
+extends TestCase
+{
+    private DBConnectionTestInterface conn;
+
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public ConcurrentInMemoryDBConnectionTest( String testName )
+    {
+        super( testName );
+    }
+
+    public void setUp(){
+        conn = new ConcurrentInMemoryDBConnection();
+        conn.open();
+    }
+
+    public void tearDown(){
+        conn.removeAllVertices();
+        conn.close();
+    }
+
+    /**
+     * Tests that the factory gives the thread-safe connection only when it is configured
+     */
+    public void testFactory() throws IOException
+    {
+        DBConnectionFactory factory = DBConnectionFactory.getFactory(DBConnectionFactory.Type.INMEMORY);
+        assertFalse(factory.getDBConnectionTestInterface() instanceof ConcurrentInMemoryDBConnection);
+
+        File config = File.createTempFile("concurrent", ".yml");
+        config.deleteOnExit();
+        PrintStream out = new PrintStream(config);
+        out.println("database_connection:");
+        out.println("  concurrent : true");
+        out.close();
+        factory.setConfiguration(config.getPath());
+        assertTrue(factory.getDBConnectionTestInterface() instanceof ConcurrentInMemoryDBConnection);
+        assertTrue(factory.getDBConnectionAlignment() instanceof ConcurrentInMemoryDBConnection);
+        assertTrue(factory.getDBConnectionIndexer() instanceof ConcurrentInMemoryDBConnection);
+    }
+
+    /**
+     * Tests that a factory configured with a journal directory only has one connection journaling to it at a time
+     */
+    public void testFactoryJournal() throws Exception
+    {
+        File dir = File.createTempFile("concurrent_journal", "");
+        assertTrue(dir.delete());
+        try{
+            DBConnectionFactory factory = DBConnectionFactory.getFactory(DBConnectionFactory.Type.INMEMORY);
+            File config = File.createTempFile("concurrent", ".yml");
+            config.deleteOnExit();
+            PrintStream out = new PrintStream(config);
+            out.println("database_connection:");
+            out.println("  concurrent : true");
+            out.println("  mbean : testFactoryJournal");
+            out.println("  journal : " + dir.getPath());
+            out.close();
+            factory.setConfiguration(config.getPath());
+
+            DBConnectionTestInterface first = factory.getDBConnectionTestInterface();
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "journaled");
+            String id = first.addVertex(vert);
+            try{
+                factory.getDBConnectionAlignment();
+                fail("expected a second connection to the same journal to be rejected");
+            }catch(StuccoDBException e){
+                //expected
+            }
+            //the rejected connection registered no MBean
+            assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(mbeanName("testFactoryJournal-2")));
+
+            //once the first is closed, the next connection restores its vertex
+            first.close();
+            DBConnectionTestInterface second = factory.getDBConnectionTestInterface();
+            assertEquals("journaled", second.getVertByID(id).get("name"));
+            second.close();
+        }finally{
+            for(File file : dir.listFiles()){
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Tests that each connection from a factory configured with an MBean name registers its own MBean
+     */
+    public void testFactoryMBean() throws Exception
+    {
+        DBConnectionFactory factory = DBConnectionFactory.getFactory(DBConnectionFactory.Type.INMEMORY);
+        File config = File.createTempFile("concurrent", ".yml");
+        config.deleteOnExit();
+        PrintStream out = new PrintStream(config);
+        out.println("database_connection:");
+        out.println("  concurrent : true");
+        out.println("  mbean : testFactoryMBean");
+        out.close();
+        factory.setConfiguration(config.getPath());
+
+        List<DBConnectionTestInterface> conns = new ArrayList<DBConnectionTestInterface>();
+        conns.add(factory.getDBConnectionTestInterface());
+        conns.add((DBConnectionTestInterface)factory.getDBConnectionAlignment());
+        conns.add((DBConnectionTestInterface)factory.getDBConnectionIndexer());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        List<ObjectName> names = Arrays.asList(mbeanName("testFactoryMBean"), mbeanName("testFactoryMBean-2"), mbeanName("testFactoryMBean-3"));
+        for(ObjectName name : names){
+            assertTrue(server.isRegistered(name));
+        }
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "only in the second");
+        conns.get(1).addVertex(vert);
+        assertEquals(0L, server.getAttribute(names.get(0), "VertexCount"));
+        assertEquals(1L, server.getAttribute(names.get(1), "VertexCount"));
+
+        for(DBConnectionTestInterface c : conns){
+            c.close();
+        }
+        for(ObjectName name : names){
+            assertFalse(server.isRegistered(name));
+        }
+    }
+
+    /**
+     * Tests that the MBean reports the same as the connection, until the connection is closed,
+     * and that the factory only registers it on thread-safe connections
+     */
+    public void testMemoryMBean() throws Exception
+    {
+        ConcurrentInMemoryDBConnection graph = (ConcurrentInMemoryDBConnection)conn;
+        for(int i=0; i<106; i++){
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "vert " + i);
+            vert.put("vertexType", "Host");
+            graph.addVertex(vert);
+        }
+        ObjectName name = graph.registerMBean("testMemoryMBean");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(106L, server.getAttribute(name, "VertexCount"));
+        assertEquals(graph.getMemoryReport().getTotalBytes(), server.getAttribute(name, "TotalBytes"));
+        graph.close();
+        assertFalse(server.isRegistered(name));
+
+        DBConnectionFactory factory = DBConnectionFactory.getFactory(DBConnectionFactory.Type.INMEMORY);
+        File config = File.createTempFile("mbean", ".yml");
+        config.deleteOnExit();
+        PrintStream out = new PrintStream(config);
+        out.println("database_connection:");
+        out.println("  mbean : testMemoryMBean");
+        out.close();
+        factory.setConfiguration(config.getPath());
+        try {
+            factory.getDBConnectionTestInterface();
+            fail("expected the factory to need a thread-safe connection for the MBean");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+        assertFalse(server.isRegistered(name));
+    }
+
+    private static ObjectName mbeanName(String name) throws MalformedObjectNameException {
+        return new ObjectName("gov.pnnl.stucco.dbconnect.inmemory:type=InMemoryGraph,name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * Tests many threads adding, updating and querying at once
+     */
+    public void testConcurrentUpdates() throws Exception
+    {
+        final int threads = 8;
+        final int vertsPerThread = 500;
+        conn.buildIndex("config/stucco_orientdb_indexing.json");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for(int t=0; t<threads; t++){
+            final int thread = t;
+            results.add(executor.submit(new Callable<Integer>(){
+                @Override
+                public Integer call(){
+                    String prevID = null;
+                    for(int i=0; i<vertsPerThread; i++){
+                        Map<String, Object> vert = new HashMap<String, Object>();
+                        vert.put("name", "vert " + thread + " " + i);
+                        vert.put("vertexType", "Thread" + thread);
+                        vert.put("ipInt", (long)i);
+                        String id = conn.addVertex(vert);
+                        if(prevID != null){
+                            conn.addEdge(id, prevID, "Next");
+                        }
+                        Map<String, Object> newProps = new HashMap<String, Object>();
+                        newProps.put("ipInt", (long)(i + vertsPerThread));
+                        conn.updateVertex(id, newProps);
+                        prevID = id;
+
+                        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+                        constraints.add(conn.getConstraint("vertexType", Condition.eq, "Thread" + thread));
+                        constraints.add(conn.getConstraint("ipInt", Condition.gte, (long)vertsPerThread));
+                        if(conn.getVertCountByConstraints(constraints) != i + 1){
+                            return i;
+                        }
+                    }
+                    return vertsPerThread;
+                }
+            }));
+        }
+        for(Future<Integer> result : results){
+            assertEquals(vertsPerThread, result.get().intValue());
+        }
+        executor.shutdown();
+
+        assertEquals(threads * vertsPerThread, conn.getVertCount());
+        assertEquals(threads * (vertsPerThread - 1), conn.getEdgeCount());
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("ipInt", Condition.lt, (long)vertsPerThread));
+        assertEquals(0, conn.getVertIDsByConstraints(constraints).size());
+    }
+
+    /**
+     * Tests many threads updating different vertices at once, while snapshots are taken,
+     * leaving every index consistent with the vertices
+     */
+    public void testParallelUpdates() throws Exception
+    {
+        final int threads = 8;
+        final int vertCount = 800;
+        final int rounds = 5;
+        final ConcurrentInMemoryDBConnection concurrentConn = (ConcurrentInMemoryDBConnection)conn;
+        conn.buildIndex("config/stucco_orientdb_indexing.json");
+        final List<String> ids = new ArrayList<String>();
+        for(int i=0; i<vertCount; i++){
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "vert " + i);
+            vert.put("vertexType", "Parallel");
+            vert.put("ipInt", (long)i);
+            ids.add(conn.addVertex(vert));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for(int t=0; t<threads; t++){
+            final int thread = t;
+            results.add(executor.submit(new Runnable(){
+                @Override
+                public void run(){
+                    for(int round=0; round<rounds; round++){
+                        for(int i=thread; i<vertCount; i+=threads){
+                            Map<String, Object> newProps = new HashMap<String, Object>();
+                            newProps.put("name", "renamed " + i + " " + round);
+                            newProps.put("ipInt", (long)(vertCount + i));
+                            newProps.put("aliases", Arrays.asList("alias " + round));
+                            conn.updateVertex(ids.get(i), newProps);
+                        }
+                    }
+                }
+            }));
+        }
+        //the snapshots make some updates copy the shared structures, on their own
+        boolean running = true;
+        while(running){
+            InMemoryDBConnection snapshot = concurrentConn.snapshot();
+            assertEquals(vertCount, snapshot.getVertCount());
+            running = false;
+            for(Future<?> result : results){
+                running |= !result.isDone();
+            }
+        }
+        for(Future<?> result : results){
+            result.get();
+        }
+        executor.shutdown();
+
+        Set<String> aliases = new HashSet<String>();
+        for(int round=0; round<rounds; round++){
+            aliases.add("alias " + round);
+        }
+        for(int i=0; i<vertCount; i++){
+            List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+            constraints.add(conn.getConstraint("name", Condition.eq, "renamed " + i + " " + (rounds - 1)));
+            assertEquals(Arrays.asList(ids.get(i)), conn.getVertIDsByConstraints(constraints));
+            assertEquals(aliases, conn.getVertByID(ids.get(i)).get("aliases"));
+        }
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("name", Condition.eq, "vert 0"));
+        assertEquals(0, conn.getVertCountByConstraints(constraints));
+        constraints.clear();
+        constraints.add(conn.getConstraint("ipInt", Condition.gte, (long)vertCount));
+        assertEquals(vertCount, conn.getVertCountByConstraints(constraints));
+        constraints.clear();
+        constraints.add(conn.getConstraint("ipInt", Condition.lt, (long)vertCount));
+        assertEquals(0, conn.getVertCountByConstraints(constraints));
+    }
+
+    /**
+     * Tests that any number of updates hold the graph lock at once, but never with a query or exclusive change,
+     * and that a waiting query keeps later updates waiting
+     */
+    public void testGraphLock() throws Exception
+    {
+        final GraphLock lock = new GraphLock();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        lock.lock(GraphLock.UPDATE);
+        assertTrue(executor.submit(lockOnce(lock, GraphLock.UPDATE)).get(10, TimeUnit.SECONDS));
+
+        Future<Boolean> query = executor.submit(lockOnce(lock, GraphLock.QUERY));
+        assertWaiting(query);
+        Future<Boolean> update = executor.submit(lockOnce(lock, GraphLock.UPDATE));
+        assertWaiting(update);
+        Future<Boolean> exclusive = executor.submit(lockOnce(lock, GraphLock.EXCLUSIVE));
+        assertWaiting(exclusive);
+
+        //a thread holding the lock keeps its mode when it locks it again
+        lock.lock(GraphLock.QUERY);
+        assertEquals(GraphLock.UPDATE, lock.heldMode());
+        try {
+            lock.lock(GraphLock.EXCLUSIVE);
+            fail("expected an update to be unable to lock the graph exclusively");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        lock.unlock();
+        assertEquals(GraphLock.UPDATE, lock.heldMode());
+        lock.unlock();
+        assertEquals(GraphLock.NONE, lock.heldMode());
+
+        assertTrue(query.get(10, TimeUnit.SECONDS));
+        assertTrue(update.get(10, TimeUnit.SECONDS));
+        assertTrue(exclusive.get(10, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    private static Callable<Boolean> lockOnce(final GraphLock lock, final int mode){
+        return new Callable<Boolean>(){
+            @Override
+            public Boolean call(){
+                lock.lock(mode);
+                boolean held = (lock.heldMode() == mode);
+                lock.unlock();
+                return held;
+            }
+        };
+    }
+
+    private static void assertWaiting(Future<?> future) throws Exception {
+        try {
+            future.get(200, TimeUnit.MILLISECONDS);
+            fail("expected the lock to wait");
+        } catch (TimeoutException e) {
+            //expected
+        }
+    }
+
+    /**
+     * Runs a mix of queries and updates from 1 to 32 threads, checking each result
+     * is consistent with the updates every thread makes
+     */
+    public void testMixedWorkload() throws Exception
+    {
+        final int vertCount = 2000;
+        final int opsPerRun = 32000;
+        conn.buildIndex("config/stucco_orientdb_indexing.json");
+        final List<String> ids = new ArrayList<String>();
+        for(int i=0; i<vertCount; i++){
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "vert " + i);
+            vert.put("vertexType", "Type" + (i % 10));
+            vert.put("ipInt", (long)i);
+            ids.add(conn.addVertex(vert));
+        }
+
+        for(int threads=1; threads<=32; threads*=2){
+            final int opsPerThread = opsPerRun / threads;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+            for(int t=0; t<threads; t++){
+                final Random random = new Random(t);
+                tasks.add(new Callable<Object>(){
+                    @Override
+                    public Object call(){
+                        for(int i=0; i<opsPerThread; i++){
+                            String id = ids.get(random.nextInt(vertCount));
+                            if(i % 10 == 0){
+                                //one update for every nine queries
+                                Map<String, Object> newProps = new HashMap<String, Object>();
+                                newProps.put("ipInt", (long)random.nextInt(vertCount));
+                                conn.updateVertex(id, newProps);
+                            }else if(i % 2 == 0){
+                                long ipInt = (Long)conn.getVertByID(id).get("ipInt");
+                                assertTrue(ipInt >= 0 && ipInt < vertCount);
+                            }else{
+                                List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+                                constraints.add(conn.getConstraint("vertexType", Condition.eq, "Type" + random.nextInt(10)));
+                                constraints.add(conn.getConstraint("ipInt", Condition.lt, (long)vertCount));
+                                //updates only change ipInt, within the bound, so every vertex of the type matches
+                                assertEquals(vertCount / 10, conn.getVertCountByConstraints(constraints));
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            for(Future<Object> result : executor.invokeAll(tasks)){
+                result.get();
+            }
+            executor.shutdown();
+        }
+        assertEquals(vertCount, conn.getVertCount());
+    }
+
+    /**
+     * Tests that queries of a snapshot, which take no locks, never see part of a batch being applied
+     */
+    public void testSnapshotReads() throws Exception
+    {
+        final ConcurrentInMemoryDBConnection concurrentConn = (ConcurrentInMemoryDBConnection)conn;
+        final int batches = 20;
+        final int batchSize = 200;
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> writer = executor.submit(new Runnable(){
+            @Override
+            public void run(){
+                for(int b=0; b<batches; b++){
+                    StringBuilder verts = new StringBuilder();
+                    for(int i=0; i<batchSize; i++){
+                        verts.append(i == 0 ? "" : ",").append("\"v" + b + "_" + i + "\":{\"name\":\"v" + b + "_" + i + "\",\"vertexType\":\"Batch\"}");
+                    }
+                    concurrentConn.bulkLoadGraph(new JSONObject("{\"vertices\":{" + verts + "}}"));
+                }
+            }
+        });
+
+        //each snapshot holds whole batches only, and never changes once taken
+        while(!writer.isDone()){
+            InMemoryDBConnection snapshot = concurrentConn.snapshot();
+            long count = snapshot.getVertCount();
+            assertEquals(0, count % batchSize);
+            List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+            constraints.add(snapshot.getConstraint("vertexType", Condition.eq, "Batch"));
+            assertEquals(count, snapshot.getVertCountByConstraints(constraints));
+            assertEquals(count, snapshot.getVertCount());
+        }
+        writer.get();
+        executor.shutdown();
+        assertEquals(batches * batchSize, concurrentConn.snapshot().getVertCount());
+    }
+}
+
+
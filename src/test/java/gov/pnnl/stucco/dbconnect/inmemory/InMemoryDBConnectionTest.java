@@ -5,18 +5,35 @@ import gov.pnnl.stucco.dbconnect.Condition;
 import gov.pnnl.stucco.dbconnect.DBConnectionFactory;
 import gov.pnnl.stucco.dbconnect.DBConnectionTestInterface;
 import gov.pnnl.stucco.dbconnect.DBConstraint;
-
+import gov.pnnl.stucco.dbconnect.ReadOnlyVertex;
+import gov.pnnl.stucco.dbconnect.StringInterner;
+import gov.pnnl.stucco.dbconnect.StuccoDBException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import junit.framework.TestCase;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
@@ -41,9 +58,17 @@ extends TestCase
         super( testName );
     }
 
+    /**
+     * create the connection to test; subclasses can override this to test other kinds of in-memory connection
+     * @return connection
+     */
+    protected DBConnectionTestInterface newConnection(){
+        return factory.getDBConnectionTestInterface();
+    }
+
     public void setUp(){
         //TODO: add this to other tests below
-        conn = factory.getDBConnectionTestInterface();
+        conn = newConnection();
         conn.open();
         //System.out.println(" Global setUp started");
         //System.out.println(" Global setUp done");
@@ -785,6 +810,1880 @@ extends TestCase
         assertTrue(ids.contains(id_aaa_6));
         assertTrue(ids.contains(id_aaa_7));
     }
+
+    /**
+     * checks neighbor lookups, paging and vertex removal against the per-vertex edge lists
+     */
+    public void testAdjacency()
+    {
+        Map<String, Object> vert;
+
+        vert = new HashMap<String, Object>();
+        vert.put("name", "hub");
+        String id_hub = conn.addVertex(vert);
+
+        List<String> spokeIDs = new ArrayList<String>();
+        for(int i=0; i<10; i++){
+            vert = new HashMap<String, Object>();
+            vert.put("name", "spoke_" + i);
+            String id_spoke = conn.addVertex(vert);
+            spokeIDs.add(id_spoke);
+            conn.addEdge(id_spoke, id_hub, "hasSpoke");
+        }
+        conn.addEdge(id_hub, spokeIDs.get(0), "hasHub");
+        conn.addEdge(id_hub, id_hub, "self");
+        assertEquals(12, conn.getEdgeCount());
+
+        assertEquals(11, conn.getOutEdges(id_hub).size());
+        assertEquals(2, conn.getInEdges(id_hub).size());
+        assertEquals(10, conn.getInVertIDsByRelation(id_hub, "hasSpoke").size());
+        assertEquals(0, conn.getInVertIDsByRelation(id_hub, "hasHub").size());
+        assertEquals(1, conn.getOutVertIDsByRelation(id_hub, "hasHub").size());
+
+        //a self-loop is only reported once
+        List<String> ids = conn.getVertIDsByRelation(id_hub, "self");
+        assertEquals(1, ids.size());
+        assertEquals(id_hub, ids.get(0));
+
+        //pages cover all of the edges, without overlap
+        Set<Map<String, Object>> paged = new HashSet<Map<String, Object>>();
+        for(int offset=0; offset<11; offset+=4){
+            List<Map<String, Object>> page = conn.getOutEdgesPage(id_hub, offset, 4);
+            assertTrue(page.size() <= 4);
+            paged.addAll(page);
+        }
+        assertEquals(11, paged.size());
+        assertEquals(0, conn.getOutEdgesPage(id_hub, 11, 4).size());
+        assertEquals(2, conn.getInEdgesPage(id_hub, 0, 10).size());
+
+        //removing a spoke only drops its own edges
+        conn.removeVertByID(spokeIDs.get(0));
+        assertEquals(10, conn.getEdgeCount());
+        assertEquals(9, conn.getInVertIDsByRelation(id_hub, "hasSpoke").size());
+        assertEquals(0, conn.getOutVertIDsByRelation(id_hub, "hasHub").size());
+        assertEquals(1, conn.getInEdges(id_hub).size());
+
+        //removing the hub drops everything else, including the self-loop
+        conn.removeVertByID(id_hub);
+        assertEquals(0, conn.getEdgeCount());
+        assertEquals(0, conn.getOutEdges(spokeIDs.get(1)).size());
+        assertEquals(0, conn.getVertIDsByRelation(spokeIDs.get(1), "hasSpoke").size());
+    }
+
+    /**
+     * loads a state file containing duplicate edges, and checks the duplicates are dropped
+     */
+    public void testLoadStateDuplicateEdges() throws IOException
+    {
+        String state = "{" +
+                "\"vertices\":{" +
+                    "\"id_a\":{\"name\":\"a\",\"vertexType\":\"IP\"}," +
+                    "\"id_b\":{\"name\":\"b\",\"vertexType\":\"IP\"}" +
+                "}," +
+                "\"edges\":[" +
+                    "{\"inVertID\":\"id_a\",\"outVertID\":\"id_b\",\"relation\":\"r\"}," +
+                    "{\"inVertID\":\"id_a\",\"outVertID\":\"id_b\",\"relation\":\"r\"}," +
+                    "{\"inVertID\":\"id_b\",\"outVertID\":\"id_a\",\"relation\":\"r\"}," +
+                    "{\"inVertID\":\"id_a\",\"outVertID\":\"id_b\",\"relation\":\"q\"}" +
+                "]" +
+                "}";
+        File stateFile = File.createTempFile("inmemory_state", ".json");
+        stateFile.deleteOnExit();
+        PrintStream out = new PrintStream(stateFile);
+        out.print(state);
+        out.close();
+
+        conn.loadState(stateFile.getPath());
+        assertEquals(2, conn.getVertCount());
+        assertEquals(3, conn.getEdgeCount());
+        assertEquals(1, conn.getEdgeCountByRelation("id_a", "id_b", "r"));
+        assertEquals(1, conn.getEdgeCountByRelation("id_b", "id_a", "r"));
+        assertEquals(1, conn.getEdgeCountByRelation("id_a", "id_b", "q"));
+
+        //duplicates added afterwards are counted, and all removed together
+        conn.addEdge("id_a", "id_b", "r");
+        assertEquals(2, conn.getEdgeCountByRelation("id_a", "id_b", "r"));
+        conn.removeEdgeByRelation("id_a", "id_b", "r");
+        assertEquals(0, conn.getEdgeCountByRelation("id_a", "id_b", "r"));
+        assertEquals(1, conn.getEdgeCountByRelation("id_b", "id_a", "r"));
+        assertEquals(2, conn.getEdgeCount());
+    }
+
+    /**
+     * builds the indexes from the index config, and checks that queries on indexed
+     * properties stay correct as vertices are added, updated and removed
+     */
+    public void testBuildIndex()
+    {
+        Map<String, Object> vert;
+        List<DBConstraint> constraints;
+        List<String> ids;
+
+        vert = new HashMap<String, Object>();
+        vert.put("name", "CVE-2016-0001");
+        vert.put("vertexType", "Vulnerability");
+        vert.put("nvdId", "NVD-0001");
+        String id_vuln = conn.addVertex(vert);
+
+        conn.buildIndex("config/stucco_orientdb_indexing.json");
+
+        vert = new HashMap<String, Object>();
+        vert.put("name", "10.10.10.10");
+        vert.put("vertexType", "IP");
+        vert.put("source", new String[] {"Situ"});
+        String id_ip = conn.addVertex(vert);
+
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("vertexType", Condition.eq, "Vulnerability"));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(id_vuln, ids.get(0));
+
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("nvdId", Condition.eq, "NVD-0001"));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(id_vuln, ids.get(0));
+
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("vertexType", Condition.eq, "IP"));
+        constraints.add(conn.getConstraint("name", Condition.eq, "10.10.10.10"));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(id_ip, ids.get(0));
+
+        //updating an indexed property moves the vertex in the index
+        Map<String, Object> newProps = new HashMap<String, Object>();
+        newProps.put("vertexType", "Observable");
+        conn.updateVertex(id_ip, newProps);
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("vertexType", Condition.eq, "IP"));
+        assertEquals(0, conn.getVertIDsByConstraints(constraints).size());
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("vertexType", Condition.eq, "Observable"));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(id_ip, ids.get(0));
+        //the name index is unaffected by updates to other properties
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("name", Condition.eq, "10.10.10.10"));
+        assertEquals(1, conn.getVertIDsByConstraints(constraints).size());
+
+        conn.removeVertByID(id_vuln);
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("vertexType", Condition.eq, "Vulnerability"));
+        assertEquals(0, conn.getVertIDsByConstraints(constraints).size());
+
+        //indexes survive removeAllVertices, but not their contents
+        conn.removeAllVertices();
+        vert = new HashMap<String, Object>();
+        vert.put("name", "CVE-2016-0002");
+        vert.put("vertexType", "Vulnerability");
+        String id_vuln2 = conn.addVertex(vert);
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(id_vuln2, ids.get(0));
+
+        boolean thrown = false;
+        try {
+            conn.buildIndex("config/does_not_exist.json");
+        } catch (StuccoDBException e) {
+            thrown = true;
+        }
+        assertTrue(thrown);
+    }
+
+    /**
+     * Tests range constraints on properties with an ordered index
+     */
+    public void testRangeIndex()
+    {
+        Map<String, Object> vert;
+        List<DBConstraint> constraints;
+        List<String> ids;
+        String[] ipIDs = new String[10];
+
+        for(int i=0; i<10; i++){
+            vert = new HashMap<String, Object>();
+            vert.put("name", "10.10.10." + i);
+            vert.put("vertexType", "IP");
+            vert.put("ipInt", 168430080L + i);
+            ipIDs[i] = conn.addVertex(vert);
+        }
+        //values which can't be ordered are skipped by range constraints, as before
+        vert = new HashMap<String, Object>();
+        vert.put("name", "10.10.10.x");
+        vert.put("vertexType", "IP");
+        vert.put("ipInt", new HashSet<String>(Arrays.asList("unknown")));
+        conn.addVertex(vert);
+
+        conn.buildIndex("config/stucco_orientdb_indexing.json");
+
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("ipInt", Condition.gte, 168430083L));
+        constraints.add(conn.getConstraint("ipInt", Condition.lt, 168430086L));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(new HashSet<String>(Arrays.asList(ipIDs[3], ipIDs[4], ipIDs[5])), new HashSet<String>(ids));
+
+        //bounds of a different numeric type are compared by value
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("ipInt", Condition.gt, 168430087.5));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(new HashSet<String>(Arrays.asList(ipIDs[8], ipIDs[9])), new HashSet<String>(ids));
+
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("ipInt", Condition.lte, 168430080L));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(ipIDs[0], ids.get(0));
+
+        //empty range
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("ipInt", Condition.gt, 168430085L));
+        constraints.add(conn.getConstraint("ipInt", Condition.lt, 168430085L));
+        assertEquals(0, conn.getVertIDsByConstraints(constraints).size());
+
+        //updates and removals are reflected in the ordered index
+        Map<String, Object> newProps = new HashMap<String, Object>();
+        newProps.put("ipInt", 168430100L);
+        conn.updateVertex(ipIDs[4], newProps);
+        conn.removeVertByID(ipIDs[5]);
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("ipInt", Condition.gte, 168430083L));
+        constraints.add(conn.getConstraint("ipInt", Condition.lt, 168430086L));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(ipIDs[3], ids.get(0));
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("ipInt", Condition.gt, 168430099L));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(ipIDs[4], ids.get(0));
+
+        //range and exact constraints together
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("name", Condition.eq, "10.10.10.1"));
+        constraints.add(conn.getConstraint("ipInt", Condition.lt, 168430083L));
+        ids = conn.getVertIDsByConstraints(constraints, 0, 10);
+        assertEquals(1, ids.size());
+        assertEquals(ipIDs[1], ids.get(0));
+    }
+
+    /**
+     * Tests finding the ranges containing a value, with and without an interval index
+     */
+    public void testRangeContaining() throws IOException
+    {
+        InMemoryDBConnection inMemConn = (InMemoryDBConnection)conn;
+        Map<String, Object> vert;
+        List<String> ids;
+
+        vert = new HashMap<String, Object>();
+        vert.put("name", "10.10.10.0 through 10.10.10.255");
+        vert.put("vertexType", "AddressRange");
+        vert.put("startIPInt", 168430080L);
+        vert.put("endIPInt", 168430335L);
+        String id_range1 = conn.addVertex(vert);
+
+        vert = new HashMap<String, Object>();
+        vert.put("name", "10.10.0.0 through 10.10.255.255");
+        vert.put("vertexType", "AddressRange");
+        vert.put("startIPInt", 168427520L);
+        vert.put("endIPInt", 168493055L);
+        String id_range2 = conn.addVertex(vert);
+
+        //same properties, but not a range of the requested type
+        vert = new HashMap<String, Object>();
+        vert.put("name", "10.10.10.10");
+        vert.put("vertexType", "IP");
+        vert.put("startIPInt", 168430090L);
+        vert.put("endIPInt", 168430090L);
+        conn.addVertex(vert);
+
+        //without an interval index, the query scans, and doesn't build one
+        ids = conn.getVertIDsByRangeContaining("AddressRange", "startIPInt", "endIPInt", 168430090L);
+        assertEquals(new HashSet<String>(Arrays.asList(id_range1, id_range2)), new HashSet<String>(ids));
+        assertFalse(inMemConn.hasIntervalIndex("AddressRange", "startIPInt", "endIPInt"));
+
+        //the index config declares the interval index
+        File indexConfig = File.createTempFile("inmemory_indexes", ".json");
+        indexConfig.deleteOnExit();
+        PrintStream out = new PrintStream(indexConfig);
+        out.println("{\"indexes\": [ {\"type\": \"INTERVAL\", \"vertexType\": \"AddressRange\", \"keys\": ["
+                + " {\"name\": \"startIPInt\", \"class\": \"Long\"}, {\"name\": \"endIPInt\", \"class\": \"Long\"} ]} ]}");
+        out.close();
+        conn.buildIndex(indexConfig.getPath());
+        assertTrue(inMemConn.hasIntervalIndex("AddressRange", "startIPInt", "endIPInt"));
+        ids = conn.getVertIDsByRangeContaining("AddressRange", "startIPInt", "endIPInt", 168430090L);
+        assertEquals(new HashSet<String>(Arrays.asList(id_range1, id_range2)), new HashSet<String>(ids));
+
+        //a snapshot shares the index
+        InMemoryDBConnection snapshot = inMemConn.snapshot();
+        assertTrue(snapshot.hasIntervalIndex("AddressRange", "startIPInt", "endIPInt"));
+        assertEquals(new HashSet<String>(ids), new HashSet<String>(snapshot.getVertIDsByRangeContaining("AddressRange", "startIPInt", "endIPInt", 168430090L)));
+
+        //end points are inclusive
+        ids = conn.getVertIDsByRangeContaining("AddressRange", "startIPInt", "endIPInt", 168493055L);
+        assertEquals(1, ids.size());
+        assertEquals(id_range2, ids.get(0));
+        ids = conn.getVertIDsByRangeContaining("AddressRange", "startIPInt", "endIPInt", 168493056L);
+        assertEquals(0, ids.size());
+
+        //ranges added, updated and removed after the index is built
+        vert = new HashMap<String, Object>();
+        vert.put("name", "10.10.10.0 through 10.10.10.127");
+        vert.put("vertexType", "AddressRange");
+        vert.put("startIPInt", 168430080);
+        vert.put("endIPInt", 168430207);
+        String id_range3 = conn.addVertex(vert);
+        ids = conn.getVertIDsByRangeContaining("AddressRange", "startIPInt", "endIPInt", 168430090L);
+        assertEquals(new HashSet<String>(Arrays.asList(id_range1, id_range2, id_range3)), new HashSet<String>(ids));
+
+        Map<String, Object> newProps = new HashMap<String, Object>();
+        newProps.put("startIPInt", 168430100L);
+        conn.updateVertex(id_range1, newProps);
+        conn.removeVertByID(id_range2);
+        ids = conn.getVertIDsByRangeContaining("AddressRange", "startIPInt", "endIPInt", 168430090L);
+        assertEquals(1, ids.size());
+        assertEquals(id_range3, ids.get(0));
+        ids = conn.getVertIDsByRangeContaining("AddressRange", "startIPInt", "endIPInt", 168430300L);
+        assertEquals(1, ids.size());
+        assertEquals(id_range1, ids.get(0));
+
+        //many overlapping ranges
+        conn.removeAllVertices();
+        Set<String> expected = new HashSet<String>();
+        for(int i=0; i<1000; i++){
+            vert = new HashMap<String, Object>();
+            vert.put("name", "range " + i);
+            vert.put("vertexType", "AddressRange");
+            vert.put("startIPInt", (long)i);
+            vert.put("endIPInt", (long)(i + (i % 50)));
+            String id = conn.addVertex(vert);
+            if(i <= 500 && i + (i % 50) >= 500){
+                expected.add(id);
+            }
+        }
+        ids = conn.getVertIDsByRangeContaining("AddressRange", "startIPInt", "endIPInt", 500L);
+        assertEquals(expected, new HashSet<String>(ids));
+    }
+
+    /**
+     * Tests queries which combine several indexed and non-indexed constraints
+     */
+    public void testConstraintPlanner()
+    {
+        Map<String, Object> vert;
+        List<DBConstraint> constraints;
+        List<String> ids;
+
+        conn.buildIndex("config/stucco_orientdb_indexing.json");
+
+        List<String> ipIDs = new ArrayList<String>();
+        for(int i=0; i<100; i++){
+            vert = new HashMap<String, Object>();
+            vert.put("name", "10.10.10." + i);
+            vert.put("vertexType", "IP");
+            vert.put("ipInt", 168430080L + i);
+            vert.put("sourceDocument", (i % 2 == 0) ? "even" : "odd");
+            ipIDs.add(conn.addVertex(vert));
+        }
+        vert = new HashMap<String, Object>();
+        vert.put("name", "10.10.10.0 through 10.10.10.255");
+        vert.put("vertexType", "AddressRange");
+        vert.put("startIPInt", 168430080L);
+        vert.put("endIPInt", 168430335L);
+        String id_range = conn.addVertex(vert);
+        for(int i=0; i<10; i++){
+            conn.addEdge(id_range, ipIDs.get(i), "Contained_Within");
+        }
+
+        //two exact match indexes, which only overlap in one vertex
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("vertexType", Condition.eq, "IP"));
+        constraints.add(conn.getConstraint("name", Condition.eq, "10.10.10.42"));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(ipIDs.get(42), ids.get(0));
+        assertEquals(1, conn.getVertCountByConstraints(constraints));
+
+        //an indexed value that no vertex has
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("vertexType", Condition.eq, "IP"));
+        constraints.add(conn.getConstraint("name", Condition.eq, "10.10.10.200"));
+        assertEquals(0, conn.getVertIDsByConstraints(constraints).size());
+        assertEquals(0, conn.getVertCountByConstraints(constraints));
+
+        //exact match, range and non-indexed constraints together
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("vertexType", Condition.eq, "IP"));
+        constraints.add(conn.getConstraint("ipInt", Condition.gte, 168430090L));
+        constraints.add(conn.getConstraint("ipInt", Condition.lt, 168430100L));
+        constraints.add(conn.getConstraint("sourceDocument", Condition.eq, "odd"));
+        ids = conn.getVertIDsByConstraints(constraints);
+        Set<String> expected = new HashSet<String>();
+        for(int i=11; i<20; i+=2){
+            expected.add(ipIDs.get(i));
+        }
+        assertEquals(expected, new HashSet<String>(ids));
+        assertEquals(5, conn.getVertCountByConstraints(constraints));
+
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("vertexType", Condition.eq, "IP"));
+        assertEquals(100, conn.getVertCountByConstraints(constraints));
+        constraints.add(conn.getConstraint("sourceDocument", Condition.eq, "even"));
+        assertEquals(50, conn.getVertCountByConstraints(constraints));
+
+        //relation and constraints together
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("vertexType", Condition.eq, "IP"));
+        constraints.add(conn.getConstraint("sourceDocument", Condition.eq, "even"));
+        ids = conn.getOutVertIDsByRelation(id_range, "Contained_Within", constraints);
+        expected = new HashSet<String>();
+        for(int i=0; i<10; i+=2){
+            expected.add(ipIDs.get(i));
+        }
+        assertEquals(expected, new HashSet<String>(ids));
+        assertEquals(5, ids.size());
+        ids = conn.getVertIDsByRelation(id_range, "Contained_Within", constraints);
+        assertEquals(expected, new HashSet<String>(ids));
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("vertexType", Condition.eq, "AddressRange"));
+        ids = conn.getInVertIDsByRelation(ipIDs.get(3), "Contained_Within", constraints);
+        assertEquals(1, ids.size());
+        assertEquals(id_range, ids.get(0));
+    }
+
+    /**
+     * Tests constraints on values of mixed types, and repeating the same query
+     */
+    public void testConstraintValueTypes()
+    {
+        Map<String, Object> vert;
+        List<DBConstraint> constraints;
+        List<String> ids;
+
+        vert = new HashMap<String, Object>();
+        vert.put("name", "first");
+        vert.put("count", 5);
+        vert.put("score", 2.5);
+        vert.put("seen", new java.util.Date(1000L));
+        vert.put("description", "first vertex");
+        vert.put("source", new String[] {"Situ", "CVE"});
+        String id_first = conn.addVertex(vert);
+
+        vert = new HashMap<String, Object>();
+        vert.put("name", "second");
+        vert.put("count", 50L);
+        vert.put("score", 7);
+        vert.put("seen", new java.util.Date(5000L));
+        String id_second = conn.addVertex(vert);
+
+        //integer and long values compare by value, in either direction
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("count", Condition.gt, 10));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(id_second, ids.get(0));
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("count", Condition.lte, 5L));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(id_first, ids.get(0));
+
+        //floating point bounds and values
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("score", Condition.gte, 2.5));
+        assertEquals(2, conn.getVertIDsByConstraints(constraints).size());
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("score", Condition.lt, 3));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(id_first, ids.get(0));
+
+        //dates
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("seen", Condition.gt, new java.util.Date(2000L)));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(id_second, ids.get(0));
+
+        //substring of a char, contains, neq and missing values
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("description", Condition.substring, 'v'));
+        constraints.add(conn.getConstraint("source", Condition.contains, "CVE"));
+        constraints.add(conn.getConstraint("name", Condition.neq, "second"));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(id_first, ids.get(0));
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("description", Condition.eq, null));
+        ids = conn.getVertIDsByConstraints(constraints);
+        assertEquals(1, ids.size());
+        assertEquals(id_second, ids.get(0));
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("description", Condition.neq, null));
+        assertEquals(0, conn.getVertIDsByConstraints(constraints).size());
+
+        //the same query again, after the data changes
+        Map<String, Object> newProps = new HashMap<String, Object>();
+        newProps.put("count", 100);
+        conn.updateVertex(id_first, newProps);
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("count", Condition.gt, 10));
+        assertEquals(2, conn.getVertIDsByConstraints(constraints).size());
+        assertEquals(2, conn.getVertCountByConstraints(constraints));
+    }
+
+    /**
+     * Tests that vertices and edges are still found correctly after others are removed and new ones reuse their slots
+     */
+    public void testRemoveAndReuse()
+    {
+        conn.buildIndex("config/stucco_orientdb_indexing.json");
+        List<String> ids = new ArrayList<String>();
+        for(int i=0; i<10; i++){
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "vert " + i);
+            vert.put("vertexType", "Host");
+            ids.add(conn.addVertex(vert));
+        }
+        for(int i=1; i<10; i++){
+            conn.addEdge(ids.get(i), ids.get(0), "Related");
+        }
+        for(int i=1; i<10; i+=2){
+            conn.removeVertByID(ids.get(i));
+        }
+        assertEquals(5, conn.getVertCount());
+        assertEquals(4, conn.getEdgeCount());
+        assertNull(conn.getVertByID(ids.get(1)));
+
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "vert new");
+        vert.put("vertexType", "Host");
+        String id_new = conn.addVertex(vert);
+        assertFalse(ids.contains(id_new));
+        assertEquals("vert new", conn.getVertByID(id_new).get("name"));
+        assertEquals(0, conn.getOutEdges(id_new).size());
+        assertEquals(0, conn.getInEdges(id_new).size());
+        conn.addEdge(id_new, ids.get(0), "Related");
+
+        Set<String> expected = new HashSet<String>();
+        expected.add(id_new);
+        for(int i=2; i<10; i+=2){
+            expected.add(ids.get(i));
+        }
+        assertEquals(expected, new HashSet<String>(conn.getInVertIDsByRelation(ids.get(0), "Related")));
+        for(Map<String, Object> edge : conn.getOutEdges(ids.get(0))){
+            assertTrue(expected.contains(edge.get("inVertID")));
+            assertEquals(ids.get(0), edge.get("outVertID"));
+        }
+
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("vertexType", Condition.eq, "Host"));
+        assertEquals(6, conn.getVertIDsByConstraints(constraints).size());
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("name", Condition.eq, "vert 3"));
+        assertEquals(0, conn.getVertIDsByConstraints(constraints).size());
+        assertEquals(0, conn.getEdgeCountByRelation(ids.get(3), ids.get(0), "Related"));
+        assertEquals(1, conn.getEdgeCountByRelation(id_new, ids.get(0), "Related"));
+    }
+
+    /**
+     * Tests paging through the matches of a query, by offset and by continuation token
+     */
+    public void testConstraintPaging()
+    {
+        InMemoryDBConnection inMemConn = (InMemoryDBConnection)conn;
+        inMemConn.buildIndex("config/stucco_orientdb_indexing.json");
+        for(int i=0; i<100; i++){
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "vert " + i);
+            vert.put("vertexType", (i % 2 == 0) ? "Host" : "IP");
+            vert.put("ipInt", (long)i);
+            vert.put("description", "number " + i);
+            inMemConn.addVertex(vert);
+        }
+        List<List<DBConstraint>> queries = new ArrayList<List<DBConstraint>>();
+        //index only, index with residual, and full scan
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(inMemConn.getConstraint("vertexType", Condition.eq, "Host"));
+        queries.add(constraints);
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(inMemConn.getConstraint("vertexType", Condition.eq, "Host"));
+        constraints.add(inMemConn.getConstraint("description", Condition.substring, "1"));
+        queries.add(constraints);
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(inMemConn.getConstraint("description", Condition.substring, "1"));
+        queries.add(constraints);
+
+        for(List<DBConstraint> query : queries){
+            List<String> all = inMemConn.getVertIDsByConstraints(query);
+
+            List<String> byOffset = new ArrayList<String>();
+            for(int offset=0; offset<all.size() + 7; offset+=7){
+                List<String> page = inMemConn.getVertIDsByConstraints(query, offset, 7);
+                assertTrue(page.size() <= 7);
+                byOffset.addAll(page);
+            }
+            assertEquals(all.size(), byOffset.size());
+            assertEquals(new HashSet<String>(all), new HashSet<String>(byOffset));
+
+            List<String> byToken = new ArrayList<String>();
+            String continuation = null;
+            int pages = 0;
+            do{
+                VertIDsPage page = inMemConn.getVertIDsPageByConstraints(query, continuation, 7);
+                assertTrue(page.getIDs().size() <= 7);
+                byToken.addAll(page.getIDs());
+                continuation = page.getContinuation();
+                pages++;
+            }while(continuation != null);
+            assertEquals(byOffset, byToken);
+            assertTrue(pages <= all.size() / 7 + 2);
+        }
+
+        assertEquals(0, inMemConn.getVertIDsByConstraints(queries.get(0), 50, 10).size());
+        try{
+            inMemConn.getVertIDsPageByConstraints(queries.get(0), "not a token", 10);
+            fail("expected an invalid token to be rejected");
+        }catch(IllegalArgumentException e){
+            //expected
+        }
+    }
+
+    /**
+     * Tests the in and out edge counts of vertices, as edges and vertices are added and removed
+     */
+    public void testEdgeCounts()
+    {
+        InMemoryDBConnection inMemConn = (InMemoryDBConnection)conn;
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "hub");
+        vert.put("vertexType", "Host");
+        String id_hub = inMemConn.addVertex(vert);
+        List<String> ids = new ArrayList<String>();
+        for(int i=0; i<5; i++){
+            vert = new HashMap<String, Object>();
+            vert.put("name", "spoke " + i);
+            vert.put("vertexType", "IP");
+            ids.add(inMemConn.addVertex(vert));
+            inMemConn.addEdge(ids.get(i), id_hub, "Resolves_To");
+            if(i % 2 == 0){
+                inMemConn.addEdge(id_hub, ids.get(i), "Communicates_With");
+            }
+        }
+        inMemConn.addEdge(id_hub, id_hub, "Communicates_With");
+
+        assertEquals(6, inMemConn.getOutEdgeCount(id_hub));
+        assertEquals(4, inMemConn.getInEdgeCount(id_hub));
+        assertEquals(5, inMemConn.getOutEdgeCount(id_hub, "Resolves_To"));
+        assertEquals(1, inMemConn.getOutEdgeCount(id_hub, "Communicates_With"));
+        assertEquals(0, inMemConn.getInEdgeCount(id_hub, "Resolves_To"));
+        assertEquals(1, inMemConn.getInEdgeCount(ids.get(0)));
+        assertEquals(1, inMemConn.getOutEdgeCount(ids.get(0)));
+        assertEquals(1, inMemConn.getInEdgeCount(ids.get(1)));
+        assertEquals(0, inMemConn.getOutEdgeCount(ids.get(1)));
+        assertEquals(5, inMemConn.getEdgeCountByRelation("Resolves_To"));
+        assertEquals(4, inMemConn.getEdgeCountByRelation("Communicates_With"));
+        assertEquals(0, inMemConn.getInEdgeCount("no such vertex"));
+
+        inMemConn.removeEdgeByRelation(ids.get(0), id_hub, "Resolves_To");
+        inMemConn.removeVertByID(ids.get(2));
+        assertEquals(4, inMemConn.getOutEdgeCount(id_hub));
+        assertEquals(3, inMemConn.getInEdgeCount(id_hub));
+        assertEquals(0, inMemConn.getInEdgeCount(ids.get(0)));
+        assertEquals(3, inMemConn.getEdgeCountByRelation("Resolves_To"));
+        assertEquals(3, inMemConn.getEdgeCountByRelation("Communicates_With"));
+
+        inMemConn.removeVertByID(id_hub);
+        assertEquals(0, inMemConn.getEdgeCount());
+        assertEquals(0, inMemConn.getOutEdgeCount(ids.get(0)));
+        assertEquals(0, inMemConn.getEdgeCountByRelation("Resolves_To"));
+        vert = new HashMap<String, Object>();
+        vert.put("name", "new");
+        String id_new = inMemConn.addVertex(vert);
+        assertEquals(0, inMemConn.getInEdgeCount(id_new));
+        assertEquals(0, inMemConn.getOutEdgeCount(id_new));
+
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(inMemConn.getConstraint("vertexType", Condition.eq, "IP"));
+        assertEquals(4, inMemConn.getVertCountByConstraints(constraints));
+        constraints.add(inMemConn.getConstraint("name", Condition.neq, "spoke 1"));
+        assertEquals(3, inMemConn.getVertCountByConstraints(constraints));
+    }
+
+    /**
+     * Tests saving the graph and loading it again, as a binary snapshot and as JSON
+     */
+    public void testSaveAndLoad() throws IOException
+    {
+        InMemoryDBConnection inMemConn = (InMemoryDBConnection)conn;
+        Set<String> sources = new HashSet<String>(Arrays.asList("CVE", "Situ"));
+        List<String> ids = new ArrayList<String>();
+        for(int i=0; i<10000; i++){
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "vert " + i);
+            vert.put("vertexType", (i % 2 == 0) ? "Host" : "IP");
+            vert.put("ipInt", (long)i);
+            vert.put("count", i);
+            vert.put("score", i / 4.0);
+            vert.put("seen", new java.util.Date(1000L * i));
+            vert.put("source", sources);
+            vert.put("description", "vertex \u00e9 " + i);
+            ids.add(inMemConn.addVertex(vert));
+            if(i > 0){
+                inMemConn.addEdge(ids.get(i), ids.get(i - 1), "Next");
+            }
+        }
+        inMemConn.addEdge(ids.get(0), ids.get(0), "Self");
+        inMemConn.addEdge(ids.get(0), ids.get(0), "Self");
+        inMemConn.removeVertByID(ids.get(5000));
+
+        File snapshotFile = File.createTempFile("inmemory_state", ".snapshot");
+        snapshotFile.deleteOnExit();
+        inMemConn.saveSnapshot(snapshotFile.getPath());
+
+        InMemoryDBConnection loaded = new InMemoryDBConnection();
+        loaded.loadSnapshot(snapshotFile.getPath());
+        assertEquals(inMemConn.getVertCount(), loaded.getVertCount());
+        assertEquals(inMemConn.getEdgeCount(), loaded.getEdgeCount());
+        for(int i=0; i<10000; i+=7){
+            assertEquals(inMemConn.getVertByID(ids.get(i)), loaded.getVertByID(ids.get(i)));
+            assertEquals(inMemConn.getInVertIDsByRelation(ids.get(i), "Next"), loaded.getInVertIDsByRelation(ids.get(i), "Next"));
+        }
+        assertNull(loaded.getVertByID(ids.get(5000)));
+        assertEquals(2, loaded.getEdgeCountByRelation(ids.get(0), ids.get(0), "Self"));
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(loaded.getConstraint("name", Condition.eq, "vert 42"));
+        assertEquals(Arrays.asList(ids.get(42)), loaded.getVertIDsByConstraints(constraints));
+
+        //loading the same snapshot again doesn't duplicate anything
+        loaded.loadSnapshot(snapshotFile.getPath());
+        assertEquals(inMemConn.getVertCount(), loaded.getVertCount());
+        assertEquals(inMemConn.getEdgeCount(), loaded.getEdgeCount());
+        assertEquals(2, loaded.getEdgeCountByRelation(ids.get(0), ids.get(0), "Self"));
+        assertEquals(1, loaded.getEdgeCountByRelation(ids.get(1), ids.get(0), "Next"));
+        assertEquals(Arrays.asList(ids.get(42)), loaded.getVertIDsByConstraints(constraints));
+
+        //loadState recognizes snapshots too
+        InMemoryDBConnection loadedState = new InMemoryDBConnection();
+        loadedState.loadState(snapshotFile.getPath());
+        assertEquals(inMemConn.getVertCount(), loadedState.getVertCount());
+
+        //JSON keeps the vertices, with their IDs
+        File stateFile = File.createTempFile("inmemory_state", ".json");
+        stateFile.deleteOnExit();
+        inMemConn.saveState(stateFile.getPath());
+        loadedState = new InMemoryDBConnection();
+        loadedState.loadState(stateFile.getPath());
+        assertEquals(inMemConn.getVertCount(), loadedState.getVertCount());
+        assertEquals(inMemConn.getEdgeCount() - 1, loadedState.getEdgeCount());
+        assertEquals("vert 42", loadedState.getVertByID(ids.get(42)).get("name"));
+
+        //anything else is rejected
+        try{
+            loaded.loadSnapshot(stateFile.getPath());
+            fail("expected a JSON file to be rejected as a snapshot");
+        }catch(StuccoDBException e){
+            //expected
+        }
+    }
+
+    /**
+     * journals changes, then checks they are replayed into a new connection, before and after compaction
+     */
+    public void testJournal() throws IOException
+    {
+        File dir = File.createTempFile("inmemory_journal", "");
+        assertTrue(dir.delete());
+        try{
+            InMemoryDBConnection journaled = (InMemoryDBConnection)newConnection();
+            //force every change, so each is on disk as soon as it is made
+            journaled.openJournal(dir.getPath(), 0, 0);
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "a");
+            vert.put("vertexType", "IP");
+            vert.put("source", new HashSet<String>(Arrays.asList("aaaa")));
+            String id_a = journaled.addVertex(vert);
+            vert = new HashMap<String, Object>();
+            vert.put("name", "b");
+            vert.put("vertexType", "IP");
+            vert.put("score", 1.5);
+            String id_b = journaled.addVertex(vert);
+            vert = new HashMap<String, Object>();
+            vert.put("name", "c");
+            vert.put("vertexType", "IP");
+            String id_c = journaled.addVertex(vert);
+            journaled.addEdge(id_a, id_b, "r");
+            journaled.addEdge(id_a, id_b, "r");
+            journaled.addEdge(id_b, id_a, "q");
+            journaled.addEdge(id_c, id_a, "r");
+            Map<String, Object> update = new HashMap<String, Object>();
+            update.put("source", new HashSet<String>(Arrays.asList("bbbb")));
+            journaled.updateVertex(id_a, update);
+            update = new HashMap<String, Object>();
+            update.put("score", 2.5);
+            journaled.updateVertex(id_b, update);
+            journaled.removeEdgeByRelation(id_a, id_b, "r");
+            journaled.removeVertByID(id_c);
+
+            //no other connection can open the directory until the journal is closed
+            InMemoryDBConnection restored = (InMemoryDBConnection)newConnection();
+            try{
+                restored.openJournal(dir.getPath());
+                fail("expected the journal directory to be locked");
+            }catch(StuccoDBException e){
+                //expected
+            }
+            assertEquals(0, restored.getVertCount());
+            journaled.closeJournal();
+
+            restored.openJournal(dir.getPath());
+            assertEquals(2, restored.getVertCount());
+            assertEquals(1, restored.getEdgeCount());
+            assertEquals(1, restored.getEdgeCountByRelation(id_b, id_a, "q"));
+            assertEquals(new HashSet<String>(Arrays.asList("aaaa", "bbbb")), restored.getVertByID(id_a).get("source"));
+            assertEquals(2.5, restored.getVertByID(id_b).get("score"));
+            assertNull(restored.getVertByID(id_c));
+            List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+            constraints.add(restored.getConstraint("name", Condition.eq, "b"));
+            assertEquals(Arrays.asList(id_b), restored.getVertIDsByConstraints(constraints));
+
+            //compaction leaves one snapshot, and the segment written since (besides the lock file)
+            restored.compactJournal();
+            vert = new HashMap<String, Object>();
+            vert.put("name", "d");
+            vert.put("vertexType", "IP");
+            String id_d = restored.addVertex(vert);
+            restored.addEdge(id_d, id_a, "r");
+            restored.close();
+            List<String> files = new ArrayList<String>(Arrays.asList(dir.list()));
+            assertTrue(files.remove("lock"));
+            assertEquals(2, files.size());
+            assertTrue(files.get(0).startsWith("snapshot.") || files.get(1).startsWith("snapshot."));
+
+            //a record which was only partly written is dropped
+            for(File file : dir.listFiles()){
+                if(file.getName().startsWith("journal.")){
+                    PrintStream out = new PrintStream(new FileOutputStream(file, true));
+                    out.print("\0\0\0\u0040torn");
+                    out.close();
+                }
+            }
+            restored = (InMemoryDBConnection)newConnection();
+            restored.openJournal(dir.getPath());
+            assertEquals(3, restored.getVertCount());
+            assertEquals(2, restored.getEdgeCount());
+            assertEquals("d", restored.getVertByID(id_d).get("name"));
+            assertEquals(1, restored.getEdgeCountByRelation(id_d, id_a, "r"));
+            restored.removeAllVertices();
+            restored.close();
+
+            restored = (InMemoryDBConnection)newConnection();
+            restored.openJournal(dir.getPath());
+            assertEquals(0, restored.getVertCount());
+            try{
+                restored.openJournal(dir.getPath());
+                fail("expected a second journal to be rejected");
+            }catch(StuccoDBException e){
+                //expected
+            }
+            restored.close();
+        }finally{
+            for(File file : dir.listFiles()){
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Tests that once the journal fails to force its records to disk, it rejects every later change,
+     * rather than keep accepting changes which are never forced
+     */
+    public void testJournalSyncFailure() throws Exception
+    {
+        File dir = File.createTempFile("inmemory_journal", "");
+        assertTrue(dir.delete());
+        final List<FailingChannel> channels = new ArrayList<FailingChannel>();
+        Journal.SegmentOpener opener = new Journal.SegmentOpener(){
+            @Override
+            public FileChannel open(File segment) throws IOException {
+                FailingChannel channel = new FailingChannel(FileChannel.open(segment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE));
+                channels.add(channel);
+                return channel;
+            }
+        };
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "a");
+        Journal journal = new Journal(dir, 5, 0, null, opener);
+        try{
+            journal.start();
+            journal.addVertex("id_a", vert);
+            journal.sync();
+
+            //the sync thread fails, and the next change is rejected
+            channels.get(0).failing = true;
+            long deadline = System.currentTimeMillis() + 10000;
+            boolean rejected = false;
+            while(!rejected && System.currentTimeMillis() < deadline){
+                try{
+                    journal.addVertex("id_b", vert);
+                    Thread.sleep(5);
+                }catch(IOException e){
+                    rejected = true;
+                }
+            }
+            assertTrue(rejected);
+
+            //and so is every change after it, even once the disk works again
+            channels.get(0).failing = false;
+            for(int i=0; i<3; i++){
+                try{
+                    journal.setProperty("id_a", "name", "b");
+                    fail("expected the journal to keep rejecting changes");
+                }catch(IOException e){
+                    //expected
+                }
+            }
+            try{
+                journal.sync();
+                fail("expected the journal to keep failing to sync");
+            }catch(IOException e){
+                //expected
+            }
+        }finally{
+            try{
+                journal.close();
+                fail("expected closing the journal to report the failure");
+            }catch(IOException e){
+                //expected
+            }
+            for(File file : dir.listFiles()){
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * A file channel which can be made to fail to force its writes to disk
+     */
+    private static final class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        volatile boolean failing = false;
+
+        FailingChannel(FileChannel channel){
+            this.channel = channel;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            if(failing){
+                throw new IOException("injected failure to force");
+            }
+            channel.force(metaData);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * loads a state file with the edges before the vertices, many vertices, and escaped text
+     */
+    public void testLoadStateStreaming() throws IOException
+    {
+        StringBuilder state = new StringBuilder();
+        state.append("{\"edges\" : [");
+        for(int i=1; i<1000; i++){
+            if(i > 1)
+                state.append(",\n");
+            state.append("{\"inVertID\":\"id_" + (i - 1) + "\",\"outVertID\":\"id_" + i + "\",\"relation\":\"Next\"}");
+        }
+        state.append(",{\"inVertID\":\"id_\\\"q\\\"\",\"outVertID\":\"id_0\",\"relation\":\"Quoted\"}");
+        state.append("], \"other\" : {\"nested\" : [1, {\"a\" : \"}]\"}]}, \"vertices\" : {");
+        for(int i=0; i<1000; i++){
+            state.append("\"id_" + i + "\" : {\"name\":\"vert " + i + "\",\"vertexType\":\"IP\",\"count\":" + i +
+                    ",\"source\":[\"s" + (i % 3) + "\"]},\n");
+        }
+        state.append("\"id_\\\"q\\\"\" : {\"name\":\"tab\\tand \\u00e9\",\"vertexType\":\"IP\",\"description\":\"x\"}");
+        state.append("}}");
+        File stateFile = File.createTempFile("inmemory_state", ".json");
+        stateFile.deleteOnExit();
+        PrintStream out = new PrintStream(stateFile, "UTF-8");
+        out.print(state);
+        out.close();
+
+        conn.loadState(stateFile.getPath());
+        assertEquals(1001, conn.getVertCount());
+        assertEquals(1000, conn.getEdgeCount());
+        Map<String, Object> vert = conn.getVertByID("id_42");
+        assertEquals("vert 42", vert.get("name"));
+        assertEquals(42, vert.get("count"));
+        assertEquals(Arrays.asList("s0"), vert.get("source"));
+        assertEquals("vert 42", vert.get("description"));
+        assertEquals(Arrays.asList("id_42"), conn.getInVertIDsByRelation("id_43", "Next"));
+        vert = conn.getVertByID("id_\"q\"");
+        assertEquals("tab\tand \u00e9", vert.get("name"));
+        assertEquals(" x", vert.get("description"));
+        assertEquals(1, conn.getEdgeCountByRelation("id_\"q\"", "id_0", "Quoted"));
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("name", Condition.eq, "vert 999"));
+        assertEquals(Arrays.asList("id_999"), conn.getVertIDsByConstraints(constraints));
+
+        //the vertices are added in the order of the file, so are listed in that order
+        List<String> expectedOrder = new ArrayList<String>();
+        for(int i=0; i<1000; i++){
+            expectedOrder.add("id_" + i);
+        }
+        expectedOrder.add("id_\"q\"");
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("vertexType", Condition.eq, "IP"));
+        assertEquals(expectedOrder, conn.getVertIDsByConstraints(constraints));
+
+        //loading it again adds nothing new
+        conn.loadState(stateFile.getPath());
+        assertEquals(1001, conn.getVertCount());
+        assertEquals(1000, conn.getEdgeCount());
+
+        //malformed files are rejected
+        out = new PrintStream(stateFile, "UTF-8");
+        out.print("{\"vertices\" : {\"id_a\" : {\"name\":\"a\"}");
+        out.close();
+        try{
+            conn.loadState(stateFile.getPath());
+            fail("expected a truncated file to be rejected");
+        }catch(JSONException e){
+            //expected
+        }
+    }
+
+    /**
+     * bulk loads a graph into indexed storage, and checks the vertices, edges and indexes
+     */
+    public void testBulkLoadGraph()
+    {
+        conn.buildIndex("config/stucco_orientdb_indexing.json");
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "old name");
+        vert.put("vertexType", "IP");
+        String id_old = conn.addVertex(vert);
+
+        JSONObject vertsJSON = new JSONObject();
+        for(int i=0; i<5000; i++){
+            JSONObject jsonVert = new JSONObject();
+            jsonVert.put("name", "10.0." + (i / 256) + "." + (i % 256));
+            jsonVert.put("vertexType", "IP");
+            jsonVert.put("ipInt", 167772160L + i);
+            jsonVert.put("source", Arrays.asList("bulk"));
+            vertsJSON.put("ip_" + i, jsonVert);
+        }
+        JSONObject replacement = new JSONObject();
+        replacement.put("name", "new name");
+        replacement.put("vertexType", "IP");
+        vertsJSON.put(id_old, replacement);
+        List<Map<String, Object>> edges = new ArrayList<Map<String, Object>>();
+        for(int i=1; i<5000; i++){
+            Map<String, Object> edge = new HashMap<String, Object>();
+            edge.put("outVertID", "ip_" + i);
+            edge.put("inVertID", "ip_" + (i - 1));
+            edge.put("relation", "Next");
+            edges.add(edge);
+        }
+        edges.add(edges.get(0));
+        Map<String, Object> badEdge = new HashMap<String, Object>();
+        badEdge.put("outVertID", "ip_0");
+        badEdge.put("inVertID", "missing");
+        badEdge.put("relation", "Next");
+        edges.add(badEdge);
+        JSONObject graph = new JSONObject();
+        graph.put("vertices", vertsJSON);
+        graph.put("edges", edges);
+
+        //a malformed edge fails the whole load, before anything is added
+        try {
+            conn.bulkLoadGraph(graph);
+            fail("expected the malformed edge to be reported");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("missing"));
+        }
+        assertEquals(1, conn.getVertCount());
+        assertEquals(0, conn.getEdgeCount());
+        assertEquals("old name", conn.getVertByID(id_old).get("name"));
+
+        edges.remove(badEdge);
+        graph.put("edges", edges);
+        conn.bulkLoadGraph(graph);
+        assertEquals(5001, conn.getVertCount());
+        assertEquals(4999, conn.getEdgeCount());
+        assertEquals(Arrays.asList("ip_41"), conn.getInVertIDsByRelation("ip_42", "Next"));
+        assertEquals(new HashSet<String>(Arrays.asList("bulk")), conn.getVertByID("ip_7").get("source"));
+        assertEquals("new name", conn.getVertByID(id_old).get("name"));
+
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("name", Condition.eq, "10.0.3.4"));
+        assertEquals(Arrays.asList("ip_772"), conn.getVertIDsByConstraints(constraints));
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("name", Condition.eq, "old name"));
+        assertEquals(0, conn.getVertIDsByConstraints(constraints).size());
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("name", Condition.eq, "new name"));
+        assertEquals(Arrays.asList(id_old), conn.getVertIDsByConstraints(constraints));
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("ipInt", Condition.gte, 167772160L + 4990));
+        assertEquals(10, conn.getVertCountByConstraints(constraints));
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("vertexType", Condition.eq, "IP"));
+        assertEquals(5001, conn.getVertCountByConstraints(constraints));
+
+        //indexes are still kept up to date afterwards
+        conn.removeVertByID("ip_4999");
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("ipInt", Condition.gte, 167772160L + 4990));
+        assertEquals(9, conn.getVertCountByConstraints(constraints));
+    }
+
+    /**
+     * removes a batch of spokes from a hub, and checks the remaining edges keep their order
+     */
+    public void testRemoveVerts()
+    {
+        InMemoryDBConnection inMemConn = (InMemoryDBConnection)conn;
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "hub");
+        vert.put("vertexType", "IP");
+        String id_hub = inMemConn.addVertex(vert);
+        List<String> spokeIDs = new ArrayList<String>();
+        for(int i=0; i<2000; i++){
+            vert = new HashMap<String, Object>();
+            vert.put("name", "spoke " + i);
+            vert.put("vertexType", "IP");
+            String id_spoke = inMemConn.addVertex(vert);
+            spokeIDs.add(id_spoke);
+            inMemConn.addEdge(id_spoke, id_hub, "hasSpoke");
+            inMemConn.addEdge(id_hub, id_spoke, "hasHub");
+            if(i > 0){
+                inMemConn.addEdge(id_spoke, spokeIDs.get(i - 1), "next");
+            }
+        }
+        inMemConn.addEdge(id_hub, id_hub, "self");
+
+        //every even spoke, plus some which aren't there
+        List<String> removed = new ArrayList<String>();
+        for(int i=0; i<2000; i+=2){
+            removed.add(spokeIDs.get(i));
+        }
+        removed.add(spokeIDs.get(0));
+        removed.add("missing");
+        inMemConn.removeVerts(removed);
+
+        assertEquals(1001, inMemConn.getVertCount());
+        assertEquals(1000 + 1000 + 1, inMemConn.getEdgeCount());
+        List<String> expected = new ArrayList<String>();
+        for(int i=1; i<2000; i+=2){
+            expected.add(spokeIDs.get(i));
+        }
+        assertEquals(expected, inMemConn.getInVertIDsByRelation(id_hub, "hasSpoke"));
+        assertEquals(expected, inMemConn.getOutVertIDsByRelation(id_hub, "hasHub"));
+        assertEquals(1000, inMemConn.getOutEdgeCount(id_hub, "hasSpoke"));
+        assertEquals(1001, inMemConn.getInEdgeCount(id_hub));
+        assertEquals(0, inMemConn.getEdgeCountByRelation("next"));
+        assertEquals(0, inMemConn.getVertIDsByRelation(spokeIDs.get(1), "next").size());
+        assertNull(inMemConn.getVertByID(spokeIDs.get(0)));
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(inMemConn.getConstraint("name", Condition.eq, "spoke 4"));
+        assertEquals(0, inMemConn.getVertIDsByConstraints(constraints).size());
+
+        //removing the hub leaves only the odd spokes, with no edges
+        inMemConn.removeVerts(Arrays.asList(id_hub));
+        assertEquals(1000, inMemConn.getVertCount());
+        assertEquals(0, inMemConn.getEdgeCount());
+        assertEquals(0, inMemConn.getOutEdges(spokeIDs.get(1)).size());
+
+        //freed numbers are reused cleanly
+        vert = new HashMap<String, Object>();
+        vert.put("name", "new");
+        vert.put("vertexType", "IP");
+        String id_new = inMemConn.addVertex(vert);
+        inMemConn.addEdge(id_new, spokeIDs.get(1), "r");
+        assertEquals(1, inMemConn.getOutEdgeCount(spokeIDs.get(1)));
+        assertEquals(1, inMemConn.getInEdgeCount(id_new));
+    }
+
+    /**
+     * checks that repeated property strings are shared between vertices, and the interner's limits
+     */
+    public void testInterning()
+    {
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "a");
+        vert.put("vertexType", new String("Software"));
+        vert.put("source", new HashSet<String>(Arrays.asList(new String("NVD"))));
+        String id_a = conn.addVertex(vert);
+        vert = new HashMap<String, Object>();
+        vert.put("name", "b");
+        vert.put("vertexType", new String("Software"));
+        vert.put("source", new HashSet<String>(Arrays.asList(new String("NVD"))));
+        String id_b = conn.addVertex(vert);
+        assertSame(conn.getVertByID(id_a).get("vertexType"), conn.getVertByID(id_b).get("vertexType"));
+        Object source_a = ((Set<?>)conn.getVertByID(id_a).get("source")).iterator().next();
+        Object source_b = ((Set<?>)conn.getVertByID(id_b).get("source")).iterator().next();
+        assertSame(source_a, source_b);
+
+        StringInterner interner = new StringInterner(4, 2, 8);
+        String first = interner.intern("vertexType", new String("IP"));
+        assertSame(first, interner.intern("vertexType", new String("IP")));
+        assertEquals(1, interner.getHits());
+        assertTrue(interner.getSavedBytes() > 0);
+        //a property with too many distinct values is no longer interned
+        interner.intern("name", "n1");
+        interner.intern("name", "n2");
+        assertTrue(interner.isHighCardinality("name"));
+        String n3 = new String("n3");
+        assertSame(n3, interner.intern("name", n3));
+        assertSame(n3, interner.intern("name", n3));
+        //long strings aren't interned
+        String longValue = new String("0123456789");
+        assertSame(longValue, interner.intern("vertexType", longValue));
+        //nor is anything once the table is full
+        interner.internName("relation");
+        assertEquals(4, interner.size());
+        String other = new String("other");
+        assertSame(other, interner.internName(other));
+        assertEquals(4, interner.size());
+    }
+
+    /**
+     * Tests that a snapshot keeps the graph as it was, while the graph changes
+     */
+    public void testSnapshot()
+    {
+        InMemoryDBConnection inMemConn = (InMemoryDBConnection)conn;
+        inMemConn.buildIndex("config/stucco_orientdb_indexing.json");
+        List<String> ids = new ArrayList<String>();
+        for(int i=0; i<10; i++){
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "vert " + i);
+            vert.put("vertexType", "IP");
+            vert.put("ipInt", (long)i);
+            ids.add(inMemConn.addVertex(vert));
+            if(i > 0){
+                inMemConn.addEdge(ids.get(i), ids.get(i - 1), "next");
+            }
+        }
+
+        InMemoryDBConnection snapshot = inMemConn.snapshot();
+        assertTrue(snapshot.isSnapshot());
+        assertFalse(inMemConn.isSnapshot());
+        assertSame(snapshot, snapshot.snapshot());
+
+        //change the graph in every way
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "vert new");
+        vert.put("vertexType", "IP");
+        vert.put("ipInt", 100L);
+        String id_new = inMemConn.addVertex(vert);
+        inMemConn.addEdge(id_new, ids.get(9), "next");
+        Map<String, Object> newProps = new HashMap<String, Object>();
+        newProps.put("ipInt", 50L);
+        newProps.put("name", "vert renamed");
+        inMemConn.updateVertex(ids.get(0), newProps);
+        inMemConn.removeVertByID(ids.get(5));
+        inMemConn.removeEdgeByRelation(ids.get(2), ids.get(1), "next");
+
+        assertEquals(10, inMemConn.getVertCount());
+        assertEquals(7, inMemConn.getEdgeCount());
+        assertEquals("vert renamed", inMemConn.getVertByID(ids.get(0)).get("name"));
+
+        //the snapshot is unchanged
+        assertEquals(10, snapshot.getVertCount());
+        assertEquals(9, snapshot.getEdgeCount());
+        assertNull(snapshot.getVertByID(id_new));
+        assertEquals("vert 0", snapshot.getVertByID(ids.get(0)).get("name"));
+        assertEquals(0L, snapshot.getVertByID(ids.get(0)).get("ipInt"));
+        assertNotNull(snapshot.getVertByID(ids.get(5)));
+        assertEquals(Arrays.asList(ids.get(4)), snapshot.getOutVertIDsByRelation(ids.get(5), "next"));
+        assertEquals(1, snapshot.getEdgeCountByRelation(ids.get(2), ids.get(1), "next"));
+        assertEquals(0, snapshot.getOutEdgeCount(ids.get(9)));
+        assertEquals(1, inMemConn.getOutEdgeCount(ids.get(9)));
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(snapshot.getConstraint("name", Condition.eq, "vert 0"));
+        assertEquals(Arrays.asList(ids.get(0)), snapshot.getVertIDsByConstraints(constraints));
+        constraints = new LinkedList<DBConstraint>();
+        constraints.add(snapshot.getConstraint("ipInt", Condition.gte, 5L));
+        assertEquals(5, snapshot.getVertCountByConstraints(constraints));
+        assertEquals(6, inMemConn.getVertCountByConstraints(constraints));
+
+        //the snapshot can't be changed, not even through its vertex maps
+        try {
+            snapshot.addVertex(new HashMap<String, Object>());
+            fail("expected the snapshot to be read-only");
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+        try {
+            snapshot.removeVertByID(ids.get(1));
+            fail("expected the snapshot to be read-only");
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+        try {
+            snapshot.getVertByID(ids.get(1)).put("name", "changed");
+            fail("expected the snapshot's vertices to be read-only");
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+        assertEquals(10, snapshot.getVertCount());
+
+        //a later snapshot sees the changes
+        InMemoryDBConnection snapshot2 = inMemConn.snapshot();
+        assertEquals(10, snapshot2.getVertCount());
+        assertEquals("vert renamed", snapshot2.getVertByID(ids.get(0)).get("name"));
+        inMemConn.removeAllVertices();
+        assertEquals(10, snapshot2.getVertCount());
+        assertEquals(7, snapshot2.getEdgeCount());
+        assertEquals(10, snapshot.getVertCount());
+    }
+
+    /**
+     * Tests that a change after a snapshot only copies the parts of the graph's structures which it changes,
+     * rather than the whole graph
+     */
+    public void testSnapshotCopiesOnlyChangedParts()
+    {
+        InMemoryDBConnection inMemConn = (InMemoryDBConnection)conn;
+        inMemConn.buildIndex("config/stucco_orientdb_indexing.json");
+        List<String> ids = new ArrayList<String>();
+        for(int i=0; i<5000; i++){
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "vert " + i);
+            vert.put("vertexType", "IP");
+            vert.put("ipInt", (long)i);
+            ids.add(inMemConn.addVertex(vert));
+            if(i > 0){
+                inMemConn.addEdge(ids.get(i), ids.get(i - 1), "next");
+            }
+        }
+        inMemConn.buildIntervalIndex("IP", "ipInt", "ipInt");
+        assertEquals(Arrays.asList(ids.get(7)), inMemConn.getVertIDsByRangeContaining("IP", "ipInt", "ipInt", 7));
+
+        //a new edge copies a chunk of each edge and degree list, a segment of the edge key index,
+        //and the adjacency entries of its two vertices, but nothing of the vertices or their indexes
+        InMemoryDBConnection snapshot = inMemConn.snapshot();
+        inMemConn.addEdge(ids.get(10), ids.get(20), "other");
+        Map<String, Integer> expected = new TreeMap<String, Integer>();
+        expected.put("edgeOutVerts", 1);
+        expected.put("edgeInVerts", 1);
+        expected.put("edgeRelations", 1);
+        expected.put("outDegrees", 1);
+        expected.put("inDegrees", 1);
+        expected.put("outEdgeNums", 1);
+        expected.put("inEdgeNums", 1);
+        expected.put("edgeKeyIndex", 1);
+        assertEquals(expected, inMemConn.countCopiedParts(snapshot));
+        assertEquals(0, snapshot.getEdgeCountByRelation("other"));
+
+        //a new vertex copies a segment or chunk of the vertex structures, and only the postings and indexes it is added to
+        snapshot = inMemConn.snapshot();
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "vert new");
+        vert.put("vertexType", "IP");
+        vert.put("ipInt", 7L);
+        inMemConn.addVertex(vert);
+        expected.clear();
+        expected.put("vertNums", 1);
+        expected.put("vertIDs", 1);
+        expected.put("outDegrees", 1);
+        expected.put("inDegrees", 1);
+        expected.put("hash:name", 1);
+        expected.put("hash:vertexType", 1);
+        expected.put("hash:ipInt", 1);
+        expected.put("range:ipInt", 1);
+        expected.put("interval:[IP, ipInt, ipInt]", 1);
+        assertEquals(expected, inMemConn.countCopiedParts(snapshot));
+        assertEquals(1, snapshot.getVertIDsByRangeContaining("IP", "ipInt", "ipInt", 7).size());
+        assertEquals(2, inMemConn.getVertIDsByRangeContaining("IP", "ipInt", "ipInt", 7).size());
+
+        //a vertex of another type doesn't copy the interval index
+        snapshot = inMemConn.snapshot();
+        vert = new HashMap<String, Object>();
+        vert.put("name", "host");
+        vert.put("vertexType", "Host");
+        inMemConn.addVertex(vert);
+        assertFalse(inMemConn.countCopiedParts(snapshot).containsKey("interval:[IP, ipInt, ipInt]"));
+        assertFalse(inMemConn.countCopiedParts(snapshot).containsKey("range:ipInt"));
+        assertEquals(5001, snapshot.getVertCount());
+        assertEquals(5002, inMemConn.getVertCount());
+    }
+
+    /**
+     * Tests that substring constraints on a FULLTEXT indexed property give the same results as a scan,
+     * as the vertices are added, updated and removed
+     */
+    public void testSubstringIndex() throws IOException
+    {
+        String config = "{\"indexes\": [{\"type\": \"FULLTEXT\", \"keys\": [{\"name\": \"description\", \"class\": \"String\"}]}]}";
+        File configFile = File.createTempFile("inmemory_index", ".json");
+        configFile.deleteOnExit();
+        PrintStream out = new PrintStream(configFile);
+        out.print(config);
+        out.close();
+
+        String[] descriptions = {"buffer overflow in the kernel", "heap overflow", "SQL injection in login form",
+                "cross-site scripting", "overflowing log", "ov", "kernel panic"};
+        Map<String, String> ids = new HashMap<String, String>();
+        for(int i=0; i<descriptions.length; i++){
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "vuln " + i);
+            vert.put("vertexType", "Vulnerability");
+            vert.put("description", descriptions[i]);
+            ids.put(descriptions[i], conn.addVertex(vert));
+        }
+        //some vertices are indexed when the index is built, the rest as they are added
+        conn.buildIndex(configFile.getPath());
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "vuln later");
+        vert.put("vertexType", "Vulnerability");
+        vert.put("description", "integer overflow in parser");
+        ids.put("integer overflow in parser", conn.addVertex(vert));
+        vert = new HashMap<String, Object>();
+        vert.put("name", "not a string");
+        vert.put("vertexType", "Vulnerability");
+        vert.put("description", 42L);
+        conn.addVertex(vert);
+
+        assertEquals(new HashSet<String>(Arrays.asList(ids.get("buffer overflow in the kernel"), ids.get("heap overflow"),
+                ids.get("overflowing log"), ids.get("integer overflow in parser"))), substringMatches("description", "overflow"));
+        assertEquals(new HashSet<String>(Arrays.asList(ids.get("buffer overflow in the kernel"), ids.get("kernel panic"))),
+                substringMatches("description", "kernel"));
+        //short values can't use the trigram index, so are scanned
+        assertEquals(5, substringMatches("description", "ov").size());
+        assertEquals(0, substringMatches("description", "overflowed").size());
+        assertEquals(0, substringMatches("description", "zzz").size());
+        //matching is case sensitive, as for String.contains
+        assertEquals(1, substringMatches("description", "SQL").size());
+        assertEquals(0, substringMatches("description", "sql").size());
+
+        //combined with another constraint
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("description", Condition.substring, "overflow"));
+        constraints.add(conn.getConstraint("name", Condition.eq, "vuln 1"));
+        assertEquals(Arrays.asList(ids.get("heap overflow")), conn.getVertIDsByConstraints(constraints));
+
+        //updates and removals move the vertices in the index
+        Map<String, Object> newProps = new HashMap<String, Object>();
+        newProps.put("description", "stack smashing");
+        conn.updateVertex(ids.get("heap overflow"), newProps);
+        conn.removeVertByID(ids.get("overflowing log"));
+        assertEquals(new HashSet<String>(Arrays.asList(ids.get("buffer overflow in the kernel"), ids.get("integer overflow in parser"))),
+                substringMatches("description", "overflow"));
+        assertEquals(new HashSet<String>(Arrays.asList(ids.get("heap overflow"))), substringMatches("description", "smash"));
+        assertEquals(3, conn.getVertCountByConstraints(Arrays.asList(conn.getConstraint("description", Condition.substring, "in "))));
+    }
+
+    private Set<String> substringMatches(String prop, String value)
+    {
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint(prop, Condition.substring, value));
+        return new HashSet<String>(conn.getVertIDsByConstraints(constraints));
+    }
+
+    /**
+     * Tests that contains constraints on an element indexed set property are answered from the index,
+     * including after updates which merge new elements into the sets
+     */
+    public void testElementIndex() throws IOException
+    {
+        String config = "{\"indexes\": [{\"type\": \"NOTUNIQUE\", \"keys\": [{\"name\": \"source\", \"class\": \"EMBEDDEDSET\"}]}]}";
+        File configFile = File.createTempFile("inmemory_index", ".json");
+        configFile.deleteOnExit();
+        PrintStream out = new PrintStream(configFile);
+        out.print(config);
+        out.close();
+
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "a");
+        vert.put("vertexType", "Software");
+        vert.put("source", new String[] {"NVD", "CVE"});
+        String id_a = conn.addVertex(vert);
+        conn.buildIndex(configFile.getPath());
+        vert = new HashMap<String, Object>();
+        vert.put("name", "b");
+        vert.put("vertexType", "Software");
+        vert.put("source", new HashSet<String>(Arrays.asList("NVD")));
+        String id_b = conn.addVertex(vert);
+        vert = new HashMap<String, Object>();
+        vert.put("name", "c");
+        vert.put("vertexType", "Host");
+        vert.put("source", "Situ");
+        String id_c = conn.addVertex(vert);
+
+        assertEquals(new HashSet<String>(Arrays.asList(id_a, id_b)), containsMatches("source", "NVD"));
+        assertEquals(new HashSet<String>(Arrays.asList(id_a)), containsMatches("source", "CVE"));
+        assertEquals(0, containsMatches("source", "Other").size());
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("source", Condition.contains, "NVD"));
+        constraints.add(conn.getConstraint("name", Condition.eq, "b"));
+        assertEquals(Arrays.asList(id_b), conn.getVertIDsByConstraints(constraints));
+
+        //updates merge new elements into the set, keeping the old ones
+        Map<String, Object> newProps = new HashMap<String, Object>();
+        newProps.put("source", new String[] {"CVE", "Metasploit"});
+        conn.updateVertex(id_b, newProps);
+        assertEquals(new HashSet<String>(Arrays.asList("NVD", "CVE", "Metasploit")), conn.getVertByID(id_b).get("source"));
+        assertEquals(new HashSet<String>(Arrays.asList(id_a, id_b)), containsMatches("source", "NVD"));
+        assertEquals(new HashSet<String>(Arrays.asList(id_a, id_b)), containsMatches("source", "CVE"));
+        assertEquals(new HashSet<String>(Arrays.asList(id_b)), containsMatches("source", "Metasploit"));
+        //a single value is not a set, so doesn't contain anything, as when the vertices are scanned
+        assertEquals(0, containsMatches("source", "Situ").size());
+        assertEquals("Situ", conn.getVertByID(id_c).get("source"));
+
+        conn.removeVertByID(id_a);
+        assertEquals(new HashSet<String>(Arrays.asList(id_b)), containsMatches("source", "NVD"));
+        assertEquals(1, conn.getVertCountByConstraints(Arrays.asList(conn.getConstraint("source", Condition.contains, "CVE"))));
+    }
+
+    private Set<String> containsMatches(String prop, String value)
+    {
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint(prop, Condition.contains, value));
+        return new HashSet<String>(conn.getVertIDsByConstraints(constraints));
+    }
+
+    /**
+     * Tests that the vertices returned by getVertByID can't be changed, including their set values
+     */
+    public void testReadOnlyVertex()
+    {
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "a");
+        vert.put("vertexType", "Software");
+        vert.put("source", new String[] {"NVD"});
+        vert.put("seen", new Date(1000L));
+        Set<String> aliases = new HashSet<String>(Arrays.asList("a1"));
+        vert.put("aliases", aliases);
+        String id_a = conn.addVertex(vert);
+
+        //changing the added map, or its values, doesn't change the stored vertex
+        vert.put("name", "changed");
+        aliases.add("a2");
+        assertEquals("a", conn.getVertByID(id_a).get("name"));
+        assertEquals(new HashSet<String>(Arrays.asList("a1")), conn.getVertByID(id_a).get("aliases"));
+
+        Map<String, Object> view = conn.getVertByID(id_a);
+        assertTrue(view instanceof ReadOnlyVertex);
+        assertSame(view, ReadOnlyVertex.of(view));
+        try {
+            view.put("name", "b");
+            fail("expected the vertex to be read-only");
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+        try {
+            view.remove("name");
+            fail("expected the vertex to be read-only");
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+        try {
+            ((Set<Object>)view.get("source")).add("CVE");
+            fail("expected the vertex's sets to be read-only");
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+        try {
+            view.entrySet().iterator().next().setValue("b");
+            fail("expected the vertex's entries to be read-only");
+        } catch (UnsupportedOperationException e) {
+            //expected
+        }
+        ((Date)view.get("seen")).setTime(2000L);
+        assertEquals(new Date(1000L), conn.getVertByID(id_a).get("seen"));
+        assertEquals(5, view.size());
+        assertEquals(new HashSet<String>(Arrays.asList("NVD")), conn.getVertByID(id_a).get("source"));
+
+        //the indexes are unchanged
+        List<DBConstraint> constraints = new LinkedList<DBConstraint>();
+        constraints.add(conn.getConstraint("name", Condition.eq, "a"));
+        assertEquals(Arrays.asList(id_a), conn.getVertIDsByConstraints(constraints));
+
+        //with the default storage, a returned vertex is not changed by later updates
+        Map<String, Object> newProps = new HashMap<String, Object>();
+        newProps.put("name", "renamed");
+        conn.updateVertex(id_a, newProps);
+        assertEquals("renamed", conn.getVertByID(id_a).get("name"));
+        if(((InMemoryDBConnection)conn).hasCopyOnWriteVertices()){
+            assertEquals("a", view.get("name"));
+        }
+
+        //nor by an update of several properties at once
+        Map<String, Object> renamed = conn.getVertByID(id_a);
+        newProps = new HashMap<String, Object>();
+        newProps.put("name", "b");
+        newProps.put("description", "updated twice");
+        newProps.put("seen", new Date(3000L));
+        conn.updateVertex(id_a, newProps);
+        Map<String, Object> updated = conn.getVertByID(id_a);
+        assertEquals("b", updated.get("name"));
+        assertEquals("updated twice", updated.get("description"));
+        assertEquals(new Date(3000L), updated.get("seen"));
+        assertEquals(6, updated.size());
+        if(((InMemoryDBConnection)conn).hasCopyOnWriteVertices()){
+            assertEquals("renamed", renamed.get("name"));
+            assertNull(renamed.get("description"));
+            assertEquals(new Date(1000L), renamed.get("seen"));
+        }
+        constraints.clear();
+        constraints.add(conn.getConstraint("description", Condition.eq, "updated twice"));
+        assertEquals(Arrays.asList(id_a), conn.getVertIDsByConstraints(constraints));
+    }
+
+    /**
+     * Tests that parallel scans give the same results, in the same order, as scans on one thread
+     */
+    public void testParallelScan()
+    {
+        InMemoryDBConnection graph = (InMemoryDBConnection)conn;
+        for(int i=0; i<5000; i++){
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "vert " + i);
+            vert.put("vertexType", (i % 3 == 0) ? "Host" : "Software");
+            vert.put("count", (long)(i % 100));
+            graph.addVertex(vert);
+        }
+        List<List<DBConstraint>> queries = new ArrayList<List<DBConstraint>>();
+        queries.add(Arrays.asList(graph.getConstraint("count", Condition.gt, 90L)));
+        queries.add(Arrays.asList(graph.getConstraint("name", Condition.substring, "7"),
+                graph.getConstraint("vertexType", Condition.neq, "Host")));
+        queries.add(Arrays.asList(graph.getConstraint("name", Condition.substring, "no such vert")));
+        List<List<String>> expected = new ArrayList<List<String>>();
+        List<Long> expectedCounts = new ArrayList<Long>();
+        for(List<DBConstraint> constraints : queries){
+            expected.add(graph.getVertIDsByConstraints(constraints));
+            expectedCounts.add(graph.getVertCountByConstraints(constraints));
+        }
+        assertEquals(450L, (long)expectedCounts.get(0));
+        assertEquals(0L, (long)expectedCounts.get(2));
+
+        graph.setScanParallelism(4, 100);
+        assertEquals(4, graph.getScanParallelism());
+        for(int i=0; i<queries.size(); i++){
+            assertEquals(expected.get(i), graph.getVertIDsByConstraints(queries.get(i)));
+            assertEquals(expectedCounts.get(i), (Long)graph.getVertCountByConstraints(queries.get(i)));
+        }
+
+        //scans of index candidates are split too
+        graph.buildIndex("config/stucco_orientdb_indexing.json");
+        List<DBConstraint> constraints = Arrays.asList(graph.getConstraint("vertexType", Condition.eq, "Software"),
+                graph.getConstraint("count", Condition.lte, 10L));
+        List<String> parallelIDs = graph.getVertIDsByConstraints(constraints);
+        graph.setScanParallelism(1, 100);
+        assertEquals(graph.getVertIDsByConstraints(constraints), parallelIDs);
+        assertEquals(367, parallelIDs.size());
+
+        try {
+            graph.setScanParallelism(0, 100);
+            fail("expected the parallelism to be rejected");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    /**
+     * Tests the memory report's counts and estimates, and its MBean
+     */
+    public void testMemoryReport() throws Exception
+    {
+        InMemoryDBConnection graph = (InMemoryDBConnection)conn;
+        List<String> hostIDs = new ArrayList<String>();
+        for(int i=0; i<4; i++){
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "host " + i);
+            vert.put("vertexType", "Host");
+            vert.put("ipInt", (long)i);
+            hostIDs.add(graph.addVertex(vert));
+        }
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "sw");
+        vert.put("vertexType", "Software");
+        vert.put("source", new HashSet<String>(Arrays.asList("NVD", "CVE")));
+        vert.put("description", "a description long enough to be counted");
+        String swID = graph.addVertex(vert);
+        vert = new HashMap<String, Object>();
+        vert.put("name", "untyped");
+        graph.addVertex(vert);
+        for(String hostID : hostIDs){
+            graph.addEdge(swID, hostID, "Runs_On");
+        }
+
+        MemoryReport report = graph.getMemoryReport();
+        assertEquals(6, report.getVertexCount());
+        assertEquals(4, report.getEdgeCount());
+        assertEquals(Arrays.asList(MemoryReport.NO_TYPE, "Host", "Software"), new ArrayList<String>(report.getTypes().keySet()));
+        MemoryReport.TypeUsage hosts = report.getTypes().get("Host");
+        assertEquals(4, hosts.getVertexCount());
+        assertEquals(3.0, hosts.getAverageProperties());
+        assertEquals(1.0, hosts.getAverageOutEdges());
+        assertEquals(0.0, hosts.getAverageInEdges());
+        MemoryReport.TypeUsage software = report.getTypes().get("Software");
+        assertEquals(4.0, software.getAverageProperties());
+        assertEquals(4.0, software.getAverageInEdges());
+        assertEquals(17.0 / 6, report.getAverageProperties(), 1e-9);
+        assertTrue(software.getBytes() > hosts.getBytes() / 4);
+        assertEquals(hosts.getBytes() + software.getBytes() + report.getTypes().get(MemoryReport.NO_TYPE).getBytes(), report.getVertexBytes());
+        assertTrue(report.getEdgeBytes() > 0);
+        assertEquals(Arrays.asList("hash:name"), new ArrayList<String>(report.getIndexBytes().keySet()));
+        assertTrue(report.getInternedStrings() > 0);
+        assertTrue(report.getInternedStringBytes() > 0);
+        assertEquals(report.getVertexBytes() - report.getOffHeapBytes() + report.getEdgeBytes() + report.getTotalIndexBytes(),
+                report.getTotalBytes());
+
+        //each index is reported, and grows with the graph
+        graph.buildIndex("config/stucco_orientdb_indexing.json");
+        report = graph.getMemoryReport();
+        long nameBytes = report.getIndexBytes().get("hash:name");
+        assertTrue(report.getIndexBytes().containsKey("hash:vertexType"));
+        assertTrue(report.getIndexBytes().containsKey("range:ipInt"));
+        for(int i=0; i<100; i++){
+            vert = new HashMap<String, Object>();
+            vert.put("name", "more " + i);
+            vert.put("vertexType", "Host");
+            graph.addVertex(vert);
+        }
+        assertTrue(graph.getMemoryReport().getIndexBytes().get("hash:name") > nameBytes);
+
+        //JMX threads read the MBean, so only the thread-safe connection can register one
+        if(!(graph instanceof ConcurrentInMemoryDBConnection)){
+            try {
+                graph.registerMBean("testMemoryReport");
+                fail("expected only a thread-safe connection to register the MBean");
+            } catch (UnsupportedOperationException e) {
+                //expected
+            }
+        }
+    }
+
+    /**
+     * Tests that a vertex returned by getVertByID never shows another vertex,
+     * once it is removed and its number is reused
+     */
+    public void testRemovedVertexReuse()
+    {
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "alice");
+        vert.put("vertexType", "Account");
+        String id_alice = conn.addVertex(vert);
+        Map<String, Object> alice = conn.getVertByID(id_alice);
+        assertEquals("alice", alice.get("name"));
+
+        conn.removeVertByID(id_alice);
+        vert = new HashMap<String, Object>();
+        vert.put("name", "bob");
+        vert.put("vertexType", "Account");
+        String id_bob = conn.addVertex(vert);
+        assertEquals("bob", conn.getVertByID(id_bob).get("name"));
+        assertNull(conn.getVertByID(id_alice));
+
+        if(((InMemoryDBConnection)conn).hasCopyOnWriteVertices()){
+            //the map is kept as it was
+            assertEquals("alice", alice.get("name"));
+            assertEquals(2, alice.size());
+        }else{
+            //the view is of a removed vertex, so is empty
+            assertNull(alice.get("name"));
+            assertFalse(alice.containsKey("vertexType"));
+            assertTrue(alice.isEmpty());
+        }
+
+        //a view of a replaced vertex (with the same ID) shows the new properties, not another vertex's
+        Map<String, Object> bob = conn.getVertByID(id_bob);
+        Map<String, Object> newProps = new HashMap<String, Object>();
+        newProps.put("name", "robert");
+        conn.updateVertex(id_bob, newProps);
+        assertEquals("robert", conn.getVertByID(id_bob).get("name"));
+        assertTrue(bob.get("name").equals("bob") || bob.get("name").equals("robert"));
+    }
 }
 
 
@@ -0,0 +1,116 @@
+package gov.pnnl.stucco.dbconnect.inmemory;
+
+
+import gov.pnnl.stucco.dbconnect.DBConnectionTestInterface;
+
+import java.io.File;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Unit test for the in-memory DBConnection with off-heap vertex storage.
+ * Runs all of the InMemoryDBConnectionTest tests, plus some for the off-heap records themselves.
+ */
+public class OffHeapInMemoryDBConnectionTest
+extends InMemoryDBConnectionTest
+{
+    /**
+     * Create the test case
+     *
+     * @param testName name of the test case
+     */
+    public OffHeapInMemoryDBConnectionTest( String testName )
+    {
+        super( testName );
+    }
+
+    @Override
+    protected DBConnectionTestInterface newConnection(){
+        return new InMemoryDBConnection((File)null);
+    }
+
+    /**
+     * Tests that values come back as the same types they were stored as, and that views show later updates
+     */
+    public void testRecordTypes()
+    {
+        DBConnectionTestInterface conn = newConnection();
+        Set<String> sources = new HashSet<String>();
+        sources.add("CVE");
+        sources.add("NVD");
+
+        Map<String, Object> vert = new HashMap<String, Object>();
+        vert.put("name", "first");
+        vert.put("vertexType", "Host");
+        vert.put("count", 5L);
+        vert.put("ratio", 0.5);
+        vert.put("seen", new Date(1000L));
+        vert.put("source", sources);
+        String id_first = conn.addVertex(vert);
+
+        Map<String, Object> first = conn.getVertByID(id_first);
+        assertEquals(6, first.size());
+        assertEquals(5L, first.get("count"));
+        assertEquals(0.5, first.get("ratio"));
+        assertEquals(new Date(1000L), first.get("seen"));
+        assertEquals(sources, first.get("source"));
+        assertEquals("Host", first.get("vertexType"));
+        assertNull(first.get("missing"));
+
+        //views are read-only, but show later updates
+        try{
+            first.put("count", 8L);
+            fail("expected the vertex view to be read-only");
+        }catch(UnsupportedOperationException e){
+            //expected
+        }
+        Map<String, Object> newProps = new HashMap<String, Object>();
+        newProps.put("count", 8L);
+        conn.updateVertex(id_first, newProps);
+        assertEquals(8L, first.get("count"));
+        assertEquals("first", first.get("name"));
+
+        conn.removeVertByID(id_first);
+        assertNull(conn.getVertByID(id_first));
+    }
+
+    /**
+     * Tests memory mapped segments, and that the space of old records is reclaimed after many updates
+     */
+    public void testMappedSegments()
+    {
+        File dir = new File("target/test-offheap");
+        OffHeapVertexStore store = new OffHeapVertexStore(dir);
+        InMemoryDBConnection conn = new InMemoryDBConnection(store);
+        Map<String, String> names = new HashMap<String, String>();
+        for(int i=0; i<5000; i++){
+            Map<String, Object> vert = new HashMap<String, Object>();
+            vert.put("name", "vert " + i);
+            vert.put("vertexType", "Type" + (i % 3));
+            vert.put("count", 0L);
+            names.put(conn.addVertex(vert), "vert " + i);
+        }
+        //the segment files are only kept open, not in the directory
+        assertEquals(0, dir.list().length);
+
+        long liveBytes = store.getLiveBytes();
+        for(int round=1; round<=50; round++){
+            for(String id : names.keySet()){
+                Map<String, Object> newProps = new HashMap<String, Object>();
+                newProps.put("count", (long)round);
+                conn.updateVertex(id, newProps);
+            }
+        }
+        assertEquals(liveBytes, store.getLiveBytes());
+        assertTrue(store.getCapacityBytes() < 16 * liveBytes);
+        assertEquals(store.getCapacityBytes(), conn.getMemoryReport().getOffHeapBytes());
+        for(Map.Entry<String, String> entry : names.entrySet()){
+            Map<String, Object> vert = conn.getVertByID(entry.getKey());
+            assertEquals(entry.getValue(), vert.get("name"));
+            assertEquals(50L, vert.get("count"));
+        }
+    }
+}